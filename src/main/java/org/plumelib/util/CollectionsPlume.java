@@ -237,9 +237,12 @@ public final class CollectionsPlume {
     }
   }
 
-  /** All calls to deepEquals that are currently underway. */
-  private static HashSet<WeakIdentityPair<Object, Object>> deepEqualsUnderway =
-      new HashSet<WeakIdentityPair<Object, Object>>();
+  /**
+   * All calls to deepEquals that are currently underway, as a map from their arguments to
+   * Boolean.TRUE. Looking up a pair of arguments allocates nothing.
+   */
+  private static WeakIdentityPairMap<Object, Object, Boolean> deepEqualsUnderway =
+      new WeakIdentityPairMap<>();
 
   /**
    * Determines deep equality for the elements.
@@ -296,8 +299,7 @@ public final class CollectionsPlume {
       return Arrays.equals((short[]) o1, (short[]) o2);
     }
 
-    WeakIdentityPair<Object, Object> mypair = new WeakIdentityPair<>(o1, o2);
-    if (deepEqualsUnderway.contains(mypair)) {
+    if (deepEqualsUnderway.containsKey(o1, o2)) {
       return true;
     }
 
@@ -312,7 +314,7 @@ public final class CollectionsPlume {
         return false;
       }
       try {
-        deepEqualsUnderway.add(mypair);
+        deepEqualsUnderway.put(o1, o2, Boolean.TRUE);
         for (int i = 0; i < l1.size(); i++) {
           Object e1 = l1.get(i);
           Object e2 = l2.get(i);
@@ -321,7 +323,7 @@ public final class CollectionsPlume {
           }
         }
       } finally {
-        deepEqualsUnderway.remove(mypair);
+        deepEqualsUnderway.remove(o1, o2);
       }
 
       return true;
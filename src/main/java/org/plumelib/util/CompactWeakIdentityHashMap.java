@@ -0,0 +1,655 @@
+package org.plumelib.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A map with weak keys that are compared by identity, like {@link WeakIdentityHashMap}, but with a
+ * smaller footprint per mapping. It is intended for very large side tables that associate data with
+ * objects.
+ *
+ * <p>WeakIdentityHashMap allocates, for each mapping, an entry object that is a weak reference and
+ * also holds the value, the hash code, and the next entry of its bucket. This map instead uses open
+ * addressing with linear probing over two parallel arrays, one of keys and one of values. The only
+ * object allocated per mapping is the weak reference to the key, which additionally records the
+ * key's hash code; on a typical 64-bit JVM that field fits in the padding of the weak reference, so
+ * the reference is no larger than a plain {@link WeakReference}. Values are stored directly in the
+ * values array.
+ *
+ * <p>When a key is removed, or is discarded by the garbage collector, its slot becomes a tombstone
+ * so that probe sequences through it are not broken. Insertions reuse tombstones, and when
+ * tombstones occupy a quarter of the table, the stale entries are expunged by rebuilding the table
+ * in place.
+ *
+ * <p>Both null values and the null key are supported. As in WeakIdentityHashMap, the map is not
+ * synchronized, a mapping may disappear at any time after its key becomes weakly reachable, and the
+ * iterators of the collection views are fail-fast. An iterator of this map does not observe
+ * mappings added after the iterator was created.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ * @see WeakIdentityHashMap
+ */
+public final class CompactWeakIdentityHashMap<K, V> extends AbstractMap<K, V>
+    implements Map<K, V> {
+
+  /** The default initial capacity. MUST be a power of two. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+  /** The maximum capacity. MUST be a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** Value representing null keys inside tables. */
+  private static final Object NULL_KEY = new Object();
+
+  /** The contents of a key slot whose mapping has been removed. */
+  private static final Object TOMBSTONE = new Object();
+
+  /**
+   * The keys. Each element is null (never used), {@link #TOMBSTONE}, or a {@link KeyReference} to
+   * the key of the mapping whose value is at the same index of {@link #values}. The length MUST be
+   * a power of two.
+   */
+  private @Nullable Object[] keys;
+
+  /** The values, parallel to {@link #keys}. */
+  private @Nullable Object[] values;
+
+  /**
+   * The number of key references in the table, including those whose keys have been discarded but
+   * not yet expunged.
+   */
+  private int size;
+
+  /** The number of tombstones in the table. */
+  private int tombstones;
+
+  /**
+   * The maximum number of non-null slots (key references and tombstones) before the table is
+   * resized. This is less than the capacity, so every probe sequence ends at a null slot.
+   */
+  private int threshold;
+
+  /** The number of times this map has been structurally modified by its clients. */
+  private int modCount;
+
+  /** Reference queue for the references to discarded keys. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /**
+   * Constructs a new, empty map with the given initial capacity.
+   *
+   * @param initialCapacity the number of mappings the map can hold before it is resized
+   * @throws IllegalArgumentException if the initial capacity is negative
+   */
+  public CompactWeakIdentityHashMap(int initialCapacity) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+    }
+    int capacity = 4;
+    while (capacity < MAXIMUM_CAPACITY && capacity - (capacity >>> 2) <= initialCapacity) {
+      capacity <<= 1;
+    }
+    keys = new Object[capacity];
+    values = new Object[capacity];
+    threshold = capacity - (capacity >>> 2);
+  }
+
+  /** Constructs a new, empty map with the default initial capacity (16). */
+  public CompactWeakIdentityHashMap() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Constructs a new map with the same mappings as the given map.
+   *
+   * @param m the map whose mappings are to be placed in this map
+   */
+  public CompactWeakIdentityHashMap(Map<? extends K, ? extends V> m) {
+    this(Math.max(m.size(), DEFAULT_INITIAL_CAPACITY));
+    putAll(m);
+  }
+
+  /** A weak reference to a key, which records the key's hash code. */
+  private static final class KeyReference extends WeakReference<Object> {
+    /** The hash code of the key, as computed by {@link #hash}. */
+    final int hash;
+
+    /**
+     * Creates a new KeyReference.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the hash code of the key
+     * @param queue the queue with which the reference is registered
+     */
+    KeyReference(Object key, int hash, ReferenceQueue<Object> queue) {
+      super(key, queue);
+      this.hash = hash;
+    }
+  }
+
+  // internal utilities
+
+  /**
+   * Use NULL_KEY for key if it is null.
+   *
+   * @param key a key, or null
+   * @return key if it is non-null, otherwise {@link #NULL_KEY}
+   */
+  @Pure
+  private static @NonNull Object maskNull(@Nullable Object key) {
+    return (key == null ? NULL_KEY : key);
+  }
+
+  /**
+   * Return internal representation of null key back to caller as null.
+   *
+   * @param <K> the type of keys
+   * @param key a key, or {@link #NULL_KEY}
+   * @return null if key is {@link #NULL_KEY}, otherwise key
+   */
+  @SuppressWarnings("unchecked") // every key other than NULL_KEY is a K
+  @Pure
+  private static <K> @Nullable K unmaskNull(Object key) {
+    return (key == NULL_KEY ? null : (K) key);
+  }
+
+  /**
+   * Returns the hash code for a (masked) key. Identity hash codes are spread so that linear probing
+   * does not form long clusters.
+   *
+   * @param key a key, or {@link #NULL_KEY}
+   * @return the hash code of the key
+   */
+  @Pure
+  private static int hash(Object key) {
+    int h = System.identityHashCode(key) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the value at the given index.
+   *
+   * @param i an index of the table
+   * @return the value at index i
+   */
+  @SuppressWarnings("unchecked") // values holds only Vs
+  @Pure
+  private V valueAt(int i) {
+    return (V) values[i];
+  }
+
+  /**
+   * Returns the index of the (masked) key, or -1 if it is not in the table.
+   *
+   * @param key a key, or {@link #NULL_KEY}
+   * @param hash the hash code of the key
+   * @return the index of the key, or -1
+   */
+  @Pure
+  private int indexOf(Object key, int hash) {
+    @Nullable Object[] ks = keys;
+    int mask = ks.length - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      Object slot = ks[i];
+      if (slot == null) {
+        return -1;
+      }
+      if (slot != TOMBSTONE) {
+        KeyReference ref = (KeyReference) slot;
+        if (ref.hash == hash && ref.get() == key) {
+          return i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Makes the slot at the given index a tombstone.
+   *
+   * @param i an index of the table whose slot holds a key reference
+   */
+  private void removeAt(int i) {
+    keys[i] = TOMBSTONE;
+    values[i] = null;
+    size--;
+    tombstones++;
+  }
+
+  /**
+   * Expunges stale entries: makes the slots of discarded keys tombstones, and rebuilds the table if
+   * there are too many tombstones.
+   */
+  @SuppressWarnings("allcheckers:purity") // actually has side effects due to weak pointers
+  @SideEffectFree
+  private void expungeStaleEntries() {
+    Reference<?> r;
+    while ((r = queue.poll()) != null) {
+      KeyReference ref = (KeyReference) r;
+      @Nullable Object[] ks = keys;
+      int mask = ks.length - 1;
+      for (int i = ref.hash & mask; ; i = (i + 1) & mask) {
+        Object slot = ks[i];
+        if (slot == ref) {
+          removeAt(i);
+          break;
+        }
+        if (slot == null) {
+          // The reference was already dropped by clear() or by a rebuild of the table.
+          break;
+        }
+      }
+    }
+    if (tombstones > (keys.length >>> 2)) {
+      rebuild(keys.length);
+    }
+  }
+
+  /**
+   * Copies the live mappings into new arrays of the given length, dropping tombstones and
+   * references to discarded keys. This does not change {@link #modCount}, because it does not
+   * change the mappings; iterators keep walking the old keys array, but look values up in the new
+   * arrays.
+   *
+   * @param newCapacity the new capacity, a power of two
+   */
+  private void rebuild(int newCapacity) {
+    @Nullable Object[] oldKeys = keys;
+    @Nullable Object[] oldValues = values;
+    @Nullable Object[] newKeys = new Object[newCapacity];
+    @Nullable Object[] newValues = new Object[newCapacity];
+    int mask = newCapacity - 1;
+    int newSize = 0;
+    for (int j = 0; j < oldKeys.length; j++) {
+      Object slot = oldKeys[j];
+      if (slot == null || slot == TOMBSTONE) {
+        continue;
+      }
+      KeyReference ref = (KeyReference) slot;
+      if (ref.get() == null) {
+        continue;
+      }
+      int i = ref.hash & mask;
+      while (newKeys[i] != null) {
+        i = (i + 1) & mask;
+      }
+      newKeys[i] = ref;
+      newValues[i] = oldValues[j];
+      newSize++;
+    }
+    keys = newKeys;
+    values = newValues;
+    size = newSize;
+    tombstones = 0;
+    threshold = newCapacity - (newCapacity >>> 2);
+  }
+
+  /**
+   * Returns the number of key-value mappings in this map. This result is a snapshot, and may not
+   * reflect unprocessed entries that will be removed before next attempted access because they are
+   * no longer referenced.
+   */
+  @Pure
+  @Override
+  public int size() {
+    if (size == 0) {
+      return 0;
+    }
+    expungeStaleEntries();
+    return size;
+  }
+
+  @Pure
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Pure
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    Object k = maskNull(key);
+    expungeStaleEntries();
+    int i = indexOf(k, hash(k));
+    return (i < 0) ? null : valueAt(i);
+  }
+
+  @Pure
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    Object k = maskNull(key);
+    expungeStaleEntries();
+    return indexOf(k, hash(k)) >= 0;
+  }
+
+  @Pure
+  @Override
+  public boolean containsValue(@Nullable Object value) {
+    expungeStaleEntries();
+    @Nullable Object[] ks = keys;
+    @Nullable Object[] vs = values;
+    for (int i = 0; i < ks.length; i++) {
+      Object slot = ks[i];
+      if (slot != null && slot != TOMBSTONE && ((KeyReference) slot).get() != null) {
+        Object v = vs[i];
+        if (value == null ? v == null : value.equals(v)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public @Nullable V put(K key, V value) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    expungeStaleEntries();
+    @Nullable Object[] ks = keys;
+    int mask = ks.length - 1;
+    int free = -1;
+    int i;
+    for (i = h & mask; ; i = (i + 1) & mask) {
+      Object slot = ks[i];
+      if (slot == null) {
+        break;
+      }
+      if (slot == TOMBSTONE) {
+        if (free < 0) {
+          free = i;
+        }
+      } else {
+        KeyReference ref = (KeyReference) slot;
+        if (ref.hash == h && ref.get() == k) {
+          V oldValue = valueAt(i);
+          values[i] = value;
+          return oldValue;
+        }
+      }
+    }
+    if (free < 0) {
+      if (size + tombstones >= threshold) {
+        if (keys.length == MAXIMUM_CAPACITY && tombstones == 0) {
+          throw new IllegalStateException("CompactWeakIdentityHashMap is full");
+        }
+        rebuild(keys.length == MAXIMUM_CAPACITY ? keys.length : keys.length << 1);
+        ks = keys;
+        mask = ks.length - 1;
+        for (i = h & mask; ks[i] != null; i = (i + 1) & mask) {}
+      }
+      free = i;
+    } else {
+      tombstones--;
+    }
+    keys[free] = new KeyReference(k, h, queue);
+    values[free] = value;
+    size++;
+    modCount++;
+    return null;
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    Object k = maskNull(key);
+    expungeStaleEntries();
+    int i = indexOf(k, hash(k));
+    if (i < 0) {
+      return null;
+    }
+    V oldValue = valueAt(i);
+    Object ref = keys[i];
+    assert ref != null : "@AssumeAssertion(nullness): indexOf returns the index of a reference";
+    ((KeyReference) ref).clear();
+    removeAt(i);
+    modCount++;
+    return oldValue;
+  }
+
+  @Override
+  public void clear() {
+    // Clear out the reference queue.  We don't need to expunge entries since the table is going
+    // to be cleared.
+    while (queue.poll() != null) {}
+
+    modCount++;
+    Arrays.fill(keys, null);
+    Arrays.fill(values, null);
+    size = 0;
+    tombstones = 0;
+
+    // Allocation of array may have caused GC, which may have caused additional entries to go
+    // stale.  Removing these entries from the reference queue will make them eligible for
+    // reclamation.
+    while (queue.poll() != null) {}
+  }
+
+  // Views
+
+  /** The entry set view, or null if it has not yet been created. */
+  private transient @Nullable Set<Map.Entry<K, V>> entrySet = null;
+
+  @SideEffectFree
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    Set<Map.Entry<K, V>> es = entrySet;
+    if (es == null) {
+      es = new EntrySet();
+      entrySet = es;
+    }
+    return es;
+  }
+
+  /** The entry set view. */
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Pure
+    @Override
+    public boolean contains(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Object k = maskNull(e.getKey());
+      expungeStaleEntries();
+      int i = indexOf(k, hash(k));
+      if (i < 0) {
+        return false;
+      }
+      Object v = values[i];
+      return (v == null ? e.getValue() == null : v.equals(e.getValue()));
+    }
+
+    @Override
+    public boolean remove(@Nullable Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      CompactWeakIdentityHashMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+      return true;
+    }
+
+    @Pure
+    @Override
+    public int size() {
+      return CompactWeakIdentityHashMap.this.size();
+    }
+
+    @Override
+    public void clear() {
+      CompactWeakIdentityHashMap.this.clear();
+    }
+  }
+
+  /** An iterator over the mappings of the map. */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+    /**
+     * The keys when the iterator was created. The values are read from {@link #values}, so that the
+     * iterator sees a value that was replaced after the table was rebuilt.
+     */
+    private final @Nullable Object[] iterKeys;
+
+    /** The index of the next slot to examine. */
+    private int index = 0;
+
+    /** The modCount that the iterator expects. */
+    private int expectedModCount = modCount;
+
+    /**
+     * Strong reference to the (masked) key of the next entry, needed to avoid disappearance of the
+     * key between hasNext and next. Null if hasNext has not found the next entry.
+     */
+    private @Nullable Object nextKey = null;
+
+    /** The value of the next entry. */
+    private @Nullable Object nextValue = null;
+
+    /** The (masked) key of the entry most recently returned by next, or null. */
+    private @Nullable Object lastKey = null;
+
+    /** Creates a new EntryIterator. */
+    EntryIterator() {
+      expungeStaleEntries();
+      iterKeys = keys;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (nextKey == null && index < iterKeys.length) {
+        Object slot = iterKeys[index];
+        if (slot != null && slot != TOMBSTONE) {
+          Object k = ((KeyReference) slot).get();
+          if (k != null) {
+            @SuppressWarnings("interning:not.interned") // reference equality of tables
+            boolean rebuilt = (iterKeys != keys);
+            int i = rebuilt ? indexOf(k, ((KeyReference) slot).hash) : index;
+            if (i >= 0) {
+              nextKey = k;
+              nextValue = values[i];
+            }
+          }
+        }
+        index++;
+      }
+      return nextKey != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Object k = nextKey;
+      assert k != null : "@AssumeAssertion(nullness): hasNext returned true";
+      lastKey = k;
+      nextKey = null;
+      @SuppressWarnings("unchecked") // values holds only Vs
+      V v = (V) nextValue;
+      nextValue = null;
+      return new IteratorEntry(CompactWeakIdentityHashMap.<K>unmaskNull(k), v);
+    }
+
+    @Override
+    public void remove() {
+      Object k = lastKey;
+      if (k == null) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      CompactWeakIdentityHashMap.this.remove(unmaskNull(k));
+      expectedModCount = modCount;
+      lastKey = null;
+    }
+  }
+
+  /**
+   * An entry returned by the iterator. It compares keys by identity, and its {@code setValue}
+   * method writes through to the map.
+   */
+  private final class IteratorEntry implements Map.Entry<K, V> {
+    /** The key. */
+    private final K key;
+
+    /** The value. */
+    private V value;
+
+    /**
+     * Creates a new IteratorEntry.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    IteratorEntry(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public K getKey() {
+      return key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    @Override
+    public V setValue(V newValue) {
+      V oldValue = value;
+      value = newValue;
+      Object k = maskNull(key);
+      int i = indexOf(k, hash(k));
+      if (i >= 0) {
+        values[i] = newValue;
+      }
+      return oldValue;
+    }
+
+    @Pure
+    @Override
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    public boolean equals(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Object v = e.getValue();
+      return key == e.getKey() && (value == null ? v == null : value.equals(v));
+    }
+
+    @Pure
+    @Override
+    public int hashCode() {
+      return ((key == null ? 0 : System.identityHashCode(key))
+          ^ (value == null ? 0 : value.hashCode()));
+    }
+
+    @SideEffectFree
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+}
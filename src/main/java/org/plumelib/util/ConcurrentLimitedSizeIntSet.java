@@ -0,0 +1,337 @@
+package org.plumelib.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.checkerframework.checker.index.qual.Positive;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A thread-safe version of {@link LimitedSizeIntSet}: it stores up to some maximum number of
+ * unique int values, and if more than that many are added, its representation is nulled and most
+ * operations return a conservative estimate.
+ *
+ * <p>No operation takes a lock. The elements are stored in an open-addressing hash table whose
+ * slots are claimed by compare-and-set and never change afterward, so {@link #add} and {@link
+ * #contains} take constant expected time. Adding the element that exceeds the capacity nulls the
+ * representation atomically; concurrent adds that lose that race have no effect. {@link #clone}
+ * and {@link #addAll} see the elements as of a single moment.
+ *
+ * @see LimitedSizeIntSet
+ */
+public final class ConcurrentLimitedSizeIntSet implements Serializable, Cloneable {
+  // We are Serializable, so we specify a version to allow changes to
+  // method signatures without breaking serialization.  If you add or
+  // remove fields, you should change this number to the current date.
+  static final long serialVersionUID = 20261018L;
+
+  /** The largest permitted capacity, so that the table length does not overflow. */
+  private static final int MAX_CAPACITY = 1 << 29;
+
+  /** The maximum number of values this set can hold; the argument to the constructor. */
+  private final @Positive int maxValues;
+
+  /**
+   * The hash table, with linear probing, or null if the representation is nulled. Each slot is 0 if
+   * it is empty, or else holds an element {@code e} as {@code (1L << 32) | (e & 0xFFFFFFFFL)}. Its
+   * length is a power of 2 that is at least twice {@link #maxValues}.
+   */
+  private volatile @Nullable AtomicLongArray slots;
+
+  /**
+   * The number of claimed slots. It is incremented after a slot is claimed, so it may briefly lag
+   * the table.
+   */
+  private AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Create a new ConcurrentLimitedSizeIntSet that can hold maxValues values.
+   *
+   * @param maxValues the maximum number of values this set will be able to hold; must be positive
+   *     and at most 2<sup>29</sup>
+   */
+  public ConcurrentLimitedSizeIntSet(@Positive int maxValues) {
+    if (!(maxValues > 0 && maxValues <= MAX_CAPACITY)) {
+      throw new IllegalArgumentException("Bad maxValues: " + maxValues);
+    }
+    this.maxValues = maxValues;
+    slots = newTable(maxValues);
+  }
+
+  /**
+   * Returns a new, empty table for a set of the given capacity.
+   *
+   * @param maxValues the maximum number of values the set will be able to hold
+   * @return a new table whose length is the smallest power of 2 that is at least twice maxValues
+   */
+  private static AtomicLongArray newTable(@Positive int maxValues) {
+    return new AtomicLongArray(Integer.highestOneBit(Math.max(2 * maxValues - 1, 1)) << 1);
+  }
+
+  /**
+   * Returns the table slot that represents an element.
+   *
+   * @param elt an element
+   * @return the non-zero slot value for {@code elt}
+   */
+  private static long slotValue(int elt) {
+    return (1L << 32) | (elt & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Returns the hash code of an element, with its bits spread so that nearby values fall into
+   * different slots.
+   *
+   * @param elt an element
+   * @return the spread hash code of {@code elt}
+   */
+  private static int hash(int elt) {
+    int h = elt * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Add an element to this set.
+   *
+   * @param elt the element to add to this set
+   */
+  public void add(int elt) {
+    AtomicLongArray tab = slots;
+    if (tab == null) {
+      return;
+    }
+    long sv = slotValue(elt);
+    int mask = tab.length() - 1;
+    int i = hash(elt) & mask;
+    for (int probes = 0; probes <= mask; ) {
+      long cur = tab.get(i);
+      if (cur == sv) {
+        return;
+      }
+      if (cur == 0) {
+        if (!tab.compareAndSet(i, 0, sv)) {
+          // Another thread claimed the slot; it may have claimed it for elt.
+          continue;
+        }
+        if (count.incrementAndGet() > maxValues) {
+          nullRep();
+        }
+        return;
+      }
+      i = (i + 1) & mask;
+      probes++;
+    }
+    // The table is full, so it holds more than maxValues elements.
+    nullRep();
+  }
+
+  /**
+   * Add all elements of {@code s} to this set.
+   *
+   * @param s the elements to add to this set
+   */
+  public void addAll(ConcurrentLimitedSizeIntSet s) {
+    @SuppressWarnings("interning") // optimization; not a subclass of Collection, though
+    boolean sameObject = (this == s);
+    if (sameObject) {
+      return;
+    }
+    if (repNulled()) {
+      return;
+    }
+    int[] svalues = s.elements();
+    if (svalues == null) {
+      // We don't know whether the elements of this and the argument were
+      // disjoint.  There might be anywhere from max(size(), s.size()) to
+      // (size() + s.size()) elements in the resulting set.
+      if (s.size() > maxValues) {
+        nullRep();
+        return;
+      } else {
+        throw new Error(
+            "Arg is rep-nulled, so we don't know its values and can't add them to this.");
+      }
+    }
+    for (int elt : svalues) {
+      add(elt);
+      if (repNulled()) {
+        return; // optimization, not necessary for correctness
+      }
+    }
+  }
+
+  /**
+   * Returns true if this set contains the given element.
+   *
+   * @param elt the element whose membership to test
+   * @return true if this set contains {@code elt}
+   */
+  public boolean contains(int elt) {
+    AtomicLongArray tab = slots;
+    if (tab == null || count.get() > maxValues) {
+      throw new UnsupportedOperationException();
+    }
+    long sv = slotValue(elt);
+    int mask = tab.length() - 1;
+    int i = hash(elt) & mask;
+    for (int probes = 0; probes <= mask; probes++) {
+      long cur = tab.get(i);
+      if (cur == sv) {
+        return true;
+      }
+      if (cur == 0) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * A lower bound on the number of elements in the set. Returns either the number of elements that
+   * have been inserted in the set, or maxSize(), whichever is less.
+   *
+   * @return a number that is a lower bound on the number of elements added to the set
+   */
+  public int size(@GuardSatisfied ConcurrentLimitedSizeIntSet this) {
+    int n = count.get();
+    return (slots == null || n > maxValues) ? maxValues + 1 : n;
+  }
+
+  /**
+   * An upper bound on how many distinct elements can be individually represented in the set.
+   * Returns maxValues+1 (where maxValues is the argument to the constructor).
+   *
+   * @return maximum capacity of the set representation
+   */
+  public @Positive int maxSize() {
+    return maxValues + 1;
+  }
+
+  /**
+   * Returns true if more elements have been added than this set can contain (which is the integer
+   * that was passed to the constructor when creating this set).
+   *
+   * @return true if this set has been filled to capacity and its internal representation is nulled
+   */
+  public boolean repNulled(@GuardSatisfied ConcurrentLimitedSizeIntSet this) {
+    return slots == null || count.get() > maxValues;
+  }
+
+  /**
+   * Null the representation, which happens when a client tries to add more elements to this set
+   * than it can contain (which is the integer that was passed to the constructor when creating this
+   * set). Adds that are in progress may still store into the discarded table, which is harmless.
+   */
+  private void nullRep() {
+    slots = null;
+  }
+
+  /**
+   * Returns the elements of this set as of a single moment, or null if the representation is
+   * nulled.
+   *
+   * <p>Because slots change only from empty to full, two successive scans that find the same
+   * number of full slots found the same slots, and the table held exactly those elements at every
+   * moment between the two scans. If elements were added during the scans, they are repeated; this
+   * terminates because at most maxValues elements are ever added to the table before it is nulled,
+   * plus one per concurrent writer.
+   *
+   * @return the elements of this set, or null if the representation is nulled
+   */
+  private int @Nullable [] elements(@GuardSatisfied ConcurrentLimitedSizeIntSet this) {
+    while (true) {
+      AtomicLongArray tab = slots;
+      if (tab == null) {
+        return null;
+      }
+      long[] copy = new long[tab.length()];
+      int found = 0;
+      for (int i = 0; i < copy.length; i++) {
+        copy[i] = tab.get(i);
+        if (copy[i] != 0) {
+          found++;
+        }
+      }
+      int again = 0;
+      for (int i = 0; i < copy.length; i++) {
+        if (tab.get(i) != 0) {
+          again++;
+        }
+      }
+      if (again != found) {
+        continue;
+      }
+      if (found > maxValues) {
+        return null;
+      }
+      int[] result = new int[found];
+      int j = 0;
+      for (long sv : copy) {
+        if (sv != 0) {
+          result[j++] = (int) sv;
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns a copy of this set, with the elements that it held at a single moment.
+   *
+   * @return a copy of this set
+   */
+  @SuppressWarnings("allcheckers:purity") // side effect to local state (clone)
+  @SideEffectFree
+  @Override
+  public ConcurrentLimitedSizeIntSet clone(@GuardSatisfied ConcurrentLimitedSizeIntSet this) {
+    int[] elts = elements();
+    ConcurrentLimitedSizeIntSet result;
+    try {
+      result = (ConcurrentLimitedSizeIntSet) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new Error(); // can't happen
+    }
+    if (elts == null) {
+      result.slots = null;
+      result.count = new AtomicInteger(maxValues + 1);
+    } else {
+      result.slots = newTable(maxValues);
+      result.count = new AtomicInteger();
+      for (int elt : elts) {
+        result.add(elt);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Merges a list of {@code ConcurrentLimitedSizeIntSet} objects into a single object that
+   * represents the values seen by the entire list. Returns the new object, whose maxValues is the
+   * given integer.
+   *
+   * @param maxValues the maximum size for the returned ConcurrentLimitedSizeIntSet
+   * @param slist a list of ConcurrentLimitedSizeIntSet, whose elements will be merged
+   * @return a ConcurrentLimitedSizeIntSet that merges the elements of slist
+   */
+  public static ConcurrentLimitedSizeIntSet merge(
+      @Positive int maxValues, List<ConcurrentLimitedSizeIntSet> slist) {
+    ConcurrentLimitedSizeIntSet result = new ConcurrentLimitedSizeIntSet(maxValues);
+    for (ConcurrentLimitedSizeIntSet s : slist) {
+      result.addAll(s);
+    }
+    return result;
+  }
+
+  @SuppressWarnings("allcheckers:purity") // reads the atomic table
+  @SideEffectFree
+  @Override
+  public String toString(@GuardSatisfied ConcurrentLimitedSizeIntSet this) {
+    int[] elts = elements();
+    return ("[size=" + size() + "; " + (elts == null ? "null" : Arrays.toString(elts)) + "]");
+  }
+}
@@ -0,0 +1,903 @@
+package org.plumelib.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A thread-safe hash map with weak keys, whose keys are hashed and compared by a {@link Hasher}.
+ * This is a concurrent counterpart of {@link WeakHasherMap}: an entry is removed automatically when
+ * its key is no longer in ordinary use.
+ *
+ * <p>The table is divided into segments, each of which is a separate hash table with its own lock,
+ * reference queue, and size. A key's hash code determines its segment. Retrievals ({@code get},
+ * {@code containsKey}, and iteration) never take a lock. Updates lock only the segment that holds
+ * the key, so updates to different segments proceed in parallel. Stale entries of a segment are
+ * expunged while its lock is held, that is, by updates to that segment.
+ *
+ * <p>Neither keys nor values may be null. Iterators are weakly consistent, as for {@link
+ * java.util.concurrent.ConcurrentHashMap}: they never throw {@link
+ * java.util.ConcurrentModificationException}, and they may or may not reflect updates made after
+ * their creation.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ * @see WeakHasherMap
+ */
+public final class ConcurrentWeakHasherMap<K extends Object, V extends Object>
+    extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
+
+  /** The default initial capacity of the whole map. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+  /** The default number of segments, which is the number of concurrent updaters to expect. */
+  private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  /** The maximum capacity of a segment; a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The maximum number of segments; a power of two. */
+  private static final int MAX_SEGMENTS = 1 << 16;
+
+  /** The load factor of each segment. */
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /** The hasher for keys, or null to use the keys' own {@code hashCode} and {@code equals}. */
+  private final @Nullable Hasher hasher;
+
+  /** The segments, each of which is a hash table. The length is a power of two. */
+  private final Segment[] segments;
+
+  /** The number of bits to shift a spread hash code right, to obtain its segment index. */
+  private final int segmentShift;
+
+  /** The mask for the segment index; one less than the number of segments. */
+  private final int segmentMask;
+
+  /**
+   * Creates a new, empty map with the default initial capacity and concurrency level, which
+   * compares keys with their own {@code hashCode} and {@code equals} methods.
+   */
+  public ConcurrentWeakHasherMap() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, null);
+  }
+
+  /**
+   * Creates a new, empty map with the default initial capacity and concurrency level, which uses
+   * the given hasher for hashing keys and comparing them for equality.
+   *
+   * @param hasher the Hasher to use when hashing values for this map
+   */
+  public ConcurrentWeakHasherMap(Hasher hasher) {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, hasher);
+  }
+
+  /**
+   * Creates a new, empty map with the given initial capacity and concurrency level, which uses the
+   * given hasher for hashing keys and comparing them for equality.
+   *
+   * @param initialCapacity the initial capacity of the whole map
+   * @param concurrencyLevel the estimated number of concurrently updating threads; the number of
+   *     segments is the least power of two that is at least this number
+   * @param hasher the Hasher to use when hashing values for this map, or null to use the keys' own
+   *     {@code hashCode} and {@code equals} methods
+   * @throws IllegalArgumentException if the initial capacity is negative or the concurrency level
+   *     is not positive
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  public ConcurrentWeakHasherMap(
+      int initialCapacity, int concurrencyLevel, @Nullable Hasher hasher) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+    }
+    if (concurrencyLevel <= 0) {
+      throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+    }
+    this.hasher = hasher;
+
+    int shift = 0;
+    int numSegments = 1;
+    while (numSegments < concurrencyLevel && numSegments < MAX_SEGMENTS) {
+      shift++;
+      numSegments <<= 1;
+    }
+    segmentShift = 32 - shift;
+    segmentMask = numSegments - 1;
+
+    int perSegment = Math.min(initialCapacity / numSegments + 1, MAXIMUM_CAPACITY);
+    int segmentCapacity = 1;
+    while (segmentCapacity < perSegment) {
+      segmentCapacity <<= 1;
+    }
+    Segment[] newSegments = (Segment[]) new ConcurrentWeakHasherMap.Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      newSegments[i] = new Segment(segmentCapacity);
+    }
+    segments = newSegments;
+  }
+
+  // internal utilities
+
+  /**
+   * Returns true if the two keys are equal according to the hasher.
+   *
+   * @param k1 a key
+   * @param k2 a key
+   * @return true if the keys are equal
+   */
+  @Pure
+  private boolean keyEquals(Object k1, Object k2) {
+    return (k1 == k2) || (hasher == null ? k1.equals(k2) : hasher.equals(k1, k2));
+  }
+
+  /**
+   * Returns the spread hash code of the given key. The key's hash code is scrambled so that both
+   * the segment index (high bits) and the table index (low bits) are well distributed.
+   *
+   * @param key a key
+   * @return the spread hash code of the key
+   */
+  @Pure
+  private int hash(Object key) {
+    int h = (hasher == null ? key.hashCode() : hasher.hashCode(key));
+    // Wang/Jenkins variant, as used in java.util.concurrent.ConcurrentHashMap of JDK 6.
+    h += (h << 15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h << 3);
+    h ^= (h >>> 6);
+    h += (h << 2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the segment that holds keys with the given spread hash code.
+   *
+   * @param hash a spread hash code
+   * @return the segment for the hash code
+   */
+  @Pure
+  private Segment segmentFor(int hash) {
+    return segments[(hash >>> segmentShift) & segmentMask];
+  }
+
+  /**
+   * Throws NullPointerException if the argument is null.
+   *
+   * @param o an object
+   */
+  private static void checkNotNull(@Nullable Object o) {
+    if (o == null) {
+      throw new NullPointerException();
+    }
+  }
+
+  /**
+   * An entry in a segment's hash table. The entry is a weak reference to its key.
+   *
+   * @param <K> the type of keys
+   * @param <V> the type of values
+   */
+  private static final class Node<K, V> extends WeakReference<K> {
+    /** The spread hash code of the key, stored here since the key may be discarded by the GC. */
+    final int hash;
+    /** The value; null only after the entry has been removed. */
+    volatile @Nullable V value;
+    /** The next entry in the bucket. */
+    volatile @Nullable Node<K, V> next;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param key the key
+     * @param hash the spread hash code of the key
+     * @param value the value
+     * @param next the next entry in the bucket
+     * @param queue the queue with which the entry is registered
+     */
+    Node(K key, int hash, V value, @Nullable Node<K, V> next, ReferenceQueue<? super K> queue) {
+      super(key, queue);
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+  }
+
+  /**
+   * One segment of the map: a hash table whose updates are serialized by the segment's monitor.
+   * Readers read the {@code table} field (which is volatile) and then the table's elements (which
+   * are read with volatile semantics); the segment's monitor guards all writes.
+   */
+  private final class Segment {
+    /** The hash table. Its length is a power of two. */
+    volatile AtomicReferenceArray<@Nullable Node<K, V>> table;
+
+    /** The number of entries in the table, including entries whose keys have been discarded. */
+    volatile int count;
+
+    /** The number of entries at which to resize the table. */
+    int threshold;
+
+    /** Reference queue for cleared entries. */
+    final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    /** The number of entries removed because their keys were discarded. */
+    volatile long cleared = 0;
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param capacity the initial capacity; a power of two
+     */
+    Segment(int capacity) {
+      table = new AtomicReferenceArray<>(capacity);
+      threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Returns the live entry for the given key, or null. Takes no lock.
+     *
+     * @param key a key
+     * @param hash the spread hash code of the key
+     * @return the entry whose key equals {@code key}, or null
+     */
+    @Nullable Node<K, V> getNode(Object key, int hash) {
+      AtomicReferenceArray<@Nullable Node<K, V>> tab = table;
+      for (Node<K, V> e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+        if (e.hash == hash) {
+          K k = e.get();
+          if (k != null && keyEquals(key, k)) {
+            return e;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the value for the given key, or null. Takes no lock.
+     *
+     * @param key a key
+     * @param hash the spread hash code of the key
+     * @return the value for {@code key}, or null
+     */
+    @Nullable V get(Object key, int hash) {
+      Node<K, V> e = getNode(key, hash);
+      return (e == null) ? null : e.value;
+    }
+
+    /**
+     * Maps the key to the value.
+     *
+     * @param key the key
+     * @param hash the spread hash code of the key
+     * @param value the value
+     * @param onlyIfAbsent if true, do not replace an existing value
+     * @return the previous value, or null if there was no mapping for the key
+     */
+    synchronized @Nullable V put(K key, int hash, V value, boolean onlyIfAbsent) {
+      expungeStaleEntries();
+      Node<K, V> e = getNode(key, hash);
+      if (e != null) {
+        V oldValue = e.value;
+        if (!onlyIfAbsent) {
+          e.value = value;
+        }
+        return oldValue;
+      }
+      if (count >= threshold) {
+        rehash();
+      }
+      AtomicReferenceArray<@Nullable Node<K, V>> tab = table;
+      int index = hash & (tab.length() - 1);
+      tab.set(index, new Node<K, V>(key, hash, value, tab.get(index), queue));
+      count++;
+      return null;
+    }
+
+    /**
+     * Returns the value for the key, first computing it and mapping the key to it if the key is not
+     * mapped. The mapping function is called at most once, while this segment is locked.
+     *
+     * @param key the key
+     * @param hash the spread hash code of the key
+     * @param mappingFunction computes the value for the key
+     * @return the current or computed value, or null if the computed value is null
+     */
+    synchronized @Nullable V computeIfAbsent(
+        K key, int hash, Function<? super K, ? extends @Nullable V> mappingFunction) {
+      expungeStaleEntries();
+      Node<K, V> e = getNode(key, hash);
+      if (e != null) {
+        V v = e.value;
+        if (v != null) {
+          return v;
+        }
+      }
+      V value = mappingFunction.apply(key);
+      if (value == null) {
+        return null;
+      }
+      if (count >= threshold) {
+        rehash();
+      }
+      AtomicReferenceArray<@Nullable Node<K, V>> tab = table;
+      int index = hash & (tab.length() - 1);
+      tab.set(index, new Node<K, V>(key, hash, value, tab.get(index), queue));
+      count++;
+      return value;
+    }
+
+    /**
+     * Replaces the value for the key, if the key is mapped (to {@code oldValue}, if it is
+     * non-null).
+     *
+     * @param key the key
+     * @param hash the spread hash code of the key
+     * @param oldValue the expected current value, or null to replace any value
+     * @param newValue the new value
+     * @return the previous value, or null if no replacement was made
+     */
+    synchronized @Nullable V replace(Object key, int hash, @Nullable V oldValue, V newValue) {
+      expungeStaleEntries();
+      Node<K, V> e = getNode(key, hash);
+      if (e == null) {
+        return null;
+      }
+      V v = e.value;
+      if (v == null || (oldValue != null && !oldValue.equals(v))) {
+        return null;
+      }
+      e.value = newValue;
+      return v;
+    }
+
+    /**
+     * Removes the mapping for the key, if the key is mapped (to {@code expectedValue}, if it is
+     * non-null).
+     *
+     * @param key the key
+     * @param hash the spread hash code of the key
+     * @param expectedValue the expected current value, or null to remove any value
+     * @return the removed value, or null if no mapping was removed
+     */
+    synchronized @Nullable V remove(Object key, int hash, @Nullable Object expectedValue) {
+      expungeStaleEntries();
+      Node<K, V> e = getNode(key, hash);
+      if (e == null) {
+        return null;
+      }
+      V v = e.value;
+      if (v == null || (expectedValue != null && !expectedValue.equals(v))) {
+        return null;
+      }
+      unlink(e);
+      return v;
+    }
+
+    /** Removes all mappings from this segment. */
+    synchronized void clear() {
+      while (queue.poll() != null) {
+        // discard: the whole table is being dropped
+      }
+      table = new AtomicReferenceArray<>(table.length());
+      count = 0;
+    }
+
+    /**
+     * Removes the given entry from its bucket. Concurrent readers that are positioned at the entry
+     * can still follow its {@code next} field. The caller must hold this segment's monitor.
+     *
+     * @param e the entry to remove
+     * @return true if the entry was found and removed
+     */
+    @SuppressWarnings("interning:not.interned") // reference equality of entries
+    private boolean unlink(Node<K, V> e) {
+      AtomicReferenceArray<@Nullable Node<K, V>> tab = table;
+      int index = e.hash & (tab.length() - 1);
+      Node<K, V> prev = null;
+      for (Node<K, V> p = tab.get(index); p != null; p = p.next) {
+        if (p == e) {
+          if (prev == null) {
+            tab.set(index, e.next);
+          } else {
+            prev.next = e.next;
+          }
+          e.value = null; // help GC
+          count--;
+          return true;
+        }
+        prev = p;
+      }
+      return false;
+    }
+
+    /**
+     * Removes the entries whose keys have been discarded. The caller must hold this segment's
+     * monitor.
+     */
+    @SuppressWarnings("unchecked") // every reference on the queue is a Node
+    private void expungeStaleEntries() {
+      Object ref;
+      while ((ref = queue.poll()) != null) {
+        // An entry that was copied by rehash() is not in the current table; unlink is a no-op.
+        if (unlink((Node<K, V>) ref)) {
+          cleared++;
+        }
+      }
+    }
+
+    /**
+     * Doubles the capacity of the table, dropping entries whose keys have been discarded. The
+     * caller must hold this segment's monitor.
+     */
+    private void rehash() {
+      rehash(table.length() << 1);
+    }
+
+    /**
+     * Sets the capacity of the table, dropping entries whose keys have been discarded. New entries
+     * are created so that readers traversing the old table are not disturbed; the old entries may
+     * still appear on the reference queue, where they are ignored. The caller must hold this
+     * segment's monitor.
+     *
+     * @param newCapacity the new capacity; a power of two that is greater than the current one
+     */
+    private void rehash(int newCapacity) {
+      AtomicReferenceArray<@Nullable Node<K, V>> oldTable = table;
+      int oldCapacity = oldTable.length();
+      if (oldCapacity >= MAXIMUM_CAPACITY) {
+        threshold = Integer.MAX_VALUE;
+        return;
+      }
+      newCapacity = Math.min(newCapacity, MAXIMUM_CAPACITY);
+      AtomicReferenceArray<@Nullable Node<K, V>> newTable =
+          new AtomicReferenceArray<>(newCapacity);
+      int newCount = 0;
+      for (int i = 0; i < oldCapacity; i++) {
+        for (Node<K, V> e = oldTable.get(i); e != null; e = e.next) {
+          K k = e.get();
+          V v = e.value;
+          if (k != null && v != null) {
+            int index = e.hash & (newCapacity - 1);
+            newTable.set(index, new Node<K, V>(k, e.hash, v, newTable.get(index), queue));
+            newCount++;
+          } else if (k == null) {
+            cleared++;
+          }
+        }
+      }
+      table = newTable;
+      count = newCount;
+      threshold = (int) (newCapacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Performs {@link ConcurrentWeakHasherMap#internKeys} for the given keys, all of which belong
+     * to this segment. Stale entries are expunged, and the table is resized, at most once.
+     *
+     * @param keys the keys; some elements are replaced by equal keys in the map
+     * @param hashes the spread hash code of each element of {@code keys}
+     * @param indices the indices of the keys that belong to this segment
+     * @param from the first index in {@code indices} to process, inclusive
+     * @param to the last index in {@code indices} to process, exclusive
+     * @param valueFunction computes the value for a key that is added to the map
+     * @return the number of keys that were added to the map
+     */
+    @SuppressWarnings("unchecked") // every non-null element of keys is a K
+    synchronized int internKeys(
+        @Nullable Object[] keys,
+        int[] hashes,
+        int[] indices,
+        int from,
+        int to,
+        Function<? super K, ? extends V> valueFunction) {
+      expungeStaleEntries();
+      int expectedCount = count + (to - from);
+      if (expectedCount > threshold) {
+        int newCapacity = table.length();
+        while (newCapacity < MAXIMUM_CAPACITY && expectedCount > newCapacity * LOAD_FACTOR) {
+          newCapacity <<= 1;
+        }
+        rehash(newCapacity);
+      }
+      int added = 0;
+      for (int j = from; j < to; j++) {
+        int i = indices[j];
+        K key = (K) keys[i];
+        int hash = hashes[i];
+        Node<K, V> e = getNode(key, hash);
+        K k = (e == null) ? null : e.get();
+        if (k != null) {
+          keys[i] = k;
+          continue;
+        }
+        if (count >= threshold) {
+          rehash();
+        }
+        AtomicReferenceArray<@Nullable Node<K, V>> tab = table;
+        int index = hash & (tab.length() - 1);
+        tab.set(index, new Node<K, V>(key, hash, valueFunction.apply(key), tab.get(index), queue));
+        count++;
+        added++;
+      }
+      return added;
+    }
+  }
+
+  /** The minimum number of keys for which {@link #internKeys} computes hash codes in parallel. */
+  private static final int PARALLEL_HASH_THRESHOLD = 1 << 13;
+
+  /**
+   * Replaces each non-null element of {@code keys} by the equal key of this map, after adding the
+   * element to this map, mapped to {@code valueFunction.apply(element)}, if there is no equal key.
+   * Afterward, equal elements of {@code keys} are identical. This is a bulk version of {@link #get}
+   * followed by {@link #putIfAbsent}, used for interning many values at once.
+   *
+   * <p>The hash code of each element is computed once, in parallel if there are many elements.
+   * Elements whose keys are in the map are then found without locking. The remaining elements are
+   * grouped by segment, and each segment is locked, expunged, and resized only once for its group.
+   *
+   * @param keys the keys; each non-null element must be a K
+   * @param valueFunction computes the value for a key that is added to this map
+   * @return the number of keys that were added to this map
+   */
+  @SuppressWarnings("unchecked") // every non-null element of keys is a K
+  int internKeys(@Nullable Object[] keys, Function<? super K, ? extends V> valueFunction) {
+    int n = keys.length;
+    int[] hashes = new int[n];
+    if (n >= PARALLEL_HASH_THRESHOLD) {
+      Arrays.parallelSetAll(hashes, i -> (keys[i] == null) ? 0 : hash(keys[i]));
+    } else {
+      for (int i = 0; i < n; i++) {
+        Object key = keys[i];
+        if (key != null) {
+          hashes[i] = hash(key);
+        }
+      }
+    }
+
+    // Find the keys that are already in the map, without locking.  Count the others by segment.
+    int numSegments = segments.length;
+    int[] segmentStarts = new int[numSegments + 1];
+    int numPending = 0;
+    boolean[] pending = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      Object key = keys[i];
+      if (key == null) {
+        continue;
+      }
+      int h = hashes[i];
+      Node<K, V> e = segmentFor(h).getNode(key, h);
+      K k = (e == null) ? null : e.get();
+      if (k != null) {
+        keys[i] = k;
+      } else {
+        pending[i] = true;
+        numPending++;
+        segmentStarts[((h >>> segmentShift) & segmentMask) + 1]++;
+      }
+    }
+    if (numPending == 0) {
+      return 0;
+    }
+
+    // Group the indices of the remaining keys by segment, preserving their order.
+    for (int s = 0; s < numSegments; s++) {
+      segmentStarts[s + 1] += segmentStarts[s];
+    }
+    int[] indices = new int[numPending];
+    int[] fill = Arrays.copyOf(segmentStarts, numSegments);
+    for (int i = 0; i < n; i++) {
+      if (pending[i]) {
+        indices[fill[(hashes[i] >>> segmentShift) & segmentMask]++] = i;
+      }
+    }
+
+    int added = 0;
+    for (int s = 0; s < numSegments; s++) {
+      int from = segmentStarts[s];
+      int to = segmentStarts[s + 1];
+      if (from < to) {
+        added += segments[s].internKeys(keys, hashes, indices, from, to, valueFunction);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Returns the number of entries that have been removed from this map because their keys were
+   * discarded by the garbage collector. An entry is counted when the map notices that its key was
+   * discarded, which may be some time after the collection.
+   *
+   * @return the number of entries removed because their keys were discarded
+   */
+  long clearedCount() {
+    long result = 0;
+    for (Segment segment : segments) {
+      result += segment.cleared;
+    }
+    return result;
+  }
+
+  /// Map operations
+
+  /**
+   * Returns the number of key-value mappings in this map. <strong>Note:</strong> <em>In contrast to
+   * most implementations of the <code>Map</code> interface, the time required by this operation is
+   * linear in the size of the map.</em> The result does not count entries whose keys have been
+   * discarded.
+   */
+  @Pure
+  @Override
+  public int size() {
+    long result = 0;
+    for (Segment segment : segments) {
+      AtomicReferenceArray<@Nullable Node<K, V>> tab = segment.table;
+      for (int i = 0; i < tab.length(); i++) {
+        for (Node<K, V> e = tab.get(i); e != null; e = e.next) {
+          if (e.get() != null && e.value != null) {
+            result++;
+          }
+        }
+      }
+    }
+    return (int) Math.min(result, Integer.MAX_VALUE);
+  }
+
+  @Pure
+  @Override
+  public boolean isEmpty() {
+    return !entrySet().iterator().hasNext();
+  }
+
+  @Pure
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    if (key == null) {
+      return null;
+    }
+    int h = hash(key);
+    return segmentFor(h).get(key, h);
+  }
+
+  @Pure
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public @Nullable V put(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int h = hash(key);
+    return segmentFor(h).put(key, h, value, false);
+  }
+
+  @Override
+  public @Nullable V putIfAbsent(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int h = hash(key);
+    return segmentFor(h).put(key, h, value, true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If the key is already mapped, this takes no lock. Otherwise, the mapping function is called
+   * at most once, while the key's segment is locked, so it should be short and must not update
+   * this map.
+   */
+  @Override
+  public @Nullable V computeIfAbsent(
+      K key, Function<? super K, ? extends @Nullable V> mappingFunction) {
+    checkNotNull(key);
+    checkNotNull(mappingFunction);
+    int h = hash(key);
+    Segment segment = segmentFor(h);
+    V v = segment.get(key, h);
+    if (v != null) {
+      return v;
+    }
+    return segment.computeIfAbsent(key, h, mappingFunction);
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    if (key == null) {
+      return null;
+    }
+    int h = hash(key);
+    return segmentFor(h).remove(key, h, null);
+  }
+
+  @Override
+  public boolean remove(@Nullable Object key, @Nullable Object value) {
+    if (key == null || value == null) {
+      return false;
+    }
+    int h = hash(key);
+    return segmentFor(h).remove(key, h, value) != null;
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    checkNotNull(key);
+    checkNotNull(oldValue);
+    checkNotNull(newValue);
+    int h = hash(key);
+    return segmentFor(h).replace(key, h, oldValue, newValue) != null;
+  }
+
+  @Override
+  public @Nullable V replace(K key, V value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    int h = hash(key);
+    return segmentFor(h).replace(key, h, null, value);
+  }
+
+  @Override
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /// Views
+
+  /** The entry set view, or null if it has not yet been created. */
+  private @Nullable Set<Map.Entry<K, V>> entrySet = null;
+
+  @SideEffectFree
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    Set<Map.Entry<K, V>> es = entrySet;
+    if (es == null) {
+      es = new EntrySet();
+      entrySet = es;
+    }
+    return es;
+  }
+
+  /** The entry set view. */
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Pure
+    @Override
+    public int size() {
+      return ConcurrentWeakHasherMap.this.size();
+    }
+
+    @Pure
+    @Override
+    public boolean contains(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      V v = get(e.getKey());
+      return v != null && v.equals(e.getValue());
+    }
+
+    @Override
+    public boolean remove(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return ConcurrentWeakHasherMap.this.remove(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public void clear() {
+      ConcurrentWeakHasherMap.this.clear();
+    }
+  }
+
+  /**
+   * A weakly consistent iterator over the entries of the map. It visits the segments in order, and
+   * each segment's table as it was when the iterator reached the segment.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+    /** The index of the next segment to visit. */
+    int segmentIndex = 0;
+    /** The table being traversed, or null before the first segment has been reached. */
+    @Nullable AtomicReferenceArray<@Nullable Node<K, V>> table = null;
+    /** The index of the next bucket of {@link #table} to visit. */
+    int bucketIndex = 0;
+    /** The next entry in the current bucket to examine. */
+    @Nullable Node<K, V> node = null;
+    /** The next entry to return; holds its key strongly. Null if not yet computed. */
+    @Nullable SimpleEntry<K, V> next = null;
+    /** The key of the entry most recently returned by {@link #next}, or null. */
+    @Nullable K lastKey = null;
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        while (node == null) {
+          if (table != null && bucketIndex < table.length()) {
+            node = table.get(bucketIndex++);
+          } else if (segmentIndex < segments.length) {
+            table = segments[segmentIndex++].table;
+            bucketIndex = 0;
+          } else {
+            return false;
+          }
+        }
+        Node<K, V> e = node;
+        node = e.next;
+        K k = e.get();
+        V v = e.value;
+        if (k != null && v != null) {
+          next = new WriteThroughEntry(k, v);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      SimpleEntry<K, V> result = next;
+      assert result != null : "@AssumeAssertion(nullness): hasNext() set next";
+      next = null;
+      lastKey = result.getKey();
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      K k = lastKey;
+      if (k == null) {
+        throw new IllegalStateException();
+      }
+      ConcurrentWeakHasherMap.this.remove(k);
+      lastKey = null;
+    }
+  }
+
+  /** An entry returned by the iterator. Its {@code setValue} method writes through to the map. */
+  private final class WriteThroughEntry extends SimpleEntry<K, V> {
+    /** Unique identifier for serialization. */
+    private static final long serialVersionUID = 20261018L;
+
+    /**
+     * Creates a new WriteThroughEntry.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    WriteThroughEntry(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(V value) {
+      checkNotNull(value);
+      V result = super.setValue(value);
+      ConcurrentWeakHasherMap.this.put(getKey(), value);
+      return result;
+    }
+  }
+}
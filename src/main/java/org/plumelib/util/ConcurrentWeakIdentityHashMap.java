@@ -0,0 +1,328 @@
+package org.plumelib.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A thread-safe hash map with weak keys that are compared by identity ({@code ==}) rather than by
+ * {@code equals}. This is a concurrent counterpart of {@link WeakIdentityHashMap}: an entry is
+ * removed automatically when its key is no longer in ordinary use. As in WeakIdentityHashMap, keys
+ * are hashed by {@link System#identityHashCode}, and the key may be null.
+ *
+ * <p>The map is a {@link ConcurrentWeakHasherMap} whose Hasher compares keys by identity. So, the
+ * table is divided into segments, each with its own lock and reference queue. Retrievals ({@code
+ * get}, {@code containsKey}, and iteration) never take a lock, and updates, including {@code
+ * putIfAbsent} and {@code computeIfAbsent}, lock only the segment that holds the key. Stale entries
+ * of a segment are expunged by updates to that segment, while other segments remain available.
+ *
+ * <p>Values may not be null. Iterators are weakly consistent, as for {@link
+ * java.util.concurrent.ConcurrentHashMap}.
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ * @see WeakIdentityHashMap
+ */
+public final class ConcurrentWeakIdentityHashMap<K, V extends Object> extends AbstractMap<K, V>
+    implements ConcurrentMap<K, V> {
+
+  /** The default initial capacity of the whole map. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+  /** The default number of segments, which is the number of concurrent updaters to expect. */
+  private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  /** Value representing null keys inside tables. */
+  private static final Object NULL_KEY = new Object();
+
+  /** The underlying map, whose keys are the keys of this map with null replaced by NULL_KEY. */
+  private final ConcurrentWeakHasherMap<Object, V> map;
+
+  /** Creates a new, empty map with the default initial capacity and concurrency level. */
+  public ConcurrentWeakIdentityHashMap() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+  }
+
+  /**
+   * Creates a new, empty map with the given initial capacity and the default concurrency level.
+   *
+   * @param initialCapacity the initial capacity of the whole map
+   * @throws IllegalArgumentException if the initial capacity is negative
+   */
+  public ConcurrentWeakIdentityHashMap(int initialCapacity) {
+    this(initialCapacity, DEFAULT_CONCURRENCY_LEVEL);
+  }
+
+  /**
+   * Creates a new, empty map with the given initial capacity and concurrency level.
+   *
+   * @param initialCapacity the initial capacity of the whole map
+   * @param concurrencyLevel the estimated number of concurrently updating threads
+   * @throws IllegalArgumentException if the initial capacity is negative or the concurrency level
+   *     is not positive
+   */
+  public ConcurrentWeakIdentityHashMap(int initialCapacity, int concurrencyLevel) {
+    map = new ConcurrentWeakHasherMap<>(initialCapacity, concurrencyLevel, new IdentityHasher());
+  }
+
+  /** Hashes keys by {@link System#identityHashCode}, and compares them by identity. */
+  private static final class IdentityHasher implements Hasher {
+    @Override
+    public int hashCode(Object o) {
+      return System.identityHashCode(o);
+    }
+
+    @Override
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    public boolean equals(Object o1, Object o2) {
+      return o1 == o2;
+    }
+  }
+
+  /**
+   * Use NULL_KEY for key if it is null.
+   *
+   * @param key a key
+   * @return key if it is non-null, otherwise {@link #NULL_KEY}
+   */
+  private static @NonNull Object maskNull(@Nullable Object key) {
+    return (key == null ? NULL_KEY : key);
+  }
+
+  /**
+   * Returns internal representation of null key back to caller as null.
+   *
+   * @param <K> the type of keys
+   * @param key a key of the underlying map
+   * @return null if key is {@link #NULL_KEY}, otherwise key
+   */
+  @SuppressWarnings("unchecked") // every key of the underlying map other than NULL_KEY is a K
+  private static <K> K unmaskNull(Object key) {
+    return (K) (key == NULL_KEY ? null : key);
+  }
+
+  /**
+   * Throws NullPointerException if the argument is null.
+   *
+   * @param o an object
+   */
+  private static void checkNotNull(@Nullable Object o) {
+    if (o == null) {
+      throw new NullPointerException();
+    }
+  }
+
+  /**
+   * Returns the number of key-value mappings in this map. <strong>Note:</strong> <em>In contrast to
+   * most implementations of the <code>Map</code> interface, the time required by this operation is
+   * linear in the size of the map.</em>
+   */
+  @Pure
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Pure
+  @Override
+  public boolean isEmpty() {
+    return map.isEmpty();
+  }
+
+  @Pure
+  @Override
+  public @Nullable V get(@Nullable Object key) {
+    return map.get(maskNull(key));
+  }
+
+  @Pure
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return map.containsKey(maskNull(key));
+  }
+
+  @Override
+  public @Nullable V put(K key, V value) {
+    return map.put(maskNull(key), value);
+  }
+
+  @Override
+  public @Nullable V putIfAbsent(K key, V value) {
+    return map.putIfAbsent(maskNull(key), value);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>If the key is already mapped, this takes no lock. Otherwise, the mapping function is called
+   * at most once, while the key's segment is locked, so it should be short and must not update
+   * this map.
+   */
+  @Override
+  public @Nullable V computeIfAbsent(
+      K key, Function<? super K, ? extends @Nullable V> mappingFunction) {
+    checkNotNull(mappingFunction);
+    return map.computeIfAbsent(maskNull(key), k -> mappingFunction.apply(unmaskNull(k)));
+  }
+
+  @Override
+  public @Nullable V remove(@Nullable Object key) {
+    return map.remove(maskNull(key));
+  }
+
+  @Override
+  public boolean remove(@Nullable Object key, @Nullable Object value) {
+    return map.remove(maskNull(key), value);
+  }
+
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    return map.replace(maskNull(key), oldValue, newValue);
+  }
+
+  @Override
+  public @Nullable V replace(K key, V value) {
+    return map.replace(maskNull(key), value);
+  }
+
+  @Override
+  public void clear() {
+    map.clear();
+  }
+
+  /// Views
+
+  /** The entry set view, or null if it has not yet been created. */
+  private @Nullable Set<Map.Entry<K, V>> entrySet = null;
+
+  @SideEffectFree
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    Set<Map.Entry<K, V>> es = entrySet;
+    if (es == null) {
+      es = new EntrySet();
+      entrySet = es;
+    }
+    return es;
+  }
+
+  /** The entry set view. */
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      Iterator<Map.Entry<Object, V>> it = map.entrySet().iterator();
+      return new Iterator<Map.Entry<K, V>>() {
+        @Override
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+          return new IdentityEntry(it.next());
+        }
+
+        @Override
+        public void remove() {
+          it.remove();
+        }
+      };
+    }
+
+    @Pure
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Pure
+    @Override
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    public boolean contains(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      V v = get(e.getKey());
+      return v != null && v.equals(e.getValue()) && (e.getKey() != null || containsKey(null));
+    }
+
+    @Override
+    public boolean remove(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return ConcurrentWeakIdentityHashMap.this.remove(e.getKey(), e.getValue());
+    }
+
+    @Override
+    public void clear() {
+      map.clear();
+    }
+  }
+
+  /**
+   * An entry returned by the iterator. Like the entries of {@link WeakIdentityHashMap}, it compares
+   * keys by identity. Its {@code setValue} method writes through to the map.
+   */
+  private final class IdentityEntry implements Map.Entry<K, V> {
+    /** The entry of the underlying map, whose key may be NULL_KEY. */
+    private final Map.Entry<Object, V> entry;
+
+    /**
+     * Creates a new IdentityEntry.
+     *
+     * @param entry the entry of the underlying map
+     */
+    IdentityEntry(Map.Entry<Object, V> entry) {
+      this.entry = entry;
+    }
+
+    @Override
+    public K getKey() {
+      return unmaskNull(entry.getKey());
+    }
+
+    @Override
+    public V getValue() {
+      return entry.getValue();
+    }
+
+    @Override
+    public V setValue(V value) {
+      return entry.setValue(value);
+    }
+
+    @Pure
+    @Override
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    public boolean equals(@Nullable Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      return getKey() == e.getKey() && getValue().equals(e.getValue());
+    }
+
+    @Pure
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(getKey()) ^ getValue().hashCode();
+    }
+
+    @SideEffectFree
+    @Override
+    public String toString() {
+      return getKey() + "=" + getValue();
+    }
+  }
+}
@@ -0,0 +1,656 @@
+package org.plumelib.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+
+/**
+ * A thread-safe hash map from weak keys, which are compared by identity ({@code ==}), to primitive
+ * {@code long} values. It is like a {@code ConcurrentWeakIdentityHashMap<K, Long>}, but it stores
+ * each value in its entry rather than in a {@code Long} object, which saves an object and a pointer
+ * per mapping. An entry is removed automatically when its key is no longer in ordinary use.
+ *
+ * <p>Since a {@code long} cannot be null, a lookup of an unmapped key returns a sentinel value,
+ * {@link #noEntryValue}, that is chosen when the map is created. The key may be null.
+ *
+ * <p>As in {@link ConcurrentWeakHasherMap}, the table is divided into segments, each with its own
+ * lock and reference queue. Retrievals never take a lock, and updates lock only the segment that
+ * holds the key. Stale entries of a segment are expunged by updates to that segment.
+ *
+ * <p>This class does not implement {@link java.util.Map}, whose methods would box the values.
+ *
+ * @param <K> the type of keys
+ * @see ConcurrentWeakIdentityHashMap
+ */
+public final class ConcurrentWeakIdentityLongMap<K> {
+
+  /** The default initial capacity of the whole map. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+  /** The default number of segments, which is the number of concurrent updaters to expect. */
+  private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  /** The maximum capacity of a segment; a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The maximum number of segments; a power of two. */
+  private static final int MAX_SEGMENTS = 1 << 16;
+
+  /** The load factor of each segment. */
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /** Value representing null keys inside tables. */
+  private static final Object NULL_KEY = new Object();
+
+  /** The value that lookups return for a key that is not mapped. */
+  private final long noEntryValue;
+
+  /** Is told about every entry that is stored in or removed from the tables, or null. */
+  private final @Nullable EntryListener listener;
+
+  /** The segments, each of which is a hash table. The length is a power of two. */
+  private final Segment[] segments;
+
+  /** The number of bits to shift a spread hash code right, to obtain its segment index. */
+  private final int segmentShift;
+
+  /** The mask for the segment index; one less than the number of segments. */
+  private final int segmentMask;
+
+  /**
+   * Creates a new, empty map with the default initial capacity and concurrency level, whose
+   * sentinel for unmapped keys is 0.
+   */
+  public ConcurrentWeakIdentityLongMap() {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, 0);
+  }
+
+  /**
+   * Creates a new, empty map with the default initial capacity and concurrency level.
+   *
+   * @param noEntryValue the value that lookups return for a key that is not mapped
+   */
+  public ConcurrentWeakIdentityLongMap(long noEntryValue) {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, noEntryValue);
+  }
+
+  /**
+   * Creates a new, empty map with the default initial capacity and concurrency level, which tells
+   * the given listener about its entries.
+   *
+   * @param noEntryValue the value that lookups return for a key that is not mapped
+   * @param listener is told about every entry that is stored in or removed from the tables
+   */
+  ConcurrentWeakIdentityLongMap(long noEntryValue, EntryListener listener) {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL, noEntryValue, listener);
+  }
+
+  /**
+   * Creates a new, empty map with the given initial capacity and concurrency level.
+   *
+   * @param initialCapacity the initial capacity of the whole map
+   * @param concurrencyLevel the estimated number of concurrently updating threads; the number of
+   *     segments is the least power of two that is at least this number
+   * @param noEntryValue the value that lookups return for a key that is not mapped
+   * @throws IllegalArgumentException if the initial capacity is negative or the concurrency level
+   *     is not positive
+   */
+  public ConcurrentWeakIdentityLongMap(
+      int initialCapacity, int concurrencyLevel, long noEntryValue) {
+    this(initialCapacity, concurrencyLevel, noEntryValue, null);
+  }
+
+  /**
+   * Creates a new, empty map with the given initial capacity and concurrency level, which tells the
+   * given listener about its entries.
+   *
+   * @param initialCapacity the initial capacity of the whole map
+   * @param concurrencyLevel the estimated number of concurrently updating threads
+   * @param noEntryValue the value that lookups return for a key that is not mapped
+   * @param listener is told about every entry that is stored in or removed from the tables, or null
+   * @throws IllegalArgumentException if the initial capacity is negative or the concurrency level
+   *     is not positive
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  ConcurrentWeakIdentityLongMap(
+      int initialCapacity,
+      int concurrencyLevel,
+      long noEntryValue,
+      @Nullable EntryListener listener) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+    }
+    if (concurrencyLevel <= 0) {
+      throw new IllegalArgumentException("Illegal concurrency level: " + concurrencyLevel);
+    }
+    this.noEntryValue = noEntryValue;
+    this.listener = listener;
+
+    int shift = 0;
+    int numSegments = 1;
+    while (numSegments < concurrencyLevel && numSegments < MAX_SEGMENTS) {
+      shift++;
+      numSegments <<= 1;
+    }
+    segmentShift = 32 - shift;
+    segmentMask = numSegments - 1;
+
+    int perSegment = Math.min(initialCapacity / numSegments + 1, MAXIMUM_CAPACITY);
+    int segmentCapacity = 1;
+    while (segmentCapacity < perSegment) {
+      segmentCapacity <<= 1;
+    }
+    Segment[] newSegments = (Segment[]) new ConcurrentWeakIdentityLongMap.Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      newSegments[i] = new Segment(segmentCapacity);
+    }
+    segments = newSegments;
+  }
+
+  // internal utilities
+
+  /**
+   * Use NULL_KEY for key if it is null.
+   *
+   * @param key a key
+   * @return key if it is non-null, otherwise {@link #NULL_KEY}
+   */
+  private static @NonNull Object maskNull(@Nullable Object key) {
+    return (key == null ? NULL_KEY : key);
+  }
+
+  /**
+   * Returns true if the given object is the internal representation of the null key. Clients that
+   * see the keys of entries, such as an {@link EntryListener}, use this to recognize the null key.
+   *
+   * @param key a key of a table, or null
+   * @return true if key is {@link #NULL_KEY}
+   */
+  static boolean isNullKey(@Nullable Object key) {
+    return key == NULL_KEY;
+  }
+
+  /**
+   * Returns internal representation of null key back to caller as null.
+   *
+   * @param <K> the type of keys
+   * @param key a key of a table
+   * @return null if key is {@link #NULL_KEY}, otherwise key
+   */
+  @SuppressWarnings("unchecked") // every key of a table other than NULL_KEY is a K
+  private static <K> K unmaskNull(Object key) {
+    return (K) (key == NULL_KEY ? null : key);
+  }
+
+  /**
+   * Returns the spread hash code of the given (masked) key. Multiplying by the golden ratio mixes
+   * the identity hash code into the high bits, which choose the segment; the shift then mixes it
+   * into the low bits, which choose the bucket.
+   *
+   * @param key a key, or {@link #NULL_KEY}
+   * @return the spread hash code of the key
+   */
+  @Pure
+  private static int hash(Object key) {
+    int h = System.identityHashCode(key) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns the segment that holds keys with the given spread hash code.
+   *
+   * @param hash a spread hash code
+   * @return the segment for the hash code
+   */
+  @Pure
+  private Segment segmentFor(int hash) {
+    return segments[(hash >>> segmentShift) & segmentMask];
+  }
+
+  /**
+   * Is told about the entries of a map, so that it can index them by value. An entry is a weak
+   * reference to its key (or to an internal object that stands for the null key); when the garbage
+   * collector discards the key, the entry is cleared and, later, removed. Rehashing replaces
+   * entries by new ones, which are stored again. The methods are called while a segment of the map
+   * is locked, possibly for several segments at once, so they must be thread-safe and fast, and
+   * must not use the map.
+   */
+  interface EntryListener {
+    /**
+     * Called when an entry is added to the map, its value is replaced, or it is replaced by
+     * rehashing.
+     *
+     * @param entry the entry
+     * @param value the entry's value
+     */
+    void entryStored(WeakReference<Object> entry, long value);
+
+    /**
+     * Called when an entry is removed from the map, or before its value is replaced.
+     *
+     * @param entry the entry
+     * @param value the entry's value
+     */
+    void entryRemoved(WeakReference<Object> entry, long value);
+  }
+
+  /**
+   * An entry in a segment's hash table. The entry is a weak reference to its (masked) key, and it
+   * holds the value directly.
+   */
+  private static final class Node extends WeakReference<Object> {
+    /** The spread hash code of the key, stored here since the key may be discarded by the GC. */
+    final int hash;
+    /** The value. */
+    volatile long value;
+    /** The next entry in the bucket. */
+    volatile @Nullable Node next;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @param value the value
+     * @param next the next entry in the bucket
+     * @param queue the queue with which the entry is registered
+     */
+    Node(Object key, int hash, long value, @Nullable Node next, ReferenceQueue<Object> queue) {
+      super(key, queue);
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+  }
+
+  /**
+   * One segment of the map: a hash table whose updates are serialized by the segment's monitor.
+   * Readers read the {@code table} field (which is volatile) and then the table's elements (which
+   * are read with volatile semantics); the segment's monitor guards all writes.
+   */
+  private final class Segment {
+    /** The hash table. Its length is a power of two. */
+    volatile AtomicReferenceArray<@Nullable Node> table;
+
+    /** The number of entries in the table, including entries whose keys have been discarded. */
+    volatile int count;
+
+    /** The number of entries at which to resize the table. */
+    int threshold;
+
+    /** Reference queue for cleared entries. */
+    final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+    /**
+     * Creates a new, empty segment.
+     *
+     * @param capacity the initial capacity; a power of two
+     */
+    Segment(int capacity) {
+      table = new AtomicReferenceArray<>(capacity);
+      threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Returns the live entry for the given (masked) key, or null. Takes no lock.
+     *
+     * @param key a key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @return the entry whose key is {@code key}, or null
+     */
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    @Nullable Node getNode(Object key, int hash) {
+      AtomicReferenceArray<@Nullable Node> tab = table;
+      for (Node e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+        if (e.hash == hash && e.get() == key) {
+          return e;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Adds a new entry for a key that is not mapped. The caller must hold this segment's monitor.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @param value the value
+     */
+    private void addNode(Object key, int hash, long value) {
+      if (count >= threshold) {
+        rehash();
+      }
+      AtomicReferenceArray<@Nullable Node> tab = table;
+      int index = hash & (tab.length() - 1);
+      Node e = new Node(key, hash, value, tab.get(index), queue);
+      tab.set(index, e);
+      count++;
+      if (listener != null) {
+        listener.entryStored(e, value);
+      }
+    }
+
+    /**
+     * Maps the key to the value.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @param value the value
+     * @param onlyIfAbsent if true, do not replace an existing value
+     * @return the previous value, or {@link #noEntryValue} if there was no mapping for the key
+     */
+    synchronized long put(Object key, int hash, long value, boolean onlyIfAbsent) {
+      expungeStaleEntries();
+      Node e = getNode(key, hash);
+      if (e != null) {
+        long oldValue = e.value;
+        if (!onlyIfAbsent) {
+          e.value = value;
+          if (listener != null) {
+            listener.entryRemoved(e, oldValue);
+            listener.entryStored(e, value);
+          }
+        }
+        return oldValue;
+      }
+      addNode(key, hash, value);
+      return noEntryValue;
+    }
+
+    /**
+     * Returns the value for the key, first computing it and mapping the key to it if the key is not
+     * mapped. The mapping function is called at most once, while this segment is locked.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @param mappingFunction computes the value for the key
+     * @return the current or computed value
+     */
+    synchronized long computeIfAbsent(
+        Object key, int hash, ToLongFunction<? super K> mappingFunction) {
+      expungeStaleEntries();
+      Node e = getNode(key, hash);
+      if (e != null) {
+        return e.value;
+      }
+      long value = mappingFunction.applyAsLong(ConcurrentWeakIdentityLongMap.<K>unmaskNull(key));
+      addNode(key, hash, value);
+      return value;
+    }
+
+    /**
+     * Removes the mapping for the key.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param hash the spread hash code of the key
+     * @return the removed value, or {@link #noEntryValue} if there was no mapping for the key
+     */
+    synchronized long remove(Object key, int hash) {
+      expungeStaleEntries();
+      Node e = getNode(key, hash);
+      if (e == null) {
+        return noEntryValue;
+      }
+      unlink(e);
+      return e.value;
+    }
+
+    /**
+     * Returns the number of entries whose keys have not been discarded. Takes no lock.
+     *
+     * @return the number of live entries
+     */
+    int liveCount() {
+      AtomicReferenceArray<@Nullable Node> tab = table;
+      int n = 0;
+      for (int i = 0; i < tab.length(); i++) {
+        for (Node e = tab.get(i); e != null; e = e.next) {
+          if (e.get() != null) {
+            n++;
+          }
+        }
+      }
+      return n;
+    }
+
+    /** Removes all mappings from this segment. */
+    synchronized void clear() {
+      while (queue.poll() != null) {
+        // discard: the whole table is being dropped
+      }
+      AtomicReferenceArray<@Nullable Node> oldTable = table;
+      table = new AtomicReferenceArray<>(oldTable.length());
+      count = 0;
+      if (listener != null) {
+        for (int i = 0; i < oldTable.length(); i++) {
+          for (Node e = oldTable.get(i); e != null; e = e.next) {
+            listener.entryRemoved(e, e.value);
+          }
+        }
+      }
+    }
+
+    /**
+     * Removes the given entry from its bucket. Concurrent readers that are positioned at the entry
+     * can still follow its {@code next} field. The caller must hold this segment's monitor.
+     *
+     * @param e the entry to remove
+     */
+    @SuppressWarnings("interning:not.interned") // reference equality of entries
+    private void unlink(Node e) {
+      AtomicReferenceArray<@Nullable Node> tab = table;
+      int index = e.hash & (tab.length() - 1);
+      Node prev = null;
+      for (Node p = tab.get(index); p != null; p = p.next) {
+        if (p == e) {
+          if (prev == null) {
+            tab.set(index, e.next);
+          } else {
+            prev.next = e.next;
+          }
+          count--;
+          if (listener != null) {
+            listener.entryRemoved(e, e.value);
+          }
+          return;
+        }
+        prev = p;
+      }
+    }
+
+    /**
+     * Removes the entries whose keys have been discarded. The caller must hold this segment's
+     * monitor.
+     */
+    private void expungeStaleEntries() {
+      Object ref;
+      while ((ref = queue.poll()) != null) {
+        // An entry that was copied by rehash() is not in the current table; unlink is a no-op.
+        unlink((Node) ref);
+      }
+    }
+
+    /**
+     * Doubles the capacity of the table, dropping entries whose keys have been discarded. New
+     * entries are created so that readers traversing the old table are not disturbed; the old
+     * entries may still appear on the reference queue, where they are ignored. The caller must hold
+     * this segment's monitor.
+     */
+    private void rehash() {
+      AtomicReferenceArray<@Nullable Node> oldTable = table;
+      int oldCapacity = oldTable.length();
+      if (oldCapacity >= MAXIMUM_CAPACITY) {
+        threshold = Integer.MAX_VALUE;
+        return;
+      }
+      int newCapacity = oldCapacity << 1;
+      AtomicReferenceArray<@Nullable Node> newTable = new AtomicReferenceArray<>(newCapacity);
+      int newCount = 0;
+      for (int i = 0; i < oldCapacity; i++) {
+        for (Node e = oldTable.get(i); e != null; e = e.next) {
+          Object k = e.get();
+          if (k != null) {
+            int index = e.hash & (newCapacity - 1);
+            Node copy = new Node(k, e.hash, e.value, newTable.get(index), queue);
+            newTable.set(index, copy);
+            newCount++;
+            if (listener != null) {
+              listener.entryStored(copy, copy.value);
+            }
+          } else if (listener != null) {
+            listener.entryRemoved(e, e.value);
+          }
+        }
+      }
+      table = newTable;
+      count = newCount;
+      threshold = (int) (newCapacity * LOAD_FACTOR);
+    }
+  }
+
+  /// Map operations
+
+  /**
+   * Returns the value that lookups return for a key that is not mapped.
+   *
+   * @return the sentinel for unmapped keys
+   */
+  @Pure
+  public long noEntryValue() {
+    return noEntryValue;
+  }
+
+  /**
+   * Returns the number of key-value mappings in this map. <strong>Note:</strong> <em>In contrast to
+   * most implementations of the <code>Map</code> interface, the time required by this operation is
+   * linear in the size of the map.</em> The result does not count entries whose keys have been
+   * discarded.
+   *
+   * @return the number of key-value mappings in this map
+   */
+  @Pure
+  public int size() {
+    long n = 0;
+    for (Segment segment : segments) {
+      n += segment.liveCount();
+    }
+    return (int) Math.min(n, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns true if this map contains no key-value mappings.
+   *
+   * @return true if this map contains no key-value mappings
+   */
+  @Pure
+  public boolean isEmpty() {
+    for (Segment segment : segments) {
+      if (segment.count != 0 && segment.liveCount() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the value for the given key. Takes no lock.
+   *
+   * @param key a key
+   * @return the value for the key, or {@link #noEntryValue} if the key is not mapped
+   */
+  @Pure
+  public long getLong(@Nullable Object key) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    Node e = segmentFor(h).getNode(k, h);
+    return (e == null) ? noEntryValue : e.value;
+  }
+
+  /**
+   * Returns true if this map contains a mapping for the given key. Takes no lock.
+   *
+   * @param key a key
+   * @return true if the key is mapped
+   */
+  @Pure
+  public boolean containsKey(@Nullable Object key) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    return segmentFor(h).getNode(k, h) != null;
+  }
+
+  /**
+   * Maps the key to the value.
+   *
+   * @param key a key
+   * @param value the value
+   * @return the previous value for the key, or {@link #noEntryValue} if the key was not mapped
+   */
+  public long putLong(K key, long value) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    return segmentFor(h).put(k, h, value, false);
+  }
+
+  /**
+   * Maps the key to the value, unless the key is already mapped.
+   *
+   * @param key a key
+   * @param value the value
+   * @return the current value for the key, or {@link #noEntryValue} if the key was not mapped
+   */
+  public long putLongIfAbsent(K key, long value) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    return segmentFor(h).put(k, h, value, true);
+  }
+
+  /**
+   * Returns the value for the key, first computing it and mapping the key to it if the key is not
+   * mapped.
+   *
+   * <p>If the key is already mapped, this takes no lock. Otherwise, the mapping function is called
+   * at most once, while the key's segment is locked, so it should be short and must not update
+   * this map.
+   *
+   * @param key a key
+   * @param mappingFunction computes the value for the key
+   * @return the current or computed value for the key
+   */
+  public long computeLongIfAbsent(K key, ToLongFunction<? super K> mappingFunction) {
+    if (mappingFunction == null) {
+      throw new NullPointerException();
+    }
+    Object k = maskNull(key);
+    int h = hash(k);
+    Segment segment = segmentFor(h);
+    Node e = segment.getNode(k, h);
+    if (e != null) {
+      return e.value;
+    }
+    return segment.computeIfAbsent(k, h, mappingFunction);
+  }
+
+  /**
+   * Removes the mapping for the key, if any.
+   *
+   * @param key a key
+   * @return the previous value for the key, or {@link #noEntryValue} if the key was not mapped
+   */
+  public long removeLong(@Nullable Object key) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    return segmentFor(h).remove(k, h);
+  }
+
+  /** Removes all mappings from this map. */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+}
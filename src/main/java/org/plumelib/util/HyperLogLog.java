@@ -0,0 +1,120 @@
+package org.plumelib.util;
+
+import java.io.Serializable;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A HyperLogLog sketch, which estimates the number of distinct keys added to it in a fixed amount
+ * of memory. The estimate has a standard error of about 3%. Two sketches can be merged, and the
+ * result estimates the size of the union of their keys.
+ *
+ * <p>Used by {@link LimitedSizeSet}, {@link LimitedSizeIntSet}, and {@link LimitedSizeLongSet} to
+ * estimate their size after they overflow.
+ */
+final class HyperLogLog implements Serializable, Cloneable {
+  // We are Serializable, so we specify a version to allow changes to
+  // method signatures without breaking serialization.  If you add or
+  // remove fields, you should change this number to the current date.
+  static final long serialVersionUID = 20261018L;
+
+  /** The number of bits of the hash that select a register. */
+  private static final int PRECISION = 10;
+
+  /** The number of registers. */
+  private static final int NUM_REGISTERS = 1 << PRECISION;
+
+  /** The bias-correction constant for {@link #NUM_REGISTERS} registers. */
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / NUM_REGISTERS);
+
+  /**
+   * For each register, the maximum over the keys that selected it of the position of the leftmost
+   * 1 bit in the rest of the key's hash.
+   */
+  private byte[] registers = new byte[NUM_REGISTERS];
+
+  /** Creates an empty sketch. */
+  HyperLogLog() {}
+
+  /**
+   * Adds a key to this sketch. The key need not be well distributed; it is hashed.
+   *
+   * @param key the key to add
+   */
+  void add(long key) {
+    long hash = mix(key);
+    int register = (int) (hash >>> (64 - PRECISION));
+    // The sentinel bit bounds the rank when the remaining bits are all 0.
+    long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+    byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+    if (rank > registers[register]) {
+      registers[register] = rank;
+    }
+  }
+
+  /**
+   * Adds all the keys of another sketch to this one.
+   *
+   * @param other the sketch whose keys to add
+   */
+  void addAll(HyperLogLog other) {
+    for (int i = 0; i < NUM_REGISTERS; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * Returns an estimate of the number of distinct keys added to this sketch.
+   *
+   * @return an estimate of the number of distinct keys added to this sketch
+   */
+  @Pure
+  long estimate(@GuardSatisfied HyperLogLog this) {
+    double sum = 0;
+    int zeros = 0;
+    for (byte r : registers) {
+      sum += 1.0 / (1L << r);
+      if (r == 0) {
+        zeros++;
+      }
+    }
+    double estimate = ALPHA * NUM_REGISTERS * NUM_REGISTERS / sum;
+    if (estimate <= 2.5 * NUM_REGISTERS && zeros != 0) {
+      // Linear counting is more accurate for small cardinalities.
+      estimate = NUM_REGISTERS * Math.log((double) NUM_REGISTERS / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * Returns a well-distributed 64-bit hash of a key. This is the finalizer of the SplitMix64
+   * generator.
+   *
+   * @param key a key
+   * @return a hash of {@code key}
+   */
+  private static long mix(long key) {
+    long h = key;
+    h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+    h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+    return h ^ (h >>> 31);
+  }
+
+  @SuppressWarnings(
+      "allcheckers:purity.not.sideeffectfree.assign.field") // side effect to local state (clone)
+  @SideEffectFree
+  @Override
+  public HyperLogLog clone(@GuardSatisfied HyperLogLog this) {
+    HyperLogLog result;
+    try {
+      result = (HyperLogLog) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new Error(); // can't happen
+    }
+    result.registers = registers.clone();
+    return result;
+  }
+}
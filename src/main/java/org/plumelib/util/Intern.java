@@ -1,15 +1,38 @@
 package org.plumelib.util;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.checkerframework.checker.index.qual.IndexFor;
 import org.checkerframework.checker.index.qual.LTLengthOf;
 import org.checkerframework.checker.index.qual.LessThan;
 import org.checkerframework.checker.index.qual.NonNegative;
 import org.checkerframework.checker.index.qual.SameLen;
 import org.checkerframework.checker.interning.qual.Interned;
-import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.PolyNull;
 import org.checkerframework.common.value.qual.PolyValue;
@@ -45,20 +68,66 @@ public final class Intern {
   /// Strings
   ///
 
+  /** The number of segments of the string pool. */
+  private static final int STRING_POOL_CONCURRENCY_LEVEL = 16;
+
+  /**
+   * The pool of interned Strings, or null if Strings are interned by {@link String#intern}.
+   *
+   * @see #useStringPool
+   */
+  private static volatile @MonotonicNonNull ConcurrentWeakHasherMap<
+          @Interned String, WeakReference<@Interned String>>
+      internedStrings = null;
+
+  /**
+   * Makes {@link #intern(String)} and {@link #internStrings} use a string pool that belongs to
+   * this class, rather than the JVM's string table via {@link String#intern}. The pool is a
+   * concurrent weak hash table: lookups of already-interned strings take no lock, it can be sized
+   * in advance, and it reports statistics (see {@link #getStatistics}).
+   *
+   * <p>Strings interned by this class are {@code ==} to one another, but once the pool is in use
+   * they are not necessarily {@code ==} to string literals or to the results of {@link
+   * String#intern}. Strings interned before this method is called are not {@code ==} to strings
+   * interned after it. Therefore, call this method at startup, before any strings are interned.
+   *
+   * @param initialCapacity the number of strings that the pool can hold before it must be resized
+   * @throws IllegalStateException if the string pool is already in use
+   * @throws IllegalArgumentException if initialCapacity is negative
+   */
+  public static synchronized void useStringPool(int initialCapacity) {
+    if (internedStrings != null) {
+      throw new IllegalStateException("The string pool is already in use");
+    }
+    internedStrings =
+        new ConcurrentWeakHasherMap<>(initialCapacity, STRING_POOL_CONCURRENCY_LEVEL, null);
+  }
+
+  /**
+   * Returns true if strings are interned by this class's string pool, and false if they are
+   * interned by {@link String#intern}.
+   *
+   * @return true if the string pool is in use
+   * @see #useStringPool
+   */
+  public static boolean isStringPoolInUse() {
+    return internedStrings != null;
+  }
+
   /**
    * Replace each element of the array by its interned version. Side-effects the array, but also
    * returns it.
    *
    * @param a the array whose elements to intern in place
    * @return an interned version of a
-   * @see String#intern
+   * @see #intern(String)
    */
   @SuppressWarnings("interning") // side-effects the array in place (dangerous, but convenient)
   public static @Interned String @PolyValue @SameLen("#1") [] internStrings(
       String @PolyValue [] a) {
     for (int i = 0; i < a.length; i++) {
       if (a[i] != null) {
-        a[i] = a[i].intern();
+        a[i] = intern(a[i]);
       }
     }
     return a;
@@ -81,7 +150,7 @@ public final class Intern {
       // nothing to do
       return true;
     } else if (value instanceof String) {
-      return (value == ((String) value).intern());
+      return (value == intern((String) value));
     } else if (value instanceof String[]) {
       return (value == intern((String[]) value));
     } else if (value instanceof Integer) {
@@ -96,6 +165,16 @@ public final class Intern {
       return (value == intern((Double) value));
     } else if (value instanceof double[]) {
       return (value == intern((double[]) value));
+    } else if (value instanceof float[]) {
+      return (value == intern((float[]) value));
+    } else if (value instanceof char[]) {
+      return (value == intern((char[]) value));
+    } else if (value instanceof byte[]) {
+      return (value == intern((byte[]) value));
+    } else if (value instanceof short[]) {
+      return (value == intern((short[]) value));
+    } else if (value instanceof boolean[]) {
+      return (value == intern((boolean[]) value));
     } else if (value instanceof Object[]) {
       return (value == intern((Object[]) value));
     } else {
@@ -109,51 +188,16 @@ public final class Intern {
   /// Interning objects
   ///
 
-  /**
-   * Hasher object which hashes and compares Integers. This is the obvious implementation that uses
-   * intValue() for the hashCode.
-   *
-   * @see Hasher
-   */
-  private static final class IntegerHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      return a1.equals(a2);
-    }
-
-    @Override
-    public int hashCode(Object o) {
-      Integer i = (Integer) o;
-      return i.intValue();
-    }
-  }
-
-  /**
-   * Hasher object which hashes and compares Longs. This is the obvious implementation that uses
-   * intValue() for the hashCode.
-   *
-   * @see Hasher
-   */
-  private static final class LongHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      return a1.equals(a2);
-    }
-
-    @Override
-    public int hashCode(Object o) {
-      Long i = (Long) o;
-      return i.intValue();
-    }
-  }
-
   /**
    * Hasher object which hashes and compares int[] objects according to their contents.
    *
    * @see Hasher
    * @see Arrays#equals(int[], int[])
    */
-  private static final class IntArrayHasher implements Hasher {
+  public static final class IntArrayHasher implements Hasher {
+    /** Creates a new IntArrayHasher. */
+    public IntArrayHasher() {}
+
     @Override
     public boolean equals(Object a1, Object a2) {
       return Arrays.equals((int[]) a1, (int[]) a2);
@@ -171,7 +215,10 @@ public final class Intern {
    * @see Hasher
    * @see Arrays#equals (long[], long[])
    */
-  private static final class LongArrayHasher implements Hasher {
+  public static final class LongArrayHasher implements Hasher {
+    /** Creates a new LongArrayHasher. */
+    public LongArrayHasher() {}
+
     @Override
     public boolean equals(Object a1, Object a2) {
       return Arrays.equals((long[]) a1, (long[]) a2);
@@ -188,31 +235,16 @@ public final class Intern {
   /** Another multiplicative constant for use in hashing function. */
   private static final double DOUBLE_FACTOR = 263;
 
-  /**
-   * Hasher object which hashes and compares Doubles.
-   *
-   * @see Hasher
-   */
-  private static final class DoubleHasher implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      return a1.equals(a2);
-    }
-
-    @Override
-    public int hashCode(Object o) {
-      Double d = (Double) o;
-      return d.hashCode();
-    }
-  }
-
   /**
    * Hasher object which hashes and compares double[] objects according to their contents.
    *
    * @see Hasher
    * @see Arrays#equals(Object[],Object[])
    */
-  private static final class DoubleArrayHasher implements Hasher {
+  public static final class DoubleArrayHasher implements Hasher {
+    /** Creates a new DoubleArrayHasher. */
+    public DoubleArrayHasher() {}
+
     @Override
     public boolean equals(Object a1, Object a2) {
       // "Arrays.equals" considers +0.0 != -0.0.
@@ -253,7 +285,10 @@ public final class Intern {
    * @see Hasher
    * @see Arrays#equals
    */
-  private static final class StringArrayHasher implements Hasher {
+  public static final class StringArrayHasher implements Hasher {
+    /** Creates a new StringArrayHasher. */
+    public StringArrayHasher() {}
+
     @Override
     public boolean equals(Object a1, Object a2) {
       return Arrays.equals((String[]) a1, (String[]) a2);
@@ -271,7 +306,10 @@ public final class Intern {
    * @see Hasher
    * @see Arrays#equals(Object[], Object[])
    */
-  private static final class ObjectArrayHasher implements Hasher {
+  public static final class ObjectArrayHasher implements Hasher {
+    /** Creates a new ObjectArrayHasher. */
+    public ObjectArrayHasher() {}
+
     @Override
     public boolean equals(Object a1, Object a2) {
       return Arrays.equals((@Nullable Object[]) a1, (@Nullable Object[]) a2);
@@ -283,238 +321,980 @@ public final class Intern {
     }
   }
 
-  // Each of these maps has:
+  /**
+   * Hasher object which hashes and compares float[] objects according to their contents. Like
+   * {@link DoubleArrayHasher}, it considers +0.0 equal to -0.0, and NaN equal to NaN.
+   *
+   * @see Hasher
+   */
+  public static final class FloatArrayHasher implements Hasher {
+    /** Creates a new FloatArrayHasher. */
+    public FloatArrayHasher() {}
+
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      float[] fa1 = (float[]) a1;
+      float[] fa2 = (float[]) a2;
+      if (fa1.length != fa2.length) {
+        return false;
+      }
+      for (int i = 0; i < fa1.length; i++) {
+        if (!((fa1[i] == fa2[i]) || (Float.isNaN(fa1[i]) && Float.isNaN(fa2[i])))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      float[] a = (float[]) o;
+      // Not Arrays.hashCode(a), for consistency with equals method immediately above.
+      int result = 1;
+      for (int i = 0; i < a.length; i++) {
+        float elt = a[i];
+        // 0.0f for both zeroes; Float.floatToIntBits maps every NaN to the same bits.
+        result = FACTOR * result + (elt == 0 ? 0 : Float.floatToIntBits(elt));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Hasher object which hashes and compares char[] objects according to their contents.
+   *
+   * @see Hasher
+   * @see Arrays#equals(char[], char[])
+   */
+  public static final class CharArrayHasher implements Hasher {
+    /** Creates a new CharArrayHasher. */
+    public CharArrayHasher() {}
+
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((char[]) a1, (char[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((char[]) o);
+    }
+  }
+
+  /**
+   * Hasher object which hashes and compares byte[] objects according to their contents.
+   *
+   * @see Hasher
+   * @see Arrays#equals(byte[], byte[])
+   */
+  public static final class ByteArrayHasher implements Hasher {
+    /** Creates a new ByteArrayHasher. */
+    public ByteArrayHasher() {}
+
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((byte[]) a1, (byte[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((byte[]) o);
+    }
+  }
+
+  /**
+   * Hasher object which hashes and compares short[] objects according to their contents.
+   *
+   * @see Hasher
+   * @see Arrays#equals(short[], short[])
+   */
+  public static final class ShortArrayHasher implements Hasher {
+    /** Creates a new ShortArrayHasher. */
+    public ShortArrayHasher() {}
+
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((short[]) a1, (short[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((short[]) o);
+    }
+  }
+
+  /**
+   * Hasher object which hashes and compares boolean[] objects according to their contents.
+   *
+   * @see Hasher
+   * @see Arrays#equals(boolean[], boolean[])
+   */
+  public static final class BooleanArrayHasher implements Hasher {
+    /** Creates a new BooleanArrayHasher. */
+    public BooleanArrayHasher() {}
+
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((boolean[]) a1, (boolean[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((boolean[]) o);
+    }
+  }
+
+  // Boxed numbers are held in pools keyed by their raw bits, so that looking one up does not
+  // require a boxed key.
+  // Each of the maps has:
   //   key = an interned object
   //   value = a WeakReference for the object itself.
   // They can be looked up using a non-interned value; equality tests know
   // nothing of the interning types.
+  // The pools and maps are thread-safe:  a lookup of an already-interned value takes no lock, and
+  // an insertion locks only one segment of one pool or map.
 
-  /** All the interned Integers. */
-  private static WeakHasherMap<@Interned Integer, WeakReference<@Interned Integer>>
-      internedIntegers;
-  /** All the interned Longs. */
-  private static WeakHasherMap<@Interned Long, WeakReference<@Interned Long>> internedLongs;
+  /** All the interned Integers, keyed by their values. */
+  private static WeakNumberPool<@Interned Integer> internedIntegers;
+  /** All the interned Longs, keyed by their values. */
+  private static WeakNumberPool<@Interned Long> internedLongs;
   /** All the interned Int arrays. */
-  private static WeakHasherMap<int @Interned [], WeakReference<int @Interned []>> internedIntArrays;
+  private static ConcurrentWeakHasherMap<int @Interned [], WeakReference<int @Interned []>>
+      internedIntArrays;
   /** All the interned Long arrays. */
-  private static WeakHasherMap<long @Interned [], WeakReference<long @Interned []>>
+  private static ConcurrentWeakHasherMap<long @Interned [], WeakReference<long @Interned []>>
       internedLongArrays;
-  /** All the interned Doubles. */
-  private static WeakHasherMap<@Interned Double, WeakReference<@Interned Double>> internedDoubles;
+  /** All the interned Doubles, keyed by {@link Double#doubleToLongBits}. */
+  private static WeakNumberPool<@Interned Double> internedDoubles;
   /** The interned NaN. */
   private static @Interned Double internedDoubleNaN;
   /** The interned Double zero. */
   private static @Interned Double internedDoubleZero;
   /** All the interned Double arrays. */
-  private static WeakHasherMap<double @Interned [], WeakReference<double @Interned []>>
+  private static ConcurrentWeakHasherMap<double @Interned [], WeakReference<double @Interned []>>
       internedDoubleArrays;
   /** All the interned String arrays. */
-  private static WeakHasherMap<
+  private static ConcurrentWeakHasherMap<
           @Nullable @Interned String @Interned [],
           WeakReference<@Nullable @Interned String @Interned []>>
       internedStringArrays;
   /** All the interned Object arrays. */
-  private static WeakHasherMap<
+  private static ConcurrentWeakHasherMap<
           @Nullable @Interned Object @Interned [],
           WeakReference<@Nullable @Interned Object @Interned []>>
       internedObjectArrays;
+  /** All the interned Float arrays. */
+  private static ConcurrentWeakHasherMap<float @Interned [], WeakReference<float @Interned []>>
+      internedFloatArrays;
+  /** All the interned Char arrays. */
+  private static ConcurrentWeakHasherMap<char @Interned [], WeakReference<char @Interned []>>
+      internedCharArrays;
+  /** All the interned Byte arrays. */
+  private static ConcurrentWeakHasherMap<byte @Interned [], WeakReference<byte @Interned []>>
+      internedByteArrays;
+  /** All the interned Short arrays. */
+  private static ConcurrentWeakHasherMap<short @Interned [], WeakReference<short @Interned []>>
+      internedShortArrays;
+  /** All the interned Boolean arrays. */
+  private static ConcurrentWeakHasherMap<boolean @Interned [], WeakReference<boolean @Interned []>>
+      internedBooleanArrays;
   /** All the interned Int subsequences. */
-  private static WeakHasherMap<Subsequence<int @Interned []>, WeakReference<int @Interned []>>
-      internedIntSubsequence;
+  private static SubsequenceTable<int @Interned []> internedIntSubsequence;
   /** All the interned Long subsequences. */
-  private static WeakHasherMap<Subsequence<long @Interned []>, WeakReference<long @Interned []>>
-      internedLongSubsequence;
+  private static SubsequenceTable<long @Interned []> internedLongSubsequence;
   /** All the interned Double subsequences. */
-  private static WeakHasherMap<Subsequence<double @Interned []>, WeakReference<double @Interned []>>
-      internedDoubleSubsequence;
+  private static SubsequenceTable<double @Interned []> internedDoubleSubsequence;
   /** All the interned Object subsequences. */
-  private static WeakHasherMap<
-          Subsequence<@Nullable @Interned Object @Interned []>,
-          WeakReference<@Nullable @Interned Object @Interned []>>
+  private static SubsequenceTable<@Nullable @Interned Object @Interned []>
       internedObjectSubsequence;
   /** All the interned String subsequences. */
-  private static WeakHasherMap<
-          Subsequence<@Nullable @Interned String @Interned []>,
-          WeakReference<@Nullable @Interned String @Interned []>>
+  private static SubsequenceTable<@Nullable @Interned String @Interned []>
       internedStringSubsequence;
+  /** All the interned Float subsequences. */
+  private static SubsequenceTable<float @Interned []> internedFloatSubsequence;
+  /** All the interned Char subsequences. */
+  private static SubsequenceTable<char @Interned []> internedCharSubsequence;
+  /** All the interned Byte subsequences. */
+  private static SubsequenceTable<byte @Interned []> internedByteSubsequence;
+  /** All the interned Short subsequences. */
+  private static SubsequenceTable<short @Interned []> internedShortSubsequence;
+  /** All the interned Boolean subsequences. */
+  private static SubsequenceTable<boolean @Interned []> internedBooleanSubsequence;
 
   static {
-    internedIntegers = new WeakHasherMap<>(new IntegerHasher());
-    internedLongs = new WeakHasherMap<>(new LongHasher());
-    internedIntArrays = new WeakHasherMap<>(new IntArrayHasher());
-    internedLongArrays = new WeakHasherMap<>(new LongArrayHasher());
-    internedDoubles = new WeakHasherMap<>(new DoubleHasher());
+    internedIntegers = new WeakNumberPool<>();
+    internedLongs = new WeakNumberPool<>();
+    internedIntArrays = new ConcurrentWeakHasherMap<>(new IntArrayHasher());
+    internedLongArrays = new ConcurrentWeakHasherMap<>(new LongArrayHasher());
+    internedDoubles = new WeakNumberPool<>();
     internedDoubleNaN = Double.NaN;
     internedDoubleZero = 0.0;
-    internedDoubleArrays = new WeakHasherMap<>(new DoubleArrayHasher());
-    internedStringArrays = new WeakHasherMap<>(new StringArrayHasher());
+    internedDoubleArrays = new ConcurrentWeakHasherMap<>(new DoubleArrayHasher());
+    internedStringArrays = new ConcurrentWeakHasherMap<>(new StringArrayHasher());
     internedObjectArrays =
-        new WeakHasherMap<
+        new ConcurrentWeakHasherMap<
             @Nullable @Interned Object @Interned [],
             WeakReference<@Nullable @Interned Object @Interned []>>(new ObjectArrayHasher());
-    internedIntSubsequence = new WeakHasherMap<>(new SubsequenceHasher<int @Interned []>());
-    internedLongSubsequence = new WeakHasherMap<>(new SubsequenceHasher<long @Interned []>());
-    internedDoubleSubsequence = new WeakHasherMap<>(new SubsequenceHasher<double @Interned []>());
-    internedObjectSubsequence =
-        new WeakHasherMap<>(new SubsequenceHasher<@Nullable @Interned Object @Interned []>());
-    internedStringSubsequence =
-        new WeakHasherMap<>(new SubsequenceHasher<@Nullable @Interned String @Interned []>());
+    internedIntSubsequence = new SubsequenceTable<>();
+    internedLongSubsequence = new SubsequenceTable<>();
+    internedDoubleSubsequence = new SubsequenceTable<>();
+    internedObjectSubsequence = new SubsequenceTable<>();
+    internedStringSubsequence = new SubsequenceTable<>();
+    internedFloatArrays = new ConcurrentWeakHasherMap<>(new FloatArrayHasher());
+    internedCharArrays = new ConcurrentWeakHasherMap<>(new CharArrayHasher());
+    internedByteArrays = new ConcurrentWeakHasherMap<>(new ByteArrayHasher());
+    internedShortArrays = new ConcurrentWeakHasherMap<>(new ShortArrayHasher());
+    internedBooleanArrays = new ConcurrentWeakHasherMap<>(new BooleanArrayHasher());
+    internedFloatSubsequence = new SubsequenceTable<>();
+    internedCharSubsequence = new SubsequenceTable<>();
+    internedByteSubsequence = new SubsequenceTable<>();
+    internedShortSubsequence = new SubsequenceTable<>();
+    internedBooleanSubsequence = new SubsequenceTable<>();
   }
 
-  /// For testing only
-
   /**
-   * Returns the number of interned integers. For testing only.
+   * Returns the canonical representative of {@code a} in {@code map}, first making {@code a} the
+   * canonical representative if there is none. The check for an existing representative takes no
+   * lock. If several threads intern equal values at the same time, all of them get the same
+   * result.
    *
-   * @return the number of interned integers.
+   * @param <T> the type of the interned values
+   * @param map the map of all interned values of type T, each mapped to a weak reference to itself
+   * @param a the value to canonicalize
+   * @return the canonical representative of {@code a}
    */
-  static int numIntegers() {
-    return internedIntegers.size();
+  @SuppressWarnings("interning") // interning implementation
+  private static <T extends Object> @Interned T internInMap(
+      ConcurrentWeakHasherMap<@Interned T, WeakReference<@Interned T>> map,
+      T a,
+      PoolStatistics stats) {
+    WeakReference<@Interned T> lookup = map.get(a);
+    @Interned T result = (lookup != null) ? lookup.get() : null;
+    if (result != null) {
+      if (statisticsEnabled) {
+        stats.hit(a, result);
+      }
+      return result;
+    }
+    @Interned T candidate = (@Interned T) a;
+    WeakReference<@Interned T> candidateRef = new WeakReference<>(candidate);
+    while (true) {
+      WeakReference<@Interned T> existing = map.putIfAbsent(candidate, candidateRef);
+      if (existing == null) {
+        if (statisticsEnabled) {
+          stats.miss();
+        }
+        return candidate;
+      }
+      result = existing.get();
+      if (result != null) {
+        if (statisticsEnabled) {
+          stats.hit(a, result);
+        }
+        return result;
+      }
+      // The existing representative was garbage-collected after the map matched it; replace it.
+      if (map.replace(candidate, existing, candidateRef)) {
+        if (statisticsEnabled) {
+          stats.miss();
+        }
+        return candidate;
+      }
+    }
   }
 
   /**
-   * Returns the number of interned longs. For testing only.
+   * Replaces each non-null element of {@code values} by its canonical representative in {@code
+   * map}, first making the element the canonical representative if there is none. This is the
+   * bulk version of {@link #internInMap(ConcurrentWeakHasherMap, Object, PoolStatistics)}.
    *
-   * @return the number of interned longs.
+   * @param <T> the type of the interned values
+   * @param map the map of all interned values of type T, each mapped to a weak reference to itself
+   * @param values the values to canonicalize; each non-null element must be a T
+   * @param stats the statistics of the map
    */
-  static int numLongs() {
-    return internedLongs.size();
+  private static <T extends Object> void internAllInMap(
+      ConcurrentWeakHasherMap<@Interned T, WeakReference<@Interned T>> map,
+      @Nullable Object[] values,
+      PoolStatistics stats) {
+    if (!statisticsEnabled) {
+      map.internKeys(values, WeakReference::new);
+      return;
+    }
+    @Nullable Object[] before = values.clone();
+    int added = map.internKeys(values, WeakReference::new);
+    stats.bulk(before, values, added);
   }
 
-  /**
-   * Returns the number of interned int arrays. For testing only.
-   *
-   * @return the number of interned int arrays.
-   */
-  static int numIntArrays() {
-    return internedIntArrays.size();
-  }
+  ///////////////////////////////////////////////////////////////////////////
+  /// Statistics
+  ///
 
-  /**
-   * Returns the number of interned long arrays. For testing only.
-   *
-   * @return the number of interned long arrays.
-   */
-  static int numLongArrays() {
-    return internedLongArrays.size();
-  }
+  /** The name under which {@link #registerStatisticsMXBean} registers the statistics MXBean. */
+  public static final String STATISTICS_MXBEAN_NAME = "org.plumelib.util:type=Intern";
 
   /**
-   * Returns the number of interned doubles. For testing only.
-   *
-   * @return the number of interned doubles.
+   * True if hits, misses, and bytes saved are being counted. When false, each intern method pays
+   * only for reading this field.
    */
-  static int numDoubles() {
-    return internedDoubles.size();
-  }
+  private static volatile boolean statisticsEnabled = false;
+
+  /** Statistics for the String pool; only maintained while the string pool is in use. */
+  private static final PoolStatistics stringStatistics =
+      new PoolStatistics(
+          "String",
+          () -> {
+            ConcurrentWeakHasherMap<?, ?> pool = internedStrings;
+            return (pool == null) ? 0 : pool.size();
+          },
+          () -> {
+            ConcurrentWeakHasherMap<?, ?> pool = internedStrings;
+            return (pool == null) ? 0 : pool.clearedCount();
+          });
+  /** Statistics for the Integer pool. */
+  private static final PoolStatistics integerStatistics =
+      new PoolStatistics(
+          "Integer", () -> internedIntegers.size(), () -> internedIntegers.clearedCount());
+  /** Statistics for the Long pool. */
+  private static final PoolStatistics longStatistics =
+      new PoolStatistics("Long", () -> internedLongs.size(), () -> internedLongs.clearedCount());
+  /** Statistics for the Double pool. */
+  private static final PoolStatistics doubleStatistics =
+      new PoolStatistics(
+          "Double", () -> internedDoubles.size(), () -> internedDoubles.clearedCount());
+  /** Statistics for the int[] pool. */
+  private static final PoolStatistics intArrayStatistics =
+      new PoolStatistics(
+          "int[]", () -> internedIntArrays.size(), () -> internedIntArrays.clearedCount());
+  /** Statistics for the long[] pool. */
+  private static final PoolStatistics longArrayStatistics =
+      new PoolStatistics(
+          "long[]", () -> internedLongArrays.size(), () -> internedLongArrays.clearedCount());
+  /** Statistics for the double[] pool. */
+  private static final PoolStatistics doubleArrayStatistics =
+      new PoolStatistics(
+          "double[]", () -> internedDoubleArrays.size(), () -> internedDoubleArrays.clearedCount());
+  /** Statistics for the String[] pool. */
+  private static final PoolStatistics stringArrayStatistics =
+      new PoolStatistics(
+          "String[]", () -> internedStringArrays.size(), () -> internedStringArrays.clearedCount());
+  /** Statistics for the Object[] pool. */
+  private static final PoolStatistics objectArrayStatistics =
+      new PoolStatistics(
+          "Object[]", () -> internedObjectArrays.size(), () -> internedObjectArrays.clearedCount());
+  /** Statistics for the int[] subsequence pool. */
+  private static final PoolStatistics intSubsequenceStatistics =
+      new PoolStatistics(
+          "int[] subsequence",
+          () -> internedIntSubsequence.size(),
+          () -> internedIntSubsequence.clearedCount());
+  /** Statistics for the long[] subsequence pool. */
+  private static final PoolStatistics longSubsequenceStatistics =
+      new PoolStatistics(
+          "long[] subsequence",
+          () -> internedLongSubsequence.size(),
+          () -> internedLongSubsequence.clearedCount());
+  /** Statistics for the double[] subsequence pool. */
+  private static final PoolStatistics doubleSubsequenceStatistics =
+      new PoolStatistics(
+          "double[] subsequence",
+          () -> internedDoubleSubsequence.size(),
+          () -> internedDoubleSubsequence.clearedCount());
+  /** Statistics for the Object[] subsequence pool. */
+  private static final PoolStatistics objectSubsequenceStatistics =
+      new PoolStatistics(
+          "Object[] subsequence",
+          () -> internedObjectSubsequence.size(),
+          () -> internedObjectSubsequence.clearedCount());
+  /** Statistics for the String[] subsequence pool. */
+  private static final PoolStatistics stringSubsequenceStatistics =
+      new PoolStatistics(
+          "String[] subsequence",
+          () -> internedStringSubsequence.size(),
+          () -> internedStringSubsequence.clearedCount());
+  /** Statistics for the float[] pool. */
+  private static final PoolStatistics floatArrayStatistics =
+      new PoolStatistics(
+          "float[]", () -> internedFloatArrays.size(), () -> internedFloatArrays.clearedCount());
+  /** Statistics for the char[] pool. */
+  private static final PoolStatistics charArrayStatistics =
+      new PoolStatistics(
+          "char[]", () -> internedCharArrays.size(), () -> internedCharArrays.clearedCount());
+  /** Statistics for the byte[] pool. */
+  private static final PoolStatistics byteArrayStatistics =
+      new PoolStatistics(
+          "byte[]", () -> internedByteArrays.size(), () -> internedByteArrays.clearedCount());
+  /** Statistics for the short[] pool. */
+  private static final PoolStatistics shortArrayStatistics =
+      new PoolStatistics(
+          "short[]", () -> internedShortArrays.size(), () -> internedShortArrays.clearedCount());
+  /** Statistics for the boolean[] pool. */
+  private static final PoolStatistics booleanArrayStatistics =
+      new PoolStatistics(
+          "boolean[]",
+          () -> internedBooleanArrays.size(),
+          () -> internedBooleanArrays.clearedCount());
+  /** Statistics for the float[] subsequence pool. */
+  private static final PoolStatistics floatSubsequenceStatistics =
+      new PoolStatistics(
+          "float[] subsequence",
+          () -> internedFloatSubsequence.size(),
+          () -> internedFloatSubsequence.clearedCount());
+  /** Statistics for the char[] subsequence pool. */
+  private static final PoolStatistics charSubsequenceStatistics =
+      new PoolStatistics(
+          "char[] subsequence",
+          () -> internedCharSubsequence.size(),
+          () -> internedCharSubsequence.clearedCount());
+  /** Statistics for the byte[] subsequence pool. */
+  private static final PoolStatistics byteSubsequenceStatistics =
+      new PoolStatistics(
+          "byte[] subsequence",
+          () -> internedByteSubsequence.size(),
+          () -> internedByteSubsequence.clearedCount());
+  /** Statistics for the short[] subsequence pool. */
+  private static final PoolStatistics shortSubsequenceStatistics =
+      new PoolStatistics(
+          "short[] subsequence",
+          () -> internedShortSubsequence.size(),
+          () -> internedShortSubsequence.clearedCount());
+  /** Statistics for the boolean[] subsequence pool. */
+  private static final PoolStatistics booleanSubsequenceStatistics =
+      new PoolStatistics(
+          "boolean[] subsequence",
+          () -> internedBooleanSubsequence.size(),
+          () -> internedBooleanSubsequence.clearedCount());
+
+  /** The statistics of all the pools, in the order reported by {@link #getStatistics}. */
+  private static final List<PoolStatistics> allStatistics =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              stringStatistics,
+              integerStatistics,
+              longStatistics,
+              doubleStatistics,
+              intArrayStatistics,
+              longArrayStatistics,
+              doubleArrayStatistics,
+              stringArrayStatistics,
+              objectArrayStatistics,
+              intSubsequenceStatistics,
+              longSubsequenceStatistics,
+              doubleSubsequenceStatistics,
+              objectSubsequenceStatistics,
+              stringSubsequenceStatistics,
+              floatArrayStatistics,
+              charArrayStatistics,
+              byteArrayStatistics,
+              shortArrayStatistics,
+              booleanArrayStatistics,
+              floatSubsequenceStatistics,
+              charSubsequenceStatistics,
+              byteSubsequenceStatistics,
+              shortSubsequenceStatistics,
+              booleanSubsequenceStatistics));
 
   /**
-   * Returns the number of interned double arrays. For testing only.
+   * Enables or disables the counting of hits, misses, and bytes saved by the intern methods. It is
+   * disabled by default. Counting uses contention-free counters, but still costs a little on every
+   * call to an intern method.
    *
-   * @return the number of interned double arrays.
-   */
-  static int numDoubleArrays() {
-    return internedDoubleArrays.size();
-  }
-
-  /**
-   * Returns the number of interned string arrays. For testing only.
+   * <p>Counts are retained when statistics are disabled; use {@link #resetStatistics} to clear
+   * them.
    *
-   * @return the number of interned string arrays.
+   * @param enabled true to enable statistics, false to disable them
    */
-  static int numStringArrays() {
-    return internedStringArrays.size();
+  public static void setStatisticsEnabled(boolean enabled) {
+    statisticsEnabled = enabled;
   }
 
   /**
-   * Returns the number of interned object arrays. For testing only.
+   * Returns true if hits, misses, and bytes saved are being counted.
    *
-   * @return the number of interned object arrays.
+   * @return true if statistics are enabled
    */
-  static int numObjectArrays() {
-    return internedObjectArrays.size();
+  public static boolean isStatisticsEnabled() {
+    return statisticsEnabled;
   }
 
   /**
-   * Returns all the interned integers. For testing only.
+   * Returns a snapshot of the statistics of each of the pools: String, Integer, Long, Double, the
+   * array types, and the subsequences of each array type. There are statistics for Strings only
+   * while the string pool is in use (see {@link #useStringPool}); otherwise, Strings are interned
+   * by {@link String#intern}.
    *
-   * @return all the interned integers
-   */
-  static Iterator<@Interned Integer> integers() {
-    return internedIntegers.keySet().iterator();
-  }
-
-  /**
-   * Returns all the interned longs. For testing only.
+   * <p>Computing the number of live entries takes time linear in the size of each pool, so this is
+   * intended to be polled occasionally rather than called in a loop.
    *
-   * @return all the interned longs
+   * @return the statistics of each pool
    */
-  static Iterator<@Interned Long> longs() {
-    return internedLongs.keySet().iterator();
+  public static List<InternPoolStatistics> getStatistics() {
+    List<InternPoolStatistics> result = new ArrayList<>(allStatistics.size());
+    for (PoolStatistics stats : allStatistics) {
+      result.add(stats.snapshot());
+    }
+    return result;
   }
 
   /**
-   * Returns all the interned int arrays. For testing only.
-   *
-   * @return all the interned int arrays
+   * Sets the counts of hits, misses, entries cleared by the garbage collector, and bytes saved to
+   * zero.
    */
-  static Iterator<int @Interned []> intArrays() {
-    return internedIntArrays.keySet().iterator();
+  public static void resetStatistics() {
+    for (PoolStatistics stats : allStatistics) {
+      stats.reset();
+    }
   }
 
   /**
-   * Returns all the interned long arrays. For testing only.
+   * Registers an {@link InternStatisticsMXBean} with the platform MBean server, under the name
+   * {@value #STATISTICS_MXBEAN_NAME}, so that the statistics can be monitored and enabled with
+   * tools such as JConsole. Does nothing if it is already registered.
    *
-   * @return all the interned long arrays
+   * @throws JMException if the MXBean cannot be registered
    */
-  static Iterator<long @Interned []> longArrays() {
-    return internedLongArrays.keySet().iterator();
+  public static void registerStatisticsMXBean() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(STATISTICS_MXBEAN_NAME);
+    try {
+      server.registerMBean(new StatisticsMXBean(), name);
+    } catch (InstanceAlreadyExistsException e) {
+      // Another thread registered it.
+    }
   }
 
   /**
-   * Returns all the interned doubles. For testing only.
+   * Returns the estimated size in bytes of an object that an intern method might return, for a
+   * 64-bit JVM with compressed object pointers: 16 bytes of header and length for an array, plus
+   * its elements, rounded up to a multiple of 8.
    *
-   * @return all the interned doubles
+   * @param o a boxed number or an array
+   * @return the estimated size of {@code o} in bytes
    */
-  static Iterator<@Interned Double> doubles() {
-    return internedDoubles.keySet().iterator();
+  @Pure
+  private static long estimatedSize(Object o) {
+    long elementsSize;
+    if (o instanceof int[]) {
+      elementsSize = 4L * ((int[]) o).length;
+    } else if (o instanceof long[]) {
+      elementsSize = 8L * ((long[]) o).length;
+    } else if (o instanceof double[]) {
+      elementsSize = 8L * ((double[]) o).length;
+    } else if (o instanceof Object[]) {
+      elementsSize = 4L * ((Object[]) o).length;
+    } else if (o instanceof float[]) {
+      elementsSize = 4L * ((float[]) o).length;
+    } else if (o instanceof char[]) {
+      elementsSize = 2L * ((char[]) o).length;
+    } else if (o instanceof byte[]) {
+      elementsSize = ((byte[]) o).length;
+    } else if (o instanceof short[]) {
+      elementsSize = 2L * ((short[]) o).length;
+    } else if (o instanceof boolean[]) {
+      elementsSize = ((boolean[]) o).length;
+    } else {
+      // A boxed number: a 12-byte header and a field of at most 8 bytes.
+      return 16;
+    }
+    return (16 + elementsSize + 7) & ~7L;
   }
 
-  /**
-   * Returns all the interned double arrays. For testing only.
-   *
-   * @return all the interned double arrays
-   */
-  static Iterator<double @Interned []> doubleArrays() {
-    return internedDoubleArrays.keySet().iterator();
-  }
+  /** The hit, miss, and bytes-saved counters of one pool, and how to query its size. */
+  private static final class PoolStatistics {
+    /** The name of the pool. */
+    final String name;
+    /** The number of hits. */
+    final LongAdder hits = new LongAdder();
+    /** The number of misses. */
+    final LongAdder misses = new LongAdder();
+    /** The estimated number of bytes saved. */
+    final LongAdder bytesSaved = new LongAdder();
+    /** Returns the number of live entries in the pool. */
+    final LongSupplier liveEntries;
+    /** Returns the number of entries the pool has removed after they were garbage-collected. */
+    final LongSupplier clearedEntries;
+    /** The value of {@code clearedEntries} at the last reset. */
+    volatile long clearedAtReset = 0;
 
-  /**
-   * Returns all the interned string arrays. For testing only.
-   *
-   * @return all the interned string arrays
-   */
-  static Iterator<@Nullable @Interned String @Interned []> stringArrays() {
-    return internedStringArrays.keySet().iterator();
-  }
+    /**
+     * Creates the statistics for a pool.
+     *
+     * @param name the name of the pool
+     * @param liveEntries returns the number of live entries in the pool
+     * @param clearedEntries returns the number of entries the pool has removed after they were
+     *     garbage-collected
+     */
+    PoolStatistics(String name, LongSupplier liveEntries, LongSupplier clearedEntries) {
+      this.name = name;
+      this.liveEntries = liveEntries;
+      this.clearedEntries = clearedEntries;
+    }
 
-  /**
-   * Returns all the interned object arrays. For testing only.
-   *
-   * @return all the interned object arrays
-   */
+    /**
+     * Records that a lookup found an existing canonical value.
+     *
+     * @param argument the value that was looked up, or null if none was allocated
+     * @param result the canonical value
+     */
+    @SuppressWarnings("interning:not.interned") // a duplicate is saved only if it is not canonical
+    void hit(@Nullable Object argument, Object result) {
+      hits.increment();
+      if (argument != result) {
+        bytesSaved.add(estimatedSize(result));
+      }
+    }
+
+    /**
+     * Records the results of a bulk lookup.
+     *
+     * @param arguments the values that were looked up
+     * @param results the canonical values, in the same order
+     * @param added the number of arguments that were made canonical
+     */
+    @SuppressWarnings("interning:not.interned") // a duplicate is saved only if it is not canonical
+    void bulk(@Nullable Object[] arguments, @Nullable Object[] results, int added) {
+      long lookups = 0;
+      for (int i = 0; i < arguments.length; i++) {
+        Object result = results[i];
+        if (result != null) {
+          lookups++;
+          if (arguments[i] != result) {
+            bytesSaved.add(estimatedSize(result));
+          }
+        }
+      }
+      misses.add(added);
+      hits.add(lookups - added);
+    }
+
+    /** Records that a lookup made its argument the canonical value. */
+    void miss() {
+      misses.increment();
+    }
+
+    /**
+     * Records the result of inserting a candidate into the pool. If another thread inserted an
+     * equal value first, the candidate is not the result and the lookup counts as a hit.
+     *
+     * @param candidate the value that was inserted
+     * @param result the canonical value
+     */
+    @SuppressWarnings("interning:not.interned") // checks whether the candidate became canonical
+    void inserted(Object candidate, Object result) {
+      if (candidate == result) {
+        miss();
+      } else {
+        hit(candidate, result);
+      }
+    }
+
+    /**
+     * Returns a snapshot of these statistics.
+     *
+     * @return a snapshot of these statistics
+     */
+    InternPoolStatistics snapshot() {
+      return new InternPoolStatistics(
+          name,
+          hits.sum(),
+          misses.sum(),
+          liveEntries.getAsLong(),
+          clearedEntries.getAsLong() - clearedAtReset,
+          bytesSaved.sum());
+    }
+
+    /** Sets all counts to zero. */
+    void reset() {
+      hits.reset();
+      misses.reset();
+      bytesSaved.reset();
+      clearedAtReset = clearedEntries.getAsLong();
+    }
+  }
+
+  /** The implementation of the statistics MXBean; it delegates to the static methods of Intern. */
+  private static final class StatisticsMXBean implements InternStatisticsMXBean {
+    @Override
+    public boolean isEnabled() {
+      return isStatisticsEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+      setStatisticsEnabled(enabled);
+    }
+
+    @Override
+    public List<InternPoolStatistics> getPools() {
+      return getStatistics();
+    }
+
+    @Override
+    public void reset() {
+      resetStatistics();
+    }
+  }
+
+  /// For testing only
+
+  /**
+   * Stops using the string pool, so that Strings are again interned by {@link String#intern}. For
+   * testing only.
+   */
+  @SuppressWarnings("nullness:assignment") // resets a @MonotonicNonNull field, for testing
+  static synchronized void stopUsingStringPool() {
+    internedStrings = null;
+  }
+
+  /**
+   * Returns the number of interned integers. For testing only.
+   *
+   * @return the number of interned integers.
+   */
+  static int numIntegers() {
+    return internedIntegers.size();
+  }
+
+  /**
+   * Returns the number of interned longs. For testing only.
+   *
+   * @return the number of interned longs.
+   */
+  static int numLongs() {
+    return internedLongs.size();
+  }
+
+  /**
+   * Returns the number of interned int arrays. For testing only.
+   *
+   * @return the number of interned int arrays.
+   */
+  static int numIntArrays() {
+    return internedIntArrays.size();
+  }
+
+  /**
+   * Returns the number of interned long arrays. For testing only.
+   *
+   * @return the number of interned long arrays.
+   */
+  static int numLongArrays() {
+    return internedLongArrays.size();
+  }
+
+  /**
+   * Returns the number of interned doubles. For testing only.
+   *
+   * @return the number of interned doubles.
+   */
+  static int numDoubles() {
+    return internedDoubles.size();
+  }
+
+  /**
+   * Returns the number of interned double arrays. For testing only.
+   *
+   * @return the number of interned double arrays.
+   */
+  static int numDoubleArrays() {
+    return internedDoubleArrays.size();
+  }
+
+  /**
+   * Returns the number of interned string arrays. For testing only.
+   *
+   * @return the number of interned string arrays.
+   */
+  static int numStringArrays() {
+    return internedStringArrays.size();
+  }
+
+  /**
+   * Returns the number of interned object arrays. For testing only.
+   *
+   * @return the number of interned object arrays.
+   */
+  static int numObjectArrays() {
+    return internedObjectArrays.size();
+  }
+
+  /**
+   * Returns the number of interned float arrays. For testing only.
+   *
+   * @return the number of interned float arrays.
+   */
+  static int numFloatArrays() {
+    return internedFloatArrays.size();
+  }
+
+  /**
+   * Returns the number of interned char arrays. For testing only.
+   *
+   * @return the number of interned char arrays.
+   */
+  static int numCharArrays() {
+    return internedCharArrays.size();
+  }
+
+  /**
+   * Returns the number of interned byte arrays. For testing only.
+   *
+   * @return the number of interned byte arrays.
+   */
+  static int numByteArrays() {
+    return internedByteArrays.size();
+  }
+
+  /**
+   * Returns the number of interned short arrays. For testing only.
+   *
+   * @return the number of interned short arrays.
+   */
+  static int numShortArrays() {
+    return internedShortArrays.size();
+  }
+
+  /**
+   * Returns the number of interned boolean arrays. For testing only.
+   *
+   * @return the number of interned boolean arrays.
+   */
+  static int numBooleanArrays() {
+    return internedBooleanArrays.size();
+  }
+
+  /**
+   * Returns all the interned integers. For testing only.
+   *
+   * @return all the interned integers
+   */
+  static Iterator<@Interned Integer> integers() {
+    return internedIntegers.iterator();
+  }
+
+  /**
+   * Returns all the interned longs. For testing only.
+   *
+   * @return all the interned longs
+   */
+  static Iterator<@Interned Long> longs() {
+    return internedLongs.iterator();
+  }
+
+  /**
+   * Returns all the interned int arrays. For testing only.
+   *
+   * @return all the interned int arrays
+   */
+  static Iterator<int @Interned []> intArrays() {
+    return internedIntArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned long arrays. For testing only.
+   *
+   * @return all the interned long arrays
+   */
+  static Iterator<long @Interned []> longArrays() {
+    return internedLongArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned doubles. For testing only.
+   *
+   * @return all the interned doubles
+   */
+  static Iterator<@Interned Double> doubles() {
+    return internedDoubles.iterator();
+  }
+
+  /**
+   * Returns all the interned double arrays. For testing only.
+   *
+   * @return all the interned double arrays
+   */
+  static Iterator<double @Interned []> doubleArrays() {
+    return internedDoubleArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned string arrays. For testing only.
+   *
+   * @return all the interned string arrays
+   */
+  static Iterator<@Nullable @Interned String @Interned []> stringArrays() {
+    return internedStringArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned object arrays. For testing only.
+   *
+   * @return all the interned object arrays
+   */
   static Iterator<@Nullable @Interned Object @Interned []> objectArrays() {
     return internedObjectArrays.keySet().iterator();
   }
 
+  /**
+   * Returns all the interned float arrays. For testing only.
+   *
+   * @return all the interned float arrays
+   */
+  static Iterator<float @Interned []> floatArrays() {
+    return internedFloatArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned char arrays. For testing only.
+   *
+   * @return all the interned char arrays
+   */
+  static Iterator<char @Interned []> charArrays() {
+    return internedCharArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned byte arrays. For testing only.
+   *
+   * @return all the interned byte arrays
+   */
+  static Iterator<byte @Interned []> byteArrays() {
+    return internedByteArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned short arrays. For testing only.
+   *
+   * @return all the interned short arrays
+   */
+  static Iterator<short @Interned []> shortArrays() {
+    return internedShortArrays.keySet().iterator();
+  }
+
+  /**
+   * Returns all the interned boolean arrays. For testing only.
+   *
+   * @return all the interned boolean arrays
+   */
+  static Iterator<boolean @Interned []> booleanArrays() {
+    return internedBooleanArrays.keySet().iterator();
+  }
+
   /// End of testing methods
 
   /**
-   * Interns a String. Delegates to the builtin String.intern() method, but handles {@code null}.
+   * Interns a String. Delegates to the builtin String.intern() method, but handles {@code null}. If
+   * {@link #useStringPool} has been called, uses this class's string pool instead.
    *
    * @param a the string to intern; may be null
    * @return an interned version of the argument, or null if the argument was null
    */
+  @SuppressWarnings({
+    "allcheckers:purity", // interning logic
+    "lock", // interning logic
+    "samelen:return", // the result equals the argument
+    "value:return" // the result equals the argument
+  })
   @Pure
   public static @Interned @PolyNull @PolyValue @SameLen("#1") String intern(
       @PolyNull @PolyValue String a) {
@@ -522,7 +1302,12 @@ public final class Intern {
     if (a == null) {
       return null;
     }
-    return a.intern();
+    ConcurrentWeakHasherMap<@Interned String, WeakReference<@Interned String>> pool =
+        internedStrings;
+    if (pool == null) {
+      return a.intern();
+    }
+    return internInMap(pool, a, stringStatistics);
   }
 
   /**
@@ -559,15 +1344,18 @@ public final class Intern {
   @SuppressWarnings({"interning", "allcheckers:purity", "lock"}) // interning implementation
   @Pure
   public static @Interned Integer intern(Integer a) {
-    WeakReference<@Interned Integer> lookup = internedIntegers.get(a);
-    Integer result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
-    } else {
-      @Interned Integer result = (@Interned Integer) a;
-      internedIntegers.put(result, new WeakReference<>(result));
+    @Interned Integer result = internedIntegers.get(a.intValue());
+    if (result != null) {
+      if (statisticsEnabled) {
+        integerStatistics.hit(a, result);
+      }
       return result;
     }
+    result = internedIntegers.intern(a.intValue(), (@Interned Integer) a);
+    if (statisticsEnabled) {
+      integerStatistics.inserted(a, result);
+    }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -577,8 +1365,21 @@ public final class Intern {
    * @param i the value to intern
    * @return an interned Integer with value i
    */
+  @SuppressWarnings("interning") // interning implementation
   public static @Interned Integer internedInteger(int i) {
-    return intern(Integer.valueOf(i));
+    @Interned Integer result = internedIntegers.get(i);
+    if (result != null) {
+      if (statisticsEnabled) {
+        integerStatistics.hit(null, result);
+      }
+      return result;
+    }
+    @Interned Integer candidate = (@Interned Integer) Integer.valueOf(i);
+    result = internedIntegers.intern(i, candidate);
+    if (statisticsEnabled) {
+      integerStatistics.inserted(candidate, result);
+    }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -604,15 +1405,18 @@ public final class Intern {
   @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
   @Pure
   public static @Interned Long intern(Long a) {
-    WeakReference<@Interned Long> lookup = internedLongs.get(a);
-    Long result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
-    } else {
-      @Interned Long result = (@Interned Long) a;
-      internedLongs.put(result, new WeakReference<>(result));
+    @Interned Long result = internedLongs.get(a.longValue());
+    if (result != null) {
+      if (statisticsEnabled) {
+        longStatistics.hit(a, result);
+      }
       return result;
     }
+    result = internedLongs.intern(a.longValue(), (@Interned Long) a);
+    if (statisticsEnabled) {
+      longStatistics.inserted(a, result);
+    }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -622,8 +1426,21 @@ public final class Intern {
    * @param i the value to intern
    * @return an interned Integer with value i
    */
+  @SuppressWarnings("interning") // interning implementation
   public static @Interned Long internedLong(long i) {
-    return intern(Long.valueOf(i));
+    @Interned Long result = internedLongs.get(i);
+    if (result != null) {
+      if (statisticsEnabled) {
+        longStatistics.hit(null, result);
+      }
+      return result;
+    }
+    @Interned Long candidate = (@Interned Long) Long.valueOf(i);
+    result = internedLongs.intern(i, candidate);
+    if (statisticsEnabled) {
+      longStatistics.inserted(candidate, result);
+    }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -656,21 +1473,15 @@ public final class Intern {
     // stack.fillInStackTrace();
     // stack.printStackTrace();
 
-    WeakReference<int @Interned []> lookup = internedIntArrays.get(a);
     @SuppressWarnings({
       "samelen:assignment", // for this map, get() can be annotated as
       // @SameLen("#1")
       "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
       // https://github.com/kelloggm/checker-framework/issues/177
     })
-    int @PolyValue @SameLen("a") [] result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
-    } else {
-      @Interned int[] result = (int @Interned @PolyValue []) a;
-      internedIntArrays.put(result, new WeakReference<>(result));
-      return result;
-    }
+    int @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedIntArrays, a, intArrayStatistics);
+    return result;
   }
 
   /**
@@ -685,21 +1496,15 @@ public final class Intern {
   public static long @Interned @PolyValue @SameLen("#1") [] intern(long @PolyValue [] a) {
     // System.out.printf("intern %s %s long[] %s%n", a.getClass(),
     //                   a, Arrays.toString (a));
-    WeakReference<long @Interned []> lookup = internedLongArrays.get(a);
     @SuppressWarnings({
       "samelen:assignment", // for this map, get() can be annotated as
       // @SameLen("#1")
       "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
       // https://github.com/kelloggm/checker-framework/issues/177
     })
-    long @PolyValue @SameLen("a") [] result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
-    } else {
-      @Interned long[] result = (long @Interned @PolyValue []) a;
-      internedLongArrays.put(result, new WeakReference<>(result));
-      return result;
-    }
+    long @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedLongArrays, a, longArrayStatistics);
+    return result;
   }
 
   /**
@@ -714,23 +1519,28 @@ public final class Intern {
   @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
   @Pure
   public static @Interned Double intern(Double a) {
+    @Interned Double result;
     // Double.NaN == Double.Nan  always evaluates to false.
     if (a.isNaN()) {
-      return internedDoubleNaN;
-    }
-    // Double.+0 == Double.-0,  but they compare true via equals()
-    if (a.doubleValue() == 0) { // catches both positive and negative zero
-      return internedDoubleZero;
-    }
-    WeakReference<@Interned Double> lookup = internedDoubles.get(a);
-    Double result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
+      result = internedDoubleNaN;
+    } else if (a.doubleValue() == 0) { // catches both positive and negative zero
+      // Double.+0 == Double.-0,  but they compare true via equals()
+      result = internedDoubleZero;
     } else {
-      @Interned Double result = (@Interned Double) a;
-      internedDoubles.put(result, new WeakReference<>(result));
-      return result;
+      long bits = Double.doubleToLongBits(a.doubleValue());
+      result = internedDoubles.get(bits);
+      if (result == null) {
+        result = internedDoubles.intern(bits, (@Interned Double) a);
+        if (statisticsEnabled) {
+          doubleStatistics.inserted(a, result);
+        }
+        return result;
+      }
+    }
+    if (statisticsEnabled) {
+      doubleStatistics.hit(a, result);
     }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -740,8 +1550,29 @@ public final class Intern {
    * @param d the value to intern
    * @return an interned Double with value d
    */
+  @SuppressWarnings("interning") // interning implementation
   public static @Interned Double internedDouble(double d) {
-    return intern(Double.valueOf(d));
+    @Interned Double result;
+    if (Double.isNaN(d)) {
+      result = internedDoubleNaN;
+    } else if (d == 0) { // catches both positive and negative zero
+      result = internedDoubleZero;
+    } else {
+      long bits = Double.doubleToLongBits(d);
+      result = internedDoubles.get(bits);
+      if (result == null) {
+        @Interned Double candidate = (@Interned Double) Double.valueOf(d);
+        result = internedDoubles.intern(bits, candidate);
+        if (statisticsEnabled) {
+          doubleStatistics.inserted(candidate, result);
+        }
+        return result;
+      }
+    }
+    if (statisticsEnabled) {
+      doubleStatistics.hit(null, result);
+    }
+    return result;
   }
 
   // Not sure whether this convenience method is really worth it.
@@ -770,21 +1601,120 @@ public final class Intern {
   @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
   @Pure
   public static double @Interned @PolyValue @SameLen("#1") [] intern(double @PolyValue [] a) {
-    WeakReference<double @Interned []> lookup = internedDoubleArrays.get(a);
     @SuppressWarnings({
       "samelen:assignment", // for this map, get() can be annotated as
       // @SameLen("#1")
       "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
       // https://github.com/kelloggm/checker-framework/issues/177
     })
-    double @PolyValue @SameLen("a") [] result1 = (lookup != null) ? lookup.get() : null;
-    if (result1 != null) {
-      return result1;
-    } else {
-      @Interned double[] result = (double @Interned @PolyValue []) a;
-      internedDoubleArrays.put(result, new WeakReference<>(result));
-      return result;
-    }
+    double @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedDoubleArrays, a, doubleArrayStatistics);
+    return result;
+  }
+
+  /**
+   * Intern (canonicalize) a float[]. Return a canonical representation for the float[] array.
+   * Arrays are compared according to their elements.
+   *
+   * @param a the array to canonicalize
+   * @return a canonical representation for the float[] array
+   */
+  @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
+  @Pure
+  public static float @Interned @PolyValue @SameLen("#1") [] intern(float @PolyValue [] a) {
+    @SuppressWarnings({
+      "samelen:assignment", // for this map, get() can be annotated as
+      // @SameLen("#1")
+      "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
+      // https://github.com/kelloggm/checker-framework/issues/177
+    })
+    float @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedFloatArrays, a, floatArrayStatistics);
+    return result;
+  }
+
+  /**
+   * Intern (canonicalize) a char[]. Return a canonical representation for the char[] array.
+   * Arrays are compared according to their elements.
+   *
+   * @param a the array to canonicalize
+   * @return a canonical representation for the char[] array
+   */
+  @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
+  @Pure
+  public static char @Interned @PolyValue @SameLen("#1") [] intern(char @PolyValue [] a) {
+    @SuppressWarnings({
+      "samelen:assignment", // for this map, get() can be annotated as
+      // @SameLen("#1")
+      "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
+      // https://github.com/kelloggm/checker-framework/issues/177
+    })
+    char @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedCharArrays, a, charArrayStatistics);
+    return result;
+  }
+
+  /**
+   * Intern (canonicalize) a byte[]. Return a canonical representation for the byte[] array.
+   * Arrays are compared according to their elements.
+   *
+   * @param a the array to canonicalize
+   * @return a canonical representation for the byte[] array
+   */
+  @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
+  @Pure
+  public static byte @Interned @PolyValue @SameLen("#1") [] intern(byte @PolyValue [] a) {
+    @SuppressWarnings({
+      "samelen:assignment", // for this map, get() can be annotated as
+      // @SameLen("#1")
+      "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
+      // https://github.com/kelloggm/checker-framework/issues/177
+    })
+    byte @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedByteArrays, a, byteArrayStatistics);
+    return result;
+  }
+
+  /**
+   * Intern (canonicalize) a short[]. Return a canonical representation for the short[] array.
+   * Arrays are compared according to their elements.
+   *
+   * @param a the array to canonicalize
+   * @return a canonical representation for the short[] array
+   */
+  @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
+  @Pure
+  public static short @Interned @PolyValue @SameLen("#1") [] intern(short @PolyValue [] a) {
+    @SuppressWarnings({
+      "samelen:assignment", // for this map, get() can be annotated as
+      // @SameLen("#1")
+      "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
+      // https://github.com/kelloggm/checker-framework/issues/177
+    })
+    short @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedShortArrays, a, shortArrayStatistics);
+    return result;
+  }
+
+  /**
+   * Intern (canonicalize) a boolean[]. Return a canonical representation for the boolean[] array.
+   * Arrays are compared according to their elements.
+   *
+   * @param a the array to canonicalize
+   * @return a canonical representation for the boolean[] array
+   */
+  @SuppressWarnings({"interning", "allcheckers:purity", "lock"})
+  @Pure
+  public static boolean @Interned @PolyValue @SameLen("#1") [] intern(boolean @PolyValue [] a) {
+    @SuppressWarnings({
+      "samelen:assignment", // for this map, get() can be annotated as
+      // @SameLen("#1")
+      "value" // for this map, get() can be annotated as @PolyAll (except not interning); also see
+      // https://github.com/kelloggm/checker-framework/issues/177
+    })
+    boolean @Interned @PolyValue @SameLen("a") [] result =
+        internInMap(internedBooleanArrays, a, booleanArrayStatistics);
+    return result;
   }
 
   /**
@@ -817,12 +1747,8 @@ public final class Intern {
       }
     }
 
-    WeakReference<@Nullable @Interned String @Interned []> lookup = internedStringArrays.get(a);
-    @Nullable @Interned String @Interned [] result = (lookup != null) ? lookup.get() : null;
-    if (result == null) {
-      result = (@Nullable @Interned String @Interned []) a;
-      internedStringArrays.put(result, new WeakReference<>(result));
-    }
+    @Nullable @Interned String @Interned [] result =
+        internInMap(internedStringArrays, a, stringArrayStatistics);
     @SuppressWarnings({
       "nullness", // for this map, get() can be annotated as @PolyAll (except not interning); also
       // see https://github.com/kelloggm/checker-framework/issues/177
@@ -852,12 +1778,8 @@ public final class Intern {
   @Pure
   public static @PolyNull @Interned Object @Interned @PolyValue @SameLen("#1") [] intern(
       @PolyNull @Interned @PolyValue Object[] a) {
-    WeakReference<@Nullable @Interned Object @Interned []> lookup = internedObjectArrays.get(a);
-    @Nullable @Interned Object @Interned [] result = (lookup != null) ? lookup.get() : null;
-    if (result == null) {
-      result = (@Nullable @Interned Object @Interned []) a;
-      internedObjectArrays.put(result, new WeakReference<>(result));
-    }
+    @Nullable @Interned Object @Interned [] result =
+        internInMap(internedObjectArrays, a, objectArrayStatistics);
     @SuppressWarnings({
       "nullness", // for this map, get() can be annotated as @PolyAll (except not interning); also
       // see https://github.com/kelloggm/checker-framework/issues/177
@@ -871,41 +1793,484 @@ public final class Intern {
   }
 
   /**
-   * Convenience method to intern an Object when we don't know its run-time type. Its run-time type
-   * must be one of the types for which we have an intern() method, else an exception is thrown. If
-   * the argument is an array, its elements should themselves be interned.
+   * Convenience method to intern an Object when we don't know its run-time type. Its run-time type
+   * must be one of the types for which we have an intern() method, else an exception is thrown. If
+   * the argument is an array, its elements should themselves be interned.
+   *
+   * @param a an Object to canonicalize
+   * @return a canonical version of a
+   */
+  @Pure
+  public static @Interned @PolyNull Object intern(@PolyNull Object a) {
+    if (a == null) {
+      return null;
+    } else if (a instanceof String) {
+      return intern((String) a);
+    } else if (a instanceof String[]) {
+      @Interned String[] asArray = (@Interned String[]) a;
+      return intern(asArray);
+    } else if (a instanceof Integer) {
+      return intern((Integer) a);
+    } else if (a instanceof Long) {
+      return intern((Long) a);
+    } else if (a instanceof int[]) {
+      return intern((int[]) a);
+    } else if (a instanceof long[]) {
+      return intern((long[]) a);
+    } else if (a instanceof Double) {
+      return intern((Double) a);
+    } else if (a instanceof double[]) {
+      return intern((double[]) a);
+    } else if (a instanceof float[]) {
+      return intern((float[]) a);
+    } else if (a instanceof char[]) {
+      return intern((char[]) a);
+    } else if (a instanceof byte[]) {
+      return intern((byte[]) a);
+    } else if (a instanceof short[]) {
+      return intern((short[]) a);
+    } else if (a instanceof boolean[]) {
+      return intern((boolean[]) a);
+    } else if (a instanceof Object[]) {
+      @Interned Object[] asArray = (@Interned Object[]) a;
+      return intern(asArray);
+    } else {
+      throw new IllegalArgumentException(
+          "Arguments of type " + a.getClass() + " cannot be interned");
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Interning many objects at once
+  ///
+
+  /**
+   * Replaces each element of {@code values} by its interned version, as if by {@link
+   * #intern(Object)}; null elements are left unchanged. This is more efficient than interning the
+   * elements one at a time when they are all of the same array type, such as the arrays of an
+   * {@code int[][]}: hash codes are computed once (in parallel for a large batch), and the table
+   * for that type is locked, expunged, and resized once per segment for the whole batch, rather
+   * than once per element.
+   *
+   * <p>If the elements are arrays, their elements should themselves be interned.
+   *
+   * @param values the values to intern
+   */
+  @SuppressWarnings({
+    "interning", // interning implementation
+    "lock", // interning implementation
+    "ReferenceEquality" // checks that elements are interned
+  })
+  public static void internInPlace(@Nullable Object[] values) {
+    Class<?> elementClass = null;
+    for (Object value : values) {
+      if (value == null) {
+        continue;
+      }
+      if (elementClass == null) {
+        elementClass = value.getClass();
+      } else if (elementClass != value.getClass()) {
+        elementClass = null;
+        break;
+      }
+    }
+    if (elementClass == int[].class) {
+      internAllInMap(internedIntArrays, values, intArrayStatistics);
+    } else if (elementClass == long[].class) {
+      internAllInMap(internedLongArrays, values, longArrayStatistics);
+    } else if (elementClass == double[].class) {
+      internAllInMap(internedDoubleArrays, values, doubleArrayStatistics);
+    } else if (elementClass == float[].class) {
+      internAllInMap(internedFloatArrays, values, floatArrayStatistics);
+    } else if (elementClass == char[].class) {
+      internAllInMap(internedCharArrays, values, charArrayStatistics);
+    } else if (elementClass == byte[].class) {
+      internAllInMap(internedByteArrays, values, byteArrayStatistics);
+    } else if (elementClass == short[].class) {
+      internAllInMap(internedShortArrays, values, shortArrayStatistics);
+    } else if (elementClass == boolean[].class) {
+      internAllInMap(internedBooleanArrays, values, booleanArrayStatistics);
+    } else if (elementClass == String[].class) {
+      if (assertsEnabled) {
+        for (Object value : values) {
+          if (value != null) {
+            for (String elt : (String[]) value) {
+              if (elt != Intern.intern(elt)) {
+                throw new IllegalArgumentException();
+              }
+            }
+          }
+        }
+      }
+      internAllInMap(internedStringArrays, values, stringArrayStatistics);
+    } else if (elementClass != null
+        && Object[].class.isAssignableFrom(elementClass)
+        && !String[].class.isAssignableFrom(elementClass)) {
+      internAllInMap(internedObjectArrays, values, objectArrayStatistics);
+    } else {
+      // Mixed types, boxed numbers, or Strings: there is no bulk operation for them.
+      for (int i = 0; i < values.length; i++) {
+        values[i] = intern(values[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static int @Interned [] @SameLen("#1") [] internAll(int[][] arrays) {
+    int[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static long @Interned [] @SameLen("#1") [] internAll(long[][] arrays) {
+    long[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static double @Interned [] @SameLen("#1") [] internAll(double[][] arrays) {
+    double[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static float @Interned [] @SameLen("#1") [] internAll(float[][] arrays) {
+    float[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static char @Interned [] @SameLen("#1") [] internAll(char[][] arrays) {
+    char[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static byte @Interned [] @SameLen("#1") [] internAll(byte[][] arrays) {
+    byte[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static short @Interned [] @SameLen("#1") [] internAll(short[][] arrays) {
+    short[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static boolean @Interned [] @SameLen("#1") [] internAll(boolean[][] arrays) {
+    boolean[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns an array of the interned versions of the given arrays. The argument is not modified.
+   *
+   * @param arrays the arrays to intern; their elements should already be interned
+   * @return the interned versions of the arrays, in the same order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static @Nullable @Interned String @Interned [] @SameLen("#1") [] internAll(
+      @Nullable @Interned String[][] arrays) {
+    @Nullable @Interned String[][] result = arrays.clone();
+    internInPlace(result);
+    return result;
+  }
+
+  /**
+   * Returns a list of the interned versions of the given values, as if by {@link
+   * #intern(Object)}. The argument is not modified. This is more efficient than interning the
+   * values one at a time when they are all of the same array type.
+   *
+   * @param <T> the type of the values
+   * @param values the values to intern; if they are arrays, their elements should already be
+   *     interned
+   * @return the interned versions of the values, in iteration order
+   * @see #internInPlace(Object[])
+   */
+  @SuppressWarnings({"interning", "unchecked"}) // each element is an interned T
+  public static <T extends @Nullable Object> List<@Interned T> internAll(
+      Collection<? extends T> values) {
+    @Nullable Object[] array = values.toArray();
+    internInPlace(array);
+    return (List<@Interned T>) Arrays.asList(array);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  /// Snapshots
+  ///
+
+  /** The first 4 bytes of a snapshot file: "PLIS", for "plume-lib intern snapshot". */
+  private static final int SNAPSHOT_MAGIC = 0x504C4953;
+  /** The version of the snapshot file format. */
+  private static final int SNAPSHOT_VERSION = 1;
+  /** The tag that ends a snapshot file. */
+  private static final byte SNAPSHOT_END = 0;
+  /** The tag of a section of int arrays. */
+  private static final byte SNAPSHOT_INT_ARRAYS = 1;
+  /** The tag of a section of long arrays. */
+  private static final byte SNAPSHOT_LONG_ARRAYS = 2;
+  /** The tag of a section of double arrays. */
+  private static final byte SNAPSHOT_DOUBLE_ARRAYS = 3;
+  /** The tag of a section of String arrays. */
+  private static final byte SNAPSHOT_STRING_ARRAYS = 4;
+
+  /**
+   * Writes the current contents of the int[], long[], double[], and String[] pools to a binary
+   * snapshot file, which {@link #loadSnapshot} can read in a later run of the program.
+   *
+   * <p>The file consists of a header (a magic number and a version), then one section per pool,
+   * then an end tag. A section is a tag byte, the number of arrays, and each array as its length
+   * followed by its elements. A String is written as the length of its UTF-8 encoding (or -1 for
+   * null) followed by the encoding. All numbers are big-endian.
+   *
+   * @param file the file to write
+   * @return the number of arrays written
+   * @throws IOException if there is trouble writing the file
+   */
+  public static int writeSnapshot(Path file) throws IOException {
+    int written = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+
+      List<int @Interned []> ints = new ArrayList<>(internedIntArrays.keySet());
+      out.writeByte(SNAPSHOT_INT_ARRAYS);
+      out.writeInt(ints.size());
+      for (int[] a : ints) {
+        out.writeInt(a.length);
+        for (int elt : a) {
+          out.writeInt(elt);
+        }
+      }
+      written += ints.size();
+
+      List<long @Interned []> longs = new ArrayList<>(internedLongArrays.keySet());
+      out.writeByte(SNAPSHOT_LONG_ARRAYS);
+      out.writeInt(longs.size());
+      for (long[] a : longs) {
+        out.writeInt(a.length);
+        for (long elt : a) {
+          out.writeLong(elt);
+        }
+      }
+      written += longs.size();
+
+      List<double @Interned []> doubles = new ArrayList<>(internedDoubleArrays.keySet());
+      out.writeByte(SNAPSHOT_DOUBLE_ARRAYS);
+      out.writeInt(doubles.size());
+      for (double[] a : doubles) {
+        out.writeInt(a.length);
+        for (double elt : a) {
+          out.writeDouble(elt);
+        }
+      }
+      written += doubles.size();
+
+      List<@Nullable @Interned String @Interned []> strings =
+          new ArrayList<>(internedStringArrays.keySet());
+      out.writeByte(SNAPSHOT_STRING_ARRAYS);
+      out.writeInt(strings.size());
+      for (@Nullable String[] a : strings) {
+        out.writeInt(a.length);
+        for (String elt : a) {
+          if (elt == null) {
+            out.writeInt(-1);
+          } else {
+            byte[] bytes = elt.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+          }
+        }
+      }
+      written += strings.size();
+
+      out.writeByte(SNAPSHOT_END);
+    }
+    return written;
+  }
+
+  /**
+   * Reads a snapshot file written by {@link #writeSnapshot}, and interns all the arrays in it. The
+   * file is memory-mapped, and the arrays of each section are interned in bulk, as by {@link
+   * #internInPlace}.
+   *
+   * <p>The pools hold their contents weakly, so an interned array is discarded when no client
+   * refers to it. The result of this method refers to all the interned arrays; retain it for as
+   * long as the arrays should stay in the pools, such as until the program has re-interned its
+   * working set.
+   *
+   * @param file the snapshot file to read
+   * @return the interned arrays
+   * @throws IOException if there is trouble reading the file, or it is not a valid snapshot
+   */
+  @SuppressWarnings("interning") // the elements of the result are interned
+  public static @Interned Object[] loadSnapshot(Path file) throws IOException {
+    List<Object> result = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot is too large to map: " + file);
+      }
+      ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      try {
+        if (buf.getInt() != SNAPSHOT_MAGIC) {
+          throw new IOException("Not an intern snapshot: " + file);
+        }
+        int version = buf.getInt();
+        if (version != SNAPSHOT_VERSION) {
+          throw new IOException("Unsupported intern snapshot version " + version + ": " + file);
+        }
+        byte tag;
+        while ((tag = buf.get()) != SNAPSHOT_END) {
+          int count = buf.getInt();
+          // Each array takes at least 4 bytes, for its length.
+          if (count < 0 || (long) count * 4 > buf.remaining()) {
+            throw new IOException("Corrupt intern snapshot: " + file);
+          }
+          @Nullable Object[] arrays = new Object[count];
+          switch (tag) {
+            case SNAPSHOT_INT_ARRAYS:
+              for (int i = 0; i < count; i++) {
+                int[] a = new int[snapshotLength(buf, 4, file)];
+                buf.asIntBuffer().get(a);
+                buf.position(buf.position() + 4 * a.length);
+                arrays[i] = a;
+              }
+              internAllInMap(internedIntArrays, arrays, intArrayStatistics);
+              break;
+            case SNAPSHOT_LONG_ARRAYS:
+              for (int i = 0; i < count; i++) {
+                long[] a = new long[snapshotLength(buf, 8, file)];
+                buf.asLongBuffer().get(a);
+                buf.position(buf.position() + 8 * a.length);
+                arrays[i] = a;
+              }
+              internAllInMap(internedLongArrays, arrays, longArrayStatistics);
+              break;
+            case SNAPSHOT_DOUBLE_ARRAYS:
+              for (int i = 0; i < count; i++) {
+                double[] a = new double[snapshotLength(buf, 8, file)];
+                buf.asDoubleBuffer().get(a);
+                buf.position(buf.position() + 8 * a.length);
+                arrays[i] = a;
+              }
+              internAllInMap(internedDoubleArrays, arrays, doubleArrayStatistics);
+              break;
+            case SNAPSHOT_STRING_ARRAYS:
+              for (int i = 0; i < count; i++) {
+                @Nullable String[] a = new String[snapshotLength(buf, 4, file)];
+                for (int j = 0; j < a.length; j++) {
+                  int byteLength = buf.getInt();
+                  if (byteLength == -1) {
+                    continue;
+                  }
+                  if (byteLength < 0 || byteLength > buf.remaining()) {
+                    throw new IOException("Corrupt intern snapshot: " + file);
+                  }
+                  byte[] bytes = new byte[byteLength];
+                  buf.get(bytes);
+                  a[j] = intern(new String(bytes, StandardCharsets.UTF_8));
+                }
+                arrays[i] = a;
+              }
+              internAllInMap(internedStringArrays, arrays, stringArrayStatistics);
+              break;
+            default:
+              throw new IOException("Corrupt intern snapshot: " + file);
+          }
+          result.addAll(Arrays.asList(arrays));
+        }
+      } catch (BufferUnderflowException e) {
+        throw new IOException("Truncated intern snapshot: " + file, e);
+      }
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Reads the length of an array from a snapshot, and checks that the buffer holds that many
+   * elements.
    *
-   * @param a an Object to canonicalize
-   * @return a canonical version of a
+   * @param buf the buffer holding the snapshot
+   * @param elementSize the size of each element, in bytes; for Strings, the minimum size
+   * @param file the snapshot file, for error messages
+   * @return the length of the array
+   * @throws IOException if the length is invalid
    */
-  @Pure
-  public static @Interned @PolyNull Object intern(@PolyNull Object a) {
-    if (a == null) {
-      return null;
-    } else if (a instanceof String) {
-      return intern((String) a);
-    } else if (a instanceof String[]) {
-      @Interned String[] asArray = (@Interned String[]) a;
-      return intern(asArray);
-    } else if (a instanceof Integer) {
-      return intern((Integer) a);
-    } else if (a instanceof Long) {
-      return intern((Long) a);
-    } else if (a instanceof int[]) {
-      return intern((int[]) a);
-    } else if (a instanceof long[]) {
-      return intern((long[]) a);
-    } else if (a instanceof Double) {
-      return intern((Double) a);
-    } else if (a instanceof double[]) {
-      return intern((double[]) a);
-    } else if (a instanceof Object[]) {
-      @Interned Object[] asArray = (@Interned Object[]) a;
-      return intern(asArray);
-    } else {
-      throw new IllegalArgumentException(
-          "Arguments of type " + a.getClass() + " cannot be interned");
+  private static @NonNegative int snapshotLength(ByteBuffer buf, int elementSize, Path file)
+      throws IOException {
+    int length = buf.getInt();
+    if (length < 0 || (long) length * elementSize > buf.remaining()) {
+      throw new IOException("Corrupt intern snapshot: " + file);
     }
+    return length;
   }
 
   /**
@@ -931,15 +2296,19 @@ public final class Intern {
     if (assertsEnabled && !Intern.isInterned(seq)) {
       throw new IllegalArgumentException();
     }
-    Subsequence<int @Interned []> sai = new Subsequence<>(seq, start, end);
-    WeakReference<int @Interned []> lookup = internedIntSubsequence.get(sai);
-    int[] result1 = (lookup != null) ? lookup.get() : null;
+    int @Interned [] result1 = internedIntSubsequence.get(seq, start, end);
     if (result1 != null) {
+      if (statisticsEnabled) {
+        intSubsequenceStatistics.hit(null, result1);
+      }
       return result1;
     } else {
+      if (statisticsEnabled) {
+        intSubsequenceStatistics.miss();
+      }
       int[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
       int @Interned [] subseq = Intern.intern(subseqUninterned);
-      internedIntSubsequence.put(sai, new WeakReference<>(subseq));
+      internedIntSubsequence.put(seq, start, end, subseq);
       return subseq;
     }
   }
@@ -962,15 +2331,19 @@ public final class Intern {
     if (assertsEnabled && !Intern.isInterned(seq)) {
       throw new IllegalArgumentException();
     }
-    Subsequence<long @Interned []> sai = new Subsequence<>(seq, start, end);
-    WeakReference<long @Interned []> lookup = internedLongSubsequence.get(sai);
-    long[] result1 = (lookup != null) ? lookup.get() : null;
+    long @Interned [] result1 = internedLongSubsequence.get(seq, start, end);
     if (result1 != null) {
+      if (statisticsEnabled) {
+        longSubsequenceStatistics.hit(null, result1);
+      }
       return result1;
     } else {
+      if (statisticsEnabled) {
+        longSubsequenceStatistics.miss();
+      }
       long[] subseq_uninterned = ArraysPlume.subarray(seq, start, end - start);
       long @Interned [] subseq = Intern.intern(subseq_uninterned);
-      internedLongSubsequence.put(sai, new WeakReference<>(subseq));
+      internedLongSubsequence.put(seq, start, end, subseq);
       return subseq;
     }
   }
@@ -993,15 +2366,194 @@ public final class Intern {
     if (assertsEnabled && !Intern.isInterned(seq)) {
       throw new IllegalArgumentException();
     }
-    Subsequence<double @Interned []> sai = new Subsequence<>(seq, start, end);
-    WeakReference<double @Interned []> lookup = internedDoubleSubsequence.get(sai);
-    double[] result1 = (lookup != null) ? lookup.get() : null;
+    double @Interned [] result1 = internedDoubleSubsequence.get(seq, start, end);
     if (result1 != null) {
+      if (statisticsEnabled) {
+        doubleSubsequenceStatistics.hit(null, result1);
+      }
       return result1;
     } else {
+      if (statisticsEnabled) {
+        doubleSubsequenceStatistics.miss();
+      }
       double[] subseq_uninterned = ArraysPlume.subarray(seq, start, end - start);
       double @Interned [] subseq = Intern.intern(subseq_uninterned);
-      internedDoubleSubsequence.put(sai, new WeakReference<>(subseq));
+      internedDoubleSubsequence.put(seq, start, end, subseq);
+      return subseq;
+    }
+  }
+
+  /**
+   * Returns a subsequence of seq from start to end that is interned.
+   *
+   * @param seq the interned sequence whose subsequence should be computed and interned
+   * @param start the index of the start of the subsequence to compute and intern
+   * @param end the index of the end of the subsequence to compute and intern
+   * @return a subsequence of seq from start to end that is interned
+   * @see #internSubsequence(int[], int, int)
+   */
+  @SuppressWarnings({"allcheckers:purity", "lock"}) // interning logic
+  @Pure
+  public static float @Interned [] internSubsequence(
+      float @Interned [] seq,
+      @IndexFor("#1") @LessThan("#3") int start,
+      @NonNegative @LTLengthOf(value = "#1", offset = "#2 - 1") int end) {
+    if (assertsEnabled && !Intern.isInterned(seq)) {
+      throw new IllegalArgumentException();
+    }
+    float @Interned [] result1 = internedFloatSubsequence.get(seq, start, end);
+    if (result1 != null) {
+      if (statisticsEnabled) {
+        floatSubsequenceStatistics.hit(null, result1);
+      }
+      return result1;
+    } else {
+      if (statisticsEnabled) {
+        floatSubsequenceStatistics.miss();
+      }
+      float[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
+      float @Interned [] subseq = Intern.intern(subseqUninterned);
+      internedFloatSubsequence.put(seq, start, end, subseq);
+      return subseq;
+    }
+  }
+
+  /**
+   * Returns a subsequence of seq from start to end that is interned.
+   *
+   * @param seq the interned sequence whose subsequence should be computed and interned
+   * @param start the index of the start of the subsequence to compute and intern
+   * @param end the index of the end of the subsequence to compute and intern
+   * @return a subsequence of seq from start to end that is interned
+   * @see #internSubsequence(int[], int, int)
+   */
+  @SuppressWarnings({"allcheckers:purity", "lock"}) // interning logic
+  @Pure
+  public static char @Interned [] internSubsequence(
+      char @Interned [] seq,
+      @IndexFor("#1") @LessThan("#3") int start,
+      @NonNegative @LTLengthOf(value = "#1", offset = "#2 - 1") int end) {
+    if (assertsEnabled && !Intern.isInterned(seq)) {
+      throw new IllegalArgumentException();
+    }
+    char @Interned [] result1 = internedCharSubsequence.get(seq, start, end);
+    if (result1 != null) {
+      if (statisticsEnabled) {
+        charSubsequenceStatistics.hit(null, result1);
+      }
+      return result1;
+    } else {
+      if (statisticsEnabled) {
+        charSubsequenceStatistics.miss();
+      }
+      char[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
+      char @Interned [] subseq = Intern.intern(subseqUninterned);
+      internedCharSubsequence.put(seq, start, end, subseq);
+      return subseq;
+    }
+  }
+
+  /**
+   * Returns a subsequence of seq from start to end that is interned.
+   *
+   * @param seq the interned sequence whose subsequence should be computed and interned
+   * @param start the index of the start of the subsequence to compute and intern
+   * @param end the index of the end of the subsequence to compute and intern
+   * @return a subsequence of seq from start to end that is interned
+   * @see #internSubsequence(int[], int, int)
+   */
+  @SuppressWarnings({"allcheckers:purity", "lock"}) // interning logic
+  @Pure
+  public static byte @Interned [] internSubsequence(
+      byte @Interned [] seq,
+      @IndexFor("#1") @LessThan("#3") int start,
+      @NonNegative @LTLengthOf(value = "#1", offset = "#2 - 1") int end) {
+    if (assertsEnabled && !Intern.isInterned(seq)) {
+      throw new IllegalArgumentException();
+    }
+    byte @Interned [] result1 = internedByteSubsequence.get(seq, start, end);
+    if (result1 != null) {
+      if (statisticsEnabled) {
+        byteSubsequenceStatistics.hit(null, result1);
+      }
+      return result1;
+    } else {
+      if (statisticsEnabled) {
+        byteSubsequenceStatistics.miss();
+      }
+      byte[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
+      byte @Interned [] subseq = Intern.intern(subseqUninterned);
+      internedByteSubsequence.put(seq, start, end, subseq);
+      return subseq;
+    }
+  }
+
+  /**
+   * Returns a subsequence of seq from start to end that is interned.
+   *
+   * @param seq the interned sequence whose subsequence should be computed and interned
+   * @param start the index of the start of the subsequence to compute and intern
+   * @param end the index of the end of the subsequence to compute and intern
+   * @return a subsequence of seq from start to end that is interned
+   * @see #internSubsequence(int[], int, int)
+   */
+  @SuppressWarnings({"allcheckers:purity", "lock"}) // interning logic
+  @Pure
+  public static short @Interned [] internSubsequence(
+      short @Interned [] seq,
+      @IndexFor("#1") @LessThan("#3") int start,
+      @NonNegative @LTLengthOf(value = "#1", offset = "#2 - 1") int end) {
+    if (assertsEnabled && !Intern.isInterned(seq)) {
+      throw new IllegalArgumentException();
+    }
+    short @Interned [] result1 = internedShortSubsequence.get(seq, start, end);
+    if (result1 != null) {
+      if (statisticsEnabled) {
+        shortSubsequenceStatistics.hit(null, result1);
+      }
+      return result1;
+    } else {
+      if (statisticsEnabled) {
+        shortSubsequenceStatistics.miss();
+      }
+      short[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
+      short @Interned [] subseq = Intern.intern(subseqUninterned);
+      internedShortSubsequence.put(seq, start, end, subseq);
+      return subseq;
+    }
+  }
+
+  /**
+   * Returns a subsequence of seq from start to end that is interned.
+   *
+   * @param seq the interned sequence whose subsequence should be computed and interned
+   * @param start the index of the start of the subsequence to compute and intern
+   * @param end the index of the end of the subsequence to compute and intern
+   * @return a subsequence of seq from start to end that is interned
+   * @see #internSubsequence(int[], int, int)
+   */
+  @SuppressWarnings({"allcheckers:purity", "lock"}) // interning logic
+  @Pure
+  public static boolean @Interned [] internSubsequence(
+      boolean @Interned [] seq,
+      @IndexFor("#1") @LessThan("#3") int start,
+      @NonNegative @LTLengthOf(value = "#1", offset = "#2 - 1") int end) {
+    if (assertsEnabled && !Intern.isInterned(seq)) {
+      throw new IllegalArgumentException();
+    }
+    boolean @Interned [] result1 = internedBooleanSubsequence.get(seq, start, end);
+    if (result1 != null) {
+      if (statisticsEnabled) {
+        booleanSubsequenceStatistics.hit(null, result1);
+      }
+      return result1;
+    } else {
+      if (statisticsEnabled) {
+        booleanSubsequenceStatistics.miss();
+      }
+      boolean[] subseqUninterned = ArraysPlume.subarray(seq, start, end - start);
+      boolean @Interned [] subseq = Intern.intern(subseqUninterned);
+      internedBooleanSubsequence.put(seq, start, end, subseq);
       return subseq;
     }
   }
@@ -1024,21 +2576,22 @@ public final class Intern {
     if (assertsEnabled && !Intern.isInterned(seq)) {
       throw new IllegalArgumentException();
     }
-    Subsequence<@PolyNull @Interned Object @Interned []> sai =
-        new Subsequence<@PolyNull @Interned Object @Interned []>(seq, start, end);
     @SuppressWarnings("nullness") // same nullness as key
-    WeakReference<@PolyNull @Interned Object @Interned []> lookup =
-        internedObjectSubsequence.get(sai);
-    @PolyNull @Interned Object[] result1 = (lookup != null) ? lookup.get() : null;
+    @PolyNull @Interned Object @Interned [] result1 =
+        internedObjectSubsequence.get(seq, start, end);
     if (result1 != null) {
+      if (statisticsEnabled) {
+        objectSubsequenceStatistics.hit(null, result1);
+      }
       return result1;
     } else {
+      if (statisticsEnabled) {
+        objectSubsequenceStatistics.miss();
+      }
       @PolyNull @Interned Object[] subseq_uninterned = ArraysPlume.subarray(seq, start, end - start);
       @PolyNull @Interned Object @Interned [] subseq = Intern.intern(subseq_uninterned);
-      @SuppressWarnings({"nullness", "UnusedVariable"}) // safe because map does no side effects
-      Object
-          ignore = // assignment just so there is a place to hang the @SuppressWarnings annotation
-          internedObjectSubsequence.put(sai, new WeakReference<>(subseq));
+      @SuppressWarnings("nullness") // safe because the table does no side effects to its arrays
+      Object ignore = internedObjectSubsequence.put(seq, start, end, subseq);
       return subseq;
     }
   }
@@ -1061,114 +2614,327 @@ public final class Intern {
     if (assertsEnabled && !Intern.isInterned(seq)) {
       throw new IllegalArgumentException();
     }
-    Subsequence<@PolyNull @Interned String @Interned []> sai =
-        new Subsequence<@PolyNull @Interned String @Interned []>(seq, start, end);
     @SuppressWarnings("nullness") // same nullness as key
-    WeakReference<@PolyNull @Interned String @Interned []> lookup =
-        internedStringSubsequence.get(sai);
-    @PolyNull @Interned String[] result1 = (lookup != null) ? lookup.get() : null;
+    @PolyNull @Interned String @Interned [] result1 =
+        internedStringSubsequence.get(seq, start, end);
     if (result1 != null) {
+      if (statisticsEnabled) {
+        stringSubsequenceStatistics.hit(null, result1);
+      }
       return result1;
     } else {
+      if (statisticsEnabled) {
+        stringSubsequenceStatistics.miss();
+      }
       @PolyNull @Interned String[] subseq_uninterned = ArraysPlume.subarray(seq, start, end - start);
       @PolyNull @Interned String @Interned [] subseq = Intern.intern(subseq_uninterned);
-      @SuppressWarnings({"nullness", "UnusedVariable"}) // safe because map does no side effects
-      Object
-          ignore = // assignment just so there is a place to hang the @SuppressWarnings annotation
-          internedStringSubsequence.put(sai, new WeakReference<>(subseq));
+      @SuppressWarnings("nullness") // safe because the table does no side effects to its arrays
+      Object ignore = internedStringSubsequence.put(seq, start, end, subseq);
       return subseq;
     }
   }
 
   /**
-   * A subsequence view on a sequence. Actually, this imposes no semantics. It just has 3 fields: an
-   * interned sequence, a start index, and an end index. Requires that the sequence be interned.
-   * Used for interning the repeated finding of subsequences on the same sequence.
+   * An interned subsequence of a sequence, as an entry of a {@link SubsequenceTable}. It has 3
+   * fields that identify the subsequence: an interned sequence, a start index, and an end index.
+   * Requires that the sequence be interned. Used for interning the repeated finding of subsequences
+   * on the same sequence.
+   *
+   * <p>The entry holds the sequence weakly, so the entry is removed when the sequence is
+   * garbage-collected. It also holds the interned subsequence weakly.
+   *
+   * @param <T> the type of the sequence
    */
-  private static final class Subsequence<T extends @Interned Object> {
-    /** The full sequence. The Subsequence object represents part of this sequence. */
-    public T seq;
+  private static final class Subsequence<T extends @Interned Object> extends WeakReference<T> {
     /** The start index, inclusive. */
-    public @NonNegative int start;
-    // TODO: inclusive or exclusive?
-    /** The end index. */
-    public int end;
+    final @NonNegative int start;
+    /** The end index, exclusive. */
+    final int end;
+    /** The hash code of this subsequence, computed by {@link SubsequenceTable#hash}. */
+    final int hash;
+    /** The interned subsequence; its referent may have been garbage-collected. */
+    volatile WeakReference<T> subseq;
+    /** The next entry in the bucket. */
+    volatile @Nullable Subsequence<T> next;
 
     /**
-     * Creates a subsequence view.
+     * Creates a subsequence entry.
      *
      * @param seq an interned array
      * @param start the start index
      * @param end the end index
+     * @param hash the hash code of (seq, start, end)
+     * @param subseq the interned subsequence of seq from start to end
+     * @param next the next entry in the bucket
+     * @param queue the queue with which the entry is registered
      */
-    public Subsequence(T seq, @NonNegative int start, int end) {
-      if (assertsEnabled && !Intern.isInterned(seq)) {
-        throw new IllegalArgumentException();
-      }
-      this.seq = seq;
+    Subsequence(
+        T seq,
+        @NonNegative int start,
+        int end,
+        int hash,
+        T subseq,
+        @Nullable Subsequence<T> next,
+        ReferenceQueue<? super T> queue) {
+      super(seq, queue);
       this.start = start;
       this.end = end;
-    }
-
-    @SuppressWarnings("unchecked")
-    @Pure
-    @Override
-    public boolean equals(
-        @GuardSatisfied Subsequence<T> this, @GuardSatisfied @Nullable Object other) {
-      if (other instanceof Subsequence<?>) {
-        @SuppressWarnings("unchecked")
-        Subsequence<T> otherSai = (Subsequence<T>) other;
-        return equalsSubsequence(otherSai);
-      } else {
-        return false;
-      }
+      this.hash = hash;
+      this.subseq = new WeakReference<>(subseq);
+      this.next = next;
     }
 
     /**
-     * Returns true if this object equals the given one.
+     * Returns true if this entry is for the given subsequence.
      *
-     * @param other the sequence to compare to
-     * @return true if this object equals {@code other}
+     * @param seq an interned array
+     * @param start the start index
+     * @param end the end index
+     * @return true if this entry is for the subsequence of {@code seq} from start to end
      */
     @Pure
-    public boolean equalsSubsequence(
-        @GuardSatisfied Subsequence<T> this, @GuardSatisfied Subsequence<T> other) {
-      return ((this.seq == other.seq) && this.start == other.start && this.end == other.end);
-    }
-
-    @Pure
-    @Override
-    public int hashCode(@GuardSatisfied Subsequence<T> this) {
-      return seq.hashCode() + start * 30 - end * 2;
+    boolean matches(Object seq, int start, int end) {
+      return this.get() == seq && this.start == start && this.end == end;
     }
 
     // For debugging
     @SideEffectFree
     @Override
-    public String toString(@GuardSatisfied Subsequence<T> this) {
-      return "SAI(" + start + "," + end + ") from: " + ArraysPlume.toString(seq);
+    public String toString() {
+      T seq = get();
+      return "SAI(" + start + "," + end + ") from: "
+          + (seq == null ? "null" : ArraysPlume.toString(seq));
     }
   }
 
   /**
-   * Hasher object which hashes and compares String[] objects according to their contents.
+   * A thread-safe table of interned subsequences, keyed by (sequence, start, end). A lookup hashes
+   * the sequence's identity and the indices, and compares them directly against the table's
+   * entries, so a lookup allocates nothing; only an insertion creates an entry. The hash code is
+   * cached in each entry, so rehashing does not recompute it.
    *
-   * @see Hasher
+   * <p>Like {@link ConcurrentWeakHasherMap}, the table is divided into segments. Lookups take no
+   * lock, and insertions lock one segment.
+   *
+   * @param <T> the type of the sequences
    */
-  private static final class SubsequenceHasher<T extends @Interned Object> implements Hasher {
-    @Override
-    public boolean equals(Object a1, Object a2) {
-      @SuppressWarnings("unchecked")
-      Subsequence<T> sai1 = (Subsequence<T>) a1;
-      @SuppressWarnings("unchecked")
-      Subsequence<T> sai2 = (Subsequence<T>) a2;
-      // The SAI objects are *not* interned, but the arrays inside them are.
-      return sai1.equals(sai2);
+  private static final class SubsequenceTable<T extends @Interned Object> {
+    /** The number of segments; a power of two. */
+    private static final int NUM_SEGMENTS = 16;
+
+    /** The segments, each of which is a hash table. */
+    private final Segment<T>[] segments;
+
+    /** Creates an empty table. */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+    SubsequenceTable() {
+      Segment<T>[] newSegments = (Segment<T>[]) new Segment[NUM_SEGMENTS];
+      for (int i = 0; i < NUM_SEGMENTS; i++) {
+        newSegments[i] = new Segment<T>();
+      }
+      segments = newSegments;
     }
 
-    @Override
-    public int hashCode(Object o) {
-      return o.hashCode();
+    /**
+     * Returns the hash code of a subsequence.
+     *
+     * @param seq an interned array
+     * @param start the start index
+     * @param end the end index
+     * @return the hash code of the subsequence of {@code seq} from start to end
+     */
+    @Pure
+    static int hash(Object seq, int start, int end) {
+      int h = System.identityHashCode(seq) + start * 30 - end * 2;
+      // Spread the bits, because the high bits choose the segment.
+      h *= 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the interned subsequence of seq from start to end, or null if it is not in the table.
+     * Allocates nothing and takes no lock.
+     *
+     * @param seq an interned array
+     * @param start the start index
+     * @param end the end index
+     * @return the interned subsequence, or null
+     */
+    @Nullable T get(T seq, int start, int end) {
+      int h = hash(seq, start, end);
+      Segment<T> segment = segments[h >>> 28];
+      AtomicReferenceArray<@Nullable Subsequence<T>> tab = segment.table;
+      for (Subsequence<T> e = tab.get(h & (tab.length() - 1)); e != null; e = e.next) {
+        if (e.hash == h && e.matches(seq, start, end)) {
+          return e.subseq.get();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Records that {@code subseq} is the interned subsequence of seq from start to end.
+     *
+     * @param seq an interned array
+     * @param start the start index
+     * @param end the end index
+     * @param subseq the interned subsequence of seq from start to end
+     * @return {@code subseq}
+     */
+    T put(T seq, @NonNegative int start, int end, T subseq) {
+      int h = hash(seq, start, end);
+      segments[h >>> 28].put(seq, start, end, h, subseq);
+      return subseq;
+    }
+
+    /**
+     * Returns the number of entries whose sequence and subsequence have not been garbage-collected.
+     * Takes time linear in the size of the table.
+     *
+     * @return the number of live entries
+     */
+    int size() {
+      int result = 0;
+      for (Segment<T> segment : segments) {
+        AtomicReferenceArray<@Nullable Subsequence<T>> tab = segment.table;
+        for (int i = 0; i < tab.length(); i++) {
+          for (Subsequence<T> e = tab.get(i); e != null; e = e.next) {
+            if (e.get() != null && e.subseq.get() != null) {
+              result++;
+            }
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the number of entries that have been removed or refilled because the garbage
+     * collector cleared their sequence or subsequence.
+     *
+     * @return the number of entries cleared by the garbage collector
+     */
+    long clearedCount() {
+      long result = 0;
+      for (Segment<T> segment : segments) {
+        result += segment.cleared;
+      }
+      return result;
+    }
+
+    /**
+     * One segment of a SubsequenceTable. Readers take no lock; writers synchronize on the segment.
+     *
+     * @param <T> the type of the sequences
+     */
+    private static final class Segment<T extends @Interned Object> {
+      /** The initial capacity of the table; a power of two. */
+      private static final int INITIAL_CAPACITY = 16;
+
+      /** The hash table. Its length is a power of two. */
+      volatile AtomicReferenceArray<@Nullable Subsequence<T>> table =
+          new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+      /** The number of entries in the table. */
+      int count = 0;
+
+      /** Reference queue for entries whose sequences have been garbage-collected. */
+      final ReferenceQueue<T> queue = new ReferenceQueue<>();
+
+      /** The number of entries removed or refilled because the garbage collector cleared them. */
+      volatile long cleared = 0;
+
+      /**
+       * Records that {@code subseq} is the interned subsequence of seq from start to end.
+       *
+       * @param seq an interned array
+       * @param start the start index
+       * @param end the end index
+       * @param hash the hash code of the subsequence
+       * @param subseq the interned subsequence of seq from start to end
+       */
+      synchronized void put(T seq, @NonNegative int start, int end, int hash, T subseq) {
+        expungeStaleEntries();
+        AtomicReferenceArray<@Nullable Subsequence<T>> tab = table;
+        for (Subsequence<T> e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+          if (e.hash == hash && e.matches(seq, start, end)) {
+            // The previous subsequence was garbage-collected, or another thread interned it.
+            if (e.subseq.get() == null) {
+              cleared++;
+            }
+            e.subseq = new WeakReference<>(subseq);
+            return;
+          }
+        }
+        if (count >= tab.length() / 4 * 3) {
+          tab = rehash(tab);
+        }
+        int index = hash & (tab.length() - 1);
+        tab.set(index, new Subsequence<T>(seq, start, end, hash, subseq, tab.get(index), queue));
+        count++;
+      }
+
+      /**
+       * Removes the entries whose sequences have been garbage-collected. The caller must hold this
+       * segment's monitor.
+       */
+      @SuppressWarnings({"unchecked", "interning:not.interned"}) // queue holds entries; identity
+      private void expungeStaleEntries() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+          Subsequence<T> stale = (Subsequence<T>) ref;
+          AtomicReferenceArray<@Nullable Subsequence<T>> tab = table;
+          int index = stale.hash & (tab.length() - 1);
+          Subsequence<T> prev = null;
+          for (Subsequence<T> e = tab.get(index); e != null; e = e.next) {
+            if (e == stale) {
+              if (prev == null) {
+                tab.set(index, e.next);
+              } else {
+                prev.next = e.next;
+              }
+              count--;
+              cleared++;
+              break;
+            }
+            prev = e;
+          }
+        }
+      }
+
+      /**
+       * Replaces the table by one of twice the capacity. Live entries are copied, so that readers
+       * traversing the old table are not disturbed; the cached hash codes are reused. The caller
+       * must hold this segment's monitor.
+       *
+       * @param old the current table
+       * @return the new table
+       */
+      private AtomicReferenceArray<@Nullable Subsequence<T>> rehash(
+          AtomicReferenceArray<@Nullable Subsequence<T>> old) {
+        int capacity = old.length() * 2;
+        AtomicReferenceArray<@Nullable Subsequence<T>> result =
+            new AtomicReferenceArray<>(capacity);
+        int newCount = 0;
+        for (int i = 0; i < old.length(); i++) {
+          for (Subsequence<T> e = old.get(i); e != null; e = e.next) {
+            T seq = e.get();
+            T subseq = e.subseq.get();
+            if (seq != null && subseq != null) {
+              int index = e.hash & (capacity - 1);
+              Subsequence<T> entry =
+                  new Subsequence<T>(seq, e.start, e.end, e.hash, subseq, result.get(index), queue);
+              result.set(index, entry);
+              newCount++;
+            } else {
+              cleared++;
+            }
+          }
+        }
+        table = result;
+        count = newCount;
+        return result;
+      }
     }
   }
 }
@@ -0,0 +1,156 @@
+package org.plumelib.util;
+
+import javax.management.openmbean.CompositeData;
+import org.checkerframework.checker.lock.qual.GuardSatisfied;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+
+/**
+ * A snapshot of the statistics of one of the pools of {@link Intern}, such as the pool of interned
+ * {@code int[]} arrays. Obtain snapshots from {@link Intern#getStatistics}, or via JMX from {@link
+ * InternStatisticsMXBean#getPools}.
+ *
+ * <p>Hits, misses, and bytes saved are only counted while statistics are enabled; see {@link
+ * Intern#setStatisticsEnabled}. The number of live entries and the number of entries cleared by the
+ * garbage collector are always available.
+ */
+public final class InternPoolStatistics {
+
+  /** The name of the pool, such as "int[]" or "int[] subsequence". */
+  private final String name;
+
+  /** The number of lookups that found an existing canonical value. */
+  private final long hits;
+
+  /** The number of lookups that made their argument the canonical value. */
+  private final long misses;
+
+  /** The number of canonical values in the pool that have not been garbage-collected. */
+  private final long liveEntries;
+
+  /** The number of entries that were removed because the garbage collector cleared them. */
+  private final long clearedEntries;
+
+  /** The estimated number of bytes made garbage, or not allocated, because of interning. */
+  private final long bytesSaved;
+
+  /**
+   * Creates a snapshot of the statistics of a pool.
+   *
+   * @param name the name of the pool
+   * @param hits the number of lookups that found an existing canonical value
+   * @param misses the number of lookups that made their argument the canonical value
+   * @param liveEntries the number of canonical values that have not been garbage-collected
+   * @param clearedEntries the number of entries removed because the garbage collector cleared them
+   * @param bytesSaved the estimated number of bytes saved by interning
+   */
+  public InternPoolStatistics(
+      String name, long hits, long misses, long liveEntries, long clearedEntries, long bytesSaved) {
+    this.name = name;
+    this.hits = hits;
+    this.misses = misses;
+    this.liveEntries = liveEntries;
+    this.clearedEntries = clearedEntries;
+    this.bytesSaved = bytesSaved;
+  }
+
+  /**
+   * Reconstructs a snapshot from its JMX representation. A JMX client uses this method when it
+   * reads {@link InternStatisticsMXBean#getPools} through an MXBean proxy.
+   *
+   * @param cd the JMX representation of a snapshot
+   * @return the snapshot that {@code cd} represents
+   */
+  public static InternPoolStatistics from(CompositeData cd) {
+    return new InternPoolStatistics(
+        (String) cd.get("name"),
+        (Long) cd.get("hits"),
+        (Long) cd.get("misses"),
+        (Long) cd.get("liveEntries"),
+        (Long) cd.get("clearedEntries"),
+        (Long) cd.get("bytesSaved"));
+  }
+
+  /**
+   * Returns the name of the pool, such as "int[]" or "int[] subsequence".
+   *
+   * @return the name of the pool
+   */
+  @Pure
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the number of lookups that found an existing canonical value.
+   *
+   * @return the number of hits
+   */
+  @Pure
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups that made their argument the canonical value.
+   *
+   * @return the number of misses
+   */
+  @Pure
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of canonical values in the pool that have not been garbage-collected.
+   *
+   * @return the number of live entries
+   */
+  @Pure
+  public long getLiveEntries() {
+    return liveEntries;
+  }
+
+  /**
+   * Returns the number of entries that were removed from the pool because the garbage collector
+   * cleared them. An entry is counted when the pool notices it, which may be some time after the
+   * collection.
+   *
+   * @return the number of entries cleared by the garbage collector
+   */
+  @Pure
+  public long getClearedEntries() {
+    return clearedEntries;
+  }
+
+  /**
+   * Returns the estimated number of bytes saved by interning: the sizes of the duplicates that were
+   * replaced by a canonical value, and of the values that did not have to be allocated. Sizes are
+   * estimated for a 64-bit JVM with compressed object pointers.
+   *
+   * @return the estimated number of bytes saved
+   */
+  @Pure
+  public long getBytesSaved() {
+    return bytesSaved;
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or 0 if there were no lookups.
+   *
+   * @return the fraction of lookups that were hits
+   */
+  @Pure
+  public double getHitRate() {
+    long lookups = hits + misses;
+    return (lookups == 0) ? 0 : (double) hits / lookups;
+  }
+
+  @SideEffectFree
+  @Override
+  public String toString(@GuardSatisfied InternPoolStatistics this) {
+    return String.format(
+        "%s: %d hits, %d misses, %d live, %d cleared, %d bytes saved",
+        name, hits, misses, liveEntries, clearedEntries, bytesSaved);
+  }
+}
@@ -0,0 +1,42 @@
+package org.plumelib.util;
+
+import java.util.List;
+
+/**
+ * The JMX management interface for the statistics of {@link Intern}. Register it with {@link
+ * Intern#registerStatisticsMXBean}; it then appears under the name {@value
+ * Intern#STATISTICS_MXBEAN_NAME}.
+ */
+public interface InternStatisticsMXBean {
+
+  /**
+   * Returns true if hits, misses, and bytes saved are being counted.
+   *
+   * @return true if statistics are enabled
+   * @see Intern#isStatisticsEnabled
+   */
+  boolean isEnabled();
+
+  /**
+   * Enables or disables the counting of hits, misses, and bytes saved.
+   *
+   * @param enabled true to enable statistics, false to disable them
+   * @see Intern#setStatisticsEnabled
+   */
+  void setEnabled(boolean enabled);
+
+  /**
+   * Returns a snapshot of the statistics of each of the pools of {@link Intern}.
+   *
+   * @return the statistics of each pool
+   * @see Intern#getStatistics
+   */
+  List<InternPoolStatistics> getPools();
+
+  /**
+   * Sets all counts to zero.
+   *
+   * @see Intern#resetStatistics
+   */
+  void reset();
+}
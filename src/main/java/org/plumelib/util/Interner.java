@@ -0,0 +1,480 @@
+package org.plumelib.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+import org.checkerframework.dataflow.qual.SideEffectFree;
+import org.plumelib.util.ValueReferences.ValueReference;
+
+/**
+ * An interning pool for values of one type. Unlike the static pools of {@link Intern}, an Interner
+ * is an ordinary object: a program can create one per job or per analysis phase, and can choose
+ * how long it retains its canonical values. Values are compared by a {@link Hasher}, such as {@link
+ * Intern.IntArrayHasher} or {@link Intern.StringArrayHasher}, or by their own {@code equals} and
+ * {@code hashCode} methods if no Hasher is given.
+ *
+ * <p>The retention policies are:
+ *
+ * <dl>
+ *   <dt>{@link Retention#WEAK WEAK}
+ *   <dd>A canonical value is discarded once it is otherwise unreachable, as in {@link Intern}.
+ *   <dt>{@link Retention#SOFT SOFT}
+ *   <dd>A canonical value is discarded once it is otherwise unreachable and the garbage collector
+ *       needs memory.
+ *   <dt>{@link Retention#LRU LRU}
+ *   <dd>Canonical values are held strongly, but at most a fixed number of them; when there are
+ *       more, the least recently used is discarded.
+ *   <dt>{@link Retention#ARENA ARENA}
+ *   <dd>Canonical values are held strongly until {@link #clear} discards all of them at once.
+ * </dl>
+ *
+ * <p>Values are canonical with respect to one Interner: two Interners may return different objects
+ * for equal values. An Interner is thread-safe; each operation locks the Interner.
+ *
+ * @param <T> the type of the values
+ */
+public final class Interner<T extends Object> {
+
+  /** How long an Interner retains its canonical values. */
+  public enum Retention {
+    /** Retain a value until it is otherwise weakly reachable. */
+    WEAK,
+    /** Retain a value until it is otherwise softly reachable and memory is needed. */
+    SOFT,
+    /** Retain a bounded number of values, discarding the least recently used. */
+    LRU,
+    /** Retain every value until {@link Interner#clear} is called. */
+    ARENA
+  }
+
+  /** The initial capacity of the hash table; a power of two. */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The maximum capacity of the hash table; a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The hasher that compares values, or null to use their equals and hashCode methods. */
+  private final @Nullable Hasher hasher;
+
+  /** The retention policy. */
+  private final Retention retention;
+
+  /** For LRU retention, the maximum number of values; otherwise Integer.MAX_VALUE. */
+  private final int maxSize;
+
+  /** The hash table. Its length is a power of two. */
+  private @Nullable Entry<T>[] table;
+
+  /**
+   * The number of entries in the table. For weak and soft retention, this includes entries whose
+   * values have been garbage-collected but that have not yet been removed.
+   */
+  private int count = 0;
+
+  /**
+   * For weak and soft retention, the queue with which the references to values are registered.
+   * Each enqueued reference belongs to an entry that should be removed.
+   */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /**
+   * For LRU retention, the head of a circular doubly-linked list of the entries, from least to
+   * most recently used. Unused for other retention policies.
+   */
+  private final Entry<T> lruHeader;
+
+  /**
+   * Creates a new Interner.
+   *
+   * @param hasher the hasher that compares values, or null to use their equals and hashCode
+   * @param retention the retention policy
+   * @param maxSize for LRU retention, the maximum number of values; otherwise Integer.MAX_VALUE
+   */
+  private Interner(@Nullable Hasher hasher, Retention retention, int maxSize) {
+    this.hasher = hasher;
+    this.retention = retention;
+    this.maxSize = maxSize;
+    this.table = newTable(INITIAL_CAPACITY);
+    this.lruHeader = new Entry<T>(0, null);
+    lruHeader.before = lruHeader;
+    lruHeader.after = lruHeader;
+  }
+
+  /**
+   * Returns an Interner that retains a canonical value until it is otherwise weakly reachable.
+   *
+   * @param <T> the type of the values
+   * @param hasher the hasher that compares values, or null to use their equals and hashCode
+   * @return a new Interner with weak retention
+   */
+  public static <T extends Object> Interner<T> weak(@Nullable Hasher hasher) {
+    return new Interner<T>(hasher, Retention.WEAK, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns an Interner that retains a canonical value until it is otherwise softly reachable and
+   * the garbage collector needs memory. Canonical values therefore survive short periods in which
+   * no client refers to them, and are not churned by garbage collections caused by unrelated work.
+   *
+   * @param <T> the type of the values
+   * @param hasher the hasher that compares values, or null to use their equals and hashCode
+   * @return a new Interner with soft retention
+   */
+  public static <T extends Object> Interner<T> soft(@Nullable Hasher hasher) {
+    return new Interner<T>(hasher, Retention.SOFT, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns an Interner that strongly retains at most {@code maxSize} canonical values. When there
+   * are more, the least recently interned or looked-up value is discarded, and a later equal value
+   * becomes canonical in its place.
+   *
+   * @param <T> the type of the values
+   * @param hasher the hasher that compares values, or null to use their equals and hashCode
+   * @param maxSize the maximum number of canonical values to retain
+   * @return a new Interner with bounded LRU retention
+   * @throws IllegalArgumentException if maxSize is not positive
+   */
+  public static <T extends Object> Interner<T> lru(@Nullable Hasher hasher, int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Illegal maximum size: " + maxSize);
+    }
+    return new Interner<T>(hasher, Retention.LRU, maxSize);
+  }
+
+  /**
+   * Returns an Interner that strongly retains every canonical value until {@link #clear} is called.
+   * This suits values that all become garbage at the same time, such as those of one phase of an
+   * analysis.
+   *
+   * @param <T> the type of the values
+   * @param hasher the hasher that compares values, or null to use their equals and hashCode
+   * @return a new Interner with arena retention
+   */
+  public static <T extends Object> Interner<T> arena(@Nullable Hasher hasher) {
+    return new Interner<T>(hasher, Retention.ARENA, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the retention policy of this Interner.
+   *
+   * @return the retention policy of this Interner
+   */
+  @Pure
+  public Retention getRetention() {
+    return retention;
+  }
+
+  /**
+   * Returns the canonical value that equals {@code value}, first making {@code value} the
+   * canonical value if there is none.
+   *
+   * @param value the value to canonicalize
+   * @return the canonical value that equals {@code value}
+   */
+  public synchronized T intern(T value) {
+    processQueue();
+    int h = hash(value);
+    T result = lookup(value, h);
+    if (result != null) {
+      return result;
+    }
+    insert(value, h);
+    return value;
+  }
+
+  /**
+   * Returns the canonical value that equals {@code value}, or null if there is none. Does not make
+   * {@code value} canonical. For LRU retention, a found value counts as recently used.
+   *
+   * @param value the value to look up
+   * @return the canonical value that equals {@code value}, or null
+   */
+  public synchronized @Nullable T get(T value) {
+    return lookup(value, hash(value));
+  }
+
+  /**
+   * Returns the number of canonical values. For weak and soft retention, a value that has been
+   * garbage-collected is counted until the garbage collector enqueues its reference.
+   *
+   * @return the number of canonical values
+   */
+  public synchronized int size() {
+    processQueue();
+    return count;
+  }
+
+  /** Discards all canonical values. */
+  public synchronized void clear() {
+    // The entries of the discarded table need not be removed.
+    while (queue.poll() != null) {}
+    table = newTable(INITIAL_CAPACITY);
+    count = 0;
+    lruHeader.before = lruHeader;
+    lruHeader.after = lruHeader;
+  }
+
+  @SideEffectFree
+  @Override
+  public String toString() {
+    String maxSizeString = (retention == Retention.LRU) ? ", maxSize=" + maxSize : "";
+    return "Interner(" + retention + maxSizeString + ")";
+  }
+
+  // Internal methods; the caller must hold this Interner's monitor.
+
+  /**
+   * Returns the hash code of a value, spread so that the low bits are well distributed.
+   *
+   * @param value a value
+   * @return the hash code of the value
+   */
+  @Pure
+  private int hash(Object value) {
+    int h = (hasher == null ? value.hashCode() : hasher.hashCode(value));
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Returns true if the two values are equal according to the hasher.
+   *
+   * @param v1 a value
+   * @param v2 a value
+   * @return true if the values are equal
+   */
+  @Pure
+  private boolean valueEquals(Object v1, Object v2) {
+    return (v1 == v2) || (hasher == null ? v1.equals(v2) : hasher.equals(v1, v2));
+  }
+
+  /**
+   * Returns how strongly the entries hold their values.
+   *
+   * @return how strongly the entries hold their values
+   */
+  @Pure
+  private ReferenceStrength valueStrength() {
+    switch (retention) {
+      case WEAK:
+        return ReferenceStrength.WEAK;
+      case SOFT:
+        return ReferenceStrength.SOFT;
+      default:
+        return ReferenceStrength.STRONG;
+    }
+  }
+
+  /**
+   * Creates a hash table.
+   *
+   * @param capacity the number of buckets; a power of two
+   * @return a new hash table
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  private static <T extends Object> @Nullable Entry<T>[] newTable(int capacity) {
+    return (@Nullable Entry<T>[]) new Entry[capacity];
+  }
+
+  /**
+   * Returns the canonical value that equals {@code value}, or null. Removes the entries in the
+   * searched bucket whose values have been garbage-collected.
+   *
+   * @param value the value to look up
+   * @param h the hash code of the value
+   * @return the canonical value that equals {@code value}, or null
+   */
+  private @Nullable T lookup(T value, int h) {
+    int index = h & (table.length - 1);
+    Entry<T> prev = null;
+    for (Entry<T> e = table[index]; e != null; e = e.next) {
+      T v = e.get();
+      if (v == null) {
+        // The value was garbage-collected.
+        if (prev == null) {
+          table[index] = e.next;
+        } else {
+          prev.next = e.next;
+        }
+        count--;
+        continue;
+      }
+      if (e.hash == h && valueEquals(value, v)) {
+        if (retention == Retention.LRU) {
+          e.unlinkLru();
+          e.linkLruBefore(lruHeader);
+        }
+        return v;
+      }
+      prev = e;
+    }
+    return null;
+  }
+
+  /**
+   * Removes the entries whose values the garbage collector has discarded and whose references it
+   * has enqueued.
+   */
+  @SuppressWarnings("unchecked") // the queue holds only references to values of this Interner
+  private void processQueue() {
+    Reference<?> r;
+    while ((r = queue.poll()) != null) {
+      // If lookup or resize already removed the entry, remove does nothing.
+      remove((Entry<T>) ((ValueReference<?>) r).entry());
+    }
+  }
+
+  /**
+   * Makes {@code value} canonical. There must be no canonical value equal to it.
+   *
+   * @param value the value to make canonical
+   * @param h the hash code of the value
+   */
+  private void insert(T value, int h) {
+    if (count >= table.length / 4 * 3) {
+      resize();
+    }
+    int index = h & (table.length - 1);
+    Entry<T> e = new Entry<T>(h, table[index]);
+    e.value = ValueReferences.wrap(valueStrength(), value, queue, e);
+    table[index] = e;
+    count++;
+    if (retention == Retention.LRU) {
+      e.linkLruBefore(lruHeader);
+      if (count > maxSize) {
+        Entry<T> eldest = lruHeader.after;
+        if (eldest != null) {
+          remove(eldest);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes an entry from the table and from the LRU list.
+   *
+   * @param entry the entry to remove
+   */
+  @SuppressWarnings("interning:not.interned") // reference equality of entries
+  private void remove(Entry<T> entry) {
+    int index = entry.hash & (table.length - 1);
+    Entry<T> prev = null;
+    for (Entry<T> e = table[index]; e != null; e = e.next) {
+      if (e == entry) {
+        if (prev == null) {
+          table[index] = e.next;
+        } else {
+          prev.next = e.next;
+        }
+        count--;
+        break;
+      }
+      prev = e;
+    }
+    entry.unlinkLru();
+  }
+
+  /**
+   * Removes the entries whose values have been garbage-collected, then doubles the capacity of the
+   * table unless that removed at least a quarter of the entries.
+   */
+  private void resize() {
+    int oldCapacity = table.length;
+    int live = 0;
+    for (Entry<T> first : table) {
+      for (Entry<T> e = first; e != null; e = e.next) {
+        if (e.get() != null) {
+          live++;
+        }
+      }
+    }
+    int newCapacity = oldCapacity;
+    if (live >= count / 4 * 3 && oldCapacity < MAXIMUM_CAPACITY) {
+      newCapacity = oldCapacity * 2;
+    }
+    @Nullable Entry<T>[] newTable = newTable(newCapacity);
+    for (Entry<T> first : table) {
+      Entry<T> e = first;
+      while (e != null) {
+        Entry<T> next = e.next;
+        if (e.get() != null) {
+          int index = e.hash & (newCapacity - 1);
+          e.next = newTable[index];
+          newTable[index] = e;
+        }
+        e = next;
+      }
+    }
+    table = newTable;
+    count = live;
+  }
+
+  /**
+   * An entry in the hash table. It holds its value either strongly or through a reference that is
+   * registered with the Interner's queue.
+   *
+   * @param <T> the type of the values
+   */
+  private static final class Entry<T extends Object> {
+    /** The hash code of the value. */
+    final int hash;
+    /** The value, or a {@link ValueReference} to it if values are not held strongly. */
+    @Nullable Object value;
+    /** The next entry in the bucket. */
+    @Nullable Entry<T> next;
+    /** The previous entry in the LRU list. */
+    @Nullable Entry<T> before;
+    /** The next entry in the LRU list. */
+    @Nullable Entry<T> after;
+
+    /**
+     * Creates an entry.
+     *
+     * @param hash the hash code of the value
+     * @param next the next entry in the bucket
+     */
+    Entry(int hash, @Nullable Entry<T> next) {
+      this.hash = hash;
+      this.next = next;
+    }
+
+    /**
+     * Returns the value, or null if it has been garbage-collected.
+     *
+     * @return the value, or null
+     */
+    @Nullable T get() {
+      return ValueReferences.unwrap(value);
+    }
+
+    /**
+     * Inserts this entry into the LRU list, just before the given entry.
+     *
+     * @param successor the entry that will follow this one
+     */
+    void linkLruBefore(Entry<T> successor) {
+      Entry<T> predecessor = successor.before;
+      after = successor;
+      before = predecessor;
+      if (predecessor != null) {
+        predecessor.after = this;
+      }
+      successor.before = this;
+    }
+
+    /** Removes this entry from the LRU list, if it is in the list. */
+    void unlinkLru() {
+      Entry<T> b = before;
+      Entry<T> a = after;
+      if (b != null) {
+        b.after = a;
+      }
+      if (a != null) {
+        a.before = b;
+      }
+      before = null;
+      after = null;
+    }
+  }
+}
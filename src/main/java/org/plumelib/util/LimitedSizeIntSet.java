@@ -1,8 +1,11 @@
 package org.plumelib.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
 import org.checkerframework.checker.index.qual.IndexFor;
 import org.checkerframework.checker.index.qual.IndexOrHigh;
 import org.checkerframework.checker.index.qual.Positive;
@@ -18,9 +21,19 @@ import org.checkerframework.dataflow.qual.SideEffectFree;
  * elements are added, then functionality is degraded: most operations return a conservative
  * estimate (because the internal representation is nulled, in order to save space).
  *
+ * <p>A small set is represented as an array that is searched linearly. Once the set holds more
+ * than {@link #HASH_THRESHOLD} elements, an open-addressing hash table indexes the array, so that
+ * {@link #add} and {@link #contains} take constant expected time even for large capacities.
+ *
+ * <p>Optionally, a set that overflows keeps a compact HyperLogLog sketch of its elements, from
+ * which {@link #size} estimates the number of distinct elements; see {@link
+ * #LimitedSizeIntSet(int, boolean)}.
+ *
  * <p>The advantage of this class over {@code LimitedSizeSet<Integer>} is that it does not autobox
  * the int values, so it takes less memory.
  *
+ * <p>LimitedSizeIntSet is not thread-safe; {@link ConcurrentLimitedSizeIntSet} is.
+ *
  * @see LimitedSizeSet
  */
 // I have not evaluated the importance of the optimizations in this class.
@@ -31,7 +44,7 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
   // We are Serializable, so we specify a version to allow changes to
   // method signatures without breaking serialization.  If you add or
   // remove fields, you should change this number to the current date.
-  static final long serialVersionUID = 20031021L;
+  static final long serialVersionUID = 20261018L;
 
   /**
    * If null, then at least numValues distinct values have been seen. The size is not separately
@@ -43,6 +56,39 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
   // the values field is set to null. Warnings are suppressed when breaking the invariant.
   @IndexOrHigh("values") int numValues;
 
+  /**
+   * The number of elements above which this set is indexed by a hash table, rather than searched
+   * linearly.
+   */
+  static final int HASH_THRESHOLD = 16;
+
+  /**
+   * The maximum length of {@link #index}. A set with more than half this many elements is searched
+   * linearly.
+   */
+  private static final int MAX_INDEX_LENGTH = 1 << 30;
+
+  /**
+   * An open-addressing hash table, with linear probing, that indexes {@link #values}; null if this
+   * set has at most {@link #HASH_THRESHOLD} elements or its representation is nulled. Each slot is
+   * 0 if it is empty, or else 1 more than the index of an element in {@code values}. Its length is
+   * a power of 2, and it is at most half full. It is not serialized, but rebuilt when this set is
+   * read.
+   */
+  private transient int @Nullable [] index = null;
+
+  /** If true, then when this set overflows, it keeps a sketch of its elements. */
+  private boolean estimateAfterOverflow;
+
+  /**
+   * A sketch of the elements of this set, or null. It is non-null exactly when the representation
+   * is nulled and {@link #estimateAfterOverflow} is true.
+   */
+  private @Nullable HyperLogLog sketch = null;
+
+  /** The length of a list of sets that {@link #parallelMerge} merges sequentially. */
+  static final int PARALLEL_MERGE_THRESHOLD = 256;
+
   /** Whether assertions are enabled. */
   private static boolean assertsEnabled = false;
 
@@ -57,12 +103,26 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
    * @param maxValues the maximum number of values this set will be able to hold; must be positive
    */
   public LimitedSizeIntSet(@Positive int maxValues) {
+    this(maxValues, false);
+  }
+
+  /**
+   * Create a new LimitedSizeIntSet that can hold maxValues values. If {@code estimateAfterOverflow}
+   * is true, then once more than maxValues values have been added, the set keeps a compact sketch
+   * of its values instead: {@link #size} estimates the number of distinct values, and {@link
+   * #addAll} and {@link #merge} combine the sketches of several sets.
+   *
+   * @param maxValues the maximum number of values this set will be able to hold; must be positive
+   * @param estimateAfterOverflow whether to estimate the size of this set after it overflows
+   */
+  public LimitedSizeIntSet(@Positive int maxValues, boolean estimateAfterOverflow) {
     if (assertsEnabled && !(maxValues > 0)) {
       throw new IllegalArgumentException("maxValues should be positive, is " + maxValues);
     }
     // this.maxValues = maxValues;
     values = new int[maxValues];
     numValues = 0;
+    this.estimateAfterOverflow = estimateAfterOverflow;
   }
 
   /**
@@ -72,6 +132,9 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
    */
   public void add(int elt) {
     if (repNulled()) {
+      if (sketch != null) {
+        sketch.add(elt);
+      }
       return;
     }
 
@@ -80,10 +143,19 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     }
     if (numValues == values.length) {
       nullRep();
+      if (sketch != null) {
+        sketch.add(elt);
+      }
       return;
     }
     values[numValues] = elt;
     numValues++;
+    int[] idx = index;
+    if (idx == null ? numValues > HASH_THRESHOLD : 2 * numValues > idx.length) {
+      buildIndex();
+    } else if (idx != null) {
+      insertIntoIndex(idx, numValues - 1);
+    }
   }
 
   /**
@@ -98,9 +170,16 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
       return;
     }
     if (repNulled()) {
+      addToSketch(s);
       return;
     }
     if (s.repNulled()) {
+      if (estimateAfterOverflow && s.sketch != null) {
+        // The argument's sketch summarizes its elements, so the union can still be estimated.
+        nullRep();
+        addToSketch(s);
+        return;
+      }
       // We don't know whether the elements of this and the argument were
       // disjoint.  There might be anywhere from max(size(), s.size()) to
       // (size() + s.size()) elements in the resulting set.
@@ -127,17 +206,51 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     }
   }
 
+  /**
+   * Adds the known elements of {@code s} to {@link #sketch}: the elements of its sketch if it has
+   * one, or else its values if they are known. Does nothing if this set has no sketch.
+   *
+   * @param s the set whose elements to add to the sketch
+   */
+  @SuppressWarnings("index:array.access.unsafe.high") // s.numValues <= s.values.length
+  private void addToSketch(LimitedSizeIntSet s) {
+    HyperLogLog sk = sketch;
+    if (sk == null) {
+      return;
+    }
+    HyperLogLog ssketch = s.sketch;
+    int @Nullable [] svalues = s.values;
+    if (ssketch != null) {
+      sk.addAll(ssketch);
+    } else if (svalues != null) {
+      for (int i = 0; i < s.numValues; i++) {
+        sk.add(svalues[i]);
+      }
+    }
+  }
+
   /**
    * Returns true if this set contains the given element.
    *
    * @param elt the element whose membership to test
    * @return true if this set contains {@code elt}
    */
+  @SuppressWarnings("index") // index slots are masked, and hold 1 + an index less than numValues
   @Pure
   public boolean contains(int elt) {
     if (repNulled()) {
       throw new UnsupportedOperationException();
     }
+    int[] idx = index;
+    if (idx != null) {
+      int mask = idx.length - 1;
+      for (int i = hash(elt) & mask; idx[i] != 0; i = (i + 1) & mask) {
+        if (values[idx[i] - 1] == elt) {
+          return true;
+        }
+      }
+      return false;
+    }
     for (int i = 0; i < numValues; i++) {
       if (values[i] == elt) {
         return true;
@@ -146,14 +259,76 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     return false;
   }
 
+  /**
+   * Returns the hash code of an element, with its bits spread so that nearby values fall into
+   * different slots of {@link #index}.
+   *
+   * @param elt an element
+   * @return the spread hash code of {@code elt}
+   */
+  private static int hash(int elt) {
+    int h = elt * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Creates {@link #index} for the current elements, with room for at least as many more. Does
+   * nothing if the representation is nulled, and discards the index if the set is too large for
+   * one.
+   */
+  private void buildIndex() {
+    if (repNulled()) {
+      return;
+    }
+    if (numValues > MAX_INDEX_LENGTH / 2) {
+      index = null;
+      return;
+    }
+    int wanted = (int) Math.min(Math.min(4L * numValues, 2L * values.length), MAX_INDEX_LENGTH);
+    int[] idx = new int[Integer.highestOneBit(Math.max(wanted - 1, 1)) << 1];
+    for (int i = 0; i < numValues; i++) {
+      insertIntoIndex(idx, i);
+    }
+    index = idx;
+  }
+
+  /**
+   * Adds the element at the given position of {@link #values} to a hash table. The element must
+   * not already be in the table.
+   *
+   * @param idx the hash table
+   * @param i the index of the element in {@code values}
+   */
+  @SuppressWarnings("index") // slots are masked by idx.length - 1, and i < numValues
+  private void insertIntoIndex(int[] idx, int i) {
+    if (values == null) {
+      return;
+    }
+    int mask = idx.length - 1;
+    int slot = hash(values[i]) & mask;
+    while (idx[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    idx[slot] = i + 1;
+  }
+
   /**
    * A lower bound on the number of elements in the set. Returns either the number of elements that
    * have been inserted in the set, or maxSize(), whichever is less.
    *
-   * @return a number that is a lower bound on the number of elements added to the set
+   * <p>If this set has overflowed and estimates its size (see {@link #LimitedSizeIntSet(int,
+   * boolean)}), then returns an estimate of the number of distinct elements added to the set, but
+   * at least maxSize(). The estimate is not a bound.
+   *
+   * @return a number that is a lower bound on, or an estimate of, the number of elements added to
+   *     the set
    */
   @Pure
   public int size(@GuardSatisfied LimitedSizeIntSet this) {
+    HyperLogLog sk = sketch;
+    if (sk != null) {
+      return (int) Math.max(numValues, Math.min(sk.estimate(), Integer.MAX_VALUE));
+    }
     return numValues;
   }
 
@@ -195,8 +370,16 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     if (repNulled()) {
       return;
     }
+    if (estimateAfterOverflow) {
+      HyperLogLog sk = new HyperLogLog();
+      for (int i = 0; i < numValues; i++) {
+        sk.add(values[i]);
+      }
+      sketch = sk;
+    }
     numValues = values.length + 1;
     values = null;
+    index = null;
   }
 
   @SuppressWarnings(
@@ -213,25 +396,119 @@ public class LimitedSizeIntSet implements Serializable, Cloneable {
     if (values != null) {
       result.values = values.clone();
     }
+    if (sketch != null) {
+      result.sketch = sketch.clone();
+    }
+    if (index != null) {
+      result.index = index.clone();
+    }
     return result;
   }
 
   /**
    * Merges a list of {@code LimitedSizeIntSet} objects into a single object that represents the
    * values seen by the entire list. Returns the new object, whose maxValues is the given integer.
+   * The new object estimates its size after overflow if any of the merged objects does. Unless it
+   * does, merging stops as soon as the union is known to exceed maxValues.
    *
    * @param maxValues the maximum size for the returned LimitedSizeIntSet
    * @param slist a list of LimitedSizeIntSet, whose elements will be merged
    * @return a LimitedSizeIntSet that merges the elements of slist
    */
   public static LimitedSizeIntSet merge(@Positive int maxValues, List<LimitedSizeIntSet> slist) {
-    LimitedSizeIntSet result = new LimitedSizeIntSet(maxValues);
+    return merge(maxValues, anyEstimates(slist), slist);
+  }
+
+  /**
+   * Like {@link #merge(int, List)}, but merges the two halves of a long list in parallel, in the
+   * common fork/join pool, and recursively. Lists shorter than {@link #PARALLEL_MERGE_THRESHOLD}
+   * are merged sequentially.
+   *
+   * <p>The result is the same as that of {@code merge}, except that this may throw the Error of
+   * {@link #addAll} for a rep-nulled set that {@code merge} would have skipped because the union
+   * had already overflowed.
+   *
+   * @param maxValues the maximum size for the returned LimitedSizeIntSet
+   * @param slist a list of LimitedSizeIntSet, whose elements will be merged
+   * @return a LimitedSizeIntSet that merges the elements of slist
+   */
+  public static LimitedSizeIntSet parallelMerge(
+      @Positive int maxValues, List<LimitedSizeIntSet> slist) {
+    return parallelMerge(maxValues, anyEstimates(slist), slist);
+  }
+
+  /**
+   * Returns true if any of the given sets estimates its size after overflow.
+   *
+   * @param slist a list of sets
+   * @return true if any element of slist estimates its size after overflow
+   */
+  private static boolean anyEstimates(List<LimitedSizeIntSet> slist) {
     for (LimitedSizeIntSet s : slist) {
+      if (s.estimateAfterOverflow) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Merges a list of sets sequentially. Stops as soon as the union is known to exceed maxValues,
+   * unless the result estimates its size after overflow.
+   *
+   * @param maxValues the maximum size for the returned LimitedSizeIntSet
+   * @param estimate whether the returned set estimates its size after overflow
+   * @param slist a list of LimitedSizeIntSet, whose elements will be merged
+   * @return a LimitedSizeIntSet that merges the elements of slist
+   */
+  private static LimitedSizeIntSet merge(
+      @Positive int maxValues, boolean estimate, List<LimitedSizeIntSet> slist) {
+    LimitedSizeIntSet result = new LimitedSizeIntSet(maxValues, estimate);
+    for (LimitedSizeIntSet s : slist) {
+      if (result.repNulled() && !estimate) {
+        break; // no further set can change the result
+      }
       result.addAll(s);
     }
     return result;
   }
 
+  /**
+   * Merges a list of sets by recursively merging its two halves in parallel.
+   *
+   * @param maxValues the maximum size for the returned LimitedSizeIntSet
+   * @param estimate whether the returned set estimates its size after overflow
+   * @param slist a list of LimitedSizeIntSet, whose elements will be merged
+   * @return a LimitedSizeIntSet that merges the elements of slist
+   */
+  private static LimitedSizeIntSet parallelMerge(
+      @Positive int maxValues, boolean estimate, List<LimitedSizeIntSet> slist) {
+    if (slist.size() < PARALLEL_MERGE_THRESHOLD) {
+      return merge(maxValues, estimate, slist);
+    }
+    int mid = slist.size() / 2;
+    ForkJoinTask<LimitedSizeIntSet> left =
+        ForkJoinTask.adapt(() -> parallelMerge(maxValues, estimate, slist.subList(0, mid))).fork();
+    LimitedSizeIntSet right = parallelMerge(maxValues, estimate, slist.subList(mid, slist.size()));
+    LimitedSizeIntSet result = left.join();
+    result.addAll(right);
+    return result;
+  }
+
+  /**
+   * Reads this set from a stream, and rebuilds its hash index.
+   *
+   * @param in the stream to read from
+   * @throws IOException if reading fails
+   * @throws ClassNotFoundException if a class of a serialized object cannot be found
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (numValues > HASH_THRESHOLD) {
+      buildIndex();
+    }
+  }
+
   @SideEffectFree
   @Override
   public String toString(@GuardSatisfied LimitedSizeIntSet this) {
@@ -1,14 +1,19 @@
 package org.plumelib.util;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
 import org.checkerframework.checker.index.qual.IndexOrHigh;
 import org.checkerframework.checker.index.qual.Positive;
 import org.checkerframework.checker.index.qual.SameLen;
 import org.checkerframework.checker.lock.qual.GuardSatisfied;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNullIf;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.checkerframework.common.value.qual.MinLen;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
@@ -18,6 +23,10 @@ import org.checkerframework.dataflow.qual.SideEffectFree;
  * are added, then functionality is degraded: most operations return a conservative estimate
  * (because the internal representation is nulled, in order to save space).
  *
+ * <p>Optionally, a set that overflows keeps a compact HyperLogLog sketch of its elements, from
+ * which {@link #size} estimates the number of distinct elements; see {@link
+ * #LimitedSizeSet(int, boolean)}.
+ *
  * <p>If you need {@code LimitedSizeSet<Integer>}, use {@link LimitedSizeIntSet} instead.
  *
  * <p>If you need {@code LimitedSizeSet<Long>}, use {@link LimitedSizeLongSet} instead.
@@ -28,7 +37,7 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
   // We are Serializable, so we specify a version to allow changes to
   // method signatures without breaking serialization.  If you add or
   // remove fields, you should change this number to the current date.
-  static final long serialVersionUID = 20031021L;
+  static final long serialVersionUID = 20261018L;
 
   // The size is not separately stored, because that would take extra space.
   /**
@@ -41,6 +50,18 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
   // when the values field is set to null. Warnings are suppressed when breaking the invariant.
   protected @IndexOrHigh("values") int numValues;
 
+  /** If true, then when this set overflows, it keeps a sketch of its elements. */
+  private boolean estimateAfterOverflow;
+
+  /**
+   * A sketch of the elements of this set, or null. It is non-null exactly when the representation
+   * is nulled and {@link #estimateAfterOverflow} is true.
+   */
+  private @Nullable HyperLogLog sketch = null;
+
+  /** The length of a list of sets that {@link #parallelMerge} merges sequentially. */
+  static final int PARALLEL_MERGE_THRESHOLD = 256;
+
   /** Whether assertions are enabled. */
   private static boolean assertsEnabled = false;
 
@@ -55,6 +76,19 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
    * @param maxValues the maximum number of values this set will be able to hold; must be positive
    */
   public LimitedSizeSet(@Positive int maxValues) {
+    this(maxValues, false);
+  }
+
+  /**
+   * Create a new LimitedSizeSet that can hold maxValues values. If {@code estimateAfterOverflow} is
+   * true, then once more than maxValues values have been added, the set keeps a compact sketch of
+   * its values instead: {@link #size} estimates the number of distinct values, and {@link #addAll}
+   * and {@link #merge} combine the sketches of several sets.
+   *
+   * @param maxValues the maximum number of values this set will be able to hold; must be positive
+   * @param estimateAfterOverflow whether to estimate the size of this set after it overflows
+   */
+  public LimitedSizeSet(@Positive int maxValues, boolean estimateAfterOverflow) {
     if (assertsEnabled && !(maxValues > 0)) {
       throw new IllegalArgumentException("maxValues should be positive, is " + maxValues);
     }
@@ -66,6 +100,7 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
     @Nullable T @MinLen(1) [] newValuesArray = (@Nullable T[]) new @Nullable Object[maxValues];
     values = newValuesArray;
     numValues = 0;
+    this.estimateAfterOverflow = estimateAfterOverflow;
   }
 
   /**
@@ -75,14 +110,30 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
    */
   public void add(T elt) {
     if (repNulled()) {
+      if (sketch != null) {
+        sketch.add(Objects.hashCode(elt));
+      }
       return;
     }
 
     if (contains(elt)) {
       return;
     }
+    addNew(elt);
+  }
+
+  /**
+   * Add an element that is not in this set.
+   *
+   * @param elt the element to add to this set
+   */
+  @RequiresNonNull("values")
+  private void addNew(T elt) {
     if (numValues == values.length) {
       nullRep();
+      if (sketch != null) {
+        sketch.add(Objects.hashCode(elt));
+      }
       return;
     }
     values[numValues] = elt;
@@ -101,9 +152,16 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
       return;
     }
     if (repNulled()) {
+      addToSketch(s);
       return;
     }
     if (s.repNulled()) {
+      if (estimateAfterOverflow && s.sketch != null) {
+        // The argument's sketch summarizes its elements, so the union can still be estimated.
+        nullRep();
+        addToSketch(s);
+        return;
+      }
       // We don't know whether the elements of this and the argument were
       // disjoint.  There might be anywhere from max(size(), s.size()) to
       // (size() + s.size()) elements in the resulting set.
@@ -128,6 +186,76 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
     }
   }
 
+  /**
+   * Add all elements of the given sets to this set. This has the same effect as calling {@link
+   * #addAll} on each set in turn, but finds duplicates with a hash set rather than a linear search,
+   * and stops as soon as this set overflows, unless it estimates its size after overflow.
+   *
+   * @param slist the sets whose elements to add to this set
+   */
+  @SuppressWarnings("index:array.access.unsafe.high") // s.numValues <= s.values.length
+  private void addAllHashed(List<? extends LimitedSizeSet<? extends T>> slist) {
+    Set<@Nullable Object> seen = null;
+    for (LimitedSizeSet<? extends T> s : slist) {
+      if (repNulled()) {
+        if (!estimateAfterOverflow) {
+          return; // no further set can change this one
+        }
+        addAll(s);
+        continue;
+      }
+      @SuppressWarnings("interning") // optimization; not a subclass of Collection, though
+      boolean sameObject = (this == s);
+      if (sameObject || s.repNulled()) {
+        addAll(s);
+        continue;
+      }
+      if (seen == null) {
+        seen = new HashSet<>();
+        for (int i = 0; i < numValues; i++) {
+          seen.add(values[i]);
+        }
+      }
+      @Nullable T[] svalues = s.values;
+      for (int i = 0; i < s.numValues; i++) {
+        @SuppressWarnings("nullness") // the used portion of the array holds elements of type T
+        T elt = svalues[i];
+        if (!repNulled()) {
+          if (seen.add(elt)) {
+            addNew(elt);
+          }
+        } else if (estimateAfterOverflow) {
+          add(elt);
+        } else {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the known elements of {@code s} to {@link #sketch}: the elements of its sketch if it has
+   * one, or else its values if they are known. Does nothing if this set has no sketch.
+   *
+   * @param s the set whose elements to add to the sketch
+   */
+  @SuppressWarnings("index:array.access.unsafe.high") // s.numValues <= s.values.length
+  private void addToSketch(LimitedSizeSet<? extends T> s) {
+    HyperLogLog sk = sketch;
+    if (sk == null) {
+      return;
+    }
+    HyperLogLog ssketch = s.sketch;
+    @Nullable Object @Nullable [] svalues = s.values;
+    if (ssketch != null) {
+      sk.addAll(ssketch);
+    } else if (svalues != null) {
+      for (int i = 0; i < s.numValues; i++) {
+        sk.add(Objects.hashCode(svalues[i]));
+      }
+    }
+  }
+
   /**
    * Returns true if this set contains the given element.
    *
@@ -151,10 +279,20 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
    * A lower bound on the number of elements in the set. Returns either the number of elements that
    * have been inserted in the set, or maxSize(), whichever is less.
    *
-   * @return a number that is a lower bound on the number of elements added to the set
+   * <p>If this set has overflowed and estimates its size (see {@link #LimitedSizeSet(int,
+   * boolean)}), then returns an estimate of the number of distinct elements added to the set, but
+   * at least maxSize(). The estimate is not a bound.
+   *
+   * @return a number that is a lower bound on, or an estimate of, the number of elements added to
+   *     the set
    */
+  @SuppressWarnings("index:return") // an estimate may exceed the length of the nulled values
   @Pure
   public @IndexOrHigh("this.values") int size(@GuardSatisfied LimitedSizeSet<T> this) {
+    HyperLogLog sk = sketch;
+    if (sk != null) {
+      return (int) Math.max(numValues, Math.min(sk.estimate(), Integer.MAX_VALUE));
+    }
     return numValues;
   }
 
@@ -196,6 +334,13 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
     if (repNulled()) {
       return;
     }
+    if (estimateAfterOverflow) {
+      HyperLogLog sk = new HyperLogLog();
+      for (int i = 0; i < numValues; i++) {
+        sk.add(Objects.hashCode(values[i]));
+      }
+      sketch = sk;
+    }
     numValues = values.length + 1;
     values = null;
   }
@@ -216,12 +361,17 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
     if (values != null) {
       result.values = values.clone();
     }
+    if (sketch != null) {
+      result.sketch = sketch.clone();
+    }
     return result;
   }
 
   /**
    * Merges a list of {@code LimitedSizeSet<T>} objects into a single object that represents the
    * values seen by the entire list. Returns the new object, whose maxValues is the given integer.
+   * The new object estimates its size after overflow if any of the merged objects does. Unless it
+   * does, merging stops as soon as the union is known to exceed maxValues.
    *
    * @param <T> (super)type of elements of the sets
    * @param maxValues the maximum size for the returned LimitedSizeSet
@@ -230,10 +380,79 @@ public class LimitedSizeSet<T extends @Nullable Object> implements Serializable,
    */
   public static <T extends @Nullable Object> LimitedSizeSet<T> merge(
       @Positive int maxValues, List<LimitedSizeSet<? extends T>> slist) {
-    LimitedSizeSet<T> result = new LimitedSizeSet<>(maxValues);
-    for (LimitedSizeSet<? extends T> s : slist) {
-      result.addAll(s);
+    return merge(maxValues, anyEstimates(slist), slist);
+  }
+
+  /**
+   * Like {@link #merge(int, List)}, but merges the two halves of a long list in parallel, in the
+   * common fork/join pool, and recursively. Lists shorter than {@link #PARALLEL_MERGE_THRESHOLD}
+   * are merged sequentially.
+   *
+   * <p>The result is the same as that of {@code merge}, except that this may throw the Error of
+   * {@link #addAll} for a rep-nulled set that {@code merge} would have skipped because the union
+   * had already overflowed.
+   *
+   * @param <T> (super)type of elements of the sets
+   * @param maxValues the maximum size for the returned LimitedSizeSet
+   * @param slist a list of LimitedSizeSet, whose elements will be merged
+   * @return a LimitedSizeSet that merges the elements of slist
+   */
+  public static <T extends @Nullable Object> LimitedSizeSet<T> parallelMerge(
+      @Positive int maxValues, List<LimitedSizeSet<? extends T>> slist) {
+    return parallelMerge(maxValues, anyEstimates(slist), slist);
+  }
+
+  /**
+   * Returns true if any of the given sets estimates its size after overflow.
+   *
+   * @param slist a list of sets
+   * @return true if any element of slist estimates its size after overflow
+   */
+  private static boolean anyEstimates(List<? extends LimitedSizeSet<?>> slist) {
+    for (LimitedSizeSet<?> s : slist) {
+      if (s.estimateAfterOverflow) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Merges a list of sets sequentially.
+   *
+   * @param <T> (super)type of elements of the sets
+   * @param maxValues the maximum size for the returned LimitedSizeSet
+   * @param estimate whether the returned set estimates its size after overflow
+   * @param slist a list of LimitedSizeSet, whose elements will be merged
+   * @return a LimitedSizeSet that merges the elements of slist
+   */
+  private static <T extends @Nullable Object> LimitedSizeSet<T> merge(
+      @Positive int maxValues, boolean estimate, List<LimitedSizeSet<? extends T>> slist) {
+    LimitedSizeSet<T> result = new LimitedSizeSet<>(maxValues, estimate);
+    result.addAllHashed(slist);
+    return result;
+  }
+
+  /**
+   * Merges a list of sets by recursively merging its two halves in parallel.
+   *
+   * @param <T> (super)type of elements of the sets
+   * @param maxValues the maximum size for the returned LimitedSizeSet
+   * @param estimate whether the returned set estimates its size after overflow
+   * @param slist a list of LimitedSizeSet, whose elements will be merged
+   * @return a LimitedSizeSet that merges the elements of slist
+   */
+  private static <T extends @Nullable Object> LimitedSizeSet<T> parallelMerge(
+      @Positive int maxValues, boolean estimate, List<LimitedSizeSet<? extends T>> slist) {
+    if (slist.size() < PARALLEL_MERGE_THRESHOLD) {
+      return merge(maxValues, estimate, slist);
     }
+    int mid = slist.size() / 2;
+    ForkJoinTask<LimitedSizeSet<T>> left =
+        ForkJoinTask.adapt(() -> parallelMerge(maxValues, estimate, slist.subList(0, mid))).fork();
+    LimitedSizeSet<T> right = parallelMerge(maxValues, estimate, slist.subList(mid, slist.size()));
+    LimitedSizeSet<T> result = left.join();
+    result.addAllHashed(Collections.singletonList(right));
     return result;
   }
 
@@ -0,0 +1,21 @@
+package org.plumelib.util;
+
+/**
+ * How strongly a map holds its keys or its values. See {@link WeakIdentityHashMap} and {@link
+ * WeakHasherMap}.
+ */
+public enum ReferenceStrength {
+  /** Held by ordinary references: never discarded by the garbage collector. */
+  STRONG,
+  /**
+   * Held by {@link java.lang.ref.SoftReference}s: discarded only when the garbage collector needs
+   * the memory, in roughly least-recently-used order. This is appropriate for memory-sensitive
+   * caches.
+   */
+  SOFT,
+  /**
+   * Held by {@link java.lang.ref.WeakReference}s: discarded as soon as the object is not otherwise
+   * strongly or softly reachable.
+   */
+  WEAK
+}
@@ -1,6 +1,11 @@
 package org.plumelib.util;
 
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Provides a unique ID for classes that you cannot modify. The unique ID is useful because it makes
@@ -9,6 +14,10 @@ import java.util.concurrent.atomic.AtomicLong;
  * <p>The IDs count up from 0, per instance of UniqueIdMap. When you look up an object in this map,
  * it is given a unique ID if it didn't already have one.
  *
+ * <p>This class is thread-safe. Each object gets exactly one ID, even if several threads look it up
+ * at once, and the IDs remain dense. Looking up an object that already has an ID takes no lock;
+ * assigning a new ID locks only a part of the map.
+ *
  * <p>Typical use:
  *
  * <ol>
@@ -19,14 +28,40 @@ import java.util.concurrent.atomic.AtomicLong;
  * </code></pre>
  *   <li>Wherever you would call {@code x.hashCode()}, instead call {@code treeUids.get(x)}.
  * </ol>
+ *
+ * <p>A map created by {@link #UniqueIdMap(boolean) UniqueIdMap(true)} can also map an ID back to
+ * its object, by {@link #lookup}, which is useful for debugging output and for replaying traces.
  */
 public class UniqueIdMap<E> {
 
   /** The unique ID for the next-created object. */
   private final AtomicLong nextUid = new AtomicLong(0);
 
-  /** A mapping from objects to their IDs. */
-  private WeakIdentityHashMap<E, Long> map = new WeakIdentityHashMap<>();
+  /** A mapping from objects to their IDs. The IDs are not boxed. */
+  private final ConcurrentWeakIdentityLongMap<E> map;
+
+  /** The mapping from IDs to objects, or null if reverse lookup is not enabled. */
+  private final @Nullable ReverseIndex reverseIndex;
+
+  /** Creates a new UniqueIdMap, which does not support {@link #lookup}. */
+  public UniqueIdMap() {
+    this(false);
+  }
+
+  /**
+   * Creates a new UniqueIdMap.
+   *
+   * @param reverseLookup if true, the map supports {@link #lookup}, at the cost of a pointer per ID
+   */
+  public UniqueIdMap(boolean reverseLookup) {
+    if (reverseLookup) {
+      reverseIndex = new ReverseIndex();
+      map = new ConcurrentWeakIdentityLongMap<>(-1, reverseIndex);
+    } else {
+      reverseIndex = null;
+      map = new ConcurrentWeakIdentityLongMap<>(-1);
+    }
+  }
 
   /**
    * Get the unique ID for the given object. If the object's ID has not been previously requested, a
@@ -36,12 +71,131 @@ public class UniqueIdMap<E> {
    * @return the unique ID for the given object
    */
   public long get(E object) {
-    Long id = map.get(object);
-    if (id != null) {
-      return id;
+    return map.computeLongIfAbsent(object, k -> nextUid.getAndIncrement());
+  }
+
+  /**
+   * Returns the object that has the given ID. Takes constant time and no lock.
+   *
+   * @param id an ID
+   * @return the object whose ID is {@code id}, or null if no object has been given that ID or the
+   *     object has been garbage-collected
+   * @throws UnsupportedOperationException if this map was not created with reverse lookup enabled
+   */
+  @SuppressWarnings("unchecked") // the index holds only entries of map, whose keys are Es
+  public @Nullable E lookup(long id) {
+    if (reverseIndex == null) {
+      throw new UnsupportedOperationException("UniqueIdMap was created without reverse lookup");
+    }
+    WeakReference<Object> entry = reverseIndex.get(id);
+    if (entry == null) {
+      return null;
+    }
+    Object object = entry.get();
+    // The entry for the null key holds the map's internal representation of null.
+    return ConcurrentWeakIdentityLongMap.isNullKey(object) ? null : (E) object;
+  }
+
+  /**
+   * An index from IDs to the entries of {@link #map}. Since IDs are dense and increasing, the index
+   * is an array of pages, each of which holds the entries for a range of {@link #PAGE_SIZE} IDs.
+   * The entries are weak references to the objects, so the index holds the objects weakly, and it
+   * is updated when {@link #map} removes an entry after the garbage collector has cleared it. When
+   * every ID in a page has been removed, the page is freed.
+   *
+   * <p>The index relies on the way that UniqueIdMap uses {@link #map}: each ID is given to exactly
+   * one entry, and is never given to another one or replaced.
+   */
+  private static final class ReverseIndex implements ConcurrentWeakIdentityLongMap.EntryListener {
+    /** log2 of {@link #PAGE_SIZE}. */
+    private static final int PAGE_BITS = 10;
+
+    /** The number of IDs in a page. */
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /** The entries for a range of IDs. */
+    private static final class Page {
+      /** The entries, indexed by ID modulo {@link #PAGE_SIZE}. */
+      final AtomicReferenceArray<@Nullable WeakReference<Object>> entries =
+          new AtomicReferenceArray<>(PAGE_SIZE);
+
+      /** The number of IDs in this page that have not yet been removed. */
+      final AtomicInteger remaining = new AtomicInteger(PAGE_SIZE);
+    }
+
+    /**
+     * The pages, indexed by ID divided by {@link #PAGE_SIZE}. An element is null if no ID in its
+     * range has been stored yet, or if every ID in its range has been removed. Replaced, under this
+     * object's lock, by a larger array when necessary.
+     */
+    private volatile @Nullable Page[] pages = new Page[16];
+
+    /**
+     * Returns the entry for the given ID.
+     *
+     * @param id an ID
+     * @return the entry for the ID, or null
+     */
+    @Nullable WeakReference<Object> get(long id) {
+      Page page = existingPage(id);
+      return (page == null) ? null : page.entries.get((int) id & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Returns the page for the given ID, if it exists.
+     *
+     * @param id an ID
+     * @return the page for the ID, or null
+     */
+    private @Nullable Page existingPage(long id) {
+      @Nullable Page[] p = pages;
+      long pageIndex = id >>> PAGE_BITS;
+      return (id < 0 || pageIndex >= p.length) ? null : p[(int) pageIndex];
+    }
+
+    /**
+     * Returns the page for the given ID, creating it if necessary.
+     *
+     * @param id an ID
+     * @return the page for the ID
+     */
+    private Page pageFor(long id) {
+      int pageIndex = Math.toIntExact(id >>> PAGE_BITS);
+      @Nullable Page[] p = pages;
+      Page page = (pageIndex < p.length) ? p[pageIndex] : null;
+      if (page != null) {
+        return page;
+      }
+      synchronized (this) {
+        p = pages;
+        if (pageIndex >= p.length) {
+          p = Arrays.copyOf(p, Math.max(pageIndex + 1, p.length * 2));
+        }
+        page = p[pageIndex];
+        if (page == null) {
+          page = new Page();
+          p[pageIndex] = page;
+        }
+        pages = p; // publish the new page
+        return page;
+      }
+    }
+
+    @Override
+    public void entryStored(WeakReference<Object> entry, long id) {
+      pageFor(id).entries.set((int) id & (PAGE_SIZE - 1), entry);
+    }
+
+    @Override
+    public void entryRemoved(WeakReference<Object> entry, long id) {
+      Page page = existingPage(id);
+      if (page != null
+          && page.entries.compareAndSet((int) id & (PAGE_SIZE - 1), entry, null)
+          && page.remaining.decrementAndGet() == 0) {
+        synchronized (this) {
+          pages[(int) (id >>> PAGE_BITS)] = null;
+        }
+      }
     }
-    long newId = nextUid.getAndIncrement();
-    map.put(object, newId);
-    return newId;
   }
 }
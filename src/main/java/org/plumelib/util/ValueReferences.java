@@ -0,0 +1,183 @@
+package org.plumelib.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Soft and weak references to the values of {@link WeakIdentityHashMap}, {@link WeakHasherMap},
+ * and {@link Interner}. A value reference is registered with the same queue as the map's keys, and
+ * records the entry that holds it, so that the map can expunge the entry when the value is
+ * discarded.
+ */
+final class ValueReferences {
+
+  /** This class is a collection of methods; it does not represent anything. */
+  private ValueReferences() {
+    throw new Error("do not instantiate");
+  }
+
+  /**
+   * A soft or weak reference to the value of a map entry.
+   *
+   * @param <V> the type of the value
+   */
+  interface ValueReference<V> {
+    /**
+     * Returns the map entry whose value field holds this reference.
+     *
+     * @return the entry that holds this reference
+     */
+    Object entry();
+
+    /**
+     * Returns the value, or null if it has been discarded (or is null).
+     *
+     * @return the value
+     */
+    @Nullable V get();
+
+    /** Clears this reference, without enqueueing it. */
+    void clear();
+
+    /**
+     * Returns a new reference of the same strength to the given value, for the same entry and
+     * queue.
+     *
+     * @param value the new value
+     * @return a new reference to the value
+     */
+    ValueReference<V> withValue(@Nullable V value);
+  }
+
+  /**
+   * Returns what an entry's value field should hold for the given value: the value itself if
+   * values are strong, otherwise a reference to it.
+   *
+   * @param <V> the type of the value
+   * @param strength the strength of values in the map
+   * @param value the value
+   * @param queue the map's reference queue
+   * @param entry the entry that will hold the value
+   * @return the value, or a reference to it
+   */
+  static <V> @Nullable Object wrap(
+      ReferenceStrength strength, @Nullable V value, ReferenceQueue<Object> queue, Object entry) {
+    switch (strength) {
+      case STRONG:
+        return value;
+      case SOFT:
+        return new SoftValue<V>(value, queue, entry);
+      case WEAK:
+        return new WeakValue<V>(value, queue, entry);
+      default:
+        throw new Error("Unexpected strength " + strength);
+    }
+  }
+
+  /**
+   * Returns the value that an entry's value field represents.
+   *
+   * @param <V> the type of the value
+   * @param field the contents of the entry's value field
+   * @return the value, or null if it has been discarded
+   */
+  @SuppressWarnings("unchecked") // the field holds a V or a reference to a V
+  static <V> @Nullable V unwrap(@Nullable Object field) {
+    if (field instanceof ValueReference<?>) {
+      return ((ValueReference<V>) field).get();
+    }
+    return (V) field;
+  }
+
+  /**
+   * Returns what an entry's value field should hold after its value is replaced.
+   *
+   * @param <V> the type of the value
+   * @param field the contents of the entry's value field
+   * @param value the new value
+   * @return the new contents of the entry's value field
+   */
+  @SuppressWarnings("unchecked") // the field holds a V or a reference to a V
+  static <V> @Nullable Object replace(@Nullable Object field, @Nullable V value) {
+    if (field instanceof ValueReference<?>) {
+      ValueReference<V> ref = (ValueReference<V>) field;
+      ref.clear();
+      return ref.withValue(value);
+    }
+    return value;
+  }
+
+  /**
+   * A soft reference to a value.
+   *
+   * @param <V> the type of the value
+   */
+  private static final class SoftValue<V> extends SoftReference<V> implements ValueReference<V> {
+    /** The queue with which this reference is registered. */
+    private final ReferenceQueue<Object> queue;
+
+    /** The entry that holds this reference. */
+    private final Object entry;
+
+    /**
+     * Creates a new SoftValue.
+     *
+     * @param value the value
+     * @param queue the queue with which to register the reference
+     * @param entry the entry that holds the reference
+     */
+    SoftValue(@Nullable V value, ReferenceQueue<Object> queue, Object entry) {
+      super(value, queue);
+      this.queue = queue;
+      this.entry = entry;
+    }
+
+    @Override
+    public Object entry() {
+      return entry;
+    }
+
+    @Override
+    public ValueReference<V> withValue(@Nullable V value) {
+      return new SoftValue<V>(value, queue, entry);
+    }
+  }
+
+  /**
+   * A weak reference to a value.
+   *
+   * @param <V> the type of the value
+   */
+  private static final class WeakValue<V> extends WeakReference<V> implements ValueReference<V> {
+    /** The queue with which this reference is registered. */
+    private final ReferenceQueue<Object> queue;
+
+    /** The entry that holds this reference. */
+    private final Object entry;
+
+    /**
+     * Creates a new WeakValue.
+     *
+     * @param value the value
+     * @param queue the queue with which to register the reference
+     * @param entry the entry that holds the reference
+     */
+    WeakValue(@Nullable V value, ReferenceQueue<Object> queue, Object entry) {
+      super(value, queue);
+      this.queue = queue;
+      this.entry = entry;
+    }
+
+    @Override
+    public Object entry() {
+      return entry;
+    }
+
+    @Override
+    public ValueReference<V> withValue(@Nullable V value) {
+      return new WeakValue<V>(value, queue, entry);
+    }
+  }
+}
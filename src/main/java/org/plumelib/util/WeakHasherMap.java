@@ -14,18 +14,30 @@
 
 package org.plumelib.util;
 
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
+import org.plumelib.util.ValueReferences.ValueReference;
 
 // The purpose of this class is to be used by Intern.java.  It is difficult
 // to upgrade this to use the Java 1.5 version of WeakHashMap (which is
@@ -35,8 +47,27 @@ import org.checkerframework.dataflow.qual.SideEffectFree;
  * This is a modified version of {@link java.util.WeakHashMap} from JDK 1.2.2, that adds a
  * constructor that takes a Hasher argument. I also replaced uses of hashCode() and equals() by uses
  * of Hasher, where appropriate. I've changed the name so that this version is not used
- * accidentally. It is slightly less efficient, in the absence of a Hasher, and has not been as
- * extensively tested.
+ * accidentally.
+ *
+ * <p>Unlike the original, which wrapped a <code>HashMap</code> from weak keys to values, this class
+ * has its own hash table whose entries are the weak references to the keys. Therefore lookups
+ * probe the table with the key itself, and <code>get</code>, <code>containsKey</code>, and a
+ * <code>put</code> that replaces a value allocate nothing. Entries whose keys have been discarded
+ * are removed by mutators, a bounded number per operation, so that no single operation pays for
+ * everything that the garbage collector cleared.
+ *
+ * <p>A map created by {@link #WeakHasherMap(Hasher, ReferenceStrength, ReferenceStrength)} may
+ * instead hold its keys softly, and may hold its values softly or weakly. For example, a map with
+ * soft keys is a memory-sensitive cache whose entries survive collections that the heap can afford.
+ * An entry is removed, through the same reference queue as for weak keys, when its key or its value
+ * is discarded. Until then, a key whose value was discarded maps to null.
+ *
+ * <p>A poor Hasher can give many keys the same bucket. Once a bucket holds {@link
+ * #TREEIFY_THRESHOLD} entries (and the table has at least {@link #MIN_TREEIFY_CAPACITY} buckets),
+ * the map also keeps the bucket's entries in an array sorted by hash code, and then by the
+ * comparator given to {@link #WeakHasherMap(Hasher, Comparator)} if any, and looks keys up in it by
+ * binary search. So a lookup takes logarithmic time even when many hash codes are equal, provided
+ * that a comparator is given. {@link #collisionHistogram} shows how well a Hasher spreads the keys.
  *
  * <p>The original documentation follows.
  *
@@ -98,13 +129,51 @@ import org.checkerframework.dataflow.qual.SideEffectFree;
 @SuppressWarnings("allcheckers") // old, non-typesafe Sun code, not worth annotating or checking
 public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<K, V> {
 
-  /* A WeakHashMap is implemented as a HashMap that maps WeakKeys to values.
-  Because we don't have access to the innards of the HashMap, the various
-  query methods must create a temporary WeakKey every time a lookup is
-  done.  Fortunately these are small, short-lived objects, so the added
-  allocation overhead is tolerable. */
+  /* A WeakHasherMap is a chained hash table whose entries are weak
+  references to the keys.  Lookups compare the probe key directly against
+  the referents of the entries, so no temporary weak key is needed. */
+
+  /** The default initial capacity. MUST be a power of two. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
 
-  private Hasher hasher = null;
+  /** The maximum capacity. MUST be a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The load factor used when none is specified in the constructor. */
+  private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+  /**
+   * The maximum number of stale entries that a mutator removes. A mutator removes at least as many
+   * entries as it adds, so the table cannot fill up with stale entries.
+   */
+  private static final int EXPUNGE_BATCH_SIZE = 256;
+
+  /** Value representing null keys inside tables. */
+  private static final Object NULL_KEY = new Object();
+
+  /** The number of entries in a bucket at which the bucket is sorted. */
+  static final int TREEIFY_THRESHOLD = 8;
+
+  /** The number of entries in a sorted bucket at which the bucket is no longer sorted. */
+  static final int UNTREEIFY_THRESHOLD = 6;
+
+  /** The smallest table whose buckets are sorted. A smaller table is resized instead. */
+  static final int MIN_TREEIFY_CAPACITY = 64;
+
+  /** The hasher, or null to use the keys' own hashCode and equals methods. */
+  private @Nullable Hasher hasher = null;
+
+  /**
+   * The order of keys with the same hash code within a sorted bucket, or null. It must be
+   * consistent with the hasher: it returns 0 exactly for keys that the hasher considers equal.
+   */
+  private @Nullable Comparator<? super K> comparator = null;
+
+  /** How strongly this map holds its keys: {@code WEAK} or {@code SOFT}. */
+  private ReferenceStrength keyStrength = ReferenceStrength.WEAK;
+
+  /** How strongly this map holds its values. */
+  private ReferenceStrength valueStrength = ReferenceStrength.STRONG;
 
   @Pure
   private boolean keyEquals(Object k1, Object k2) {
@@ -116,89 +185,604 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
     return (hasher == null ? k1.hashCode() : hasher.hashCode(k1));
   }
 
-  // The WeakKey class can't be static because it depends on the hasher.
-  // That in turn means that its methods can't be static.
-  // However, I need to be able to call the methods such as create() that
-  // were static in the original version of this code.
-  // This finesses that.
+  /** The table, resized as necessary. Length MUST always be a power of two. */
+  private Entry<V>[] table;
+
+  /**
+   * For each bucket of the table whose chain is long, its entries in sorted order; null if no
+   * bucket is sorted. The chains remain the authoritative contents of the table.
+   */
+  private @Nullable SortedBin @Nullable [] sortedBins = null;
+
+  /** The number of entries in the table, including those whose keys have been discarded. */
+  private int size;
 
-  private @Nullable WeakKey WeakKeyCreate(K k) {
-    if (k == null) return null;
-    else return new WeakKey(k);
+  /** The next size value at which to resize (capacity * load factor). */
+  private int threshold;
+
+  /** The load factor for the hash table. */
+  private final float loadFactor;
+
+  /** Reference queue for cleared entries, and for cleared references to values. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /** The number of times this map has been structurally modified, for fail-fast iterators. */
+  private int modCount;
+
+  /** The maximum number of entries whose keys have been discarded that {@link #size} removes. */
+  private int sizeExpungeLimit = Integer.MAX_VALUE;
+
+  /**
+   * The lock that the background cleaner holds while it removes entries, or null if entries are
+   * not removed in the background.
+   */
+  private @Nullable Object backgroundLock = null;
+
+  /**
+   * An entry of the table: a weak reference to a key (or to {@link #NULL_KEY}), which also holds
+   * the value.
+   */
+  private static class Entry<V> extends WeakReference<Object> {
+    /** The value, or a {@link ValueReference} to it if values are not held strongly. */
+    @Nullable Object value;
+
+    /** The hash code of the key, stored here since the key may be tossed by the GC. */
+    final int hash;
+
+    /** The next entry in the same bucket, or null. */
+    @Nullable Entry<V> next;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param value the value, or a {@link ValueReference} to it
+     * @param queue the queue with which the entry is registered
+     * @param hash the hash code of the key
+     * @param next the next entry in the same bucket
+     */
+    Entry(
+        Object key,
+        @Nullable Object value,
+        ReferenceQueue<Object> queue,
+        int hash,
+        @Nullable Entry<V> next) {
+      super(key, queue);
+      this.value = value;
+      this.hash = hash;
+      this.next = next;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return the value, or null if it has been discarded
+     */
+    V getValue() {
+      return ValueReferences.unwrap(value);
+    }
+
+    /**
+     * Replaces the value.
+     *
+     * @param newValue the new value
+     * @return the old value
+     */
+    V setValue(V newValue) {
+      V oldValue = getValue();
+      value = ValueReferences.replace(value, newValue);
+      return oldValue;
+    }
+  }
+
+  /**
+   * An entry whose key is also held by a soft reference. The entry, which is a weak reference, is
+   * not cleared until the garbage collector clears the soft reference.
+   */
+  private static final class SoftKeyEntry<V> extends Entry<V> {
+    /** The soft reference that keeps the key from being discarded while memory is plentiful. */
+    @SuppressWarnings("UnusedVariable") // only its reachability matters
+    private final SoftReference<Object> softKey;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param key the key, or {@link #NULL_KEY}
+     * @param queue the queue with which the entry is registered
+     * @param hash the hash code of the key
+     * @param next the next entry in the same bucket
+     */
+    SoftKeyEntry(Object key, ReferenceQueue<Object> queue, int hash, @Nullable Entry<V> next) {
+      super(key, null, queue, hash, next);
+      softKey = new SoftReference<>(key);
+    }
+  }
+
+  /**
+   * Creates a new entry that holds its key and value as strongly as this map requires.
+   *
+   * @param k the masked key
+   * @param value the value
+   * @param h the hash code of the key
+   * @param next the next entry in the bucket
+   * @return a new entry
+   */
+  private Entry<V> newEntry(Object k, V value, int h, @Nullable Entry<V> next) {
+    Entry<V> e =
+        (keyStrength == ReferenceStrength.SOFT)
+            ? new SoftKeyEntry<V>(k, queue, h, next)
+            : new Entry<V>(k, null, queue, h, next);
+    e.value = ValueReferences.wrap(valueStrength, value, queue, e);
+    return e;
   }
 
-  private @Nullable WeakKey WeakKeyCreate(K k, ReferenceQueue<? super K> q) {
-    if (k == null) return null;
-    else return new WeakKey(k, q);
+  /* -- Internal utilities -- */
+
+  /**
+   * Use NULL_KEY for key if it is null.
+   *
+   * @param key a key, or null
+   * @return key if it is non-null, otherwise {@link #NULL_KEY}
+   */
+  @Pure
+  private static Object maskNull(@Nullable Object key) {
+    return (key == null ? NULL_KEY : key);
   }
 
-  // Cannot be a static class: uses keyHashCode() and keyEquals()
-  private final class WeakKey extends WeakReference<K> {
-    private int hash; /* Hashcode of key, stored here since the key
-				   may be tossed by the GC */
+  /**
+   * Return internal representation of null key back to caller as null.
+   *
+   * @param key a key, or {@link #NULL_KEY}
+   * @return null if key is {@link #NULL_KEY}, otherwise key
+   */
+  @SuppressWarnings("unchecked")
+  @Pure
+  private K unmaskNull(Object key) {
+    return (key == NULL_KEY ? null : (K) key);
+  }
 
-    private WeakKey(K k) {
-      super(k);
-      hash = keyHashCode(k);
+  /**
+   * Returns the hash code of a (masked) key. This multiplies the hash code by the golden ratio and
+   * then, like <code>HashMap</code>, spreads the higher bits downward, since only the low bits
+   * select a bucket. So hash codes that differ only in their high bits, or that are multiples of a
+   * power of two, are spread over the buckets. The mapping is one-to-one, so keys with equal hash
+   * codes still collide; see {@link SortedBin}.
+   *
+   * @param key a key, or {@link #NULL_KEY}
+   * @return the hash code of the key
+   */
+  @Pure
+  private int hash(Object key) {
+    if (key == NULL_KEY) {
+      return 0;
     }
+    int h = keyHashCode(key) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
 
-    private @Nullable WeakKey create(K k) {
-      if (k == null) return null;
-      else return new WeakKey(k);
+  /**
+   * Compares two (masked) keys with the same hash code, for ordering a sorted bucket. {@link
+   * #NULL_KEY} is less than every other key.
+   *
+   * @param k1 a key, or {@link #NULL_KEY}
+   * @param k2 a key, or {@link #NULL_KEY}
+   * @return the comparison of the keys, or 0 if they are unordered because there is no comparator
+   */
+  @SuppressWarnings("unchecked")
+  private int compareKeys(Object k1, Object k2) {
+    if (k1 == NULL_KEY || k2 == NULL_KEY) {
+      return (k1 == k2) ? 0 : (k1 == NULL_KEY) ? -1 : 1;
     }
+    return (comparator == null) ? 0 : comparator.compare((K) k1, (K) k2);
+  }
 
-    private WeakKey(K k, ReferenceQueue<? super K> q) {
-      super(k, q);
-      hash = keyHashCode(k);
+  /**
+   * Returns true if the (masked) key of an entry matches a (masked) probe key.
+   *
+   * @param entryKey the key of an entry, or {@link #NULL_KEY}
+   * @param key the probe key, or {@link #NULL_KEY}
+   * @return true if the keys are equal according to the hasher
+   */
+  @Pure
+  private boolean matches(Object entryKey, Object key) {
+    return entryKey == key || (entryKey != NULL_KEY && key != NULL_KEY && keyEquals(key, entryKey));
+  }
+
+  /**
+   * Allocates a table.
+   *
+   * @param capacity the length of the table
+   * @return a new table
+   */
+  @SuppressWarnings("unchecked")
+  private static <V> Entry<V>[] newTable(int capacity) {
+    return (Entry<V>[]) new Entry<?>[capacity];
+  }
+
+  /**
+   * Returns the entry for the given key, or null. This allocates nothing.
+   *
+   * @param key a key, or null
+   * @return the entry for the key, or null if the map contains no mapping for the key
+   */
+  @Pure
+  private @Nullable Entry<V> getEntry(@Nullable Object key) {
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    return findEntry(tab, h & (tab.length - 1), k, h);
+  }
+
+  /**
+   * Returns the entry for the given (masked) key in a bucket, or null.
+   *
+   * @param tab the current table
+   * @param i the index of the bucket for h
+   * @param k a key, or {@link #NULL_KEY}
+   * @param h the hash code of the key
+   * @return the entry for the key, or null if the bucket contains no mapping for the key
+   */
+  @Pure
+  private @Nullable Entry<V> findEntry(Entry<V>[] tab, int i, Object k, int h) {
+    SortedBin[] bins = sortedBins;
+    if (bins != null && bins[i] != null) {
+      return bins[i].find(k, h);
     }
+    for (Entry<V> e = tab[i]; e != null; e = e.next) {
+      if (e.hash == h) {
+        Object ek = e.get();
+        if (ek != null && matches(ek, k)) {
+          return e;
+        }
+      }
+    }
+    return null;
+  }
 
-    private @Nullable WeakKey create(K k, ReferenceQueue<? super K> q) {
-      if (k == null) return null;
-      else return new WeakKey(k, q);
+  /**
+   * Unlinks the given entry from its bucket, if it is still in the table.
+   *
+   * @param entry an entry
+   * @return true if the entry was in the table
+   */
+  private boolean unlink(Entry<V> entry) {
+    Entry<V>[] tab = table;
+    int i = entry.hash & (tab.length - 1);
+    Entry<V> prev = null;
+    for (Entry<V> e = tab[i]; e != null; prev = e, e = e.next) {
+      if (e == entry) {
+        if (prev == null) {
+          tab[i] = e.next;
+        } else {
+          prev.next = e.next;
+        }
+        // Do not null out e.next: an iterator may be positioned at e.
+        size--;
+        SortedBin[] bins = sortedBins;
+        if (bins != null && bins[i] != null && bins[i].remove(entry) <= UNTREEIFY_THRESHOLD) {
+          bins[i] = null;
+        }
+        return true;
+      }
     }
+    return false;
+  }
 
-    /* A WeakKey is equal to another WeakKey iff they both refer to objects
-    that are, in turn, equal according to their own equals methods */
-    @Pure
-    @Override
-    public boolean equals(@Nullable Object o) {
-      if (o == null) return false; // never happens
-      if (this == o) return true;
-      // This test is illegal because WeakKey is a generic type,
-      // so use the getClass hack below instead.
-      // if (!(o instanceof WeakKey)) return false;
-      if (!(o.getClass().equals(WeakKey.class))) return false;
-      Object t = this.get();
-      @SuppressWarnings("unchecked")
-      Object u = ((WeakKey) o).get();
-      if ((t == null) || (u == null)) return false;
-      if (t == u) return true;
-      return keyEquals(t, u);
+  /**
+   * Removes entries whose keys have been discarded. This method should be invoked once by each
+   * public mutator in this class. It does not change modCount and leaves the removed entries'
+   * links intact, so it does not disturb iterators; still, the lookup methods do not invoke it, so
+   * that a lookup does no work beyond probing the table.
+   *
+   * @param limit the maximum number of entries to remove
+   * @return true if {@code limit} entries were removed, so that more may remain
+   */
+  @SuppressWarnings("unchecked")
+  private boolean processQueue(int limit) {
+    Reference<?> r;
+    int n = 0;
+    while (n < limit && (r = queue.poll()) != null) {
+      n++;
+      Entry<V> e;
+      if (r instanceof ValueReference) {
+        ValueReference<?> vr = (ValueReference<?>) r;
+        e = (Entry<V>) vr.entry(); // unchecked cast
+        if (e.value != vr) continue; // the value was replaced, or the entry already removed
+      } else {
+        e = (Entry<V>) r; // unchecked cast
+      }
+      if (unlink(e)) {
+        e.value = null; // Help GC
+      }
     }
+    return n == limit;
+  }
 
-    @Pure
-    @Override
-    public int hashCode() {
-      return hash;
+  /**
+   * Makes a shared daemon thread remove entries from this map soon after the garbage collector
+   * discards their keys. Thereafter, each operation on this map, including {@link #size}, removes
+   * only a bounded number of such entries, so that no operation pays for removing all the entries
+   * discarded by a large collection. A consequence is that {@link #size} may count more discarded
+   * entries than usual.
+   *
+   * <p>The daemon thread synchronizes on {@code lock} while it modifies this map, so every other
+   * use of this map must also synchronize on {@code lock}. For example:
+   *
+   * <pre>{@code
+   * WeakHasherMap<K, V> map = new WeakHasherMap<>(hasher);
+   * Map<K, V> synchronizedMap = Collections.synchronizedMap(map);
+   * map.expungeInBackground(synchronizedMap);
+   * // From now on, use only synchronizedMap.
+   * }</pre>
+   *
+   * @param lock the lock that guards every use of this map
+   * @throws IllegalStateException if entries are already removed in the background
+   */
+  public void expungeInBackground(Object lock) {
+    if (lock == null) throw new NullPointerException();
+    if (backgroundLock != null) {
+      throw new IllegalStateException("Stale entries are already expunged in the background");
     }
+    backgroundLock = lock;
+    sizeExpungeLimit = EXPUNGE_BATCH_SIZE;
+    WeakMapCleaner.register(this, WeakHasherMap::drain);
   }
 
-  /* Hash table mapping WeakKeys to values */
-  private Map<WeakKey, V> hash;
+  /**
+   * Removes up to {@code limit} entries whose keys have been discarded, while holding the
+   * background lock. Called by the background cleaner.
+   *
+   * @param limit the maximum number of entries to remove
+   * @return true if {@code limit} entries were removed, so that more may remain
+   */
+  private boolean drain(int limit) {
+    synchronized (backgroundLock) {
+      return processQueue(limit);
+    }
+  }
 
-  /* Reference queue for cleared WeakKeys */
-  private ReferenceQueue<? super K> queue = new ReferenceQueue<K>();
+  /**
+   * Moves the entries into a new table of the given capacity, dropping entries whose keys have been
+   * discarded.
+   *
+   * @param newCapacity the new capacity, a power of two
+   */
+  private void resize(int newCapacity) {
+    Entry<V>[] oldTable = table;
+    if (oldTable.length == MAXIMUM_CAPACITY) {
+      threshold = Integer.MAX_VALUE;
+      return;
+    }
+    Entry<V>[] newTable = newTable(newCapacity);
+    for (int j = 0; j < oldTable.length; j++) {
+      Entry<V> e = oldTable[j];
+      oldTable[j] = null;
+      while (e != null) {
+        Entry<V> next = e.next;
+        if (e.get() == null) {
+          e.next = null; // Help GC
+          e.value = null; //  "   "
+          size--;
+        } else {
+          int i = e.hash & (newCapacity - 1);
+          e.next = newTable[i];
+          newTable[i] = e;
+        }
+        e = next;
+      }
+    }
+    table = newTable;
+    threshold = (int) (newCapacity * loadFactor);
+    SortedBin[] oldBins = sortedBins;
+    if (oldBins != null) {
+      // Splitting a bucket only shortens chains, so only the halves of sorted buckets can need it.
+      sortedBins = null;
+      for (int j = 0; j < oldBins.length; j++) {
+        if (oldBins[j] != null) {
+          treeifyIfLong(newTable, j);
+          treeifyIfLong(newTable, j + oldTable.length);
+        }
+      }
+    }
+  }
 
-  /* Remove all invalidated entries from the map, that is, remove all entries
-  whose keys have been discarded.  This method should be invoked once by
-  each public mutator in this class.  We don't invoke this method in
-  public accessors because that can lead to surprising
-  ConcurrentModificationExceptions. */
-  @SuppressWarnings("unchecked")
-  private void processQueue() {
-    WeakKey wk;
-    while ((wk = (WeakKey) queue.poll()) != null) { // unchecked cast
-      hash.remove(wk);
+  /**
+   * Sorts bucket i of the table, if it has at least {@link #TREEIFY_THRESHOLD} entries and the
+   * table is large enough.
+   *
+   * @param tab the current table
+   * @param i the index of a bucket that is not sorted
+   */
+  private void treeifyIfLong(Entry<V>[] tab, int i) {
+    if (tab.length < MIN_TREEIFY_CAPACITY) {
+      return;
+    }
+    int n = 0;
+    for (Entry<V> e = tab[i]; e != null; e = e.next) {
+      n++;
+    }
+    if (n < TREEIFY_THRESHOLD) {
+      return;
+    }
+    if (sortedBins == null) {
+      @SuppressWarnings("unchecked") // the array is created with a wildcard type, then cast
+      SortedBin[] bins = (SortedBin[]) new WeakHasherMap<?, ?>.SortedBin[tab.length];
+      sortedBins = bins;
+    }
+    sortedBins[i] = new SortedBin(tab[i], n);
+  }
+
+  /**
+   * The entries of one bucket, sorted by hash code and then by {@link #compareKeys}, so that a key
+   * can be found by binary search. This plays the role of the tree bins of <code>HashMap</code>.
+   * The array holds only entries whose keys were live when they were added; it may hold entries
+   * whose keys have since been discarded, until they are unlinked. A discarded key cannot be
+   * compared, so a search that meets one scans its run of equal hash codes instead.
+   */
+  private final class SortedBin {
+    /** The entries, sorted; only the first {@link #size} elements are used. */
+    Entry<V>[] entries;
+
+    /** The number of entries. */
+    int size = 0;
+
+    /**
+     * Creates a sorted bin from a chain.
+     *
+     * @param first the first entry of the chain
+     * @param n the length of the chain
+     */
+    SortedBin(@Nullable Entry<V> first, int n) {
+      Entry<V>[] chain = newTable(n);
+      Object[] keys = new Object[n]; // strong references, so keys are not discarded while sorting
+      for (Entry<V> e = first; e != null; e = e.next) {
+        Object k = e.get();
+        if (k != null) {
+          keys[size] = k;
+          chain[size++] = e;
+        }
+      }
+      Integer[] order = new Integer[size];
+      for (int j = 0; j < size; j++) {
+        order[j] = j;
+      }
+      Arrays.sort(
+          order,
+          (j1, j2) -> {
+            int c = Integer.compare(chain[j1].hash, chain[j2].hash);
+            return (c != 0) ? c : compareKeys(keys[j1], keys[j2]);
+          });
+      entries = newTable(n);
+      for (int j = 0; j < size; j++) {
+        entries[j] = chain[order[j]];
+      }
+    }
+
+    /**
+     * Returns the index of the first entry whose hash code is at least h.
+     *
+     * @param h a hash code
+     * @return the index of the first entry whose hash code is at least h, or {@link #size}
+     */
+    private int lowerBound(int h) {
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (entries[mid].hash < h) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * Searches for a (masked) key.
+     *
+     * @param k a key, or {@link #NULL_KEY}
+     * @param h the hash code of the key
+     * @return the index of the key's entry, or (-(insertion point) - 1) if there is none
+     */
+    private int search(Object k, int h) {
+      int start = lowerBound(h);
+      if (comparator != null || k == NULL_KEY) {
+        int lo = start;
+        int hi = size;
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          Entry<V> e = entries[mid];
+          int c = Integer.compare(h, e.hash);
+          if (c == 0) {
+            Object ek = e.get();
+            if (ek == null) {
+              return scan(k, h, start); // a discarded key cannot be compared
+            }
+            c = compareKeys(k, ek);
+            if (c == 0) {
+              return matches(ek, k) ? mid : scan(k, h, start);
+            }
+          }
+          if (c < 0) {
+            hi = mid;
+          } else {
+            lo = mid + 1;
+          }
+        }
+        return -lo - 1;
+      }
+      return scan(k, h, start);
+    }
+
+    /**
+     * Searches linearly through the run of entries with the given hash code.
+     *
+     * @param k a key, or {@link #NULL_KEY}
+     * @param h the hash code of the key
+     * @param start the index of the first entry whose hash code is at least h
+     * @return the index of the key's entry, or (-(insertion point) - 1) if there is none
+     */
+    private int scan(Object k, int h, int start) {
+      int insertionPoint = start;
+      for (int j = start; j < size && entries[j].hash == h; j++) {
+        Object ek = entries[j].get();
+        if (ek == null) {
+          continue;
+        }
+        if (matches(ek, k)) {
+          return j;
+        }
+        if (compareKeys(k, ek) >= 0) {
+          insertionPoint = j + 1;
+        }
+      }
+      return -insertionPoint - 1;
+    }
+
+    /**
+     * Returns the entry for the given (masked) key, or null.
+     *
+     * @param k a key, or {@link #NULL_KEY}
+     * @param h the hash code of the key
+     * @return the entry for the key, or null if this bin contains no mapping for the key
+     */
+    @Nullable Entry<V> find(Object k, int h) {
+      int j = search(k, h);
+      return (j < 0) ? null : entries[j];
+    }
+
+    /**
+     * Adds a new entry, whose key must not already be in this bin.
+     *
+     * @param e the entry
+     * @param k the entry's key, or {@link #NULL_KEY}
+     */
+    void add(Entry<V> e, Object k) {
+      int j = -search(k, e.hash) - 1;
+      if (size == entries.length) {
+        entries = Arrays.copyOf(entries, size * 2);
+      }
+      System.arraycopy(entries, j, entries, j + 1, size - j);
+      entries[j] = e;
+      size++;
+    }
+
+    /**
+     * Removes an entry, if it is in this bin.
+     *
+     * @param e the entry
+     * @return the number of entries in this bin afterward
+     */
+    int remove(Entry<V> e) {
+      for (int j = lowerBound(e.hash); j < size && entries[j].hash == e.hash; j++) {
+        if (entries[j] == e) {
+          System.arraycopy(entries, j + 1, entries, j, size - j - 1);
+          entries[--size] = null;
+          break;
+        }
+      }
+      return size;
     }
   }
 
@@ -214,7 +798,19 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    *     factor is nonpositive
    */
   public WeakHasherMap(int initialCapacity, float loadFactor) {
-    hash = new HashMap<>(initialCapacity, loadFactor);
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Illegal Initial Capacity: " + initialCapacity);
+    }
+    if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+      throw new IllegalArgumentException("Illegal Load factor: " + loadFactor);
+    }
+    int capacity = 1;
+    while (capacity < initialCapacity && capacity < MAXIMUM_CAPACITY) {
+      capacity <<= 1;
+    }
+    table = newTable(capacity);
+    this.loadFactor = loadFactor;
+    threshold = (int) (capacity * loadFactor);
   }
 
   /**
@@ -225,7 +821,7 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    * @throws IllegalArgumentException If the initial capacity is less than zero
    */
   public WeakHasherMap(int initialCapacity) {
-    hash = new HashMap<>(initialCapacity);
+    this(initialCapacity, DEFAULT_LOAD_FACTOR);
   }
 
   /**
@@ -233,7 +829,7 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    * factor, which is <code>0.75</code>.
    */
   public WeakHasherMap() {
-    hash = new HashMap<>();
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
   }
 
   /**
@@ -244,28 +840,101 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    * @param h the Hasher to use when hashing values for this map
    */
   public WeakHasherMap(Hasher h) {
-    hash = new HashMap<>();
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    hasher = h;
+  }
+
+  /**
+   * Constructs a new, empty <code>WeakHasherMap</code> with the default capacity and the default
+   * load factor, which uses the specified hasher, and which orders colliding keys by the specified
+   * comparator. The comparator keeps lookups fast even if the hasher gives many keys the same hash
+   * code.
+   *
+   * @param h the Hasher to use when hashing values for this map, or null to use the keys' own
+   *     hashCode and equals methods
+   * @param comparator an order on keys that is consistent with the hasher: it returns 0 exactly for
+   *     keys that the hasher considers equal
+   */
+  public WeakHasherMap(@Nullable Hasher h, Comparator<? super K> comparator) {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    if (comparator == null) {
+      throw new NullPointerException();
+    }
+    hasher = h;
+    this.comparator = comparator;
+  }
+
+  /**
+   * Constructs a new, empty <code>WeakHasherMap</code> with the default capacity and the default
+   * load factor, which uses the specified hasher, and which holds its keys and values as strongly
+   * as specified.
+   *
+   * @param h the Hasher to use when hashing values for this map, or null to use the keys' own
+   *     hashCode and equals methods
+   * @param keyStrength how strongly to hold keys: {@code WEAK} or {@code SOFT}
+   * @param valueStrength how strongly to hold values
+   * @throws IllegalArgumentException if keyStrength is {@code STRONG}
+   */
+  public WeakHasherMap(
+      @Nullable Hasher h, ReferenceStrength keyStrength, ReferenceStrength valueStrength) {
+    this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR);
+    if (keyStrength == ReferenceStrength.STRONG) {
+      throw new IllegalArgumentException("Keys must be weak or soft");
+    }
+    if (valueStrength == null) {
+      throw new NullPointerException();
+    }
     hasher = h;
+    this.keyStrength = keyStrength;
+    this.valueStrength = valueStrength;
   }
 
   /* -- Simple queries -- */
 
   /**
-   * Returns the number of key-value mappings in this map. <strong>Note:</strong> <em>In contrast to
-   * most implementations of the <code>Map</code> interface, the time required by this operation is
-   * linear in the size of the map.</em>
+   * Returns a histogram of the lengths of the table's buckets, for diagnosing a Hasher that gives
+   * many keys the same bucket. Entries whose keys have been discarded are not counted.
+   *
+   * @return an array whose element i is the number of buckets that hold exactly i entries; its
+   *     length is one more than the length of the longest bucket
+   */
+  public int[] collisionHistogram() {
+    int[] histogram = new int[1];
+    for (Entry<V> first : table) {
+      int n = 0;
+      for (Entry<V> e = first; e != null; e = e.next) {
+        if (e.get() != null) {
+          n++;
+        }
+      }
+      if (n >= histogram.length) {
+        histogram = Arrays.copyOf(histogram, n + 1);
+      }
+      histogram[n]++;
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the number of key-value mappings in this map. Unless entries are removed in the
+   * background (see {@link #expungeInBackground}), this removes all entries whose keys are known to
+   * have been discarded, so it may take time proportional to their number.
    */
   @Pure
   @Override
   public int size() {
-    return entrySet().size();
+    if (size == 0) {
+      return 0;
+    }
+    processQueue(sizeExpungeLimit);
+    return size;
   }
 
   /** Returns <code>true</code> if this map contains no key-value mappings. */
   @Pure
   @Override
   public boolean isEmpty() {
-    return entrySet().isEmpty();
+    return size() == 0;
   }
 
   /**
@@ -276,9 +945,24 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
   @Pure
   @Override
   public boolean containsKey(Object key) {
-    @SuppressWarnings("unchecked")
-    K kkey = (K) key;
-    return hash.containsKey(WeakKeyCreate(kkey));
+    return getEntry(key) != null;
+  }
+
+  @Pure
+  @Override
+  public boolean containsValue(Object value) {
+    Entry<V>[] tab = table;
+    for (int i = 0; i < tab.length; i++) {
+      for (Entry<V> e = tab[i]; e != null; e = e.next) {
+        if (e.get() != null) {
+          V v = e.getValue();
+          if (value == null ? v == null : value.equals(v)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
   }
 
   /* -- Lookup and modification operations -- */
@@ -292,9 +976,8 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
   @Pure
   @Override
   public @Nullable V get(Object key) { // type of argument is Object, not K
-    @SuppressWarnings("unchecked")
-    K kkey = (K) key;
-    return hash.get(WeakKeyCreate(kkey));
+    Entry<V> e = getEntry(key);
+    return (e == null ? null : e.getValue());
   }
 
   /**
@@ -309,8 +992,17 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    */
   @Override
   public V put(K key, V value) {
-    processQueue();
-    return hash.put(WeakKeyCreate(key, queue), value);
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    if (e != null) {
+      return e.setValue(value);
+    }
+    addEntry(k, h, value, tab, i);
+    return null;
   }
 
   /**
@@ -322,31 +1014,250 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
    */
   @Override
   public V remove(Object key) { // type of argument is Object, not K
-    processQueue();
-    @SuppressWarnings("unchecked")
-    K kkey = (K) key;
-    return hash.remove(WeakKeyCreate(kkey));
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Entry<V> e = getEntry(key);
+    if (e == null) {
+      return null;
+    }
+    removeEntry(e);
+    return e.getValue();
   }
 
   /** Removes all mappings from this map. */
   @Override
   public void clear() {
-    processQueue();
-    hash.clear();
+    // Clear out the reference queue.  We don't need to expunge entries since the table is going
+    // to be cleared.
+    while (queue.poll() != null) {}
+
+    modCount++;
+    Arrays.fill(table, null);
+    sortedBins = null;
+    size = 0;
+
+    // Removing entries that went stale meanwhile from the reference queue will make them
+    // eligible for reclamation.
+    while (queue.poll() != null) {}
+  }
+
+  /* -- Overrides of the default methods of Map, which would otherwise look up
+  a key twice -- */
+
+  /**
+   * Adds a new entry to bucket i of the table, which must be the current table.
+   *
+   * @param k the masked key
+   * @param h the hash code of the key
+   * @param value the value
+   * @param tab the current table
+   * @param i the index of the bucket for h
+   */
+  private void addEntry(Object k, int h, V value, Entry<V>[] tab, int i) {
+    modCount++;
+    Entry<V> e = newEntry(k, value, h, tab[i]);
+    tab[i] = e;
+    if (++size >= threshold) {
+      resize(tab.length * 2);
+    } else if (sortedBins != null && sortedBins[i] != null) {
+      sortedBins[i].add(e, k);
+    } else if (e.next != null) {
+      treeifyIfLong(tab, i);
+    }
+  }
+
+  /**
+   * Removes the given entry, which a client operation found, from the table.
+   *
+   * @param e the entry to remove
+   */
+  private void removeEntry(Entry<V> e) {
+    if (unlink(e)) {
+      modCount++;
+    }
+  }
+
+  /**
+   * Maps a key to a value that a mapping function computed. The function may have expunged the
+   * entry that was found for the key before it ran, so the key is looked up again.
+   *
+   * @param k the masked key
+   * @param h the hash code of the key
+   * @param value the computed value
+   */
+  private void storeComputedValue(Object k, int h, V value) {
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    if (e != null) {
+      e.setValue(value);
+    } else {
+      addEntry(k, h, value, tab, i);
+    }
+  }
+
+  @Pure
+  @Override
+  public V getOrDefault(Object key, V defaultValue) {
+    Entry<V> e = getEntry(key);
+    return (e == null) ? defaultValue : e.getValue();
+  }
+
+  @Override
+  public @Nullable V putIfAbsent(K key, V value) {
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    if (e != null) {
+      V oldValue = e.getValue();
+      if (oldValue == null) {
+        e.setValue(value);
+      }
+      return oldValue;
+    }
+    addEntry(k, h, value, tab, i);
+    return null;
+  }
+
+  @Override
+  public @Nullable V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    if (mappingFunction == null) throw new NullPointerException();
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    V oldValue = (e == null) ? null : e.getValue();
+    if (oldValue != null) {
+      return oldValue;
+    }
+    int mc = modCount;
+    V value = mappingFunction.apply(key);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value != null) {
+      storeComputedValue(k, h, value);
+    }
+    return value;
+  }
+
+  @Override
+  public @Nullable V computeIfPresent(
+      K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    if (remappingFunction == null) throw new NullPointerException();
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Entry<V> e = getEntry(key);
+    V oldValue = (e == null) ? null : e.getValue();
+    if (oldValue == null) {
+      return null;
+    }
+    int mc = modCount;
+    V value = remappingFunction.apply(key, oldValue);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value == null) {
+      removeEntry(e);
+    } else {
+      storeComputedValue(maskNull(key), e.hash, value);
+    }
+    return value;
+  }
+
+  @Override
+  public @Nullable V compute(
+      K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    if (remappingFunction == null) throw new NullPointerException();
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    int mc = modCount;
+    V value = remappingFunction.apply(key, (e == null) ? null : e.getValue());
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value != null) {
+      storeComputedValue(k, h, value);
+    } else if (e != null) {
+      removeEntry(e);
+    }
+    return value;
+  }
+
+  @Override
+  public @Nullable V merge(
+      K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    if (value == null || remappingFunction == null) throw new NullPointerException();
+    processQueue(EXPUNGE_BATCH_SIZE);
+    Object k = maskNull(key);
+    int h = hash(k);
+    Entry<V>[] tab = table;
+    int i = h & (tab.length - 1);
+    Entry<V> e = findEntry(tab, i, k, h);
+    if (e == null) {
+      addEntry(k, h, value, tab, i);
+      return value;
+    }
+    V oldValue = e.getValue();
+    if (oldValue == null) {
+      e.setValue(value);
+      return value;
+    }
+    int mc = modCount;
+    V newValue = remappingFunction.apply(oldValue, value);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (newValue == null) {
+      removeEntry(e);
+    } else {
+      storeComputedValue(k, h, newValue);
+    }
+    return newValue;
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    if (action == null) throw new NullPointerException();
+    int mc = modCount;
+    Entry<V>[] tab = table;
+    for (int i = 0; i < tab.length; i++) {
+      for (Entry<V> e = tab[i]; e != null; e = e.next) {
+        Object k = e.get(); // strong reference, so the key is not discarded during the call
+        if (k != null) {
+          action.accept(unmaskNull(k), e.getValue());
+        }
+        if (mc != modCount) throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  @Override
+  public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+    if (function == null) throw new NullPointerException();
+    int mc = modCount;
+    Entry<V>[] tab = table;
+    for (int i = 0; i < tab.length; i++) {
+      for (Entry<V> e = tab[i]; e != null; e = e.next) {
+        Object k = e.get(); // strong reference, so the key is not discarded during the call
+        if (k != null) {
+          e.setValue(function.apply(unmaskNull(k), e.getValue()));
+        }
+        if (mc != modCount) throw new ConcurrentModificationException();
+      }
+    }
   }
 
   /* -- Views -- */
 
-  /* Internal class for entries */
-  // This can't be static, again because of dependence on hasher.
-  @SuppressWarnings("TypeParameterShadowing")
-  private final class Entry<K, V> implements Map.Entry<K, V> {
-    private Map.Entry<WeakKey, V> ent;
-    private K key; /* Strong reference to key, so that the GC
-				   will leave it alone as long as this Entry
-				   exists */
+  /* Internal class for entries returned by the iterator */
+  private final class IteratorEntry implements Map.Entry<K, V> {
+    /** The entry of the table. */
+    private final Entry<V> ent;
 
-    Entry(Map.Entry<WeakKey, V> ent, K key) {
+    /* Strong reference to key, so that the GC will leave it alone as long as this Entry exists */
+    private final K key;
+
+    IteratorEntry(Entry<V> ent, K key) {
       this.ent = ent;
       this.key = key;
     }
@@ -369,20 +1280,20 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
     }
 
     @Pure
-    private boolean keyvalEquals(K o1, K o2) {
-      return (o1 == null) ? (o2 == null) : keyEquals(o1, o2);
+    private boolean keyvalEquals(K o1, Object o2) {
+      return (o1 == null) ? (o2 == null) : (o2 != null && keyEquals(o1, o2));
     }
 
     @Pure
-    private boolean valEquals(V o1, V o2) {
+    private boolean valEquals(V o1, Object o2) {
       return (o1 == null) ? (o2 == null) : o1.equals(o2);
     }
 
     @Pure
-    @SuppressWarnings("NonOverridingEquals")
-    public boolean equals(Map.Entry<K, V> e /* Object o*/) {
-      // if (! (o instanceof Map.Entry)) return false;
-      // Map.Entry<K,V> e = (Map.Entry<K,V>)o;
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Map.Entry<?, ?>)) return false;
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
       return (keyvalEquals(key, e.getKey()) && valEquals(getValue(), e.getValue()));
     }
 
@@ -393,46 +1304,306 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
       return (((key == null) ? 0 : keyHashCode(key))
           ^ (((v = getValue()) == null) ? 0 : v.hashCode()));
     }
+
+    @SideEffectFree
+    @Override
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
+
+  /**
+   * A spliterator over a range of buckets of the table. Splitting halves the range, so that a
+   * parallel stream scans disjoint parts of the table in different threads. Entries whose keys have
+   * been discarded are skipped, so the size is only an estimate and SIZED is not reported.
+   *
+   * @param <T> the type of elements
+   */
+  private abstract class HashSpliterator<T> implements Spliterator<T> {
+    /** The table being traversed, or null until first use. */
+    Entry<V> @Nullable [] tab;
+
+    /** The next entry in the current bucket. */
+    @Nullable Entry<V> current;
+
+    /** The index of the next bucket. */
+    int index;
+
+    /** One past the last bucket, or -1 until first use. */
+    int fence;
+
+    /** The estimated number of elements. */
+    int est;
+
+    /** The modCount at first use. */
+    int expectedModCount;
+
+    /**
+     * Creates a spliterator over the buckets [origin, fence).
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket, or -1 for the whole table
+     * @param est the estimated number of elements
+     * @param expectedModCount the modCount at first use
+     */
+    HashSpliterator(int origin, int fence, int est, int expectedModCount) {
+      this.index = origin;
+      this.fence = fence;
+      this.est = est;
+      this.expectedModCount = expectedModCount;
+    }
+
+    /**
+     * Initializes the table, fence, and size estimate on first use.
+     *
+     * @return the fence
+     */
+    final int getFence() {
+      int hi = fence;
+      if (hi < 0) {
+        est = size(); // expunges stale entries
+        expectedModCount = modCount;
+        tab = table;
+        hi = fence = tab.length;
+      }
+      return hi;
+    }
+
+    /**
+     * Returns a spliterator of the same kind over the given buckets.
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket
+     * @param est the estimated number of elements
+     * @return a new spliterator
+     */
+    abstract HashSpliterator<T> newSpliterator(int origin, int fence, int est);
+
+    /**
+     * Returns the element for an entry.
+     *
+     * @param e an entry
+     * @param key the entry's key, which is not null and may be {@link #NULL_KEY}
+     * @return the element for the entry
+     */
+    abstract T element(Entry<V> e, Object key);
+
+    @Override
+    public @Nullable Spliterator<T> trySplit() {
+      int hi = getFence();
+      int lo = index;
+      int mid = (lo + hi) >>> 1;
+      if (lo >= mid) {
+        return null;
+      }
+      est >>>= 1;
+      index = mid;
+      HashSpliterator<T> prefix = newSpliterator(lo, mid, est);
+      prefix.tab = tab;
+      return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (action == null) throw new NullPointerException();
+      int hi = getFence();
+      while (current != null || index < hi) {
+        if (current == null) {
+          current = tab[index++];
+        } else {
+          Entry<V> e = current;
+          Object k = e.get(); // hold on to key in strong ref; skip it if it was discarded
+          current = e.next;
+          if (k != null) {
+            action.accept(element(e, k));
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+      if (action == null) throw new NullPointerException();
+      int hi = getFence();
+      int i = index;
+      Entry<V> e = current;
+      index = hi;
+      current = null;
+      while (e != null || i < hi) {
+        if (e == null) {
+          e = tab[i++];
+        } else {
+          Object k = e.get(); // hold on to key in strong ref; skip it if it was discarded
+          if (k != null) {
+            action.accept(element(e, k));
+          }
+          e = e.next;
+        }
+      }
+      if (modCount != expectedModCount) throw new ConcurrentModificationException();
+    }
+
+    @Override
+    public long estimateSize() {
+      getFence();
+      return est;
+    }
+  }
+
+  /** A spliterator over the keys. */
+  private final class KeySpliterator extends HashSpliterator<K> {
+    /**
+     * Creates a spliterator over the buckets [origin, fence).
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket, or -1 for the whole table
+     * @param est the estimated number of elements
+     * @param expectedModCount the modCount at first use
+     */
+    KeySpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    KeySpliterator newSpliterator(int origin, int fence, int est) {
+      return new KeySpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    K element(Entry<V> e, Object key) {
+      return unmaskNull(key);
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT;
+    }
+  }
+
+  /** A spliterator over the values. */
+  private final class ValueSpliterator extends HashSpliterator<V> {
+    /**
+     * Creates a spliterator over the buckets [origin, fence).
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket, or -1 for the whole table
+     * @param est the estimated number of elements
+     * @param expectedModCount the modCount at first use
+     */
+    ValueSpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    ValueSpliterator newSpliterator(int origin, int fence, int est) {
+      return new ValueSpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    V element(Entry<V> e, Object key) {
+      return e.getValue();
+    }
+
+    @Override
+    public int characteristics() {
+      return 0;
+    }
+  }
+
+  /** A spliterator over the entries. */
+  private final class EntrySpliterator extends HashSpliterator<Map.Entry<K, V>> {
+    /**
+     * Creates a spliterator over the buckets [origin, fence).
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket, or -1 for the whole table
+     * @param est the estimated number of elements
+     * @param expectedModCount the modCount at first use
+     */
+    EntrySpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    EntrySpliterator newSpliterator(int origin, int fence, int est) {
+      return new EntrySpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    Map.Entry<K, V> element(Entry<V> e, Object key) {
+      return new IteratorEntry(e, unmaskNull(key));
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT | Spliterator.NONNULL;
+    }
   }
 
   /* Internal class for entry sets */
   private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
-    Set<Map.Entry<WeakKey, V>> hashEntrySet = hash.entrySet();
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+      return new EntrySpliterator(0, -1, 0, 0);
+    }
 
     @Override
     public Iterator<Map.Entry<K, V>> iterator() {
 
       return new Iterator<Map.Entry<K, V>>() {
-        Iterator<Map.Entry<WeakKey, V>> hashIterator = hashEntrySet.iterator();
-        Map.Entry<K, V> next = null;
+        /* The table being iterated over */
+        Entry<V>[] tab = table;
+        /* The index of the next bucket to examine */
+        int index = 0;
+        /* The next entry to return, or null */
+        Entry<V> entry = null;
+        /* Strong reference to the (masked) key of entry, to avoid its disappearance between
+        hasNext and next */
+        Object nextKey = null;
+        /* The entry most recently returned by next, or null */
+        Entry<V> lastReturned = null;
+        int expectedModCount = modCount;
 
         @Override
         public boolean hasNext() {
-          while (hashIterator.hasNext()) {
-            Map.Entry<WeakKey, V> ent = hashIterator.next();
-            WeakKey wk = ent.getKey();
-            K k = null;
-            if ((wk != null) && ((k = wk.get()) == null)) {
-              /* Weak key has been cleared by GC */
-              continue;
+          while (nextKey == null) {
+            Entry<V> e = entry;
+            while (e == null && index < tab.length) {
+              e = tab[index++];
             }
-            next = new Entry<K, V>(ent, k);
-            return true;
+            if (e == null) {
+              return false;
+            }
+            nextKey = e.get(); // hold on to key in strong ref; skip it if it was discarded
+            entry = (nextKey == null) ? e.next : e;
           }
-          return false;
+          return true;
         }
 
         @Override
         public Map.Entry<K, V> next() {
-          if ((next == null) && !hasNext()) throw new NoSuchElementException();
-          Map.Entry<K, V> e = next;
-          next = null;
-          return e;
+          if (modCount != expectedModCount) throw new ConcurrentModificationException();
+          if (!hasNext()) throw new NoSuchElementException();
+          Entry<V> e = entry;
+          Map.Entry<K, V> result = new IteratorEntry(e, unmaskNull(nextKey));
+          lastReturned = e;
+          entry = e.next;
+          nextKey = null;
+          return result;
         }
 
         @Override
         public void remove() {
-          hashIterator.remove();
+          if (lastReturned == null) throw new IllegalStateException();
+          if (modCount != expectedModCount) throw new ConcurrentModificationException();
+          unlink(lastReturned);
+          modCount++;
+          expectedModCount = modCount;
+          lastReturned = null;
         }
       };
     }
@@ -440,48 +1611,42 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
     @Pure
     @Override
     public boolean isEmpty() {
-      return !(iterator().hasNext());
+      return WeakHasherMap.this.isEmpty();
     }
 
     @Pure
     @Override
     public int size() {
-      int j = 0;
-      for (Iterator<Map.Entry<K, V>> i = iterator(); i.hasNext(); i.next()) j++;
-      return j;
+      return WeakHasherMap.this.size();
     }
 
+    @Pure
     @Override
-    public boolean remove(Object o) {
-      processQueue();
+    public boolean contains(Object o) {
       if (!(o instanceof Map.Entry<?, ?>)) return false;
-      @SuppressWarnings("unchecked")
-      Map.Entry<K, V> e = (Map.Entry<K, V>) o; // unchecked cast
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      Entry<V> candidate = getEntry(e.getKey());
+      if (candidate == null) return false;
       Object ev = e.getValue();
-      WeakKey wk = WeakKeyCreate(e.getKey());
-      Object hv = hash.get(wk);
-      if ((hv == null) ? ((ev == null) && hash.containsKey(wk)) : hv.equals(ev)) {
-        hash.remove(wk);
-        return true;
-      }
-      return false;
+      Object cv = candidate.getValue();
+      return (cv == null) ? (ev == null) : cv.equals(ev);
     }
 
-    @Pure
     @Override
-    public int hashCode() {
-      int h = 0;
-      for (Iterator<Map.Entry<WeakKey, V>> i = hashEntrySet.iterator(); i.hasNext(); ) {
-        Map.Entry<WeakKey, V> ent = i.next();
-        WeakKey wk = ent.getKey();
-        Object v;
-        if (wk == null) continue;
-        h += (wk.hashCode() ^ (((v = ent.getValue()) == null) ? 0 : v.hashCode()));
-      }
-      return h;
+    public boolean remove(Object o) {
+      processQueue(EXPUNGE_BATCH_SIZE);
+      if (!contains(o)) return false;
+      WeakHasherMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      WeakHasherMap.this.clear();
     }
   }
 
+  /** The entry set view, or null if it has not yet been created. */
   private @Nullable Set<Map.Entry<K, V>> entrySet = null;
 
   /** Returns a <code>Set</code> view of the mappings in this map. */
@@ -491,4 +1656,118 @@ public final class WeakHasherMap<K, V> extends AbstractMap<K, V> implements Map<
     if (entrySet == null) entrySet = new EntrySet();
     return entrySet;
   }
+
+  /* Internal class for key sets */
+  private final class KeySet extends AbstractSet<K> {
+    @Override
+    public Iterator<K> iterator() {
+      Iterator<Map.Entry<K, V>> i = entrySet().iterator();
+      return new Iterator<K>() {
+        @Override
+        public boolean hasNext() {
+          return i.hasNext();
+        }
+
+        @Override
+        public K next() {
+          return i.next().getKey();
+        }
+
+        @Override
+        public void remove() {
+          i.remove();
+        }
+      };
+    }
+
+    @Override
+    public Spliterator<K> spliterator() {
+      return new KeySpliterator(0, -1, 0, 0);
+    }
+
+    @Pure
+    @Override
+    public int size() {
+      return WeakHasherMap.this.size();
+    }
+
+    @Pure
+    @Override
+    public boolean contains(Object o) {
+      return containsKey(o);
+    }
+
+    @Override
+    public void clear() {
+      WeakHasherMap.this.clear();
+    }
+  }
+
+  /** The key set view, or null if it has not yet been created. */
+  private @Nullable Set<K> keySet = null;
+
+  /** Returns a <code>Set</code> view of the keys in this map. */
+  @SideEffectFree
+  @Override
+  public Set<K> keySet() {
+    if (keySet == null) keySet = new KeySet();
+    return keySet;
+  }
+
+  /* Internal class for value collections */
+  private final class Values extends AbstractCollection<V> {
+    @Override
+    public Iterator<V> iterator() {
+      Iterator<Map.Entry<K, V>> i = entrySet().iterator();
+      return new Iterator<V>() {
+        @Override
+        public boolean hasNext() {
+          return i.hasNext();
+        }
+
+        @Override
+        public V next() {
+          return i.next().getValue();
+        }
+
+        @Override
+        public void remove() {
+          i.remove();
+        }
+      };
+    }
+
+    @Override
+    public Spliterator<V> spliterator() {
+      return new ValueSpliterator(0, -1, 0, 0);
+    }
+
+    @Pure
+    @Override
+    public int size() {
+      return WeakHasherMap.this.size();
+    }
+
+    @Pure
+    @Override
+    public boolean contains(Object o) {
+      return containsValue(o);
+    }
+
+    @Override
+    public void clear() {
+      WeakHasherMap.this.clear();
+    }
+  }
+
+  /** The values view, or null if it has not yet been created. */
+  private @Nullable Collection<V> values = null;
+
+  /** Returns a <code>Collection</code> view of the values in this map. */
+  @SideEffectFree
+  @Override
+  public Collection<V> values() {
+    if (values == null) values = new Values();
+    return values;
+  }
 }
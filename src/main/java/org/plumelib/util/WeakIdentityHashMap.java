@@ -8,6 +8,7 @@
 package org.plumelib.util;
 
 import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
@@ -19,10 +20,16 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.dataflow.qual.Pure;
 import org.checkerframework.dataflow.qual.SideEffectFree;
+import org.plumelib.util.ValueReferences.ValueReference;
 
 /**
  * This class combines the features of {@link java.util.WeakHashMap} and {@link
@@ -39,6 +46,12 @@ import org.checkerframework.dataflow.qual.SideEffectFree;
  * See {@link java.util.IdentityHashMap} for more information on the changes made in an identity
  * hash map.
  *
+ * <p>A map created by {@link #WeakIdentityHashMap(int, ReferenceStrength, ReferenceStrength)} may
+ * instead hold its keys softly, and may hold its values softly or weakly. For example, a map with
+ * soft keys is a memory-sensitive cache whose entries survive collections that the heap can afford.
+ * An entry is expunged, through the same reference queue as for weak keys, when its key or its
+ * value is discarded. Until then, a key whose value was discarded maps to null.
+ *
  * <p>The original documentation follows:<hr>
  *
  * <p>A hashtable-based <code>Map</code> implementation with <em>weak keys</em>. An entry in a
@@ -143,8 +156,14 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
   /** The load factor for the hash table. */
   private final float loadFactor;
 
-  /** Reference queue for cleared WeakEntries. */
-  private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+  /** Reference queue for cleared WeakEntries, and for cleared references to values. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /** How strongly this map holds its keys: {@code WEAK} or {@code SOFT}. */
+  private ReferenceStrength keyStrength = ReferenceStrength.WEAK;
+
+  /** How strongly this map holds its values. */
+  private ReferenceStrength valueStrength = ReferenceStrength.STRONG;
 
   /**
    * The number of times this HashMap has been structurally modified Structural modifications are
@@ -154,6 +173,21 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
    */
   private volatile int modCount;
 
+  /**
+   * The maximum number of stale entries that an operation expunges, when stale entries are also
+   * expunged in the background.
+   */
+  private static final int FOREGROUND_EXPUNGE_LIMIT = 256;
+
+  /** The maximum number of stale entries that an operation expunges. */
+  private int expungeLimit = Integer.MAX_VALUE;
+
+  /**
+   * The lock that the background cleaner holds while it expunges stale entries, or null if stale
+   * entries are not expunged in the background.
+   */
+  private @Nullable Object backgroundLock = null;
+
   /**
    * Constructs a new, empty <code>WeakIdentityHashMap</code> with the given initial capacity and
    * the given load factor.
@@ -190,6 +224,26 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     this(initialCapacity, DEFAULT_LOAD_FACTOR);
   }
 
+  /**
+   * Constructs a new, empty <code>WeakIdentityHashMap</code> with the given initial capacity, the
+   * default load factor, and the given strengths of keys and values.
+   *
+   * @param initialCapacity the initial capacity of the <code>WeakIdentityHashMap</code>
+   * @param keyStrength how strongly to hold keys: {@code WEAK} or {@code SOFT}
+   * @param valueStrength how strongly to hold values
+   * @throws IllegalArgumentException If the initial capacity is negative, or if keyStrength is
+   *     {@code STRONG}
+   */
+  public WeakIdentityHashMap(
+      int initialCapacity, ReferenceStrength keyStrength, ReferenceStrength valueStrength) {
+    this(initialCapacity, DEFAULT_LOAD_FACTOR);
+    if (keyStrength == ReferenceStrength.STRONG)
+      throw new IllegalArgumentException("Keys must be weak or soft; use IdentityHashMap");
+    if (valueStrength == null) throw new NullPointerException();
+    this.keyStrength = keyStrength;
+    this.valueStrength = valueStrength;
+  }
+
   /**
    * Constructs a new, empty <code>WeakIdentityHashMap</code> with the default initial capacity (16)
    * and the default load factor (0.75).
@@ -263,13 +317,35 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     return h & (length - 1);
   }
 
-  /** Expunge stale entries from the table. */
+  /** Expunge stale entries from the table, up to the limit for a single operation. */
   @SuppressWarnings("allcheckers:purity") // actually has side effects due to weak pointers
   @SideEffectFree
   private void expungeStaleEntries() {
-    Entry<K, V> e;
+    expungeStaleEntries(expungeLimit);
+  }
+
+  /**
+   * Expunge up to {@code limit} stale entries from the table.
+   *
+   * @param limit the maximum number of entries to expunge
+   * @return true if {@code limit} entries were expunged, so that more may remain
+   */
+  @SuppressWarnings("allcheckers:purity") // actually has side effects due to weak pointers
+  @SideEffectFree
+  private boolean expungeStaleEntries(int limit) {
+    Object r;
+    int n = 0;
     // These types look wrong to me.
-    while ((e = (Entry<K, V>) queue.poll()) != null) { // unchecked cast
+    while (n < limit && (r = queue.poll()) != null) {
+      n++;
+      Entry<K, V> e;
+      if (r instanceof ValueReference) {
+        ValueReference<?> vr = (ValueReference<?>) r;
+        e = (Entry<K, V>) vr.entry(); // unchecked cast
+        if (e.value != vr) continue; // the value was replaced, or the entry already expunged
+      } else {
+        e = (Entry<K, V>) r; // unchecked cast
+      }
       int h = e.hash;
       int i = indexFor(h, table.length);
 
@@ -289,6 +365,49 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
         p = next;
       }
     }
+    return n == limit;
+  }
+
+  /**
+   * Makes a shared daemon thread expunge stale entries from this map soon after the garbage
+   * collector clears their keys. Thereafter, each operation on this map expunges only a bounded
+   * number of stale entries, so that no operation pays for expunging all the entries cleared by a
+   * large collection. A consequence is that {@link #size} may count more stale entries than usual.
+   *
+   * <p>The daemon thread synchronizes on {@code lock} while it modifies this map, so every other
+   * use of this map must also synchronize on {@code lock}. For example:
+   *
+   * <pre>{@code
+   * WeakIdentityHashMap<K, V> map = new WeakIdentityHashMap<>();
+   * Map<K, V> synchronizedMap = Collections.synchronizedMap(map);
+   * map.expungeInBackground(synchronizedMap);
+   * // From now on, use only synchronizedMap.
+   * }</pre>
+   *
+   * @param lock the lock that guards every use of this map
+   * @throws IllegalStateException if stale entries are already expunged in the background
+   */
+  public void expungeInBackground(Object lock) {
+    if (lock == null) throw new NullPointerException();
+    if (backgroundLock != null) {
+      throw new IllegalStateException("Stale entries are already expunged in the background");
+    }
+    backgroundLock = lock;
+    expungeLimit = FOREGROUND_EXPUNGE_LIMIT;
+    WeakMapCleaner.register(this, WeakIdentityHashMap::drain);
+  }
+
+  /**
+   * Expunges up to {@code limit} stale entries while holding the background lock. Called by the
+   * background cleaner.
+   *
+   * @param limit the maximum number of entries to expunge
+   * @return true if {@code limit} entries were expunged, so that more may remain
+   */
+  private boolean drain(int limit) {
+    synchronized (backgroundLock) {
+      return expungeStaleEntries(limit);
+    }
   }
 
   /** Return the table after first expunging stale entries. */
@@ -343,7 +462,7 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     int index = indexFor(h, tab.length);
     Entry<K, V> e = tab[index];
     while (e != null) {
-      if (e.hash == h && eq(k, e.get())) return e.value;
+      if (e.hash == h && eq(k, e.get())) return e.getValue();
       e = e.next;
     }
     return null;
@@ -398,15 +517,15 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
 
     for (Entry<K, V> e = tab[i]; e != null; e = e.next) {
       if (h == e.hash && eq(k, e.get())) {
-        V oldValue = e.value;
-        if (value != oldValue) e.value = value;
+        V oldValue = e.getValue();
+        if (value != oldValue) e.setValue(value);
         return oldValue;
       }
     }
 
     modCount++;
     Entry<K, V> e = tab[i];
-    tab[i] = new Entry<K, V>(k, value, queue, h, e);
+    tab[i] = newEntry(k, value, h, e);
     if (++size >= threshold) resize(tab.length * 2);
     return null;
   }
@@ -533,7 +652,7 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
         size--;
         if (prev == e) tab[i] = next;
         else prev.next = next;
-        return e.value;
+        return e.getValue();
       }
       prev = e;
       e = next;
@@ -602,7 +721,7 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
 
     @Nullable Entry<K, V>[] tab = getTable();
     for (int i = tab.length; i-- > 0; )
-      for (Entry e = tab[i]; e != null; e = e.next) if (value.equals(e.value)) return true;
+      for (Entry e = tab[i]; e != null; e = e.next) if (value.equals(e.getValue())) return true;
     return false;
   }
 
@@ -610,18 +729,232 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
   private boolean containsNullValue() {
     @Nullable Entry<K, V>[] tab = getTable();
     for (int i = tab.length; i-- > 0; )
-      for (Entry e = tab[i]; e != null; e = e.next) if (e.value == null) return true;
+      for (Entry e = tab[i]; e != null; e = e.next) if (e.getValue() == null) return true;
     return false;
   }
 
+  // Overrides of the default methods of Map, which would otherwise look up a key twice and expunge
+  // stale entries twice.
+
+  /**
+   * Adds a new entry to bucket i of the table, which must be the current table.
+   *
+   * @param k the masked key
+   * @param h the hash code of the key
+   * @param value the value
+   * @param tab the current table
+   * @param i the index of the bucket for h
+   */
+  @SuppressWarnings("NonAtomicVolatileUpdate")
+  private void addEntry(Object k, int h, V value, @Nullable Entry<K, V>[] tab, int i) {
+    modCount++;
+    tab[i] = newEntry((K) k, value, h, tab[i]);
+    if (++size >= threshold) resize(tab.length * 2);
+  }
+
+  /**
+   * Removes the given entry from the table. The bucket is searched again because a mapping function
+   * may have expunged other entries of the bucket.
+   *
+   * @param entry the entry to remove
+   */
+  @SuppressWarnings("NonAtomicVolatileUpdate")
+  private void removeEntry(Entry<K, V> entry) {
+    @Nullable Entry<K, V>[] tab = table;
+    int i = indexFor(entry.hash, tab.length);
+    Entry<K, V> prev = null;
+    for (Entry<K, V> e = tab[i]; e != null; prev = e, e = e.next) {
+      if (e == entry) {
+        modCount++;
+        size--;
+        if (prev == null) tab[i] = e.next;
+        else prev.next = e.next;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Maps a key to a value that a mapping function computed. The function may have expunged the
+   * entry that was found for the key before it ran, so the key is looked up again.
+   *
+   * @param k the masked key
+   * @param h the hash code of the key
+   * @param value the computed value
+   */
+  private void storeComputedValue(Object k, int h, V value) {
+    @Nullable Entry<K, V>[] tab = getTable();
+    int i = indexFor(h, tab.length);
+    for (Entry<K, V> e = tab[i]; e != null; e = e.next) {
+      if (h == e.hash && eq(k, e.get())) {
+        e.setValue(value);
+        return;
+      }
+    }
+    addEntry(k, h, value, tab, i);
+  }
+
+  @Pure
+  @Override
+  public V getOrDefault(@Nullable Object key, V defaultValue) {
+    Entry<K, V> e = getEntry(key);
+    return (e == null) ? defaultValue : e.getValue();
+  }
+
+  @Override
+  public @Nullable V putIfAbsent(K key, V value) {
+    Object k = maskNull(key);
+    int h = hasher(k);
+    @Nullable Entry<K, V>[] tab = getTable();
+    int i = indexFor(h, tab.length);
+    for (Entry<K, V> e = tab[i]; e != null; e = e.next) {
+      if (h == e.hash && eq(k, e.get())) {
+        V oldValue = e.getValue();
+        if (oldValue == null) e.setValue(value);
+        return oldValue;
+      }
+    }
+    addEntry(k, h, value, tab, i);
+    return null;
+  }
+
+  @Override
+  public @Nullable V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    if (mappingFunction == null) throw new NullPointerException();
+    Object k = maskNull(key);
+    int h = hasher(k);
+    @Nullable Entry<K, V>[] tab = getTable();
+    int i = indexFor(h, tab.length);
+    Entry<K, V> e = tab[i];
+    while (e != null && !(e.hash == h && eq(k, e.get()))) e = e.next;
+    if (e != null) {
+      V oldValue = e.getValue();
+      if (oldValue != null) return oldValue;
+    }
+    int mc = modCount;
+    V value = mappingFunction.apply(key);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value != null) storeComputedValue(k, h, value);
+    return value;
+  }
+
+  @Override
+  public @Nullable V computeIfPresent(
+      K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    if (remappingFunction == null) throw new NullPointerException();
+    Entry<K, V> e = getEntry(key);
+    V oldValue = (e == null) ? null : e.getValue();
+    if (oldValue == null) return null;
+    int mc = modCount;
+    V value = remappingFunction.apply(key, oldValue);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value == null) removeEntry(e);
+    else storeComputedValue(maskNull(key), e.hash, value);
+    return value;
+  }
+
+  @Override
+  public @Nullable V compute(
+      K key, BiFunction<? super K, ? super @Nullable V, ? extends V> remappingFunction) {
+    if (remappingFunction == null) throw new NullPointerException();
+    Object k = maskNull(key);
+    int h = hasher(k);
+    @Nullable Entry<K, V>[] tab = getTable();
+    int i = indexFor(h, tab.length);
+    Entry<K, V> e = tab[i];
+    while (e != null && !(e.hash == h && eq(k, e.get()))) e = e.next;
+    V oldValue = (e == null) ? null : e.getValue();
+    int mc = modCount;
+    V value = remappingFunction.apply(key, oldValue);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (value != null) storeComputedValue(k, h, value);
+    else if (e != null) removeEntry(e);
+    return value;
+  }
+
+  @Override
+  public @Nullable V merge(
+      K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    if (value == null || remappingFunction == null) throw new NullPointerException();
+    Object k = maskNull(key);
+    int h = hasher(k);
+    @Nullable Entry<K, V>[] tab = getTable();
+    int i = indexFor(h, tab.length);
+    Entry<K, V> e = tab[i];
+    while (e != null && !(e.hash == h && eq(k, e.get()))) e = e.next;
+    if (e == null) {
+      addEntry(k, h, value, tab, i);
+      return value;
+    }
+    V oldValue = e.getValue();
+    if (oldValue == null) {
+      e.setValue(value);
+      return value;
+    }
+    int mc = modCount;
+    V newValue = remappingFunction.apply(oldValue, value);
+    if (mc != modCount) throw new ConcurrentModificationException();
+    if (newValue == null) removeEntry(e);
+    else storeComputedValue(k, h, newValue);
+    return newValue;
+  }
+
+  @Override
+  public void forEach(BiConsumer<? super K, ? super V> action) {
+    if (action == null) throw new NullPointerException();
+    int mc = modCount;
+    @Nullable Entry<K, V>[] tab = getTable();
+    for (int i = tab.length; i-- > 0; ) {
+      for (Entry<K, V> e = tab[i]; e != null; e = e.next) {
+        Object k = e.get(); // strong reference, so the key is not discarded during the call
+        if (k != null) action.accept((K) unmaskNull(k), e.getValue());
+        if (mc != modCount) throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  @Override
+  public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+    if (function == null) throw new NullPointerException();
+    int mc = modCount;
+    @Nullable Entry<K, V>[] tab = getTable();
+    for (int i = tab.length; i-- > 0; ) {
+      for (Entry<K, V> e = tab[i]; e != null; e = e.next) {
+        Object k = e.get(); // strong reference, so the key is not discarded during the call
+        if (k != null) e.setValue(function.apply((K) unmaskNull(k), e.getValue()));
+        if (mc != modCount) throw new ConcurrentModificationException();
+      }
+    }
+  }
+
+  /**
+   * Creates a new entry that holds its key and value as strongly as this map requires.
+   *
+   * @param k the masked key
+   * @param value the value
+   * @param h the hash code of the key
+   * @param next the next entry in the bucket
+   * @return a new entry
+   */
+  private Entry<K, V> newEntry(K k, V value, int h, @Nullable Entry<K, V> next) {
+    Entry<K, V> e =
+        (keyStrength == ReferenceStrength.SOFT)
+            ? new SoftKeyEntry<K, V>(k, null, queue, h, next)
+            : new Entry<K, V>(k, null, queue, h, next);
+    e.value = ValueReferences.wrap(valueStrength, value, queue, e);
+    return e;
+  }
+
   /** The entries in this hash table extend WeakReference, using its main ref field as the key. */
   private static class Entry<K, V> extends WeakReference<K> implements Map.Entry<K, V> {
-    private V value;
+    /** The value, or a {@link ValueReference} to it if values are not held strongly. */
+    private Object value;
+
     private final int hash;
     private @Nullable Entry<K, V> next;
 
     /** Create new entry. */
-    Entry(K key, V value, ReferenceQueue<K> queue, int hash, Entry<K, V> next) {
+    Entry(K key, Object value, ReferenceQueue<Object> queue, int hash, Entry<K, V> next) {
       super(key, queue);
       this.value = value;
       this.hash = hash;
@@ -637,13 +970,13 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     @Pure
     @Override
     public V getValue() {
-      return value;
+      return ValueReferences.unwrap(value);
     }
 
     @Override
     public V setValue(V newValue) {
-      V oldValue = value;
-      value = newValue;
+      V oldValue = getValue();
+      value = ValueReferences.replace(value, newValue);
       return oldValue;
     }
 
@@ -677,6 +1010,22 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     }
   }
 
+  /**
+   * An entry whose key is also held by a soft reference. The entry, which is a weak reference, is
+   * not cleared until the garbage collector clears the soft reference.
+   */
+  private static final class SoftKeyEntry<K, V> extends Entry<K, V> {
+    /** The soft reference that keeps the key from being discarded while memory is plentiful. */
+    @SuppressWarnings("UnusedVariable") // only its reachability matters
+    private final SoftReference<K> softKey;
+
+    /** Create new entry. */
+    SoftKeyEntry(K key, Object value, ReferenceQueue<Object> queue, int hash, Entry<K, V> next) {
+      super(key, value, queue, hash, next);
+      softKey = new SoftReference<>(key);
+    }
+  }
+
   private abstract class HashIterator<T> implements Iterator<T> {
     int index;
     @Nullable Entry<K, V> entry = null;
@@ -743,7 +1092,7 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
   private class ValueIterator extends HashIterator<V> {
     @Override
     public V next() {
-      return nextEntry().value;
+      return nextEntry().getValue();
     }
   }
 
@@ -761,6 +1110,203 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
     }
   }
 
+  /**
+   * A spliterator over a range of buckets of the table. Splitting halves the range, so that a
+   * parallel stream scans disjoint parts of the table in different threads. Entries whose keys have
+   * been discarded are skipped, so the size is only an estimate and SIZED is not reported.
+   *
+   * @param <T> the type of elements
+   */
+  private abstract class HashSpliterator<T> implements Spliterator<T> {
+    /** The table being traversed, or null until first use. */
+    @Nullable Entry<K, V> @Nullable [] tab;
+
+    /** The next entry in the current bucket. */
+    @Nullable Entry<K, V> current;
+
+    /** The index of the next bucket. */
+    int index;
+
+    /** One past the last bucket, or -1 until first use. */
+    int fence;
+
+    /** The estimated number of elements. */
+    int est;
+
+    /** The modCount at first use. */
+    int expectedModCount;
+
+    /**
+     * Creates a spliterator over the buckets [origin, fence).
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket, or -1 for the whole table
+     * @param est the estimated number of elements
+     * @param expectedModCount the modCount at first use
+     */
+    HashSpliterator(int origin, int fence, int est, int expectedModCount) {
+      this.index = origin;
+      this.fence = fence;
+      this.est = est;
+      this.expectedModCount = expectedModCount;
+    }
+
+    /**
+     * Initializes the table, fence, and size estimate on first use.
+     *
+     * @return the fence
+     */
+    final int getFence() {
+      int hi;
+      if ((hi = fence) < 0) {
+        est = size(); // expunges stale entries
+        expectedModCount = modCount;
+        tab = table;
+        hi = fence = tab.length;
+      }
+      return hi;
+    }
+
+    /**
+     * Returns a spliterator of the same kind over the given buckets.
+     *
+     * @param origin the first bucket
+     * @param fence one past the last bucket
+     * @param est the estimated number of elements
+     * @return a new spliterator
+     */
+    abstract HashSpliterator<T> newSpliterator(int origin, int fence, int est);
+
+    /**
+     * Returns the element for an entry.
+     *
+     * @param e an entry
+     * @param key the entry's key, which is not null and may be {@link #NULL_KEY}
+     * @return the element for the entry
+     */
+    abstract T element(Entry<K, V> e, Object key);
+
+    @Override
+    public @Nullable Spliterator<T> trySplit() {
+      int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+      if (lo >= mid) return null;
+      HashSpliterator<T> prefix = newSpliterator(lo, index = mid, est >>>= 1);
+      prefix.tab = tab;
+      return prefix;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (action == null) throw new NullPointerException();
+      int hi = getFence();
+      while (current != null || index < hi) {
+        if (current == null) {
+          current = tab[index++];
+        } else {
+          Entry<K, V> e = current;
+          Object k = e.get(); // hold on to key in strong ref
+          current = e.next;
+          if (k != null) {
+            action.accept(element(e, k));
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+      if (action == null) throw new NullPointerException();
+      int hi = getFence();
+      int i = index;
+      Entry<K, V> e = current;
+      index = hi;
+      current = null;
+      while (e != null || i < hi) {
+        if (e == null) {
+          e = tab[i++];
+        } else {
+          Object k = e.get(); // hold on to key in strong ref
+          if (k != null) action.accept(element(e, k));
+          e = e.next;
+        }
+      }
+      if (modCount != expectedModCount) throw new ConcurrentModificationException();
+    }
+
+    @Override
+    public long estimateSize() {
+      getFence();
+      return est;
+    }
+  }
+
+  private final class KeySpliterator extends HashSpliterator<K> {
+    KeySpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    KeySpliterator newSpliterator(int origin, int fence, int est) {
+      return new KeySpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    K element(Entry<K, V> e, Object key) {
+      return (K) unmaskNull(key);
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT;
+    }
+  }
+
+  private final class ValueSpliterator extends HashSpliterator<V> {
+    ValueSpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    ValueSpliterator newSpliterator(int origin, int fence, int est) {
+      return new ValueSpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    V element(Entry<K, V> e, Object key) {
+      return e.getValue();
+    }
+
+    @Override
+    public int characteristics() {
+      return 0;
+    }
+  }
+
+  private final class EntrySpliterator extends HashSpliterator<Map.Entry<K, V>> {
+    EntrySpliterator(int origin, int fence, int est, int expectedModCount) {
+      super(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    EntrySpliterator newSpliterator(int origin, int fence, int est) {
+      return new EntrySpliterator(origin, fence, est, expectedModCount);
+    }
+
+    @Override
+    Map.Entry<K, V> element(Entry<K, V> e, Object key) {
+      // A snapshot, because the entry's key could be discarded while the caller uses it.
+      return new OurSimpleEntry<K, V>((K) unmaskNull(key), e.getValue());
+    }
+
+    @Override
+    public int characteristics() {
+      return Spliterator.DISTINCT | Spliterator.NONNULL;
+    }
+  }
+
   // Views
 
   private transient @Nullable Set<Map.Entry<K, V>> entrySet = null;
@@ -788,6 +1334,11 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
       return new KeyIterator();
     }
 
+    @Override
+    public Spliterator<K> spliterator() {
+      return new KeySpliterator(0, -1, 0, 0);
+    }
+
     @Pure
     @Override
     public int size() {
@@ -853,6 +1404,11 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
       return new ValueIterator();
     }
 
+    @Override
+    public Spliterator<V> spliterator() {
+      return new ValueSpliterator(0, -1, 0, 0);
+    }
+
     @Pure
     @Override
     public int size() {
@@ -909,6 +1465,11 @@ public class WeakIdentityHashMap<K, V> extends AbstractMap<K, V> implements Map<
       return new EntryIterator();
     }
 
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+      return new EntrySpliterator(0, -1, 0, 0);
+    }
+
     @Pure
     @Override
     public boolean contains(@Nullable Object o) {
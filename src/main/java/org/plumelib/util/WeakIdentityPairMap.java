@@ -0,0 +1,446 @@
+package org.plumelib.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.function.BiFunction;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+
+/**
+ * A hash map whose keys are pairs of objects, which are held weakly and compared by identity
+ * ({@code ==}). It is intended for memo tables over pairs of objects, such as those that would
+ * otherwise use a {@code Map<WeakIdentityPair<K1, K2>, V>}.
+ *
+ * <p>A lookup allocates nothing: both objects are hashed by {@link System#identityHashCode}, and
+ * neither object's {@code hashCode} or {@code equals} method is called. By contrast, a lookup in a
+ * map keyed by {@link WeakIdentityPair} allocates a pair and two weak references, and calls the
+ * objects' {@code hashCode} methods. The map allocates only when it adds a mapping.
+ *
+ * <p>An entry is removed automatically when either of its keys is no longer in ordinary use.
+ * Neither key may be null; values may be null. Like {@link WeakIdentityHashMap}, this map is not
+ * synchronized, and a mapping may disappear at any time after one of its keys becomes weakly
+ * reachable.
+ *
+ * @param <K1> the type of the first key
+ * @param <K2> the type of the second key
+ * @param <V> the type of values
+ * @see WeakIdentityPair
+ */
+public final class WeakIdentityPairMap<K1 extends Object, K2 extends Object, V> {
+
+  /** The default initial capacity. MUST be a power of two. */
+  private static final int DEFAULT_INITIAL_CAPACITY = 16;
+
+  /** The maximum capacity. MUST be a power of two. */
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /** The load factor of the table. */
+  private static final float LOAD_FACTOR = 0.75f;
+
+  /** The table, resized as necessary. The length MUST be a power of two. */
+  private @Nullable Entry<K1, K2, V>[] table;
+
+  /** The number of entries in the table, including those whose keys have been discarded. */
+  private int size;
+
+  /** The number of entries at which to resize the table. */
+  private int threshold;
+
+  /** Reference queue for the references to discarded keys, of either kind. */
+  private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+  /**
+   * An entry of the table. The entry is a weak reference to the first key, and it holds a {@link
+   * SecondKeyReference} to the second key. Both references are registered with the map's queue.
+   *
+   * @param <K1> the type of the first key
+   * @param <K2> the type of the second key
+   * @param <V> the type of the value
+   */
+  private static final class Entry<K1, K2, V> extends WeakReference<K1> {
+    /** The reference to the second key. */
+    final SecondKeyReference second;
+
+    /** The hash code of the pair, stored here since the keys may be discarded by the GC. */
+    final int hash;
+
+    /** The value. */
+    @Nullable V value;
+
+    /** The next entry in the bucket. */
+    @Nullable Entry<K1, K2, V> next;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @param hash the hash code of the pair
+     * @param value the value
+     * @param next the next entry in the bucket
+     * @param queue the queue with which both references are registered
+     */
+    Entry(
+        K1 a,
+        K2 b,
+        int hash,
+        @Nullable V value,
+        @Nullable Entry<K1, K2, V> next,
+        ReferenceQueue<Object> queue) {
+      super(a, queue);
+      this.second = new SecondKeyReference(b, this, queue);
+      this.hash = hash;
+      this.value = value;
+      this.next = next;
+    }
+
+    /**
+     * Returns true if this entry's keys are {@code a} and {@code b}.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return true if this entry's keys are {@code a} and {@code b}
+     */
+    @SuppressWarnings("interning:not.interned") // identity comparison
+    boolean matches(Object a, Object b) {
+      return get() == a && second.get() == b;
+    }
+
+    /**
+     * Returns true if either key has been discarded.
+     *
+     * @return true if either key has been discarded
+     */
+    boolean isStale() {
+      return get() == null || second.get() == null;
+    }
+  }
+
+  /** A weak reference to the second key of an entry, which records the entry. */
+  private static final class SecondKeyReference extends WeakReference<Object> {
+    /** The entry that holds this reference. */
+    final Entry<?, ?, ?> entry;
+
+    /**
+     * Creates a new SecondKeyReference.
+     *
+     * @param b the second key
+     * @param entry the entry that holds this reference
+     * @param queue the queue with which the reference is registered
+     */
+    SecondKeyReference(Object b, Entry<?, ?, ?> entry, ReferenceQueue<Object> queue) {
+      super(b, queue);
+      this.entry = entry;
+    }
+  }
+
+  /** Constructs a new, empty map with the default initial capacity (16). */
+  public WeakIdentityPairMap() {
+    this(DEFAULT_INITIAL_CAPACITY);
+  }
+
+  /**
+   * Constructs a new, empty map with the given initial capacity.
+   *
+   * @param initialCapacity the initial capacity
+   * @throws IllegalArgumentException if the initial capacity is negative
+   */
+  public WeakIdentityPairMap(int initialCapacity) {
+    if (initialCapacity < 0) {
+      throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+    }
+    int capacity = 1;
+    while (capacity < initialCapacity && capacity < MAXIMUM_CAPACITY) {
+      capacity <<= 1;
+    }
+    table = newTable(capacity);
+    threshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  /**
+   * Allocates a table.
+   *
+   * @param <K1> the type of the first key
+   * @param <K2> the type of the second key
+   * @param <V> the type of values
+   * @param capacity the length of the table
+   * @return a new table
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  private static <K1, K2, V> @Nullable Entry<K1, K2, V>[] newTable(int capacity) {
+    return (Entry<K1, K2, V>[]) new Entry[capacity];
+  }
+
+  /**
+   * Returns the hash code of a pair of keys.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return the hash code of the pair
+   */
+  @Pure
+  private static int hash(Object a, Object b) {
+    int h = (System.identityHashCode(a) * 31 + System.identityHashCode(b)) * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Throws NullPointerException if either key is null.
+   *
+   * @param a the first key
+   * @param b the second key
+   */
+  private static void checkKeys(@Nullable Object a, @Nullable Object b) {
+    if (a == null || b == null) {
+      throw new NullPointerException("WeakIdentityPairMap cannot hold null keys");
+    }
+  }
+
+  /**
+   * Returns the entry for the given keys, or null. Allocates nothing.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return the entry for the keys, or null if they are not mapped
+   */
+  private @Nullable Entry<K1, K2, V> getEntry(Object a, Object b) {
+    int h = hash(a, b);
+    @Nullable Entry<K1, K2, V>[] tab = table;
+    for (Entry<K1, K2, V> e = tab[h & (tab.length - 1)]; e != null; e = e.next) {
+      if (e.hash == h && e.matches(a, b)) {
+        return e;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes the given entry from the table, if it is still there.
+   *
+   * @param entry an entry
+   */
+  @SuppressWarnings("interning:not.interned") // reference equality of entries
+  private void unlink(Entry<?, ?, ?> entry) {
+    @Nullable Entry<K1, K2, V>[] tab = table;
+    int i = entry.hash & (tab.length - 1);
+    Entry<K1, K2, V> prev = null;
+    for (Entry<K1, K2, V> e = tab[i]; e != null; prev = e, e = e.next) {
+      if (e == entry) {
+        if (prev == null) {
+          tab[i] = e.next;
+        } else {
+          prev.next = e.next;
+        }
+        e.value = null; // Help GC
+        e.second.clear();
+        e.clear();
+        size--;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes the entries either of whose keys has been discarded. An entry may be found twice on the
+   * queue, once for each key; the second time, it is no longer in the table.
+   */
+  private void expungeStaleEntries() {
+    Reference<?> r;
+    while ((r = queue.poll()) != null) {
+      if (r instanceof SecondKeyReference) {
+        unlink(((SecondKeyReference) r).entry);
+      } else {
+        unlink((Entry<?, ?, ?>) r);
+      }
+    }
+  }
+
+  /**
+   * Doubles the capacity of the table, dropping entries either of whose keys has been discarded.
+   */
+  private void resize() {
+    @Nullable Entry<K1, K2, V>[] oldTable = table;
+    int oldCapacity = oldTable.length;
+    if (oldCapacity == MAXIMUM_CAPACITY) {
+      threshold = Integer.MAX_VALUE;
+      return;
+    }
+    int newCapacity = oldCapacity * 2;
+    @Nullable Entry<K1, K2, V>[] newTable = newTable(newCapacity);
+    for (int j = 0; j < oldCapacity; j++) {
+      Entry<K1, K2, V> e = oldTable[j];
+      while (e != null) {
+        Entry<K1, K2, V> next = e.next;
+        if (e.isStale()) {
+          e.next = null; // Help GC
+          e.value = null; //  "   "
+          size--;
+        } else {
+          int i = e.hash & (newCapacity - 1);
+          e.next = newTable[i];
+          newTable[i] = e;
+        }
+        e = next;
+      }
+    }
+    table = newTable;
+    threshold = (int) (newCapacity * LOAD_FACTOR);
+  }
+
+  /**
+   * Returns the number of mappings in this map. This removes the entries whose keys are known to
+   * have been discarded.
+   *
+   * @return the number of mappings in this map
+   */
+  public int size() {
+    if (size == 0) {
+      return 0;
+    }
+    expungeStaleEntries();
+    return size;
+  }
+
+  /**
+   * Returns true if this map contains no mappings.
+   *
+   * @return true if this map contains no mappings
+   */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the value for the given pair of keys. Allocates nothing.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return the value for the pair, or null if the pair is not mapped
+   */
+  @Pure
+  public @Nullable V get(Object a, Object b) {
+    checkKeys(a, b);
+    Entry<K1, K2, V> e = getEntry(a, b);
+    return (e == null) ? null : e.value;
+  }
+
+  /**
+   * Returns true if this map contains a mapping for the given pair of keys. Allocates nothing.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return true if the pair is mapped
+   */
+  @Pure
+  public boolean containsKey(Object a, Object b) {
+    checkKeys(a, b);
+    return getEntry(a, b) != null;
+  }
+
+  /**
+   * Maps the given pair of keys to the given value.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @param value the value
+   * @return the previous value for the pair, or null if the pair was not mapped
+   */
+  public @Nullable V put(K1 a, K2 b, @Nullable V value) {
+    checkKeys(a, b);
+    expungeStaleEntries();
+    Entry<K1, K2, V> e = getEntry(a, b);
+    if (e != null) {
+      V oldValue = e.value;
+      e.value = value;
+      return oldValue;
+    }
+    addEntry(a, b, value);
+    return null;
+  }
+
+  /**
+   * Adds a new entry for a pair of keys that is not mapped.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @param value the value
+   */
+  private void addEntry(K1 a, K2 b, @Nullable V value) {
+    int h = hash(a, b);
+    @Nullable Entry<K1, K2, V>[] tab = table;
+    int i = h & (tab.length - 1);
+    tab[i] = new Entry<>(a, b, h, value, tab[i], queue);
+    if (++size >= threshold) {
+      resize();
+    }
+  }
+
+  /**
+   * Returns the value for the given pair of keys, first computing it and mapping the pair to it if
+   * the pair is not mapped (or is mapped to null). If the function returns null, no mapping is
+   * added.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @param mappingFunction computes the value for the pair
+   * @return the current or computed value for the pair
+   */
+  public @Nullable V computeIfAbsent(
+      K1 a, K2 b, BiFunction<? super K1, ? super K2, ? extends @Nullable V> mappingFunction) {
+    checkKeys(a, b);
+    if (mappingFunction == null) {
+      throw new NullPointerException();
+    }
+    expungeStaleEntries();
+    Entry<K1, K2, V> e = getEntry(a, b);
+    if (e != null && e.value != null) {
+      return e.value;
+    }
+    V value = mappingFunction.apply(a, b);
+    if (value == null) {
+      return null;
+    }
+    // The function may have modified this map, so look the pair up again.
+    e = getEntry(a, b);
+    if (e != null) {
+      e.value = value;
+    } else {
+      addEntry(a, b, value);
+    }
+    return value;
+  }
+
+  /**
+   * Removes the mapping for the given pair of keys, if any.
+   *
+   * @param a the first key
+   * @param b the second key
+   * @return the previous value for the pair, or null if the pair was not mapped
+   */
+  public @Nullable V remove(Object a, Object b) {
+    checkKeys(a, b);
+    expungeStaleEntries();
+    Entry<K1, K2, V> e = getEntry(a, b);
+    if (e == null) {
+      return null;
+    }
+    V oldValue = e.value;
+    unlink(e);
+    return oldValue;
+  }
+
+  /** Removes all mappings from this map. */
+  public void clear() {
+    while (queue.poll() != null) {
+      // discard: the whole table is being dropped
+    }
+    Arrays.fill(table, null);
+    size = 0;
+    // Entries that were enqueued meanwhile are not in the table; drop them too.
+    while (queue.poll() != null) {
+      // discard
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.plumelib.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * A shared daemon thread that removes stale entries from weak maps in the background, so that
+ * operations on the maps need to do only a bounded amount of that work. See {@link
+ * WeakIdentityHashMap#expungeInBackground} and {@link WeakHasherMap#expungeInBackground}.
+ *
+ * <p>The thread runs after every garbage collection, which it detects by the clearing of a weak
+ * reference to an otherwise unreachable object, and at least once per {@link #PERIOD_MILLIS}
+ * milliseconds. It drains each registered map in batches of {@link #BATCH_SIZE} entries. A map's
+ * drainer acquires the map's lock for each batch, so that clients of the map wait for at most one
+ * batch. The thread holds registered maps weakly, so registering a map does not prevent it from
+ * being garbage-collected.
+ */
+final class WeakMapCleaner {
+
+  /** This class is a collection of methods; it does not represent anything. */
+  private WeakMapCleaner() {
+    throw new Error("do not instantiate");
+  }
+
+  /** The maximum number of stale entries that a drainer removes while holding the map's lock. */
+  static final int BATCH_SIZE = 1024;
+
+  /** The maximum time between two runs of the thread. */
+  static final long PERIOD_MILLIS = 1000;
+
+  /**
+   * Removes stale entries from a map.
+   *
+   * @param <M> the type of the map
+   */
+  @FunctionalInterface
+  interface Drainer<M> {
+    /**
+     * Removes up to {@code limit} stale entries from the map, while holding the map's lock.
+     *
+     * @param map the map
+     * @param limit the maximum number of stale entries to remove
+     * @return true if {@code limit} entries were removed, so that more may remain
+     */
+    boolean drain(M map, int limit);
+  }
+
+  /**
+   * A registered map and its drainer.
+   *
+   * @param <M> the type of the map
+   */
+  private static final class Registration<M> {
+    /** The map. */
+    private final WeakReference<M> map;
+
+    /** The drainer for the map. */
+    private final Drainer<M> drainer;
+
+    /**
+     * Creates a new Registration.
+     *
+     * @param map the map
+     * @param drainer the drainer for the map; must not capture the map
+     */
+    Registration(M map, Drainer<M> drainer) {
+      this.map = new WeakReference<>(map);
+      this.drainer = drainer;
+    }
+
+    /**
+     * Drains the map in batches until no stale entries remain.
+     *
+     * @return false if the map has been garbage-collected
+     */
+    boolean drain() {
+      boolean more = true;
+      while (more) {
+        M m = map.get();
+        if (m == null) {
+          return false;
+        }
+        more = drainer.drain(m, BATCH_SIZE);
+      }
+      return true;
+    }
+  }
+
+  /** The registered maps. Guarded by the class lock. */
+  private static final List<Registration<?>> registrations = new ArrayList<>();
+
+  /** The cleaner thread, or null if it has not yet been started. Guarded by the class lock. */
+  private static @Nullable Thread thread = null;
+
+  /**
+   * Registers a map to be drained in the background, and starts the thread if necessary.
+   *
+   * @param <M> the type of the map
+   * @param map the map
+   * @param drainer the drainer for the map; must not capture the map, which would keep it alive
+   */
+  static synchronized <M> void register(M map, Drainer<M> drainer) {
+    registrations.add(new Registration<>(map, drainer));
+    if (thread == null) {
+      Thread t = new Thread(WeakMapCleaner::run, "plume-util weak map cleaner");
+      t.setDaemon(true);
+      t.start();
+      thread = t;
+    }
+  }
+
+  /**
+   * Returns a copy of the registrations.
+   *
+   * @return the current registrations
+   */
+  private static synchronized List<Registration<?>> registrations() {
+    return new ArrayList<>(registrations);
+  }
+
+  /**
+   * Removes a registration.
+   *
+   * @param r the registration to remove
+   */
+  private static synchronized void unregister(Registration<?> r) {
+    registrations.remove(r);
+  }
+
+  /**
+   * A weak reference to an otherwise unreachable object, which is enqueued at the first garbage
+   * collection after it is created. It is a field so that the reference itself stays reachable.
+   * Used only by the cleaner thread.
+   */
+  private static @Nullable WeakReference<Object> gcSentinel = null;
+
+  /** The body of the cleaner thread. */
+  private static void run() {
+    ReferenceQueue<Object> gcQueue = new ReferenceQueue<>();
+    gcSentinel = new WeakReference<>(new Object(), gcQueue);
+    while (true) {
+      try {
+        if (gcQueue.remove(PERIOD_MILLIS) != null) {
+          gcSentinel = new WeakReference<>(new Object(), gcQueue);
+        }
+      } catch (InterruptedException e) {
+        // Nothing interrupts this thread deliberately; keep cleaning.
+        continue;
+      }
+      for (Registration<?> r : registrations()) {
+        try {
+          if (!r.drain()) {
+            unregister(r);
+          }
+        } catch (RuntimeException e) {
+          // A failure in one map must not stop the cleaning of the others.
+          unregister(r);
+        }
+      }
+    }
+  }
+}
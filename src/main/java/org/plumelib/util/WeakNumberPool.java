@@ -0,0 +1,309 @@
+package org.plumelib.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.checkerframework.dataflow.qual.Pure;
+
+/**
+ * A thread-safe pool of canonical boxed numbers, held weakly and keyed by their raw bits: an {@code
+ * int} or {@code long} value, or the {@code long} bits of a {@code double}. This is used by {@link
+ * Intern} for Integer, Long, and Double.
+ *
+ * <p>Each segment of the pool is an open-addressing hash table with linear probing, represented as
+ * parallel arrays of keys and weak references. An entry costs one array slot in each array plus one
+ * WeakReference; there is no entry object, no boxed key, and no map value. A lookup allocates
+ * nothing and takes no lock. An insertion locks one segment. Slots whose referents have been
+ * garbage-collected are reused by later insertions, and are dropped when a table is rebuilt.
+ *
+ * @param <T> the type of the boxed numbers
+ */
+final class WeakNumberPool<T extends Number> {
+
+  /** The number of segments; a power of two. */
+  private static final int NUM_SEGMENTS = 16;
+
+  /** The minimum capacity of a segment's table; a power of two. */
+  private static final int MIN_CAPACITY = 16;
+
+  /** The segments, each of which is a hash table. */
+  private final Segment<T>[] segments;
+
+  /** Creates a new, empty pool. */
+  @SuppressWarnings({"unchecked", "rawtypes"}) // generic array creation
+  WeakNumberPool() {
+    Segment<T>[] newSegments = (Segment<T>[]) new Segment[NUM_SEGMENTS];
+    for (int i = 0; i < NUM_SEGMENTS; i++) {
+      newSegments[i] = new Segment<T>();
+    }
+    segments = newSegments;
+  }
+
+  /**
+   * Returns a well-distributed hash code for the given key.
+   *
+   * @param key a key
+   * @return a hash code for the key
+   */
+  @Pure
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Returns the segment for the given hash code. Uses the high bits, because a table index uses
+   * the low bits.
+   *
+   * @param hash a hash code
+   * @return the segment for the hash code
+   */
+  @Pure
+  private Segment<T> segmentFor(int hash) {
+    return segments[hash >>> 28];
+  }
+
+  /**
+   * Returns the canonical number with the given key, or null if there is none. Allocates nothing
+   * and takes no lock.
+   *
+   * @param key the raw bits of a number
+   * @return the canonical number whose raw bits are {@code key}, or null
+   */
+  @Pure
+  @Nullable T get(long key) {
+    int h = hash(key);
+    return segmentFor(h).get(key, h);
+  }
+
+  /**
+   * Returns the canonical number with the given key, first making {@code value} canonical if there
+   * is none.
+   *
+   * @param key the raw bits of {@code value}
+   * @param value a number whose raw bits are {@code key}
+   * @return the canonical number whose raw bits are {@code key}
+   */
+  T intern(long key, T value) {
+    int h = hash(key);
+    Segment<T> segment = segmentFor(h);
+    T result = segment.get(key, h);
+    if (result != null) {
+      return result;
+    }
+    return segment.intern(key, h, value);
+  }
+
+  /**
+   * Returns the number of canonical numbers that have not been garbage-collected. Takes time
+   * linear in the capacity of the pool.
+   *
+   * @return the number of live canonical numbers
+   */
+  int size() {
+    int result = 0;
+    for (Segment<T> segment : segments) {
+      Table<T> t = segment.table;
+      for (int i = 0; i < t.refs.length(); i++) {
+        WeakReference<T> ref = t.refs.get(i);
+        if (ref != null && ref.get() != null) {
+          result++;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of canonical numbers that have been removed from the pool after being
+   * garbage-collected. A number is counted when its slot is reused or its table is rebuilt.
+   *
+   * @return the number of garbage-collected canonical numbers that have been removed
+   */
+  long clearedCount() {
+    long result = 0;
+    for (Segment<T> segment : segments) {
+      result += segment.cleared;
+    }
+    return result;
+  }
+
+  /**
+   * Returns an iterator over a snapshot of the live canonical numbers.
+   *
+   * @return an iterator over the canonical numbers
+   */
+  Iterator<T> iterator() {
+    List<T> result = new ArrayList<>();
+    for (Segment<T> segment : segments) {
+      Table<T> t = segment.table;
+      for (int i = 0; i < t.refs.length(); i++) {
+        WeakReference<T> ref = t.refs.get(i);
+        T value = (ref == null) ? null : ref.get();
+        if (value != null) {
+          result.add(value);
+        }
+      }
+    }
+    return result.iterator();
+  }
+
+  /**
+   * The arrays of an open-addressing hash table. A slot is empty if its reference is null. The key
+   * of a slot is written before its reference is published, and a reference is only ever replaced
+   * by one whose referent is live after the old one's referent has been collected, so a reader that
+   * sees a live referent also sees the matching key.
+   *
+   * @param <T> the type of the boxed numbers
+   */
+  private static final class Table<T> {
+    /** The raw bits of the number in each slot. */
+    final long[] keys;
+    /** The weak reference to the number in each slot, or null for an empty slot. */
+    final AtomicReferenceArray<@Nullable WeakReference<T>> refs;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param capacity the number of slots; a power of two
+     */
+    Table(int capacity) {
+      keys = new long[capacity];
+      refs = new AtomicReferenceArray<>(capacity);
+    }
+  }
+
+  /**
+   * One segment of the pool. Readers take no lock; writers synchronize on the segment.
+   *
+   * @param <T> the type of the boxed numbers
+   */
+  private static final class Segment<T> {
+    /** The current table. */
+    volatile Table<T> table = new Table<>(MIN_CAPACITY);
+
+    /** The number of non-empty slots in the table, including slots with collected referents. */
+    int used = 0;
+
+    /** The number of slots with garbage-collected referents that were reused or dropped. */
+    volatile long cleared = 0;
+
+    /**
+     * Returns the canonical number with the given key, or null. Takes no lock.
+     *
+     * @param key the raw bits of a number
+     * @param hash the hash code of the key
+     * @return the canonical number whose raw bits are {@code key}, or null
+     */
+    @Nullable T get(long key, int hash) {
+      Table<T> t = table;
+      int mask = t.keys.length - 1;
+      for (int i = hash & mask; ; i = (i + 1) & mask) {
+        WeakReference<T> ref = t.refs.get(i);
+        if (ref == null) {
+          return null;
+        }
+        if (t.keys[i] == key) {
+          T value = ref.get();
+          if (value != null) {
+            return value;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns the canonical number with the given key, first making {@code value} canonical if
+     * there is none.
+     *
+     * @param key the raw bits of {@code value}
+     * @param hash the hash code of the key
+     * @param value a number whose raw bits are {@code key}
+     * @return the canonical number whose raw bits are {@code key}
+     */
+    synchronized T intern(long key, int hash, T value) {
+      Table<T> t = table;
+      int mask = t.keys.length - 1;
+      int freeSlot = -1;
+      int i = hash & mask;
+      for (; ; i = (i + 1) & mask) {
+        WeakReference<T> ref = t.refs.get(i);
+        if (ref == null) {
+          break;
+        }
+        T existing = ref.get();
+        if (existing == null) {
+          if (freeSlot == -1) {
+            freeSlot = i;
+          }
+        } else if (t.keys[i] == key) {
+          return existing;
+        }
+      }
+      if (freeSlot != -1) {
+        cleared++;
+        t.keys[freeSlot] = key;
+        t.refs.set(freeSlot, new WeakReference<>(value));
+        return value;
+      }
+      // Keep the load factor at most 1/2, so that probe sequences stay short.
+      if (2 * (used + 1) > t.keys.length) {
+        t = rebuild(t);
+        mask = t.keys.length - 1;
+        i = hash & mask;
+        while (t.refs.get(i) != null) {
+          i = (i + 1) & mask;
+        }
+      }
+      t.keys[i] = key;
+      t.refs.set(i, new WeakReference<>(value));
+      used++;
+      return value;
+    }
+
+    /**
+     * Replaces the table by a new one that contains only the live entries of the old one, and whose
+     * capacity is at least four times their number. Readers of the old table are not disturbed.
+     * The caller must hold this segment's monitor.
+     *
+     * @param old the current table
+     * @return the new table
+     */
+    private Table<T> rebuild(Table<T> old) {
+      int live = 0;
+      for (int i = 0; i < old.keys.length; i++) {
+        WeakReference<T> ref = old.refs.get(i);
+        if (ref != null && ref.get() != null) {
+          live++;
+        }
+      }
+      int capacity = MIN_CAPACITY;
+      while (capacity < 4 * (live + 1)) {
+        capacity <<= 1;
+      }
+      Table<T> result = new Table<>(capacity);
+      int mask = capacity - 1;
+      int oldUsed = used;
+      used = 0;
+      for (int i = 0; i < old.keys.length; i++) {
+        WeakReference<T> ref = old.refs.get(i);
+        if (ref != null && ref.get() != null) {
+          long key = old.keys[i];
+          int j = hash(key) & mask;
+          while (result.refs.get(j) != null) {
+            j = (j + 1) & mask;
+          }
+          result.keys[j] = key;
+          result.refs.set(j, ref);
+          used++;
+        }
+      }
+      cleared += oldUsed - used;
+      table = result;
+      return result;
+    }
+  }
+}
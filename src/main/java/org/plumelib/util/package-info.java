@@ -14,6 +14,21 @@
  *   <dt>{@link org.plumelib.util.CombinationIterator CombinationIterator}
  *   <dd>Given a set of collections, return all combinations that take one element from each
  *       collection.
+ *   <dt>{@link org.plumelib.util.CompactWeakIdentityHashMap CompactWeakIdentityHashMap}
+ *   <dd>A version of {@link org.plumelib.util.WeakIdentityHashMap WeakIdentityHashMap} that uses
+ *       less memory per mapping, for very large maps.
+ *   <dt>{@link org.plumelib.util.ConcurrentLimitedSizeIntSet ConcurrentLimitedSizeIntSet}
+ *   <dd>A thread-safe version of {@link org.plumelib.util.LimitedSizeIntSet LimitedSizeIntSet},
+ *       whose operations take no lock.
+ *   <dt>{@link org.plumelib.util.ConcurrentWeakHasherMap ConcurrentWeakHasherMap}
+ *   <dd>A thread-safe hash map with weak keys that are hashed and compared by a {@link
+ *       org.plumelib.util.Hasher Hasher}. Lookups take no lock.
+ *   <dt>{@link org.plumelib.util.ConcurrentWeakIdentityHashMap ConcurrentWeakIdentityHashMap}
+ *   <dd>A thread-safe version of {@link org.plumelib.util.WeakIdentityHashMap
+ *       WeakIdentityHashMap}. Lookups take no lock.
+ *   <dt>{@link org.plumelib.util.ConcurrentWeakIdentityLongMap ConcurrentWeakIdentityLongMap}
+ *   <dd>A thread-safe hash map from weak identity keys to primitive {@code long} values, which
+ *       does not box the values.
  *   <dt>{@link org.plumelib.util.LimitedSizeSet LimitedSizeSet}
  *   <dd>Stores up to some maximum number of unique values, at which point its rep is nulled, in
  *       order to save space.
@@ -27,12 +42,18 @@
  *   <dd>Given two sequences/iterators/whatever, OrderedPairIterator returns a new
  *       sequence/iterator/whatever that pairs the matching elements of the inputs, according to
  *       their respective sort orders. (This operation is sometimes called "zipping".)
+ *   <dt>{@link org.plumelib.util.ReferenceStrength ReferenceStrength}
+ *   <dd>How strongly a {@link org.plumelib.util.WeakHasherMap WeakHasherMap} or {@link
+ *       org.plumelib.util.WeakIdentityHashMap WeakIdentityHashMap} holds its keys or values.
  *   <dt>{@link org.plumelib.util.WeakHasherMap WeakHasherMap}
  *   <dd>WeakHashMap is a modified version of WeakHashMap from JDK 1.2.2, that adds a constructor
  *       that takes a {@link org.plumelib.util.Hasher Hasher} argument.
  *   <dt>{@link org.plumelib.util.WeakIdentityHashMap WeakIdentityHashMap}
  *   <dd>WeakIdentityHashMap is a modified version of WeakHashMap from JDK 1.5, that uses
  *       System.identityHashCode() rather than the object's hash code.
+ *   <dt>{@link org.plumelib.util.WeakIdentityPairMap WeakIdentityPairMap}
+ *   <dd>A hash map keyed by pairs of weakly-held objects, compared by identity; lookups allocate
+ *       nothing.
  * </dl>
  *
  * <h3 id="Text_processing">Text processing</h3>
@@ -139,6 +160,13 @@
  *   <dd>Utilities for interning objects. Interning is also known as canonicalization or
  *       hash-consing: it returns a single representative object that {@code .equals()} the object,
  *       and the client discards the argument and uses the result instead.
+ *   <dt>{@link org.plumelib.util.InternPoolStatistics InternPoolStatistics}
+ *   <dd>Hits, misses, live entries, and bytes saved for one of the pools of {@code Intern}. They
+ *       can also be monitored via JMX, with {@link org.plumelib.util.InternStatisticsMXBean
+ *       InternStatisticsMXBean}.
+ *   <dt>{@link org.plumelib.util.Interner Interner}
+ *   <dd>An interning pool that can be created per job, and that retains its canonical values
+ *       weakly, softly, in a bounded LRU cache, or until it is cleared.
  *   <dt>{@link org.plumelib.util.Pair Pair}
  *   <dd>Mutable pair class: type-safely holds two objects of possibly-different types.
  *   <dt>{@link org.plumelib.util.WeakIdentityPair WeakIdentityPair}
@@ -0,0 +1,127 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public final class CompactWeakIdentityHashMapTest {
+
+  @Test
+  public void testIdentity() {
+    CompactWeakIdentityHashMap<String, Integer> m = new CompactWeakIdentityHashMap<>();
+    String s1 = "one";
+    String s1a = new String(s1);
+    m.put(s1, 1);
+    m.put(s1a, 2);
+    m.put(null, 3);
+    assertEquals(3, m.size());
+    assertEquals(Integer.valueOf(1), m.get(s1));
+    assertEquals(Integer.valueOf(2), m.get(s1a));
+    assertEquals(Integer.valueOf(3), m.get(null));
+    assertTrue(m.get(new String(s1)) == null);
+    assertTrue(m.containsValue(2));
+    assertEquals(Integer.valueOf(1), m.remove(s1));
+    assertTrue(m.get(s1) == null);
+    assertEquals(Integer.valueOf(2), m.get(s1a));
+    m.put(s1a, null);
+    assertTrue(m.containsKey(s1a));
+    assertEquals(2, m.size());
+  }
+
+  @Test
+  public void testGrowthAndTombstones() {
+    CompactWeakIdentityHashMap<Object, Integer> m = new CompactWeakIdentityHashMap<>(0);
+    Object[] keys = new Object[10000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+      m.put(keys[i], i);
+    }
+    assertEquals(keys.length, m.size());
+    // Removing and re-adding keys exercises the reuse and reclamation of tombstones.
+    for (int round = 0; round < 3; round++) {
+      for (int i = round; i < keys.length; i += 2) {
+        m.remove(keys[i]);
+      }
+      for (int i = round; i < keys.length; i += 2) {
+        assertTrue(m.put(keys[i], -i) == null);
+      }
+    }
+    assertEquals(keys.length, m.size());
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(Math.abs(m.get(keys[i])), i);
+    }
+
+    int count = 0;
+    for (Iterator<Map.Entry<Object, Integer>> it = m.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Object, Integer> e = it.next();
+      if (e.getValue() % 2 == 0) {
+        it.remove();
+      } else {
+        e.setValue(0);
+      }
+      count++;
+    }
+    assertEquals(keys.length, count);
+    assertEquals(keys.length / 2, m.size());
+    assertEquals(Integer.valueOf(0), m.get(keys[1]));
+    assertFalse(m.containsKey(keys[2]));
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  /**
+   * Maps a new key, which nothing else refers to, to -1.
+   *
+   * @param m the map
+   * @return a weak reference to the new key
+   */
+  private static WeakReference<Object> putTransientKey(Map<Object, Integer> m) {
+    Object key = new Object();
+    m.put(key, -1);
+    return new WeakReference<>(key);
+  }
+
+  @Test
+  public void testOverwriteAfterRebuildDuringIteration() throws InterruptedException {
+    CompactWeakIdentityHashMap<Object, Integer> m = new CompactWeakIdentityHashMap<>();
+    Object[] keys = new Object[10];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+      m.put(keys[i], i);
+    }
+    WeakReference<Object> sentinel = putTransientKey(m);
+    for (int i = 0; i < 1000; i++) {
+      putTransientKey(m);
+    }
+
+    Iterator<Map.Entry<Object, Integer>> it = m.entrySet().iterator();
+    for (int i = 0; i < 100 && sentinel.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    // Expunging the discarded keys leaves too many tombstones, so the table is rebuilt.
+    assertEquals(Integer.valueOf(0), m.get(keys[0]));
+    for (int i = 0; i < keys.length; i++) {
+      m.put(keys[i], 100 + i);
+    }
+
+    List<Object> keyList = Arrays.asList(keys);
+    int seen = 0;
+    while (it.hasNext()) {
+      Map.Entry<Object, Integer> e = it.next();
+      int i = keyList.indexOf(e.getKey());
+      if (i >= 0) {
+        assertEquals(Integer.valueOf(100 + i), e.getValue());
+        seen++;
+      }
+    }
+    assertEquals(keys.length, seen);
+  }
+}
@@ -0,0 +1,108 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public final class ConcurrentLimitedSizeIntSetTest {
+
+  @Test
+  public void testSameAsLimitedSizeIntSet() {
+    for (int maxValues = 1; maxValues < 40; maxValues++) {
+      ConcurrentLimitedSizeIntSet c = new ConcurrentLimitedSizeIntSet(maxValues);
+      LimitedSizeIntSet s = new LimitedSizeIntSet(maxValues);
+      Random r = new Random(20140613);
+      for (int i = 0; i < 60; i++) {
+        int elt = r.nextInt(50) - 10;
+        c.add(elt);
+        s.add(elt);
+        assertEquals(s.size(), c.size());
+        assertEquals(s.repNulled(), c.repNulled());
+        if (!s.repNulled()) {
+          assertEquals(s.contains(elt), c.contains(elt));
+          assertEquals(s.contains(elt + 1), c.contains(elt + 1));
+        }
+      }
+      assertEquals(s.maxSize(), c.maxSize());
+    }
+  }
+
+  /**
+   * Adds the values 0..numValues-1 to a new set from several threads at once.
+   *
+   * @param maxValues the capacity of the set
+   * @param numValues the number of distinct values to add
+   * @return the set
+   * @throws InterruptedException if interrupted while waiting for the threads
+   */
+  private static ConcurrentLimitedSizeIntSet addConcurrently(int maxValues, int numValues)
+      throws InterruptedException {
+    ConcurrentLimitedSizeIntSet set = new ConcurrentLimitedSizeIntSet(maxValues);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int offset = t * 97;
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < numValues; i++) {
+                  set.add((i + offset) % numValues);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return set;
+  }
+
+  @Test
+  public void testConcurrentAdd() throws InterruptedException {
+    ConcurrentLimitedSizeIntSet full = addConcurrently(1000, 1000);
+    assertFalse(full.repNulled());
+    assertEquals(1000, full.size());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(full.contains(i));
+    }
+    assertFalse(full.contains(1000));
+
+    ConcurrentLimitedSizeIntSet overflowed = addConcurrently(999, 1000);
+    assertTrue(overflowed.repNulled());
+    assertEquals(1000, overflowed.size());
+    assertThrows(UnsupportedOperationException.class, () -> overflowed.contains(0));
+  }
+
+  @Test
+  public void testCloneAndMerge() {
+    ConcurrentLimitedSizeIntSet a = new ConcurrentLimitedSizeIntSet(10);
+    ConcurrentLimitedSizeIntSet b = new ConcurrentLimitedSizeIntSet(10);
+    for (int i = 0; i < 5; i++) {
+      a.add(i);
+      b.add(i + 3);
+    }
+    ConcurrentLimitedSizeIntSet copy = a.clone();
+    a.add(100);
+    assertEquals(5, copy.size());
+    assertFalse(copy.contains(100));
+    assertTrue(a.contains(100));
+
+    ConcurrentLimitedSizeIntSet merged = ConcurrentLimitedSizeIntSet.merge(10, Arrays.asList(a, b));
+    assertEquals(9, merged.size());
+    ConcurrentLimitedSizeIntSet small = ConcurrentLimitedSizeIntSet.merge(8, Arrays.asList(a, b));
+    assertTrue(small.repNulled());
+
+    ConcurrentLimitedSizeIntSet nulledCopy = small.clone();
+    assertTrue(nulledCopy.repNulled());
+    assertEquals(9, nulledCopy.size());
+    // As for LimitedSizeIntSet, a nulled set that could fit in the receiver cannot be added.
+    assertThrows(Error.class, () -> merged.addAll(small));
+  }
+}
@@ -0,0 +1,70 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings({
+  "UseCorrectAssertInTests" // `assert` works fine in tests
+})
+public final class ConcurrentWeakHasherMapTest {
+
+  /** Hashes and compares int[] objects according to their contents. */
+  static final class IntArrayHasher implements Hasher {
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((int[]) a1, (int[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((int[]) o);
+    }
+  }
+
+  @Test
+  public void testMapOperations() {
+    ConcurrentWeakHasherMap<int[], String> m = new ConcurrentWeakHasherMap<>(new IntArrayHasher());
+    int[] k1 = new int[] {1, 2};
+    int[] k2 = new int[] {3, 4};
+    assertTrue(m.put(k1, "a") == null);
+    assertTrue(m.put(k2, "b") == null);
+    assertEquals("a", m.get(new int[] {1, 2}));
+    assertEquals("a", m.putIfAbsent(new int[] {1, 2}, "c"));
+    assertEquals("a", m.put(new int[] {1, 2}, "c"));
+    assertEquals("c", m.get(k1));
+    assertTrue(m.replace(k2, "b", "d"));
+    assertFalse(m.replace(k2, "b", "e"));
+    assertEquals(2, m.size());
+    int count = 0;
+    for (Map.Entry<int[], String> e : m.entrySet()) {
+      assertEquals(m.get(e.getKey()), e.getValue());
+      count++;
+    }
+    assertEquals(2, count);
+    assertFalse(m.remove(new int[] {3, 4}, "b"));
+    assertEquals("d", m.remove(new int[] {3, 4}));
+    assertTrue(m.get(k2) == null);
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testGrowth() {
+    // A single segment, so that its table is resized many times.
+    ConcurrentWeakHasherMap<Integer, Integer> m = new ConcurrentWeakHasherMap<>(1, 1, null);
+    Integer[] keys = new Integer[10000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = i;
+      m.put(keys[i], -i);
+    }
+    assertEquals(keys.length, m.size());
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(Integer.valueOf(-i), m.get(i));
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public final class ConcurrentWeakIdentityHashMapTest {
+
+  @Test
+  public void testIdentity() {
+    ConcurrentWeakIdentityHashMap<String, Integer> m = new ConcurrentWeakIdentityHashMap<>();
+    String s1 = new String("key");
+    String s2 = new String("key");
+    assertTrue(m.put(s1, 1) == null);
+    assertTrue(m.put(s2, 2) == null);
+    assertEquals(2, m.size());
+    assertEquals(Integer.valueOf(1), m.get(s1));
+    assertEquals(Integer.valueOf(2), m.get(s2));
+    assertTrue(m.get("key") == null);
+    assertEquals(Integer.valueOf(1), m.putIfAbsent(s1, 3));
+    assertTrue(m.put(null, 4) == null);
+    assertTrue(m.containsKey(null));
+    assertEquals(Integer.valueOf(4), m.get(null));
+    int count = 0;
+    for (Map.Entry<String, Integer> e : m.entrySet()) {
+      assertEquals(m.get(e.getKey()), e.getValue());
+      count++;
+    }
+    assertEquals(3, count);
+    assertFalse(m.remove(s2, 1));
+    assertEquals(Integer.valueOf(2), m.remove(s2));
+    assertEquals(Integer.valueOf(4), m.remove(null));
+    assertEquals(1, m.size());
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testComputeIfAbsent() throws InterruptedException {
+    ConcurrentWeakIdentityHashMap<Object, Object> m = new ConcurrentWeakIdentityHashMap<>(4, 4);
+    Object[] keys = new Object[1000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+    }
+    AtomicInteger calls = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (Object key : keys) {
+                  m.computeIfAbsent(
+                      key,
+                      k -> {
+                        calls.incrementAndGet();
+                        return new Object();
+                      });
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // The mapping function is called once per key, even when threads race.
+    assertEquals(keys.length, calls.get());
+    assertEquals(keys.length, m.size());
+    assertTrue(m.computeIfAbsent(new Object(), k -> null) == null);
+    assertEquals(keys.length, m.size());
+  }
+}
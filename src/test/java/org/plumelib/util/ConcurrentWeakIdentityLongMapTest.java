@@ -0,0 +1,100 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public final class ConcurrentWeakIdentityLongMapTest {
+
+  @Test
+  public void testIdentity() {
+    ConcurrentWeakIdentityLongMap<String> m = new ConcurrentWeakIdentityLongMap<>(-1);
+    assertEquals(-1, m.noEntryValue());
+    assertTrue(m.isEmpty());
+    String s1 = new String("key");
+    String s2 = new String("key");
+    assertEquals(-1, m.putLong(s1, 1));
+    assertEquals(-1, m.putLong(s2, 2));
+    assertEquals(2, m.size());
+    assertEquals(1, m.getLong(s1));
+    assertEquals(2, m.getLong(s2));
+    assertEquals(-1, m.getLong("key"));
+    assertFalse(m.containsKey("key"));
+    assertEquals(1, m.putLongIfAbsent(s1, 3));
+    assertEquals(1, m.putLong(s1, 3));
+    assertEquals(3, m.getLong(s1));
+    assertEquals(-1, m.putLong(null, 4));
+    assertTrue(m.containsKey(null));
+    assertEquals(4, m.getLong(null));
+    assertEquals(2, m.removeLong(s2));
+    assertEquals(-1, m.removeLong(s2));
+    assertEquals(4, m.removeLong(null));
+    assertEquals(1, m.size());
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testComputeLongIfAbsent() {
+    ConcurrentWeakIdentityLongMap<Object> m = new ConcurrentWeakIdentityLongMap<>();
+    Object key = new Object();
+    int[] calls = new int[1];
+    for (int i = 0; i < 3; i++) {
+      assertEquals(42, m.computeLongIfAbsent(key, k -> 42 + calls[0]++));
+    }
+    assertEquals(1, calls[0]);
+    assertEquals(42, m.computeLongIfAbsent(null, k -> (k == null) ? 42 : 0));
+  }
+
+  @Test
+  public void testWeakKeys() throws InterruptedException {
+    ConcurrentWeakIdentityLongMap<Object> m = new ConcurrentWeakIdentityLongMap<>();
+    Object[] keys = new Object[100];
+    List<WeakReference<Object>> discarded = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      Object key = new Object();
+      if (i < keys.length) {
+        keys[i] = key;
+      } else {
+        discarded.add(new WeakReference<>(key));
+      }
+      m.putLong(key, i);
+    }
+    for (int i = 0; i < 100 && !allCleared(discarded); i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    // System.gc() is only a hint, so check the size only once the discarded keys are gone.
+    if (allCleared(discarded)) {
+      assertEquals(keys.length, m.size());
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i, m.getLong(keys[i]));
+    }
+    // Updates expunge stale entries, and the table still works after rehashing.
+    for (int i = 0; i < 10000; i++) {
+      m.putLong(new Object(), i);
+    }
+    assertEquals(7, m.getLong(keys[7]));
+  }
+
+  /**
+   * Returns true if all the given references have been cleared.
+   *
+   * @param refs weak references
+   * @return true if every reference in {@code refs} has been cleared
+   */
+  private static boolean allCleared(List<WeakReference<Object>> refs) {
+    for (WeakReference<Object> ref : refs) {
+      if (ref.get() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,10 +1,27 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.management.Attribute;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import org.checkerframework.checker.interning.qual.Interned;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -286,4 +303,254 @@ public final class InternTest {
     long[] l1 = Intern.intern(new long[] {1, 2, 3, 4, 5, 6});
     assertTrue(l1 == Intern.internSubsequence(l1, 0, l1.length));
   }
+
+  /** Test that threads interning equal values at the same time all obtain the same object. */
+  @Test
+  public void testConcurrentIntern() throws Exception {
+    int numThreads = 8;
+    int numValues = 2000;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<int[][]>> futures = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                int[][] result = new int[numValues][];
+                for (int i = 0; i < numValues; i++) {
+                  result[i] = Intern.intern(new int[] {i, -i, 42});
+                }
+                return result;
+              }));
+    }
+    int[][] first = futures.get(0).get();
+    for (Future<int[][]> future : futures) {
+      int[][] other = future.get();
+      for (int i = 0; i < numValues; i++) {
+        assertTrue(first[i] == other[i]);
+      }
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /** Test the pools for boxed numbers, with enough values to grow their tables. */
+  @SuppressWarnings({"deprecation", "BoxedPrimitiveConstructor"}) // interning test
+  @Test
+  public void testInternedNumbers() {
+    Integer[] integers = new Integer[5000];
+    Long[] longs = new Long[5000];
+    Double[] doubles = new Double[5000];
+    for (int i = 0; i < integers.length; i++) {
+      integers[i] = Intern.internedInteger(i * 1000);
+      longs[i] = Intern.internedLong(i * 10000000000L);
+      doubles[i] = Intern.internedDouble(i / 3.0);
+    }
+    for (int i = 0; i < integers.length; i++) {
+      assertTrue(integers[i] == Intern.intern(new Integer(i * 1000)));
+      assertTrue(longs[i] == Intern.intern(new Long(i * 10000000000L)));
+      assertTrue(doubles[i] == Intern.intern(new Double(i / 3.0)));
+    }
+    assertTrue(Intern.numIntegers() >= integers.length);
+    assertTrue(Intern.internedDouble(-0.0) == Intern.internedDouble(0.0));
+    assertTrue(Intern.internedDouble(Double.NaN) == Intern.intern(new Double(0.0 / 0.0)));
+  }
+
+  /** Test many subsequences of one sequence, with enough entries to grow the table. */
+  @SuppressWarnings("index:argument") // https://github.com/typetools/checker-framework/issues/2484
+  @Test
+  public void testManySubsequences() {
+    String[] strings = new String[100];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = Intern.intern("s" + (i % 10));
+    }
+    String[] seq = Intern.intern(strings);
+    String[][] subseqs = new String[strings.length][];
+    for (int i = 0; i < strings.length; i++) {
+      subseqs[i] = Intern.internSubsequence(seq, i, strings.length);
+    }
+    for (int i = 0; i < strings.length; i++) {
+      assertTrue(subseqs[i] == Intern.internSubsequence(seq, i, strings.length));
+      assertTrue(subseqs[i] == Intern.intern(Arrays.copyOfRange(strings, i, strings.length)));
+    }
+    // Subsequences with equal contents are the same object.
+    assertTrue(Intern.internSubsequence(seq, 0, 10) == Intern.internSubsequence(seq, 10, 20));
+  }
+
+  /**
+   * Returns the statistics of the pool with the given name.
+   *
+   * @param name the name of a pool
+   * @return the statistics of the pool
+   */
+  private static InternPoolStatistics statistics(String name) {
+    for (InternPoolStatistics stats : Intern.getStatistics()) {
+      if (stats.getName().equals(name)) {
+        return stats;
+      }
+    }
+    throw new Error("No pool named " + name);
+  }
+
+  /** Test the counting of hits, misses, and bytes saved. */
+  @Test
+  public void testStatistics() throws Exception {
+    boolean wasEnabled = Intern.isStatisticsEnabled();
+    Intern.setStatisticsEnabled(true);
+    try {
+      Intern.resetStatistics();
+      int[] a1 = Intern.intern(new int[] {-17, 18, -19, 20});
+      int[] a2 = Intern.intern(new int[] {-17, 18, -19, 20});
+      assertTrue(a1 == a2);
+      InternPoolStatistics stats = statistics("int[]");
+      assertTrue(stats.getMisses() >= 1);
+      assertTrue(stats.getHits() >= 1);
+      assertTrue(stats.getBytesSaved() >= 32);
+      assertTrue(stats.getLiveEntries() >= 1);
+
+      Intern.setStatisticsEnabled(false);
+      Intern.intern(new int[] {-17, 18, -19, 20});
+      assertTrue(statistics("int[]").getHits() == stats.getHits());
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      Intern.registerStatisticsMXBean();
+      Intern.registerStatisticsMXBean();
+      ObjectName name = new ObjectName(Intern.STATISTICS_MXBEAN_NAME);
+      assertTrue(Boolean.FALSE.equals(server.getAttribute(name, "Enabled")));
+      server.setAttribute(name, new Attribute("Enabled", true));
+      assertTrue(Intern.isStatisticsEnabled());
+      CompositeData[] pools = (CompositeData[]) server.getAttribute(name, "Pools");
+      assertTrue(pools.length == Intern.getStatistics().size());
+
+      // A JMX client can read the pools through a proxy, which rebuilds each snapshot.
+      InternStatisticsMXBean proxy = JMX.newMXBeanProxy(server, name, InternStatisticsMXBean.class);
+      List<InternPoolStatistics> proxyPools = proxy.getPools();
+      assertTrue(proxyPools.size() == pools.length);
+      boolean foundIntArrays = false;
+      for (InternPoolStatistics poolStats : proxyPools) {
+        if (poolStats.getName().equals("int[]")) {
+          foundIntArrays = true;
+          assertTrue(poolStats.getMisses() >= stats.getMisses());
+          assertTrue(poolStats.getLiveEntries() >= 1);
+        }
+      }
+      assertTrue(foundIntArrays);
+    } finally {
+      Intern.setStatisticsEnabled(wasEnabled);
+    }
+  }
+
+  /** Test interning many arrays at once, enough to hash them in parallel. */
+  @Test
+  public void testInternAll() {
+    int[][] arrays = new int[20000][];
+    for (int i = 0; i < arrays.length; i++) {
+      arrays[i] = new int[] {i % 5000, 271828};
+    }
+    int[][] interned = Intern.internAll(arrays);
+    for (int i = 0; i < arrays.length; i++) {
+      assertTrue(interned[i] == Intern.intern(new int[] {i % 5000, 271828}));
+      assertTrue(interned[i] == interned[i % 5000]);
+    }
+    // The argument is not modified.
+    assertTrue(arrays[5000] != interned[5000]);
+
+    List<long[]> longs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      longs.add(new long[] {i % 10, 314159L});
+    }
+    List<long[]> internedLongs = Intern.internAll(longs);
+    assertTrue(internedLongs.get(3) == internedLongs.get(13));
+    assertTrue(internedLongs.get(3) == Intern.intern(new long[] {3, 314159L}));
+
+    @Nullable Object[] mixed = new Object[] {"a" + "bc".substring(1), null, 5L, new double[] {1.5}};
+    Intern.internInPlace(mixed);
+    assertTrue(mixed[0] == "ac");
+    assertTrue(mixed[1] == null);
+    assertTrue(mixed[2] == Intern.internedLong(5));
+    assertTrue(mixed[3] == Intern.intern(new double[] {1.5}));
+  }
+
+  /** Test writing and loading a snapshot of the pools. */
+  @Test
+  public void testSnapshot() throws Exception {
+    int[] ints = Intern.intern(new int[] {1618, 3398});
+    long[] longs = Intern.intern(new long[] {-1618L, Long.MAX_VALUE});
+    double[] doubles = Intern.intern(new double[] {1.618, Double.NaN});
+    String[] strings = Intern.intern(new String[] {"golden", null, "ratio\u03c6"});
+    Path file = Files.createTempFile("intern", ".snapshot");
+    try {
+      assertTrue(Intern.writeSnapshot(file) >= 4);
+      Object[] loaded = Intern.loadSnapshot(file);
+      assertTrue(Arrays.asList(loaded).contains(ints));
+      assertTrue(Arrays.asList(loaded).contains(longs));
+      assertTrue(Arrays.asList(loaded).contains(doubles));
+      assertTrue(Arrays.asList(loaded).contains(strings));
+      for (Object o : loaded) {
+        assertTrue(Intern.isInterned(o));
+      }
+
+      Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+      assertThrows(IOException.class, () -> Intern.loadSnapshot(file));
+
+      // A header whose count of int arrays is far more than the file holds.
+      ByteBuffer header = ByteBuffer.allocate(13);
+      header.putInt(0x504C4953).putInt(1).put((byte) 1).putInt(Integer.MAX_VALUE);
+      Files.write(file, header.array());
+      assertThrows(IOException.class, () -> Intern.loadSnapshot(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /** Test interning of the remaining primitive array types, and of their subsequences. */
+  @SuppressWarnings("index:argument") // https://github.com/typetools/checker-framework/issues/2484
+  @Test
+  public void testOtherPrimitiveArrays() {
+    float[] f = Intern.intern(new float[] {0.0f, Float.NaN, 2.5f});
+    assertTrue(f == Intern.intern(new float[] {-0.0f, Float.NaN, 2.5f}));
+    assertTrue(f != Intern.intern(new float[] {0.0f, Float.NaN, 2.25f}));
+    char[] c = Intern.intern("interned".toCharArray());
+    assertTrue(c == Intern.intern("interned".toCharArray()));
+    byte[] b = Intern.intern(new byte[] {1, 2, 3, 4});
+    assertTrue(b == Intern.intern(new byte[] {1, 2, 3, 4}));
+    short[] sh = Intern.intern(new short[] {-1, 1});
+    assertTrue(sh == Intern.intern((Object) new short[] {-1, 1}));
+    boolean[] bo = Intern.intern(new boolean[] {true, false, true});
+    assertTrue(bo == Intern.intern(new boolean[] {true, false, true}));
+    assertTrue(Intern.isInterned(bo));
+    assertTrue(!Intern.isInterned(new boolean[] {true, false, true}));
+
+    assertTrue(Intern.internSubsequence(c, 2, 5) == Intern.intern("ter".toCharArray()));
+    assertTrue(Intern.internSubsequence(b, 1, 3) == Intern.internSubsequence(b, 1, 3));
+    assertTrue(Intern.internSubsequence(bo, 0, 1) == Intern.internSubsequence(bo, 2, 3));
+
+    byte[][] payloads = Intern.internAll(new byte[][] {{9, 9}, {9, 9}, {8}});
+    assertTrue(payloads[0] == payloads[1]);
+    assertTrue(payloads[2] == Intern.intern(new byte[] {8}));
+  }
+
+  /** Test the string pool that can replace String.intern. */
+  @Test
+  public void testStringPool() {
+    boolean wasEnabled = Intern.isStatisticsEnabled();
+    Intern.useStringPool(1000);
+    try {
+      assertThrows(IllegalStateException.class, () -> Intern.useStringPool(10));
+      Intern.setStatisticsEnabled(true);
+      String s1 = Intern.intern(new String("pooled string"));
+      String s2 = Intern.intern(new String("pooled string"));
+      assertTrue(s1 == s2);
+      assertTrue(Intern.isInterned(s1));
+      assertTrue(!Intern.isInterned(new String("pooled string")));
+      String[] a = Intern.internStrings(new String[] {new String("pooled string"), null});
+      assertTrue(a[0] == s1);
+      assertTrue(a[1] == null);
+      assertTrue(statistics("String").getLiveEntries() >= 1);
+      assertTrue(statistics("String").getHits() >= 2);
+    } finally {
+      Intern.stopUsingStringPool();
+      Intern.setStatisticsEnabled(wasEnabled);
+    }
+    assertTrue(!Intern.isStringPoolInUse());
+  }
 }
@@ -0,0 +1,78 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public final class InternerTest {
+
+  @Test
+  public void testWeakAndSoft() {
+    List<Interner<int[]>> interners =
+        Arrays.asList(
+            Interner.<int[]>weak(new Intern.IntArrayHasher()),
+            Interner.<int[]>soft(new Intern.IntArrayHasher()));
+    for (Interner<int[]> interner : interners) {
+      int[][] canonical = new int[1000][];
+      for (int i = 0; i < canonical.length; i++) {
+        canonical[i] = interner.intern(new int[] {i, i + 1});
+      }
+      for (int i = 0; i < canonical.length; i++) {
+        assertTrue(canonical[i] == interner.intern(new int[] {i, i + 1}));
+        assertTrue(canonical[i] == interner.get(new int[] {i, i + 1}));
+      }
+      assertEquals(canonical.length, interner.size());
+      assertTrue(interner.get(new int[] {-1}) == null);
+    }
+  }
+
+  @Test
+  public void testWeakExpunge() throws InterruptedException {
+    Interner<int[]> interner = Interner.weak(new Intern.IntArrayHasher());
+    for (int i = 0; i < 1000; i++) {
+      interner.intern(new int[] {i});
+    }
+    for (int i = 0; i < 100 && interner.size() != 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    // The cleared entries were removed through the queue, without probing their buckets.
+    assertEquals(0, interner.size());
+    int[] fresh = new int[] {0};
+    assertTrue(fresh == interner.intern(fresh));
+    assertEquals(1, interner.size());
+  }
+
+  @Test
+  public void testLru() {
+    Interner<String[]> interner = Interner.lru(new Intern.StringArrayHasher(), 2);
+    String[] a = interner.intern(new String[] {"a"});
+    String[] b = interner.intern(new String[] {"b"});
+    // Use a, so that b is the least recently used.
+    assertTrue(a == interner.intern(new String[] {"a"}));
+    String[] c = interner.intern(new String[] {"c"});
+    assertEquals(2, interner.size());
+    assertTrue(a == interner.get(new String[] {"a"}));
+    assertTrue(c == interner.get(new String[] {"c"}));
+    assertTrue(interner.get(new String[] {"b"}) == null);
+    assertTrue(b != interner.intern(new String[] {"b"}));
+  }
+
+  @Test
+  public void testArena() {
+    Interner<String> interner = Interner.arena(null);
+    for (int i = 0; i < 100; i++) {
+      interner.intern("s" + i);
+    }
+    String s5 = interner.intern("s5");
+    assertTrue(s5 == interner.intern(new String("s5")));
+    assertEquals(100, interner.size());
+    interner.clear();
+    assertEquals(0, interner.size());
+    assertTrue(interner.get("s5") == null);
+    assertEquals(Interner.Retention.ARENA, interner.getRetention());
+  }
+}
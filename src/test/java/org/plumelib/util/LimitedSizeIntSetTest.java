@@ -1,6 +1,171 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
 @SuppressWarnings({
   "UseCorrectAssertInTests" // `assert` works fine in tests
 })
-public final class LimitedSizeIntSetTest {}
+public final class LimitedSizeIntSetTest {
+
+  @Test
+  public void testLargeCapacity() {
+    int maxValues = 1000;
+    LimitedSizeIntSet s = new LimitedSizeIntSet(maxValues);
+    Set<Integer> expected = new HashSet<>();
+    Random r = new Random(20140613);
+    while (expected.size() < maxValues) {
+      int elt = r.nextInt(3000) - 1000;
+      s.add(elt);
+      expected.add(elt);
+      assertEquals(expected.size(), s.size());
+    }
+    for (int elt = -1000; elt < 2000; elt++) {
+      assertEquals(expected.contains(elt), s.contains(elt));
+    }
+
+    LimitedSizeIntSet copy = s.clone();
+    LimitedSizeIntSet merged = LimitedSizeIntSet.merge(maxValues + 1, Arrays.asList(s, copy));
+    assertEquals(maxValues, merged.size());
+    for (int elt : expected) {
+      assertTrue(copy.contains(elt));
+      assertTrue(merged.contains(elt));
+    }
+
+    // Adding one more distinct element nulls the representation.
+    int fresh = 5000;
+    assertFalse(s.contains(fresh));
+    s.add(fresh);
+    assertTrue(s.repNulled());
+    assertEquals(maxValues + 1, s.size());
+    assertEquals(maxValues + 1, s.maxSize());
+    assertFalse(copy.repNulled());
+    assertFalse(copy.contains(fresh));
+  }
+
+  @Test
+  public void testSerialization() throws IOException, ClassNotFoundException {
+    LimitedSizeIntSet s = new LimitedSizeIntSet(100);
+    for (int i = 0; i < 50; i++) {
+      s.add(i * 3);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(s);
+    }
+    LimitedSizeIntSet read;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (LimitedSizeIntSet) in.readObject();
+    }
+    assertEquals(50, read.size());
+    for (int i = 0; i < 150; i++) {
+      assertEquals(i % 3 == 0, read.contains(i));
+    }
+    read.add(150);
+    assertEquals(51, read.size());
+    assertTrue(read.contains(150));
+  }
+
+  // Asserts that an estimate is within 10% of the actual value.
+  private static void assertEstimate(int expected, int estimate) {
+    assertTrue(Math.abs(estimate - expected) < expected / 10, estimate + " vs. " + expected);
+  }
+
+  @Test
+  public void testEstimateAfterOverflow() {
+    LimitedSizeIntSet plain = new LimitedSizeIntSet(10);
+    LimitedSizeIntSet a = new LimitedSizeIntSet(10, true);
+    LimitedSizeIntSet b = new LimitedSizeIntSet(10, true);
+    for (int i = 0; i < 50000; i++) {
+      plain.add(i);
+      a.add(i);
+      b.add(i + 25000);
+    }
+    assertEquals(11, plain.size());
+    assertTrue(a.repNulled());
+    assertEstimate(50000, a.size());
+    assertEstimate(50000, b.size());
+    assertEstimate(75000, LimitedSizeIntSet.merge(10, Arrays.asList(a, b)).size());
+
+    LimitedSizeIntSet c = new LimitedSizeIntSet(10, true);
+    c.add(-1);
+    c.addAll(a);
+    assertTrue(c.repNulled());
+    assertEstimate(50000, c.size());
+    LimitedSizeIntSet d = c.clone();
+    c.addAll(b);
+    assertEstimate(75000, c.size());
+    assertEstimate(50000, d.size());
+
+    // A set that has not overflowed contributes its elements to the sketch.
+    LimitedSizeIntSet e = new LimitedSizeIntSet(10, true);
+    for (int i = 0; i < 5; i++) {
+      e.add(-i - 1);
+    }
+    LimitedSizeIntSet small = new LimitedSizeIntSet(10, true);
+    small.addAll(e);
+    assertEquals(5, small.size());
+    d.addAll(e);
+    assertTrue(d.size() >= 11);
+  }
+
+  @Test
+  public void testParallelMerge() {
+    Random r = new Random(20140613);
+    List<LimitedSizeIntSet> slist = new ArrayList<>();
+    Set<Integer> expected = new HashSet<>();
+    for (int i = 0; i < 2000; i++) {
+      LimitedSizeIntSet s = new LimitedSizeIntSet(5);
+      for (int j = 0; j < 3; j++) {
+        int elt = r.nextInt(500);
+        s.add(elt);
+        expected.add(elt);
+      }
+      slist.add(s);
+    }
+    LimitedSizeIntSet merged = LimitedSizeIntSet.merge(1000, slist);
+    LimitedSizeIntSet parallel = LimitedSizeIntSet.parallelMerge(1000, slist);
+    assertEquals(expected.size(), merged.size());
+    assertEquals(expected.size(), parallel.size());
+    for (int elt = -1; elt <= 500; elt++) {
+      assertEquals(expected.contains(elt), merged.contains(elt));
+      assertEquals(expected.contains(elt), parallel.contains(elt));
+    }
+
+    // Once the union overflows, later sets are not examined.
+    LimitedSizeIntSet nulled = new LimitedSizeIntSet(1);
+    nulled.add(1);
+    nulled.add(2);
+    slist.add(nulled);
+    assertEquals(101, LimitedSizeIntSet.merge(100, slist).size());
+    assertTrue(LimitedSizeIntSet.parallelMerge(100, slist).repNulled());
+
+    // Estimating sets merge to the same sketch either way.
+    slist.clear();
+    for (int i = 0; i < 1000; i++) {
+      LimitedSizeIntSet s = new LimitedSizeIntSet(5, true);
+      for (int j = 0; j < 20; j++) {
+        s.add(i * 20 + j);
+      }
+      slist.add(s);
+    }
+    int estimate = LimitedSizeIntSet.merge(10, slist).size();
+    assertEstimate(20000, estimate);
+    assertEquals(estimate, LimitedSizeIntSet.parallelMerge(10, slist).size());
+  }
+}
@@ -1,6 +1,172 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
 @SuppressWarnings({
   "UseCorrectAssertInTests" // `assert` works fine in tests
 })
-public final class LimitedSizeLongSetTest {}
+public final class LimitedSizeLongSetTest {
+
+  @Test
+  public void testLargeCapacity() {
+    int maxValues = 1000;
+    LimitedSizeLongSet s = new LimitedSizeLongSet(maxValues);
+    Set<Long> expected = new HashSet<>();
+    Random r = new Random(20140613);
+    while (expected.size() < maxValues) {
+      long elt = (r.nextInt(3000) - 1000) * 0x100000001L;
+      s.add(elt);
+      expected.add(elt);
+      assertEquals(expected.size(), s.size());
+    }
+    for (int i = -1000; i < 2000; i++) {
+      long elt = i * 0x100000001L;
+      assertEquals(expected.contains(elt), s.contains(elt));
+    }
+
+    LimitedSizeLongSet copy = s.clone();
+    LimitedSizeLongSet merged = LimitedSizeLongSet.merge(maxValues + 1, Arrays.asList(s, copy));
+    assertEquals(maxValues, merged.size());
+    for (long elt : expected) {
+      assertTrue(copy.contains(elt));
+      assertTrue(merged.contains(elt));
+    }
+
+    // Adding one more distinct element nulls the representation.
+    long fresh = 5000;
+    assertFalse(s.contains(fresh));
+    s.add(fresh);
+    assertTrue(s.repNulled());
+    assertEquals(maxValues + 1, s.size());
+    assertEquals(maxValues + 1, s.maxSize());
+    assertFalse(copy.repNulled());
+    assertFalse(copy.contains(fresh));
+  }
+
+  @Test
+  public void testSerialization() throws IOException, ClassNotFoundException {
+    LimitedSizeLongSet s = new LimitedSizeLongSet(100);
+    for (int i = 0; i < 50; i++) {
+      s.add(i * 3);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(s);
+    }
+    LimitedSizeLongSet read;
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      read = (LimitedSizeLongSet) in.readObject();
+    }
+    assertEquals(50, read.size());
+    for (int i = 0; i < 150; i++) {
+      assertEquals(i % 3 == 0, read.contains(i));
+    }
+    read.add(150);
+    assertEquals(51, read.size());
+    assertTrue(read.contains(150));
+  }
+
+  // Asserts that an estimate is within 10% of the actual value.
+  private static void assertEstimate(int expected, int estimate) {
+    assertTrue(Math.abs(estimate - expected) < expected / 10, estimate + " vs. " + expected);
+  }
+
+  @Test
+  public void testEstimateAfterOverflow() {
+    LimitedSizeLongSet plain = new LimitedSizeLongSet(10);
+    LimitedSizeLongSet a = new LimitedSizeLongSet(10, true);
+    LimitedSizeLongSet b = new LimitedSizeLongSet(10, true);
+    for (int i = 0; i < 50000; i++) {
+      plain.add(i);
+      a.add(i);
+      b.add(i + 25000);
+    }
+    assertEquals(11, plain.size());
+    assertTrue(a.repNulled());
+    assertEstimate(50000, a.size());
+    assertEstimate(50000, b.size());
+    assertEstimate(75000, LimitedSizeLongSet.merge(10, Arrays.asList(a, b)).size());
+
+    LimitedSizeLongSet c = new LimitedSizeLongSet(10, true);
+    c.add(-1);
+    c.addAll(a);
+    assertTrue(c.repNulled());
+    assertEstimate(50000, c.size());
+    LimitedSizeLongSet d = c.clone();
+    c.addAll(b);
+    assertEstimate(75000, c.size());
+    assertEstimate(50000, d.size());
+
+    // A set that has not overflowed contributes its elements to the sketch.
+    LimitedSizeLongSet e = new LimitedSizeLongSet(10, true);
+    for (int i = 0; i < 5; i++) {
+      e.add(-i - 1);
+    }
+    LimitedSizeLongSet small = new LimitedSizeLongSet(10, true);
+    small.addAll(e);
+    assertEquals(5, small.size());
+    d.addAll(e);
+    assertTrue(d.size() >= 11);
+  }
+
+  @Test
+  public void testParallelMerge() {
+    Random r = new Random(20140613);
+    List<LimitedSizeLongSet> slist = new ArrayList<>();
+    Set<Integer> expected = new HashSet<>();
+    for (int i = 0; i < 2000; i++) {
+      LimitedSizeLongSet s = new LimitedSizeLongSet(5);
+      for (int j = 0; j < 3; j++) {
+        int elt = r.nextInt(500);
+        s.add(elt);
+        expected.add(elt);
+      }
+      slist.add(s);
+    }
+    LimitedSizeLongSet merged = LimitedSizeLongSet.merge(1000, slist);
+    LimitedSizeLongSet parallel = LimitedSizeLongSet.parallelMerge(1000, slist);
+    assertEquals(expected.size(), merged.size());
+    assertEquals(expected.size(), parallel.size());
+    for (int elt = -1; elt <= 500; elt++) {
+      assertEquals(expected.contains(elt), merged.contains(elt));
+      assertEquals(expected.contains(elt), parallel.contains(elt));
+    }
+
+    // Once the union overflows, later sets are not examined.
+    LimitedSizeLongSet nulled = new LimitedSizeLongSet(1);
+    nulled.add(1);
+    nulled.add(2);
+    slist.add(nulled);
+    assertEquals(101, LimitedSizeLongSet.merge(100, slist).size());
+    assertTrue(LimitedSizeLongSet.parallelMerge(100, slist).repNulled());
+
+    // Estimating sets merge to the same sketch either way.
+    slist.clear();
+    for (int i = 0; i < 1000; i++) {
+      LimitedSizeLongSet s = new LimitedSizeLongSet(5, true);
+      for (int j = 0; j < 20; j++) {
+        s.add(i * 20 + j);
+      }
+      slist.add(s);
+    }
+    int estimate = LimitedSizeLongSet.merge(10, slist).size();
+    assertEstimate(20000, estimate);
+    assertEquals(estimate, LimitedSizeLongSet.parallelMerge(10, slist).size());
+  }
+}
@@ -1,8 +1,14 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import org.checkerframework.checker.index.qual.Positive;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.jupiter.api.Test;
@@ -55,4 +61,93 @@ public final class LimitedSizeSetTest {
     }
     lss_withNull_test();
   }
+
+  // Asserts that an estimate is within 10% of the actual value.
+  private static void assertEstimate(int expected, int estimate) {
+    assertTrue(Math.abs(estimate - expected) < expected / 10, estimate + " vs. " + expected);
+  }
+
+  @Test
+  public void testEstimateAfterOverflow() {
+    LimitedSizeSet<Integer> plain = new LimitedSizeSet<>(10);
+    LimitedSizeSet<Integer> a = new LimitedSizeSet<>(10, true);
+    LimitedSizeSet<Integer> b = new LimitedSizeSet<>(10, true);
+    for (int i = 0; i < 50000; i++) {
+      plain.add(i);
+      a.add(i);
+      b.add(i + 25000);
+    }
+    assertEquals(11, plain.size());
+    assertTrue(a.repNulled());
+    assertEstimate(50000, a.size());
+    assertEstimate(50000, b.size());
+    List<LimitedSizeSet<? extends Integer>> ab = Arrays.asList(a, b);
+    assertEstimate(75000, LimitedSizeSet.merge(10, ab).size());
+
+    LimitedSizeSet<Integer> c = new LimitedSizeSet<>(10, true);
+    c.add(-1);
+    c.addAll(a);
+    assertTrue(c.repNulled());
+    assertEstimate(50000, c.size());
+    LimitedSizeSet<Integer> d = c.clone();
+    c.addAll(b);
+    assertEstimate(75000, c.size());
+    assertEstimate(50000, d.size());
+
+    // A set that has not overflowed contributes its elements to the sketch.
+    LimitedSizeSet<Integer> e = new LimitedSizeSet<>(10, true);
+    for (int i = 0; i < 5; i++) {
+      e.add(-i - 1);
+    }
+    LimitedSizeSet<Integer> small = new LimitedSizeSet<>(10, true);
+    small.addAll(e);
+    assertEquals(5, small.size());
+    d.addAll(e);
+    assertTrue(d.size() >= 11);
+  }
+
+  @Test
+  public void testParallelMerge() {
+    Random r = new Random(20140613);
+    List<LimitedSizeSet<? extends Integer>> slist = new ArrayList<>();
+    Set<Integer> expected = new HashSet<>();
+    for (int i = 0; i < 2000; i++) {
+      LimitedSizeSet<Integer> s = new LimitedSizeSet<>(5);
+      for (int j = 0; j < 3; j++) {
+        int elt = r.nextInt(500);
+        s.add(elt);
+        expected.add(elt);
+      }
+      slist.add(s);
+    }
+    LimitedSizeSet<Integer> merged = LimitedSizeSet.merge(1000, slist);
+    LimitedSizeSet<Integer> parallel = LimitedSizeSet.parallelMerge(1000, slist);
+    assertEquals(expected.size(), merged.size());
+    assertEquals(expected.size(), parallel.size());
+    for (int elt = -1; elt <= 500; elt++) {
+      assertEquals(expected.contains(elt), merged.contains(elt));
+      assertEquals(expected.contains(elt), parallel.contains(elt));
+    }
+
+    // Once the union overflows, later sets are not examined.
+    LimitedSizeSet<Integer> nulled = new LimitedSizeSet<>(1);
+    nulled.add(1);
+    nulled.add(2);
+    slist.add(nulled);
+    assertEquals(101, LimitedSizeSet.merge(100, slist).size());
+    assertTrue(LimitedSizeSet.parallelMerge(100, slist).repNulled());
+
+    // Estimating sets merge to the same sketch either way.
+    slist.clear();
+    for (int i = 0; i < 1000; i++) {
+      LimitedSizeSet<Integer> s = new LimitedSizeSet<>(5, true);
+      for (int j = 0; j < 20; j++) {
+        s.add(i * 20 + j);
+      }
+      slist.add(s);
+    }
+    int estimate = LimitedSizeSet.merge(10, slist).size();
+    assertEstimate(20000, estimate);
+    assertEquals(estimate, LimitedSizeSet.parallelMerge(10, slist).size());
+  }
 }
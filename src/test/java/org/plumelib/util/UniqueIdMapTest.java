@@ -0,0 +1,99 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+
+public final class UniqueIdMapTest {
+
+  @Test
+  public void testGet() {
+    UniqueIdMap<String> uids = new UniqueIdMap<>();
+    String s1 = new String("s");
+    String s2 = new String("s");
+    assertEquals(0, uids.get(s1));
+    assertEquals(1, uids.get(s2));
+    assertEquals(0, uids.get(s1));
+    assertEquals(2, uids.get("s"));
+  }
+
+  @Test
+  public void testConcurrentGet() throws InterruptedException {
+    UniqueIdMap<Object> uids = new UniqueIdMap<>();
+    Object[] objects = new Object[10000];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = new Object();
+    }
+    int numThreads = 8;
+    long[][] ids = new long[numThreads][objects.length];
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; t++) {
+      long[] threadIds = ids[t];
+      int offset = t * 1000;
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < objects.length; i++) {
+                  int j = (i + offset) % objects.length;
+                  threadIds[j] = uids.get(objects[j]);
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // Every thread saw the same ID for each object, and the IDs are exactly 0..objects.length-1.
+    BitSet seen = new BitSet();
+    for (int i = 0; i < objects.length; i++) {
+      for (int t = 1; t < numThreads; t++) {
+        assertEquals(ids[0][i], ids[t][i]);
+      }
+      assertTrue(ids[0][i] < objects.length);
+      seen.set((int) ids[0][i]);
+    }
+    assertEquals(objects.length, seen.cardinality());
+    assertEquals(objects.length, uids.get(new Object()));
+  }
+
+  @Test
+  public void testLookup() throws InterruptedException {
+    assertThrows(UnsupportedOperationException.class, () -> new UniqueIdMap<Object>().lookup(0));
+
+    UniqueIdMap<@Nullable Object> uids = new UniqueIdMap<>(true);
+    Object[] objects = new Object[5000];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = new Object();
+      assertEquals(i, uids.get(objects[i]));
+    }
+    for (int i = 0; i < objects.length; i++) {
+      assertTrue(uids.lookup(i) == objects[i]);
+    }
+    assertTrue(uids.lookup(objects.length) == null);
+    assertTrue(uids.lookup(-1) == null);
+    assertTrue(uids.lookup(Long.MAX_VALUE) == null);
+    long nullId = uids.get(null);
+    assertEquals(objects.length, nullId);
+    assertTrue(uids.lookup(nullId) == null);
+
+    // Discard all but the last object, and make the map notice by assigning more IDs.
+    Object last = objects[objects.length - 1];
+    objects = null;
+    for (int i = 0; i < 100 && uids.lookup(0) != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 5000; i++) {
+      uids.get(new Object());
+    }
+    assertTrue(uids.lookup(0) == null);
+    assertTrue(uids.lookup(4999) == last);
+  }
+}
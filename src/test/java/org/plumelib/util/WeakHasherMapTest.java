@@ -1,6 +1,273 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.junit.jupiter.api.Test;
+
 @SuppressWarnings({
   "UseCorrectAssertInTests" // `assert` works fine in tests
 })
-public final class WeakHasherMapTest {}
+public final class WeakHasherMapTest {
+
+  /** Hashes and compares int[] objects according to their contents. */
+  static final class IntArrayHasher implements Hasher {
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((int[]) a1, (int[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return Arrays.hashCode((int[]) o);
+    }
+  }
+
+  @Test
+  public void testWeakHasherMap() {
+    WeakHasherMap<int[], String> m = new WeakHasherMap<>(new IntArrayHasher());
+    int[][] keys = new int[1000][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new int[] {i, -i};
+      assertTrue(m.put(keys[i], "v" + i) == null);
+    }
+    assertEquals(keys.length, m.size());
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals("v" + i, m.get(new int[] {i, -i}));
+    }
+    assertEquals("v5", m.put(new int[] {5, -5}, "w5"));
+    assertEquals("w5", m.get(keys[5]));
+    assertTrue(m.put(null, "null") == null);
+    assertEquals("null", m.get(null));
+    assertTrue(m.containsKey(null));
+    assertFalse(m.containsKey(new int[] {-1}));
+    assertEquals("v7", m.remove(new int[] {7, -7}));
+    assertTrue(m.get(keys[7]) == null);
+    assertEquals(keys.length, m.size());
+
+    int count = 0;
+    for (Iterator<Map.Entry<int[], String>> it = m.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<int[], String> e = it.next();
+      if (e.getKey() == null || e.getKey()[0] % 2 == 0) {
+        it.remove();
+      } else {
+        e.setValue("odd");
+      }
+      count++;
+    }
+    assertEquals(keys.length, count);
+    assertEquals(keys.length / 2 - 1, m.size());
+    assertEquals("odd", m.get(keys[1]));
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testDefaultMethods() {
+    WeakHasherMap<int[], Integer> m = new WeakHasherMap<>(new IntArrayHasher());
+    int[] k1 = new int[] {1};
+    int[] k2 = new int[] {2};
+    assertEquals(Integer.valueOf(10), m.computeIfAbsent(k1, k -> 10));
+    assertEquals(Integer.valueOf(10), m.computeIfAbsent(new int[] {1}, k -> 20));
+    assertTrue(m.putIfAbsent(k2, 2) == null);
+    assertEquals(Integer.valueOf(2), m.putIfAbsent(new int[] {2}, 3));
+    assertEquals(Integer.valueOf(12), m.merge(new int[] {1}, 2, Integer::sum));
+    assertEquals(Integer.valueOf(4), m.compute(k2, (k, v) -> v * 2));
+    assertEquals(Integer.valueOf(-1), m.getOrDefault(new int[] {3}, -1));
+    m.replaceAll((k, v) -> v + k[0]);
+    assertEquals(Integer.valueOf(13), m.get(k1));
+    assertEquals(Integer.valueOf(6), m.get(k2));
+    int[] sum = new int[1];
+    m.forEach((k, v) -> sum[0] += v);
+    assertEquals(19, sum[0]);
+    assertTrue(m.computeIfPresent(k1, (k, v) -> null) == null);
+    assertFalse(m.containsKey(k1));
+    assertTrue(m.merge(k2, 1, (v1, v2) -> null) == null);
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testReferenceStrengths() throws InterruptedException {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new WeakHasherMap<int[], Object>(
+                new IntArrayHasher(), ReferenceStrength.STRONG, ReferenceStrength.WEAK));
+
+    // Weak values: an entry goes away when its value does, even though its key is still in use.
+    WeakHasherMap<int[], Object> m =
+        new WeakHasherMap<>(new IntArrayHasher(), ReferenceStrength.WEAK, ReferenceStrength.WEAK);
+    int[][] keys = new int[1000][];
+    Object[] values = new Object[10];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new int[] {i};
+      Object value = new Object();
+      if (i < values.length) {
+        values[i] = value;
+      }
+      m.put(keys[i], value);
+    }
+    for (int i = 0; i < 100 && m.size() > values.length; i++) {
+      System.gc();
+      Thread.sleep(10);
+      m.remove(new int[] {-1}); // a mutator expunges stale entries
+    }
+    assertEquals(values.length, m.size());
+    assertTrue(m.get(new int[] {3}) == values[3]);
+    assertTrue(m.put(keys[3], values[4]) == values[3]);
+    assertTrue(m.get(new int[] {3}) == values[4]);
+
+    // Soft keys and soft values behave like an ordinary map while memory is plentiful.
+    WeakHasherMap<int[], Integer> sm =
+        new WeakHasherMap<>(new IntArrayHasher(), ReferenceStrength.SOFT, ReferenceStrength.SOFT);
+    int[] key = new int[] {1, 2};
+    sm.put(key, 1);
+    assertEquals(Integer.valueOf(3), sm.merge(new int[] {1, 2}, 2, Integer::sum));
+    assertEquals(Integer.valueOf(3), sm.computeIfPresent(key, (k, v) -> v));
+    assertEquals(1, sm.size());
+    assertEquals(Integer.valueOf(3), sm.remove(new int[] {1, 2}));
+    assertFalse(sm.containsKey(key));
+  }
+
+  @Test
+  public void testComputeAfterExpunge() throws InterruptedException {
+    // Leave many stale entries on the queue, so that computeIfAbsent finds the key's entry before
+    // the mapping function's call to size() expunges it.
+    WeakHasherMap<int[], Object> m =
+        new WeakHasherMap<>(new IntArrayHasher(), ReferenceStrength.WEAK, ReferenceStrength.WEAK);
+    int[][] keys = new int[10000][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new int[] {i};
+      m.put(keys[i], new Object());
+    }
+    for (int i = 0; i < 100 && m.get(keys[0]) != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    String computed = "computed";
+    for (int[] key : keys) {
+      Object value =
+          m.computeIfAbsent(
+              key,
+              k -> {
+                m.size();
+                return computed;
+              });
+      assertTrue(value == computed);
+      assertTrue(m.get(key) == computed);
+    }
+    assertEquals(keys.length, m.size());
+  }
+
+  @Test
+  public void testSpliterators() {
+    WeakHasherMap<int[], Integer> m = new WeakHasherMap<>(new IntArrayHasher());
+    int[][] keys = new int[10000][];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new int[] {i};
+      m.put(keys[i], i);
+    }
+    m.put(null, -1);
+    long expectedSum = (long) keys.length * (keys.length - 1) / 2 - 1;
+    assertEquals(expectedSum, m.values().parallelStream().mapToLong(i -> i).sum());
+    assertEquals(keys.length + 1, m.keySet().parallelStream().count());
+    assertEquals(
+        expectedSum + 1,
+        m.keySet().parallelStream().filter(k -> k != null).mapToLong(k -> k[0]).sum());
+    assertEquals(expectedSum, m.entrySet().parallelStream().mapToLong(e -> e.getValue()).sum());
+
+    Spliterator<int[]> s = m.keySet().spliterator();
+    assertTrue(s.hasCharacteristics(Spliterator.DISTINCT));
+    assertEquals(keys.length + 1, s.estimateSize());
+    Spliterator<int[]> prefix = s.trySplit();
+    assertTrue(prefix != null);
+    long[] count = new long[1];
+    prefix.forEachRemaining(k -> count[0]++);
+    while (s.tryAdvance(k -> count[0]++)) {}
+    assertEquals(keys.length + 1, count[0]);
+  }
+
+  /** Hashes int[] objects badly: most arrays have one of only four hash codes. */
+  static final class BadIntArrayHasher implements Hasher {
+    @Override
+    public boolean equals(Object a1, Object a2) {
+      return Arrays.equals((int[]) a1, (int[]) a2);
+    }
+
+    @Override
+    public int hashCode(Object o) {
+      return ((int[]) o)[0] & 3;
+    }
+  }
+
+  @Test
+  public void testCollisions() throws InterruptedException {
+    Comparator<int[]> lexicographic =
+        (a1, a2) -> {
+          for (int i = 0; i < Math.min(a1.length, a2.length); i++) {
+            int c = Integer.compare(a1[i], a2[i]);
+            if (c != 0) {
+              return c;
+            }
+          }
+          return Integer.compare(a1.length, a2.length);
+        };
+    List<WeakHasherMap<int[], Integer>> maps =
+        Arrays.asList(
+            new WeakHasherMap<>(new BadIntArrayHasher()),
+            new WeakHasherMap<>(new BadIntArrayHasher(), lexicographic));
+    for (WeakHasherMap<int[], Integer> m : maps) {
+      int[][] keys = new int[2000][];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = new int[] {i, -i};
+        m.put(keys[i], i);
+      }
+      m.put(null, -1);
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(Integer.valueOf(i), m.get(new int[] {i, -i}));
+      }
+      assertEquals(Integer.valueOf(-1), m.get(null));
+      assertEquals(null, m.get(new int[] {1, 1}));
+
+      int[] histogram = m.collisionHistogram();
+      assertEquals(502, histogram.length);
+      assertEquals(1, histogram[501]); // bucket 0 also holds the null key
+      assertEquals(3, histogram[500]);
+
+      for (int i = 0; i < keys.length; i += 2) {
+        assertEquals(Integer.valueOf(i), m.remove(new int[] {i, -i}));
+      }
+      assertEquals(keys.length / 2 + 1, m.size());
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), m.get(new int[] {i, -i}));
+      }
+
+      // Discard half of the remaining keys.
+      for (int i = 1; i < keys.length; i += 4) {
+        @SuppressWarnings("nullness") // test code: permit garbage collection of the key
+        int @NonNull [] resetValue = null;
+        keys[i] = resetValue;
+      }
+      for (int i = 0; i < 100 && m.size() > keys.length / 4 + 1; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertEquals(keys.length / 4 + 1, m.size());
+      for (int i = 3; i < keys.length; i += 4) {
+        assertEquals(Integer.valueOf(i), m.get(new int[] {i, -i}));
+        m.put(new int[] {i, -i, 0}, i);
+      }
+      assertEquals(keys.length / 2 + 1, m.size());
+      assertEquals(keys.length / 2 + 1, m.entrySet().stream().count());
+    }
+  }
+}
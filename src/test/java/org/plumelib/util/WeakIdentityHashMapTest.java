@@ -1,7 +1,13 @@
 package org.plumelib.util;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.Spliterator;
 import org.junit.jupiter.api.Test;
 
 @SuppressWarnings({
@@ -53,4 +59,117 @@ public final class WeakIdentityHashMapTest {
     assertTrue(m.get(s2a) == 2);
     assertTrue(m.get(s3a) == 3);
   }
+
+  @Test
+  public void testDefaultMethods() {
+    WeakIdentityHashMap<String, Integer> m = new WeakIdentityHashMap<>();
+    String s1 = "one";
+    String s1a = new String(s1);
+    assertEquals(Integer.valueOf(1), m.computeIfAbsent(s1, k -> 1));
+    assertEquals(Integer.valueOf(1), m.computeIfAbsent(s1, k -> 2));
+    assertEquals(Integer.valueOf(2), m.computeIfAbsent(s1a, k -> 2));
+    assertTrue(m.putIfAbsent(null, 3) == null);
+    assertEquals(Integer.valueOf(3), m.putIfAbsent(null, 4));
+    assertEquals(Integer.valueOf(11), m.merge(s1, 10, Integer::sum));
+    assertEquals(Integer.valueOf(4), m.compute(s1a, (k, v) -> v * 2));
+    assertEquals(Integer.valueOf(-1), m.getOrDefault(new String(s1), -1));
+    m.replaceAll((k, v) -> -v);
+    int[] sum = new int[1];
+    m.forEach((k, v) -> sum[0] += v);
+    assertEquals(-18, sum[0]);
+    assertTrue(m.computeIfPresent(s1, (k, v) -> null) == null);
+    assertFalse(m.containsKey(s1));
+    assertTrue(m.compute(null, (k, v) -> null) == null);
+    assertEquals(1, m.size());
+  }
+
+  @Test
+  public void testExpungeInBackground() throws InterruptedException {
+    WeakIdentityHashMap<Object, Integer> m = new WeakIdentityHashMap<>();
+    Map<Object, Integer> sm = Collections.synchronizedMap(m);
+    m.expungeInBackground(sm);
+    Object[] keys = new Object[100];
+    for (int i = 0; i < 10000; i++) {
+      Object key = new Object();
+      if (i < keys.length) {
+        keys[i] = key;
+      }
+      sm.put(key, i);
+    }
+    for (int i = 0; i < 100 && sm.size() > keys.length; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(keys.length, sm.size());
+    assertEquals(Integer.valueOf(5), sm.get(keys[5]));
+  }
+
+  @Test
+  public void testReferenceStrengths() throws InterruptedException {
+    assertThrows(
+        IllegalArgumentException.class,
+        () ->
+            new WeakIdentityHashMap<Object, Object>(
+                16, ReferenceStrength.STRONG, ReferenceStrength.STRONG));
+
+    // Weak values: an entry goes away when its value does, even though its key is still in use.
+    WeakIdentityHashMap<Object, Object> m =
+        new WeakIdentityHashMap<>(16, ReferenceStrength.WEAK, ReferenceStrength.WEAK);
+    Object[] keys = new Object[1000];
+    Object[] values = new Object[10];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+      Object value = new Object();
+      if (i < values.length) {
+        values[i] = value;
+      }
+      m.put(keys[i], value);
+    }
+    for (int i = 0; i < 100 && m.size() > values.length; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(values.length, m.size());
+    assertTrue(m.get(keys[3]) == values[3]);
+    assertTrue(m.put(keys[3], values[4]) == values[3]);
+    assertTrue(m.get(keys[3]) == values[4]);
+
+    // Soft keys and soft values behave like an ordinary map while memory is plentiful.
+    WeakIdentityHashMap<Object, Integer> sm =
+        new WeakIdentityHashMap<>(16, ReferenceStrength.SOFT, ReferenceStrength.SOFT);
+    Object key = new Object();
+    sm.put(key, 1);
+    sm.put(null, 2);
+    assertEquals(Integer.valueOf(3), sm.merge(key, 2, Integer::sum));
+    assertEquals(Integer.valueOf(2), sm.get(null));
+    assertEquals(2, sm.size());
+    assertEquals(Integer.valueOf(3), sm.remove(key));
+    assertFalse(sm.containsKey(key));
+  }
+
+  @Test
+  public void testSpliterators() {
+    WeakIdentityHashMap<Object, Integer> m = new WeakIdentityHashMap<>();
+    Object[] keys = new Object[10000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new Object();
+      m.put(keys[i], i);
+    }
+    m.put(null, -1);
+    long expectedSum = (long) keys.length * (keys.length - 1) / 2 - 1;
+    assertEquals(expectedSum, m.values().parallelStream().mapToLong(i -> i).sum());
+    assertEquals(keys.length + 1, m.keySet().parallelStream().count());
+    assertEquals(1, m.keySet().parallelStream().filter(k -> k == null).count());
+    assertEquals(expectedSum, m.entrySet().parallelStream().mapToLong(e -> e.getValue()).sum());
+
+    Spliterator<Object> s = m.keySet().spliterator();
+    assertTrue(s.hasCharacteristics(Spliterator.DISTINCT));
+    assertEquals(keys.length + 1, s.estimateSize());
+    Spliterator<Object> prefix = s.trySplit();
+    assertTrue(prefix != null);
+    long[] count = new long[1];
+    prefix.forEachRemaining(k -> count[0]++);
+    while (s.tryAdvance(k -> count[0]++)) {}
+    assertEquals(keys.length + 1, count[0]);
+  }
 }
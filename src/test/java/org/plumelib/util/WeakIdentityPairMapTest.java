@@ -0,0 +1,59 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public final class WeakIdentityPairMapTest {
+
+  @Test
+  public void testIdentity() {
+    WeakIdentityPairMap<String, String, Integer> m = new WeakIdentityPairMap<>();
+    String a1 = new String("a");
+    String a2 = new String("a");
+    String b = new String("b");
+    assertTrue(m.put(a1, b, 1) == null);
+    assertTrue(m.put(a2, b, 2) == null);
+    assertTrue(m.put(b, a1, 3) == null);
+    assertEquals(3, m.size());
+    assertEquals(Integer.valueOf(1), m.get(a1, b));
+    assertEquals(Integer.valueOf(2), m.get(a2, b));
+    assertEquals(Integer.valueOf(3), m.get(b, a1));
+    assertTrue(m.get(b, a2) == null);
+    assertFalse(m.containsKey("a", b));
+    assertEquals(Integer.valueOf(1), m.put(a1, b, 4));
+    assertEquals(Integer.valueOf(4), m.computeIfAbsent(a1, b, (x, y) -> 5));
+    assertEquals(Integer.valueOf(6), m.computeIfAbsent(b, b, (x, y) -> 6));
+    assertTrue(m.containsKey(b, b));
+    assertEquals(Integer.valueOf(2), m.remove(a2, b));
+    assertTrue(m.remove(a2, b) == null);
+    assertEquals(3, m.size());
+    m.clear();
+    assertTrue(m.isEmpty());
+  }
+
+  @Test
+  public void testWeakKeys() throws InterruptedException {
+    WeakIdentityPairMap<Object, Object, Integer> m = new WeakIdentityPairMap<>();
+    Object[] firsts = new Object[100];
+    Object[] seconds = new Object[100];
+    for (int i = 0; i < firsts.length; i++) {
+      firsts[i] = new Object();
+      seconds[i] = new Object();
+      m.put(firsts[i], seconds[i], i);
+      // Only one of the keys of each of these entries is discarded.
+      m.put(firsts[i], new Object(), -i);
+      m.put(new Object(), seconds[i], -i);
+    }
+    for (int i = 0; i < 100 && m.size() > firsts.length; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertEquals(firsts.length, m.size());
+    for (int i = 0; i < firsts.length; i++) {
+      assertEquals(Integer.valueOf(i), m.get(firsts[i], seconds[i]));
+    }
+  }
+}
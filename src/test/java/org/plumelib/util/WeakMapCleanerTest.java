@@ -0,0 +1,36 @@
+package org.plumelib.util;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public final class WeakMapCleanerTest {
+
+  /** A stand-in for a map, whose stale entries are counted down by the drainer. */
+  static final class FakeMap {
+    /** The number of stale entries. */
+    final AtomicInteger stale = new AtomicInteger(3 * WeakMapCleaner.BATCH_SIZE);
+
+    /** Counted down when all stale entries have been drained. */
+    final CountDownLatch drained = new CountDownLatch(1);
+  }
+
+  @Test
+  public void testDrain() throws InterruptedException {
+    FakeMap map = new FakeMap();
+    WeakMapCleaner.register(
+        map,
+        (m, limit) -> {
+          int remaining = m.stale.addAndGet(-Math.min(limit, m.stale.get()));
+          if (remaining == 0) {
+            m.drained.countDown();
+          }
+          return remaining > 0;
+        });
+    System.gc();
+    assertTrue(map.drained.await(10 * WeakMapCleaner.PERIOD_MILLIS, TimeUnit.MILLISECONDS));
+  }
+}